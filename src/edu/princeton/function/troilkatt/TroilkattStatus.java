@@ -179,17 +179,29 @@ public class TroilkattStatus {
 		return lastStatus;
 	}
 	
+	/**
+	 * Return timestamp of the last status for a given stage
+	 *
+	 * @param stageID stage to get timestamp for
+	 * @return timestamp of last status for the given stage, or -1 if not found or the
+	 *  timestamp was invalid due to a corrupted file.
+	 * @throws IOException 
+	 */
+	public long getLastStatusTimestamp(String stageID) throws IOException {
+		return getLastStatusTimestamp(stageID, null);
+	}
+	
 	/**
 	 * Return timestamp of the last status of the given type for a given stage
 	 *
 	 * @param stageID stage to get timestamp for
-	 * @param status status to match
+	 * @param status status to match. If null the last status of any type is used.
 	 * @return timestamp of last status of the given type for the given stage, or
 	 *  -1 if not found or the timestamp was invalid due to a corrupted file.
 	 * @throws IOException 
 	 */
-	public long getLastStatusTimestamp(String stageID) throws IOException {
-		String lastLine = getLastLine(stageID);
+	public long getLastStatusTimestamp(String stageID, String status) throws IOException {
+		String lastLine = getLastLine(stageID, status);
 		if (lastLine == null) {
 			return -1;
 		}
@@ -225,17 +237,6 @@ public class TroilkattStatus {
 	}
 
 	
-	
-	/**
-	 * Get last line in status file for a given stage.
-	 * 
-	 * @param stageID ID in stage
-	 * @return last line with given stageID, or null if no status was found
-	 * @throws IOException 
-	 */
-	private String getLastLine(String stageID) throws IOException {
-		return getLastLine(stageID, null);
-	}
 
 	/**
 	 * Get last line in status file for a given stage that matches the provided
@@ -1,29 +1,26 @@
 package edu.princeton.function.troilkatt.clients;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.HashMap;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.log4j.Logger;
 
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
 import edu.princeton.function.troilkatt.TroilkattStatus;
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.fs.TroilkattFS;
 import edu.princeton.function.troilkatt.fs.TroilkattHDFS;
+import edu.princeton.function.troilkatt.mapreduce.Recompressor;
 import edu.princeton.function.troilkatt.mapreduce.TroilkattMapReduce;
 import edu.princeton.function.troilkatt.mapreduce.PerFile.WholeFileInputFormat;
 import gnu.getopt.Getopt;
@@ -48,6 +45,7 @@ public class ReCompressDir extends TroilkattClient {
 		protected String compressionFormat;
 		protected long timestamp;
 		protected String tmpDir;
+		protected Recompressor recompressor;
 		
 		/**
 		 * Setup global variables. This function is called before map()
@@ -64,6 +62,7 @@ public class ReCompressDir extends TroilkattClient {
 			tmpDir = (TroilkattMapReduce.confEget(conf, "mapred.tmp.dir"));
 			
 			filesCompressed = context.getCounter(CompressCounters.FILES_COMPRESSED);
+			recompressor = new Recompressor(conf, hdfs, Logger.getLogger("troilkatt.recompress"));
 		}
 		
 		/**
@@ -76,7 +75,6 @@ public class ReCompressDir extends TroilkattClient {
 		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
 			// Split filename into its different components
 			String inputFilename = key.toString();
-			Path inputPath = new Path(inputFilename);			
 			if (! tfs.isfile(inputFilename)) {
 				System.err.println("Not a file: " + inputFilename);
 				return;
@@ -89,45 +87,23 @@ public class ReCompressDir extends TroilkattClient {
 				return;
 			}
 			
-			// Check if the compression format for the input file used is supported by hadoop
-			CompressionCodecFactory factory = new CompressionCodecFactory(conf);
-			CompressionCodec inputCodec = factory.getCodec(inputPath);
-			
 			// Create output filename
 			Path outputDirPath = FileOutputFormat.getOutputPath(context); // get task specific output directory
 			String outputDir = outputDirPath.toString();
-			String outputFilename = OsPath.join(outputDir, basename + "." + srcTimestamp + "." + compressionFormat);
-			Path outputPath = new Path(outputFilename);			
-			CompressionCodec outputCodec = factory.getCodec(outputPath);			
 			
-			if ((inputCodec != null) || (srcCompression.equals("none")) &&
-					(outputCodec != null) || (compressionFormat.equals("none"))) { // both input and output codec is supported by hadoop
-				OutputStream out = null;
-				try {
-					// Read compressed file directly and write compressed file directly
-					InputStream in = null;
-					if (inputCodec != null) {
-						in = inputCodec.createInputStream(hdfs.open(inputPath));
-					}
-					else {
-						in = hdfs.open(inputPath);
-					}				
-					if (outputCodec != null) {
-						out = outputCodec.createOutputStream(hdfs.create(outputPath));
-					}
-					else {
-						out = hdfs.create(outputPath);
-					}
-					IOUtils.copyBytes(in, out, conf);
-					IOUtils.closeStream(in);
-					IOUtils.closeStream(out);
-					filesCompressed.increment(1);
-				} catch (IOException e) {
-					System.err.println("Could not recompress file: " + inputFilename);
-					IOUtils.closeStream(out);
-					tfs.deleteFile(outputFilename);
-					return;
-				}
+			// Stream the decompressed file directly to the compressor if both codecs are supported 
+			// by Hadoop or commons-compress
+			Recompressor.RecompressResult result = null;
+			try {
+				result = recompressor.recompress(inputFilename, srcCompression, outputDir, basename, srcTimestamp, compressionFormat);
+			} catch (IOException e) {
+				System.err.println("Could not recompress file: " + inputFilename);
+				return;
+			}
+			
+			if (result != null) {
+				Recompressor.updateCounters(context, result);
+				filesCompressed.increment(1);
 			}			
 			else {
 				// Read input file to local FS, uncompress, re-compress and rewrite back to hadoop
@@ -139,7 +115,8 @@ public class ReCompressDir extends TroilkattClient {
 					System.err.println("Could not uncompress input file: " + inputFilename);
 					return;
 				}
-				if (tfs.putLocalFile(localInputFilename, outputDir, tmpDir, tmpDir, compressionFormat, srcTimestamp) == null) {
+				String dstCompression = compressionFormat.equals(Recompressor.AUTO) ? "gz" : compressionFormat;
+				if (tfs.putLocalFile(localInputFilename, outputDir, tmpDir, tmpDir, dstCompression, srcTimestamp) == null) {
 					System.err.println("Could not re-compress to: " + compressionFormat + " input file: " + inputFilename);
 					return;
 				}
@@ -168,9 +145,10 @@ public class ReCompressDir extends TroilkattClient {
 				"\t-c FILE        Specify troilkatt configuration FILE to use (default: %s).\n" +
 				"\t-l FILE        log4j.properties file to use (default: %s).\n" +
 				"\t-t TIMESTAMP   Timestamp to add to file (default: current time).\n" +
-				"\t-z COMPRESSION Compression format to use (default: %s).\n" +				
+				"\t-z COMPRESSION Compression format to use, or \"auto\" to select the format per\n" +
+				"\t               file by benchmarking a sample (default: %s).\n" +				
 				"\t-h             Display command line options.", 
-				progName, DEFAULT_ARGS.get("configFile"), DEFAULT_ARGS.get("logProperties")));
+				progName, DEFAULT_ARGS.get("configFile"), DEFAULT_ARGS.get("logProperties"), DEFAULT_ARGS.get("compressionFormat")));
 	}
 
 	/**
@@ -190,7 +168,7 @@ public class ReCompressDir extends TroilkattClient {
 		argDict.put("timestamp", DEFAULT_ARGS.get("timestamp"));	
 		argDict.put("compressionFormat", DEFAULT_ARGS.get("compressionFormat"));
 
-		Getopt g = new Getopt("troilkatt", argv, "hc:l:t:");
+		Getopt g = new Getopt("troilkatt", argv, "hc:l:t:z:");
 		int c;		
 
 		while ((c = g.getopt()) != -1) {
@@ -214,7 +192,7 @@ public class ReCompressDir extends TroilkattClient {
 				break;
 			case 'z':
 				String cf = g.getOptarg();
-				if (! TroilkattFS.isValidCompression(cf)) {
+				if (! cf.equals(Recompressor.AUTO) && ! TroilkattFS.isValidCompression(cf)) {
 					System.err.println("Not a valid compression format: " + cf);
 					System.exit(2);
 				}
@@ -265,8 +243,9 @@ public class ReCompressDir extends TroilkattClient {
 		}
 		
 		String compressionFormat = args.get("compressionFormat");
-		if (! TroilkattFS.isValidCompression(compressionFormat)) {
+		if (! compressionFormat.equals(Recompressor.AUTO) && ! TroilkattFS.isValidCompression(compressionFormat)) {
 			System.err.println("Not a valid compression format: " + compressionFormat);
+			System.exit(2);
 		}
 
 		/*
@@ -277,6 +256,8 @@ public class ReCompressDir extends TroilkattClient {
 		Job job = null;
 		try {
 			job = Job.getInstance(conf, clientName);
+			// The job has its own copy of the configuration
+			conf = job.getConfiguration();
 			job.setJarByClass(ReCompressDir.class);
 			
 			/* Setup mapper: use the Compress class*/
@@ -314,6 +295,7 @@ public class ReCompressDir extends TroilkattClient {
 			}
 			else {
 				System.out.println("Directory successfully re-compressed");
+				System.out.println(Recompressor.createReport(job.getCounters()));
 			}
 		} catch (InterruptedException e) {
 			System.err.println("Interrupt exception: " + e.getMessage());
@@ -0,0 +1,310 @@
+package edu.princeton.function.troilkatt.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Sorted manifest of a recursive tfs directory listing. The manifest has one entry per
+ * file and directory with the name relative to the listed directory, the size, and the
+ * modification time.
+ *
+ * A manifest from a previous listing is used to speed up the next listing: the content of
+ * a directory is only listed if the directory modification time has changed (that is, if
+ * files have been added, deleted or renamed in the directory). Otherwise the entries from
+ * the previous manifest are reused, and only the modification times of the sub-directories
+ * are checked. Since tfs files are written once, this gives the same result as a full
+ * listing. Directories modified shortly before the previous listing are always listed,
+ * since a later change may have the same modification time.
+ *
+ * The manifest is stored as a text file with a header line, followed by one tab separated
+ * line per entry sorted by name:
+ *
+ *   # \t listed directory \t listing time
+ *   type \t size \t modification time \t name
+ *
+ * where type is "d" for directories and "f" for files. The listed directory itself has an
+ * empty name.
+ */
+public class DirManifest {
+	/**
+	 * Manifest entry for one file or directory.
+	 */
+	public static class Entry implements Comparable<Entry> {
+		public String name;
+		public boolean isDir;
+		public long size;
+		public long modificationTime;
+
+		public Entry(String name, boolean isDir, long size, long modificationTime) {
+			this.name = name;
+			this.isDir = isDir;
+			this.size = size;
+			this.modificationTime = modificationTime;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			return name.compareTo(o.name);
+		}
+	}
+
+	// Directories modified less than this many milliseconds before the previous listing are
+	// always listed. This covers coarse modification times and clock differences.
+	public static final long MTIME_MARGIN = 60 * 1000;
+
+	// Listed directory
+	protected String rootDir;
+	// Time of the listing in milliseconds
+	protected long listTime;
+	// Entries sorted by name
+	protected ArrayList<Entry> entries;
+	// Number of directories that were listed and reused from the previous manifest
+	protected int dirsListed;
+	protected int dirsReused;
+
+	/**
+	 * Constructor for an empty manifest.
+	 *
+	 * @param rootDir listed directory
+	 * @param listTime time of the listing
+	 */
+	public DirManifest(String rootDir, long listTime) {
+		this.rootDir = rootDir;
+		this.listTime = listTime;
+		entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Do a recursive listing of a tfs directory. Hidden files are not included.
+	 *
+	 * @param tfs tfs handle
+	 * @param rootDir directory to list
+	 * @param prev manifest from the previous listing, or null. The manifest is ignored if it
+	 * is for a different directory.
+	 * @return manifest for the directory, or null if rootDir is not a directory
+	 * @throws IOException
+	 */
+	public static DirManifest list(TroilkattFS tfs, String rootDir, DirManifest prev) throws IOException {
+		if (! tfs.isdir(rootDir)) {
+			return null;
+		}
+
+		HashMap<String, Entry> prevDirs = new HashMap<String, Entry>();
+		HashMap<String, ArrayList<Entry>> prevChildren = new HashMap<String, ArrayList<Entry>>();
+		if ((prev != null) && prev.rootDir.equals(rootDir)) {
+			for (Entry e: prev.entries) {
+				if (e.isDir && (e.modificationTime < prev.listTime - MTIME_MARGIN)) {
+					prevDirs.put(e.name, e);
+				}
+				if (e.name.isEmpty()) {
+					continue;
+				}
+				String parent = getParent(e.name);
+				ArrayList<Entry> children = prevChildren.get(parent);
+				if (children == null) {
+					children = new ArrayList<Entry>();
+					prevChildren.put(parent, children);
+				}
+				children.add(e);
+			}
+		}
+
+		DirManifest manifest = new DirManifest(rootDir, System.currentTimeMillis());
+		manifest.listDir(tfs, "", tfs.getModificationTime(rootDir), prevDirs, prevChildren);
+		Collections.sort(manifest.entries);
+		return manifest;
+	}
+
+	/**
+	 * Helper function to list a directory and its sub-directories.
+	 *
+	 * @param tfs tfs handle
+	 * @param relDir directory name relative to the root directory
+	 * @param modificationTime current modification time of the directory
+	 * @param prevDirs directory entries in the previous manifest that can be reused
+	 * @param prevChildren entries in the previous manifest, grouped by parent directory
+	 * @throws IOException
+	 */
+	protected void listDir(TroilkattFS tfs, String relDir, long modificationTime,
+			HashMap<String, Entry> prevDirs, HashMap<String, ArrayList<Entry>> prevChildren) throws IOException {
+		entries.add(new Entry(relDir, true, 0, modificationTime));
+
+		Entry prevDir = prevDirs.get(relDir);
+		if ((prevDir != null) && (modificationTime != -1) && (prevDir.modificationTime == modificationTime)) {
+			// Directory content has not changed
+			dirsReused++;
+			ArrayList<Entry> children = prevChildren.get(relDir);
+			if (children == null) {
+				return;
+			}
+			for (Entry c: children) {
+				if (c.isDir) {
+					long t = tfs.getModificationTime(OsPath.join(rootDir, c.name));
+					if (t == -1) { // deleted after listing
+						continue;
+					}
+					listDir(tfs, c.name, t, prevDirs, prevChildren);
+				}
+				else {
+					entries.add(c);
+				}
+			}
+			return;
+		}
+
+		dirsListed++;
+		String absDir = relDir.isEmpty() ? rootDir : OsPath.join(rootDir, relDir);
+		ArrayList<Entry> children = tfs.listStatus(absDir);
+		if (children == null) { // deleted after listing
+			return;
+		}
+		for (Entry c: children) {
+			String basename = OsPath.basename(c.name);
+			String name = relDir.isEmpty() ? basename : relDir + "/" + basename;
+			if (c.isDir) {
+				listDir(tfs, name, c.modificationTime, prevDirs, prevChildren);
+			}
+			else if (! basename.startsWith(".")) {
+				entries.add(new Entry(name, false, c.size, c.modificationTime));
+			}
+		}
+	}
+
+	/**
+	 * Helper function to get the parent of a relative name.
+	 */
+	protected static String getParent(String name) {
+		int slash = name.lastIndexOf('/');
+		if (slash == -1) {
+			return "";
+		}
+		return name.substring(0, slash);
+	}
+
+	/**
+	 * Read a manifest file.
+	 *
+	 * @param filename manifest file on the local FS
+	 * @return manifest
+	 * @throws IOException if the file could not be read or has an invalid line
+	 */
+	public static DirManifest read(String filename) throws IOException {
+		String[] lines = FSUtils.readTextFile(filename);
+		if (lines.length == 0) {
+			throw new IOException("Empty manifest file: " + filename);
+		}
+		String[] header = lines[0].split("\t");
+		if ((header.length != 3) || (! header[0].equals("#"))) {
+			throw new IOException("Invalid manifest header: " + lines[0]);
+		}
+		DirManifest manifest;
+		try {
+			manifest = new DirManifest(header[1], Long.valueOf(header[2]));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid manifest header: " + lines[0]);
+		}
+		
+		String prevName = null;
+		for (int i = 1; i < lines.length; i++) {
+			String l = lines[i];
+			if (l.isEmpty()) {
+				continue;
+			}
+			// The limit keeps the empty name of the root directory
+			String[] cols = l.split("\t", 4);
+			if ((cols.length != 4) || (! (cols[0].equals("d") || cols[0].equals("f")))) {
+				throw new IOException("Invalid manifest line: " + l);
+			}
+			try {
+				manifest.entries.add(new Entry(cols[3], cols[0].equals("d"), Long.valueOf(cols[1]), Long.valueOf(cols[2])));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid manifest line: " + l);
+			}
+			if ((prevName != null) && (prevName.compareTo(cols[3]) >= 0)) {
+				throw new IOException("Manifest is not sorted at line: " + l);
+			}
+			prevName = cols[3];
+		}
+		return manifest;
+	}
+
+	/**
+	 * Write manifest to a file.
+	 *
+	 * @param filename manifest file on the local FS
+	 * @throws IOException
+	 */
+	public void write(String filename) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>(entries.size() + 1);
+		lines.add("#\t" + rootDir + "\t" + listTime);
+		for (Entry e: entries) {
+			lines.add((e.isDir ? "d" : "f") + "\t" + e.size + "\t" + e.modificationTime + "\t" + e.name);
+		}
+		FSUtils.writeTextFile(filename, lines);
+	}
+
+	/**
+	 * @return absolute filenames of all files in the manifest, sorted by name
+	 */
+	public ArrayList<String> getFiles() {
+		ArrayList<String> files = new ArrayList<String>();
+		for (Entry e: entries) {
+			if (! e.isDir) {
+				files.add(OsPath.join(rootDir, e.name));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @return listed directory
+	 */
+	public String getRootDir() {
+		return rootDir;
+	}
+
+	/**
+	 * @return all entries sorted by name
+	 */
+	public ArrayList<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return number of directories listed when the manifest was created
+	 */
+	public int getDirsListed() {
+		return dirsListed;
+	}
+
+	/**
+	 * @return number of directories reused from the previous manifest
+	 */
+	public int getDirsReused() {
+		return dirsReused;
+	}
+
+	/**
+	 * Merge-join two sorted lists, and return the elements that are only in the first list.
+	 *
+	 * @param sortedA first list, sorted in ascending order
+	 * @param sortedB second list, sorted in ascending order
+	 * @return elements in sortedA that are not in sortedB, in sorted order
+	 */
+	public static ArrayList<String> diff(List<String> sortedA, List<String> sortedB) {
+		ArrayList<String> onlyA = new ArrayList<String>();
+		int b = 0;
+		for (String a: sortedA) {
+			while ((b < sortedB.size()) && (sortedB.get(b).compareTo(a) < 0)) {
+				b++;
+			}
+			if ((b == sortedB.size()) || (! sortedB.get(b).equals(a))) {
+				onlyA.add(a);
+			}
+		}
+		return onlyA;
+	}
+}
@@ -75,6 +75,30 @@ public class TroilkattFS {
 		throw new RuntimeException("Method not implemented");
 	}
 	
+	/**
+	 * Do a (non-recursive) directory listing that includes the size and modification
+	 * time of each file and sub-directory.
+	 * 
+	 * @param tfsDir directory to list
+	 * @return list of entries with absolute filenames, or null if the directory name is
+	 * not valid.
+	 * @throws IOException
+	 */
+	public ArrayList<DirManifest.Entry> listStatus(String tfsDir) throws IOException {
+		throw new RuntimeException("Method not implemented");
+	}
+	
+	/**
+	 * Get the modification time of a file or directory.
+	 * 
+	 * @param tfsName file or directory name
+	 * @return modification time in milliseconds, or -1 if the file does not exist
+	 * @throws IOException
+	 */
+	public long getModificationTime(String tfsName) throws IOException {
+		throw new RuntimeException("Method not implemented");
+	}
+	
 	/**
 	 * Get a list of the files with the newest timestamps in a directory. The listing
 	 * is recursive.
@@ -91,10 +115,20 @@ public class TroilkattFS {
 			return null;
 		}
 					
+		return getNewestFiles(allFiles);
+	}
+	
+	/**
+	 * Get the files with the newest timestamps in a list of files.
+	 * 
+	 * @param allFiles list of files
+	 * @return ArrayList of String with the newest version of each file. Files without a 
+	 * valid timestamp are not included.
+	 */
+	public ArrayList<String> getNewestFiles(ArrayList<String> allFiles) {
 		HashMap<String, Long> name2timestamp = new HashMap<String, Long>();
 		HashMap<String, String> name2fullname = new HashMap<String, String>();
 		for (String f: allFiles) {
-			logger.warn("THISFILE: " + f);
 			String name = getFilenameName(f);
 			long timestamp = getFilenameTimestamp(f);
 			
@@ -249,6 +283,20 @@ public class TroilkattFS {
 		throw new RuntimeException("Method not implemented");
 	}
 	
+	/**
+	 * Create a tfs file and return a stream that compresses the data written to it. This 
+	 * avoids writing large files to the local FS before they are put to tfs.
+	 * 
+	 * @param tfsFilename tfs filename, including timestamp and compression extension
+	 * @param compression compression method to use for file
+	 * @return stream to write the uncompressed file content to, or null if the compression
+	 * method cannot be used for streaming. The file is complete when the stream is closed.
+	 * @throws IOException if the file could not be created
+	 */
+	public OutputStream createFile(String tfsFilename, String compression) throws IOException {
+		throw new RuntimeException("Method not implemented");
+	}
+	
 	/**
 	 * Compress a file and move the file from local FS to tfs.
 	 * 
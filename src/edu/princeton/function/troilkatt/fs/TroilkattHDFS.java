@@ -6,9 +6,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.log4j.Logger;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -113,6 +116,53 @@ public class TroilkattHDFS extends TroilkattFS {
 		return filenames;
 	}
 	
+	/**
+	 * Do a (non-recursive) directory listing that includes the size and modification
+	 * time of each file and sub-directory.
+	 * 
+	 * @param hdfsDir directory to list
+	 * @return list of entries with absolute filenames, or null if the directory name is
+	 * not valid.
+	 * @throws IOException
+	 */
+	@Override
+	public ArrayList<DirManifest.Entry> listStatus(String hdfsDir) throws IOException {
+		FileStatus[] files;
+		try {
+			files = hdfs.listStatus(new Path(hdfsDir));
+		} catch (FileNotFoundException e) {
+			logger.warn("Not a directory: " + hdfsDir);
+			return null;
+		}
+		if (files == null) {
+			logger.warn("Not a directory: " + hdfsDir);
+			return null;
+		}
+		
+		ArrayList<DirManifest.Entry> entries = new ArrayList<DirManifest.Entry>(files.length);
+		for (FileStatus fs: files) {
+			entries.add(new DirManifest.Entry(path2filename(fs.getPath()), fs.isDirectory(), 
+					fs.getLen(), fs.getModificationTime()));
+		}
+		return entries;
+	}
+	
+	/**
+	 * Get the modification time of a file or directory.
+	 * 
+	 * @param hdfsName file or directory name
+	 * @return modification time in milliseconds, or -1 if the file does not exist
+	 * @throws IOException
+	 */
+	@Override
+	public long getModificationTime(String hdfsName) throws IOException {
+		try {
+			return hdfs.getFileStatus(new Path(hdfsName)).getModificationTime();
+		} catch (FileNotFoundException e) {
+			return -1;
+		}
+	}
+	
 	
 	
 	/**
@@ -380,6 +430,40 @@ public class TroilkattHDFS extends TroilkattFS {
 		return hdfsFilename;
 	}
 	
+	/**
+	 * Create an HDFS file and return a stream that compresses the data written to it. Both 
+	 * Hadoop codecs and commons-compress are used for compression.
+	 * 
+	 * @param tfsFilename HDFS filename, including timestamp and compression extension
+	 * @param compression compression method to use for file
+	 * @return stream to write the uncompressed file content to, or null if the compression
+	 * method is not supported by Hadoop or commons-compress
+	 * @throws IOException if the file could not be created
+	 */
+	@Override
+	public OutputStream createFile(String tfsFilename, String compression) throws IOException {
+		Path outputPath = new Path(tfsFilename);
+		if (compression.equals("none")) {
+			return hdfs.create(outputPath);
+		}
+		
+		CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+		CompressionCodec codec = factory.getCodec(outputPath);
+		if (codec != null) {
+			return codec.createOutputStream(hdfs.create(outputPath));
+		}
+		
+		String format = compression.equals("bz2") ? "bzip2" : compression;
+		OutputStream os = hdfs.create(outputPath);
+		try {
+			return new CompressorStreamFactory().createCompressorOutputStream(format, os);
+		} catch (CompressorException e) { // not supported by commons-compress
+			os.close();
+			hdfs.delete(outputPath, false);
+			return null;
+		}
+	}
+	
 	/**
 	 * Compress a file and move the file from local FS to HDFS. (Note no timestamp is added to the 
 	 * filename).
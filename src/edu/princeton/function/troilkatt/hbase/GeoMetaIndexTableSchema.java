@@ -0,0 +1,41 @@
+package edu.princeton.function.troilkatt.hbase;
+
+import org.apache.hadoop.hbase.io.hfile.Compression;
+
+/**
+ * Secondary index for the GEO meta table that maps organisms and platforms to the
+ * dataset/series IDs (GIDs) in the GEO meta table.
+ *
+ * There is one row per (organism, GID) and (platform, GID) pair such that all GIDs for an
+ * organism or platform can be found using a prefix scan. The row keys are:
+ * - org<tab>organism<tab>GID: for example "org\tHomo sapiens\tGSE1234"
+ * - gpl<tab>platformID<tab>GID: for example "gpl\tGPL96\tGSE1234"
+ *
+ * family "gid":
+ * - id: GID (the row key in the GEO meta table)
+ * - organisms: all organisms for the GID as stored in the meta:organisms column (organism
+ *   rows only). It is used to match organism patterns against the same value as a scan of 
+ *   the meta table.
+ *
+ * The "complete" row is written when the index has been built from the full meta table by
+ * GeoMetaTableSchema.rebuildIndex().
+ *
+ * The index is updated by GeoMetaTableSchema.updateIndex() and read using the query
+ * helpers in GeoMetaTableSchema.
+ */
+public class GeoMetaIndexTableSchema extends TroilkattTable {
+
+	/**
+	 * Constructor.
+	 */
+	public GeoMetaIndexTableSchema() {
+		tableName = "troilkatt-geo-meta-index";
+
+		colFams = new String[1];
+		colFams[0] = "gid";
+
+		// The index values are small and read using prefix scans, so compression is not needed
+		compressionType = Compression.Algorithm.NONE;
+		compactionCompressionType = Compression.Algorithm.NONE;
+	}
+}
@@ -0,0 +1,207 @@
+package edu.princeton.function.troilkatt.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Read-through and write-behind cache for the GEO meta table.
+ *
+ * The cache is intended to be used by a single stage run (or MapReduce task) that reads
+ * and writes values for many datasets/series, such that the many single row gets and
+ * puts are replaced with a few multi-gets and multi-puts:
+ * - prefetch() reads the values for a list of rows using GeoMetaTableSchema.getValues()
+ * - getValue() returns a cached value, or reads it from the table if not in the cache. The
+ *   least recently used values are evicted when the cache is full.
+ * - put() buffers the update, and the buffer is written to the table when it is full, or
+ *   when flush() or close() is called.
+ *
+ * Note! Buffered updates are not written to the table before flush() or close() is called,
+ * so other readers of the table will not see these.
+ */
+public class GeoMetaTableCache {
+	// Default maximum number of values in the cache
+	public static final int DEFAULT_CACHE_SIZE = 100000;
+	// Default maximum number of buffered updates
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 1000;
+
+	protected HTable metaTable;
+	protected Logger logger;
+
+	// key: gid<tab>family:qualifier, value: cell value (null if the cell does not exist)
+	protected LinkedHashMap<String, String> cache;
+	// Buffered updates
+	protected ArrayList<Put> writeBuffer;
+	protected int writeBufferSize;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param metaTable initialized GEO meta data handle
+	 * @param cacheSize maximum number of values to cache
+	 * @param writeBufferSize maximum number of updates to buffer before these are written
+	 * @param logger optional logger. If null, no error messages are written
+	 */
+	public GeoMetaTableCache(HTable metaTable, final int cacheSize, int writeBufferSize, Logger logger) {
+		this.metaTable = metaTable;
+		this.logger = logger;
+		this.writeBufferSize = writeBufferSize;
+		writeBuffer = new ArrayList<Put>();
+
+		// Access ordered map where the least recently used entry is removed when the map is full
+		cache = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Constructor that uses the default cache and write buffer sizes.
+	 *
+	 * @param metaTable initialized GEO meta data handle
+	 * @param logger optional logger. If null, no error messages are written
+	 */
+	public GeoMetaTableCache(HTable metaTable, Logger logger) {
+		this(metaTable, DEFAULT_CACHE_SIZE, DEFAULT_WRITE_BUFFER_SIZE, logger);
+	}
+
+	/**
+	 * Read values for multiple rows into the cache using multi-gets.
+	 *
+	 * @param gids dataset/series identifiers used as row keys in the GEO meta table
+	 * @param columns columns to read specified as "family:qualifier"
+	 * @throws IOException if the rows could not be read
+	 */
+	public void prefetch(List<String> gids, String[] columns) throws IOException {
+		HashMap<String, HashMap<String, String>> values = GeoMetaTableSchema.getValues(metaTable, gids, columns, logger);
+		for (String gid: gids) {
+			HashMap<String, String> rowValues = values.get(gid);
+			for (String c: columns) {
+				// Also cache missing values to avoid reading these again
+				String val = (rowValues == null) ? null : rowValues.get(c);
+				cache.put(getCacheKey(gid, c), val);
+			}
+		}
+	}
+
+	/**
+	 * Read a value from the cache, or from the GEO meta table if it is not in the cache.
+	 *
+	 * @param gid dataset/series identifier used as row key in the GEO meta table
+	 * @param columnFamily the column to read
+	 * @param columnQualifier the field to read
+	 * @return value or null if the value could not be read
+	 * @throws IOException
+	 */
+	public String getValue(String gid, String columnFamily, String columnQualifier) throws IOException {
+		String key = getCacheKey(gid, columnFamily + ":" + columnQualifier);
+		if (cache.containsKey(key)) {
+			return cache.get(key);
+		}
+
+		String val = GeoMetaTableSchema.getValue(metaTable, gid, columnFamily, columnQualifier, logger);
+		cache.put(key, val);
+		return val;
+	}
+
+	/**
+	 * Read a "meta" value. See getValue()
+	 */
+	public String getMetaValue(String gid, String columnQualifier) throws IOException {
+		return getValue(gid, "meta", columnQualifier);
+	}
+
+	/**
+	 * Read an "info" value. See getValue()
+	 */
+	public String getInfoValue(String gid, String columnQualifier) throws IOException {
+		return getValue(gid, "calculated", columnQualifier);
+	}
+
+	/**
+	 * Buffer an update. The cached values are updated immediately, while the update is
+	 * written to the table when the write buffer is full, or when flush() is called.
+	 *
+	 * @param update row update
+	 * @throws IOException if the write buffer could not be written to the table
+	 */
+	public void put(Put update) throws IOException {
+		String gid = Bytes.toString(update.getRow());
+		for (Map.Entry<byte[], List<KeyValue>> e: update.getFamilyMap().entrySet()) {
+			for (KeyValue kv: e.getValue()) {
+				String column = Bytes.toString(kv.getFamily()) + ":" + Bytes.toString(kv.getQualifier());
+				cache.put(getCacheKey(gid, column), Bytes.toString(kv.getValue()));
+			}
+		}
+
+		writeBuffer.add(update);
+		if (writeBuffer.size() >= writeBufferSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write all buffered updates to the table.
+	 *
+	 * @throws IOException if the updates could not be written
+	 */
+	public void flush() throws IOException {
+		if (writeBuffer.isEmpty()) {
+			return;
+		}
+
+		try {
+			metaTable.put(writeBuffer);
+		} catch (IOException e) {
+			if (logger != null) {
+				logger.error("Could not write " + writeBuffer.size() + " buffered updates", e);
+			}
+			throw e;
+		}
+		writeBuffer.clear();
+	}
+
+	/**
+	 * Write all buffered updates, and clear the cache.
+	 *
+	 * @throws IOException if the updates could not be written
+	 */
+	public void close() throws IOException {
+		flush();
+		cache.clear();
+	}
+
+	/**
+	 * @return number of values in the cache
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return number of buffered updates
+	 */
+	public int getBufferedUpdates() {
+		return writeBuffer.size();
+	}
+
+	/**
+	 * Helper function to create a cache key
+	 */
+	protected static String getCacheKey(String gid, String column) {
+		return gid + "\t" + column;
+	}
+}
@@ -1,13 +1,32 @@
 package edu.princeton.function.troilkatt.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
 
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.SubstringComparator;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
+import edu.princeton.function.troilkatt.tools.GeoSoftParser;
+import edu.princeton.function.troilkatt.tools.ParseException;
+
 /**
  * Hbase table that holds meta-data extracted from the SOFT file and calculated fields.
  * 
@@ -51,8 +70,30 @@ import org.apache.log4j.Logger;
  * - pclFilename: filename of soft2pcl output file
  * 
  * family "other":
+ * 
+ * The organisms and platformIDs columns are also indexed in the table specified by 
+ * GeoMetaIndexTableSchema. The index must be updated using updateIndex() whenever these 
+ * columns are written. Rows written before the index was added are only in the index after
+ * it has been rebuilt using rebuildIndex(), so the index should not be used for queries 
+ * unless isIndexComplete() returns true.
  */
 public class GeoMetaTableSchema extends TroilkattTable {
+	// Row key prefixes used in the index table
+	public static final String ORGANISM_INDEX = "org";
+	public static final String PLATFORM_INDEX = "gpl";
+	// Separator between row key parts in the index table
+	public static final String INDEX_SEPARATOR = "\t";
+	// Index table row that is written when the index has been built from the full meta table
+	public static final String INDEX_COMPLETE_KEY = "complete";
+	
+	// Maximum number of rows read per multi-get in getValues()
+	public static final int GET_BATCH_SIZE = 1000;
+	
+	// Index table column with the GID
+	protected static final byte[] indexFam = Bytes.toBytes("gid");
+	protected static final byte[] indexQual = Bytes.toBytes("id");
+	// Index table column with all organisms for the GID, as stored in the meta table
+	protected static final byte[] indexOrgQual = Bytes.toBytes("organisms");
 
 	/**
 	 * Constructor.
@@ -146,4 +187,505 @@ public class GeoMetaTableSchema extends TroilkattTable {
 		String val = Bytes.toString(valBytes);
 		return val;	
 	}
+	
+	/**
+	 * Read values for multiple rows from the GEO meta table. The rows are read using
+	 * multi-gets of up to GET_BATCH_SIZE rows, so this function should be used instead of
+	 * getValue() when values are needed for many rows. 
+	 * 
+	 * @param metaTable initialized GEO meta data handle
+	 * @param gids dataset/series identifiers used as row keys in the GEO meta table
+	 * @param columns columns to read specified as "family:qualifier"
+	 * @param logger optional logger. If null, no error messages are written
+	 * @return map where the key is the GID, and the value is a map with (column, value) pairs.
+	 * Rows and columns without values are not included.
+	 * @throws IOException if the rows could not be read
+	 */
+	public static HashMap<String, HashMap<String, String>> getValues(HTable metaTable, 
+			List<String> gids, String[] columns, Logger logger) throws IOException {
+		byte[][] fams = new byte[columns.length][];
+		byte[][] quals = new byte[columns.length][];
+		for (int i = 0; i < columns.length; i++) {
+			String[] parts = columns[i].split(":");
+			if (parts.length != 2) {
+				throw new IOException("Invalid column (family:qualifier): " + columns[i]);
+			}
+			fams[i] = Bytes.toBytes(parts[0]);
+			quals[i] = Bytes.toBytes(parts[1]);
+		}
+		
+		HashMap<String, HashMap<String, String>> values = new HashMap<String, HashMap<String, String>>();
+		for (int start = 0; start < gids.size(); start += GET_BATCH_SIZE) {
+			int end = Math.min(start + GET_BATCH_SIZE, gids.size());
+			ArrayList<Get> gets = new ArrayList<Get>(end - start);
+			for (String gid: gids.subList(start, end)) {
+				Get get = new Get(Bytes.toBytes(gid));
+				for (int i = 0; i < columns.length; i++) {
+					get.addColumn(fams[i], quals[i]);
+				}
+				gets.add(get);
+			}
+			
+			Result[] results;
+			try {
+				results = metaTable.get(gets);
+			} catch (IOException e) {
+				if (logger != null) {
+					logger.fatal("IOException during multi-get of " + gets.size() + " rows", e);
+				}
+				throw e;
+			}
+			
+			for (Result result: results) {
+				if ((result == null) || result.isEmpty()) {
+					continue;
+				}
+				HashMap<String, String> rowValues = new HashMap<String, String>();
+				for (int i = 0; i < columns.length; i++) {
+					byte[] valBytes = result.getValue(fams[i], quals[i]);
+					if (valBytes != null) {
+						rowValues.put(columns[i], Bytes.toString(valBytes));
+					}
+				}
+				values.put(Bytes.toString(result.getRow()), rowValues);
+			}
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Create a meta table row with the meta-data extracted from a SOFT file.
+	 * 
+	 * @param gid dataset/series identifier used as row key
+	 * @param parser parser used to parse the SOFT file
+	 * @param softFilename filename of the SOFT file, saved in the files:softFilename column
+	 * @param timestamp timestamp for the row
+	 * @return row with the meta columns found in the file
+	 * @throws ParseException if a single value field has multiple values
+	 */
+	public static Put createMetaRow(String gid, GeoSoftParser parser, String softFilename, 
+			long timestamp) throws ParseException {
+		Put update = new Put(Bytes.toBytes(gid), timestamp);
+		byte[] family = Bytes.toBytes("meta");
+		
+		update.add(Bytes.toBytes("files"), Bytes.toBytes("softFilename"), Bytes.toBytes(softFilename));
+		for (String k: parser.singleKeys) {
+			String val = parser.getSingleValue(k);
+			if (val != null) {
+				update.add(family, Bytes.toBytes(k), Bytes.toBytes(val));
+			}
+		}
+		for (String k: parser.multiKeys) {
+			ArrayList<String> val = parser.getValues(k);					
+			if (val != null) {
+				String s = TroilkattTable.array2string(val);					
+				update.add(family, Bytes.toBytes(k), Bytes.toBytes(s));
+			}
+		}
+		return update;
+	}
+	
+	/**
+	 * Create an index table row key.
+	 * 
+	 * @param index ORGANISM_INDEX or PLATFORM_INDEX
+	 * @param value organism name or platform ID
+	 * @param gid dataset/series identifier used as row key in the GEO meta table. If null
+	 * the prefix for all rows for value is returned.
+	 * @return row key
+	 */
+	public static String getIndexKey(String index, String value, String gid) {
+		String prefix = index + INDEX_SEPARATOR + value + INDEX_SEPARATOR;
+		if (gid == null) {
+			return prefix;
+		}
+		return prefix + gid;
+	}
+	
+	/**
+	 * Update the organism and platform index for a dataset/series. 
+	 * 
+	 * This function must be called before the new values are written to the GEO meta table, 
+	 * since the current values in the meta table are used to find index rows that must be 
+	 * deleted.
+	 * 
+	 * @param metaTable initialized GEO meta data handle
+	 * @param indexTable initialized GEO meta index handle
+	 * @param gid dataset/series identifier used as row key in the GEO meta table
+	 * @param organisms new organisms for the dataset/series. Can be null.
+	 * @param platformIDs new platform IDs for the dataset/series. Can be null.
+	 * @param timestamp timestamp for the index rows
+	 * @throws IOException if the meta or index table could not be read or updated 
+	 */
+	public static void updateIndex(HTable metaTable, HTable indexTable, String gid,
+			ArrayList<String> organisms, ArrayList<String> platformIDs, long timestamp) throws IOException {
+		HashSet<String> newKeys = getIndexKeys(gid, organisms, platformIDs);
+		HashSet<String> staleKeys = getStaleIndexKeys(metaTable, gid, newKeys);
+		
+		// Delete index rows for values no longer in the meta table
+		ArrayList<Delete> deletes = new ArrayList<Delete>();
+		for (String k: staleKeys) {
+			deletes.add(new Delete(Bytes.toBytes(k)));
+		}
+		if (! deletes.isEmpty()) {
+			indexTable.delete(deletes);
+		}
+		
+		// Add (or update) index rows for the new values
+		ArrayList<Put> puts = new ArrayList<Put>();
+		String organismsValue = array2string(organisms);
+		for (String k: newKeys) {
+			puts.add(createIndexPut(k, gid, organismsValue, timestamp));
+		}
+		if (! puts.isEmpty()) {
+			indexTable.put(puts);
+		}
+	}
+	
+	/**
+	 * Get the index row keys for the organisms and platforms of a dataset/series.
+	 * 
+	 * @param gid dataset/series identifier used as row key in the GEO meta table
+	 * @param organisms organisms for the dataset/series. Can be null.
+	 * @param platformIDs platform IDs for the dataset/series. Can be null.
+	 * @return set of index row keys
+	 */
+	public static HashSet<String> getIndexKeys(String gid, ArrayList<String> organisms, ArrayList<String> platformIDs) {
+		HashSet<String> keys = new HashSet<String>();
+		if (organisms != null) {
+			for (String o: organisms) {
+				keys.add(getIndexKey(ORGANISM_INDEX, o, gid));
+			}
+		}
+		if (platformIDs != null) {
+			for (String p: platformIDs) {
+				keys.add(getIndexKey(PLATFORM_INDEX, p, gid));
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Find the index rows for the values currently in the meta table that are not in a new
+	 * set of index rows. These must be deleted when the meta row is replaced.
+	 * 
+	 * @param metaTable initialized GEO meta data handle
+	 * @param gid dataset/series identifier used as row key in the GEO meta table
+	 * @param newKeys index row keys for the new values, as returned by getIndexKeys()
+	 * @return set of index row keys to delete
+	 * @throws IOException if the meta table could not be read
+	 */
+	public static HashSet<String> getStaleIndexKeys(HTable metaTable, String gid, HashSet<String> newKeys) throws IOException {
+		Get get = new Get(Bytes.toBytes(gid));
+		byte[] fam = Bytes.toBytes("meta");
+		byte[] orgQual = Bytes.toBytes("organisms");
+		byte[] platQual = Bytes.toBytes("platformIDs");
+		get.addColumn(fam, orgQual);
+		get.addColumn(fam, platQual);
+		Result result = metaTable.get(get);
+		if ((result == null) || result.isEmpty()) {
+			return new HashSet<String>();
+		}
+		
+		HashSet<String> oldKeys = getIndexKeys(gid, 
+				string2array(Bytes.toString(result.getValue(fam, orgQual))),
+				string2array(Bytes.toString(result.getValue(fam, platQual))));
+		oldKeys.removeAll(newKeys);
+		return oldKeys;
+	}
+	
+	/**
+	 * Create an index row.
+	 * 
+	 * @param key index row key, as returned by getIndexKey()
+	 * @param gid dataset/series identifier stored in the row
+	 * @param organisms all organisms for the dataset/series, as stored in the meta:organisms
+	 * column (see TroilkattTable.array2string()). It is only stored in organism index rows, 
+	 * and can be null.
+	 * @param timestamp timestamp for the row
+	 * @return Put for the index table
+	 */
+	public static Put createIndexPut(String key, String gid, String organisms, long timestamp) {
+		Put put = new Put(Bytes.toBytes(key), timestamp);
+		put.add(indexFam, indexQual, Bytes.toBytes(gid));
+		if ((organisms != null) && key.startsWith(ORGANISM_INDEX + INDEX_SEPARATOR)) {
+			put.add(indexFam, indexOrgQual, Bytes.toBytes(organisms));
+		}
+		return put;
+	}
+	
+	/**
+	 * Check if the index has been built from the full meta table, such that all rows in the 
+	 * meta table are in the index.
+	 * 
+	 * @param indexTable initialized GEO meta index handle
+	 * @return true if rebuildIndex() has completed for the index table
+	 * @throws IOException if the index table could not be read
+	 */
+	public static boolean isIndexComplete(HTable indexTable) throws IOException {
+		Get get = new Get(Bytes.toBytes(INDEX_COMPLETE_KEY));
+		get.addColumn(indexFam, indexQual);
+		Result result = indexTable.get(get);
+		return (result != null) && ! result.isEmpty();
+	}
+	
+	/**
+	 * Mark the index as incomplete, such that it is rebuilt by the next rebuildIndex() 
+	 * call. This should be done if index updates for the meta table are lost.
+	 * 
+	 * @param indexTable initialized GEO meta index handle
+	 * @throws IOException if the index table could not be updated
+	 */
+	public static void invalidateIndex(HTable indexTable) throws IOException {
+		indexTable.delete(new Delete(Bytes.toBytes(INDEX_COMPLETE_KEY)));
+	}
+	
+	/**
+	 * Build the organism and platform index from the organisms and platformIDs columns of 
+	 * all rows in the meta table. Index rows for values no longer in the meta table are 
+	 * deleted. When done the INDEX_COMPLETE_KEY row is written, such that 
+	 * isIndexComplete() returns true.
+	 * 
+	 * Note! The index should not be updated by other writers during the rebuild, since 
+	 * rows added after the meta table was scanned are deleted.
+	 * 
+	 * @param metaTable initialized GEO meta data handle
+	 * @param indexTable initialized GEO meta index handle
+	 * @param timestamp timestamp for the index rows
+	 * @param logger logger used for progress messages
+	 * @return number of index rows
+	 * @throws IOException if the meta table could not be read, or the index could not be 
+	 * updated
+	 */
+	public static int rebuildIndex(HTable metaTable, HTable indexTable, long timestamp, 
+			Logger logger) throws IOException {
+		byte[] fam = Bytes.toBytes("meta");
+		byte[] orgQual = Bytes.toBytes("organisms");
+		byte[] platQual = Bytes.toBytes("platformIDs");
+		Scan scan = new Scan();
+		scan.addColumn(fam, orgQual);
+		scan.addColumn(fam, platQual);
+		scan.setMaxVersions(1);
+		scan.setCaching(DEFAULT_SCAN_CACHING);
+		scan.setCacheBlocks(false);
+		
+		// Add (or update) index rows for all meta rows
+		HashSet<String> validKeys = new HashSet<String>();
+		ArrayList<Put> puts = new ArrayList<Put>();
+		ResultScanner scanner = metaTable.getScanner(scan);
+		try {
+			for (Result res: scanner) {
+				String gid = Bytes.toString(res.getRow());
+				String organisms = Bytes.toString(res.getValue(fam, orgQual));
+				HashSet<String> keys = getIndexKeys(gid, string2array(organisms), 
+						string2array(Bytes.toString(res.getValue(fam, platQual))));
+				for (String k: keys) {
+					puts.add(createIndexPut(k, gid, organisms, timestamp));
+				}
+				validKeys.addAll(keys);
+				
+				if (puts.size() >= GET_BATCH_SIZE) {
+					indexTable.put(puts);
+					puts.clear();
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		if (! puts.isEmpty()) {
+			indexTable.put(puts);
+		}
+		logger.info("Added " + validKeys.size() + " index rows");
+		
+		// Delete stale index rows
+		ArrayList<Delete> deletes = new ArrayList<Delete>();
+		int nDeleted = 0;
+		for (String prefix: new String[] {ORGANISM_INDEX + INDEX_SEPARATOR, PLATFORM_INDEX + INDEX_SEPARATOR}) {
+			byte[] prefixBytes = Bytes.toBytes(prefix);
+			Scan indexScan = new Scan(prefixBytes);
+			FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+			filters.addFilter(new PrefixFilter(prefixBytes));
+			filters.addFilter(new KeyOnlyFilter());
+			indexScan.setFilter(filters);
+			indexScan.setCaching(DEFAULT_SCAN_CACHING);
+			
+			scanner = indexTable.getScanner(indexScan);
+			try {
+				for (Result res: scanner) {
+					if (! validKeys.contains(Bytes.toString(res.getRow()))) {
+						deletes.add(new Delete(res.getRow()));
+						nDeleted++;
+					}
+					if (deletes.size() >= GET_BATCH_SIZE) {
+						indexTable.delete(deletes);
+						deletes.clear();
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+		}
+		if (! deletes.isEmpty()) {
+			indexTable.delete(deletes);
+		}
+		logger.info("Deleted " + nDeleted + " stale index rows");
+		
+		Put complete = new Put(Bytes.toBytes(INDEX_COMPLETE_KEY), timestamp);
+		complete.add(indexFam, indexQual, Bytes.toBytes(String.valueOf(timestamp)));
+		indexTable.put(complete);
+		
+		return validKeys.size();
+	}
+	
+	/**
+	 * Get all dataset/series IDs for an organism.
+	 * 
+	 * @param indexTable initialized GEO meta index handle
+	 * @param organism organism name (such as "Homo sapiens")
+	 * @return list of GEO meta table row keys
+	 * @throws IOException 
+	 */
+	public static ArrayList<String> getGIDsByOrganism(HTable indexTable, String organism) throws IOException {
+		return getIndexGIDs(indexTable, getIndexKey(ORGANISM_INDEX, organism, null), null);
+	}
+	
+	/**
+	 * Get all dataset/series IDs for organisms that match a pattern. Only the organism part 
+	 * of the index is scanned.
+	 * 
+	 * @param indexTable initialized GEO meta index handle
+	 * @param orgPattern pattern that is searched for (using find()) in the organisms value
+	 * stored in the meta table (all organisms for the dataset/series separated by newlines), 
+	 * such that the result is the same as when the meta:organisms column is scanned
+	 * @return list of GEO meta table row keys
+	 * @throws IOException 
+	 */
+	public static ArrayList<String> getGIDsByOrganism(HTable indexTable, Pattern orgPattern) throws IOException {
+		return getIndexGIDs(indexTable, ORGANISM_INDEX + INDEX_SEPARATOR, orgPattern);
+	}
+	
+	/**
+	 * Get all dataset/series IDs for a platform.
+	 * 
+	 * @param indexTable initialized GEO meta index handle
+	 * @param platformID GEO platform ID (such as "GPL96")
+	 * @return list of GEO meta table row keys
+	 * @throws IOException 
+	 */
+	public static ArrayList<String> getGIDsByPlatform(HTable indexTable, String platformID) throws IOException {
+		return getIndexGIDs(indexTable, getIndexKey(PLATFORM_INDEX, platformID, null), null);
+	}
+	
+	/**
+	 * Helper function to do a prefix scan of the index table.
+	 * 
+	 * @param indexTable initialized GEO meta index handle
+	 * @param prefix row key prefix
+	 * @param orgPattern optional pattern that must be found in the organisms column of the 
+	 * index rows. Can be null.
+	 * @return list of GIDs (the last part of the row key) for matching rows
+	 * @throws IOException
+	 */
+	protected static ArrayList<String> getIndexGIDs(HTable indexTable, String prefix, 
+			Pattern orgPattern) throws IOException {
+		byte[] prefixBytes = Bytes.toBytes(prefix);
+		Scan scan = new Scan(prefixBytes);
+		FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+		filters.addFilter(new PrefixFilter(prefixBytes));
+		if (orgPattern == null) {
+			// The GID is also in the row key, so the values need not be retrieved
+			filters.addFilter(new KeyOnlyFilter());
+		}
+		else {
+			scan.addColumn(indexFam, indexOrgQual);
+		}
+		scan.setFilter(filters);
+		scan.setCaching(DEFAULT_SCAN_CACHING);
+		
+		ArrayList<String> gids = new ArrayList<String>();
+		// A GID is in one row per organism
+		HashSet<String> added = new HashSet<String>();
+		ResultScanner scanner = indexTable.getScanner(scan);
+		try {
+			for (Result res: scanner) {
+				String[] parts = Bytes.toString(res.getRow()).split(INDEX_SEPARATOR);
+				if (parts.length != 3) { // should not happen
+					continue;
+				}
+				if (orgPattern != null) {
+					String organisms = Bytes.toString(res.getValue(indexFam, indexOrgQual));
+					if ((organisms == null) || (! orgPattern.matcher(organisms).find())) {
+						continue;
+					}
+				}
+				if (added.add(parts[2])) {
+					gids.add(parts[2]);
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		
+		return gids;
+	}
+	
+	/**
+	 * Get the platform specific parts of a series, with the samples that are kept after 
+	 * overlapping samples have been removed.
+	 * 
+	 * @param metaTable initialized GEO meta data handle
+	 * @param seriesID series ID
+	 * @param logger logger used for error messages
+	 * @return hash map where the platform-specific series ID is used as key, and 
+	 * the value consist of a list with sample IDs in that platform (with samples
+	 * removed due to overlap), or null if the table could not be read
+	 */
+	public static HashMap<String, ArrayList<String>> getSeriesParts(HTable metaTable, String seriesID, 
+			Logger logger) {
+		HashMap<String, ArrayList<String>> sid2gsm = new HashMap<String, ArrayList<String>>();
+		/*
+		 *  Read rows from Hbase meta table
+		 */					
+		String rowStartKey = seriesID;
+		String rowEndKey = seriesID + "zzz";
+		// Filter to ensure that only rows for the given stage are selected
+		Filter filter = new RowFilter(CompareFilter.CompareOp.EQUAL, 
+			      new SubstringComparator(seriesID));
+		// Need a scanner to iterate over all MapReduce task rows
+		Scan scan = new Scan(Bytes.toBytes(rowStartKey), Bytes.toBytes(rowEndKey));		
+		scan.setFilter(filter);
+		byte[] fam = Bytes.toBytes("calculated");
+		byte[] qual = Bytes.toBytes("sampleIDs-overlapRemoved");
+		scan.addColumn(fam, qual);
+		
+		// Get rows
+		ResultScanner scanner;
+		try {
+			scanner = metaTable.getScanner(scan);
+		} catch (IOException e) {
+			logger.warn("Could not create Hbase table scanner ", e);
+			return null;
+		}			
+		// and iterate over all returned rows					
+		for (Result res: scanner) {
+			String sidWithPlatform = Bytes.toString(res.getRow());
+			if (! sidWithPlatform.startsWith(seriesID)) {
+				logger.warn("Scanner returned row which was not a split of: " + rowStartKey);
+				continue;
+			}
+			
+			byte[] valBytes = res.getValue(fam, qual);
+			if (valBytes == null) {
+				logger.error("Null value for sampleID in row: " + sidWithPlatform);
+				continue;	
+			}				
+			String val = Bytes.toString(valBytes);
+			ArrayList<String> gsmIDs = TroilkattTable.string2array(val);
+			sid2gsm.put(sidWithPlatform, gsmIDs);
+		}
+		scanner.close();
+		
+		return sid2gsm;
+	}
 }
@@ -12,6 +12,8 @@ import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
 import org.apache.hadoop.hbase.io.hfile.Compression;
 import org.apache.hadoop.hbase.io.hfile.Compression.Algorithm;
 import org.apache.hadoop.hbase.regionserver.StoreFile;
@@ -23,6 +25,9 @@ import org.apache.hadoop.hbase.util.Bytes;
  * subclass.
  */
 public class TroilkattTable {
+	// Default number of rows retrieved per scanner RPC by scans created using createScan()
+	public static final int DEFAULT_SCAN_CACHING = 500;
+	
 	/* 
 	 * These fields should be set in the constructor of the subclass.
 	 */
@@ -92,11 +97,9 @@ public class TroilkattTable {
 		// Do not enable client side write buffer (default): if used rows must be explicitly flushed after a put
 		table.setAutoFlush(true);
 		
-		/* Enable client side scanner caching: multiple rows are retrieved at a time for
-		 * a scanner and cached in the client memory. This will also increase the client
-		 * memory footprint */
-		// Should be done for each scanner
-		// table.setScannerCaching(10);
+		/* Client side scanner caching is not enabled for the table, since it increases the 
+		 * client memory footprint for all scanners. Instead it is set for each scanner in 
+		 * createScan() */
 		
 		return table;
 	}
@@ -197,6 +200,107 @@ public class TroilkattTable {
 		}
 	}
 	
+	/**
+	 * Create a scan for a full table scan, such as the scan used as input to a TableMapper job.
+	 * 
+	 * By default the scan only retrieves the specified columns, DEFAULT_SCAN_CACHING rows are
+	 * retrieved per RPC, and the read blocks are not added to the region server block cache 
+	 * (a full table scan would otherwise evict the blocks used by random reads).
+	 * 
+	 * The default values can be changed, and filters added, using a string with space 
+	 * separated key=value options (typically the stage arguments):
+	 * - caching=N: number of rows retrieved per RPC
+	 * - batch=N: maximum number of columns returned per Result. Note! If set a row may be split
+	 *   over several Results, so this should only be used if the mapper does not need all 
+	 *   columns for a row in the same map() call.
+	 * - cacheBlocks=true|false: add blocks read by the scan to the block cache 
+	 * - prefix=S: only scan rows where the row key starts with S
+	 * - minTime=T: only include cells with a timestamp larger than, or equal to, T
+	 * - maxTime=T: only include cells with a timestamp smaller than T
+	 * 
+	 * @param columns columns to retrieve specified as "family:qualifier" or "family". If null
+	 * or empty all columns are retrieved.
+	 * @param scanArgs space separated key=value options as described above. Can be null, and
+	 * "null" is treated as no options. 
+	 * @return initialized scan
+	 * @throws HbaseException if a column or option is invalid
+	 */
+	public static Scan createScan(String[] columns, String scanArgs) throws HbaseException {
+		Scan scan = new Scan();
+		
+		if (columns != null) {
+			for (String c: columns) {
+				String[] parts = c.split(":");
+				if (parts.length == 1) {
+					scan.addFamily(Bytes.toBytes(parts[0]));
+				}
+				else if (parts.length == 2) {
+					scan.addColumn(Bytes.toBytes(parts[0]), Bytes.toBytes(parts[1]));
+				}
+				else {
+					throw new HbaseException("Invalid column (family:qualifier): " + c);
+				}
+			}
+		}
+		
+		scan.setMaxVersions(1);
+		scan.setCaching(DEFAULT_SCAN_CACHING);
+		scan.setCacheBlocks(false);
+		
+		if ((scanArgs == null) || scanArgs.trim().isEmpty() || scanArgs.trim().equals("null")) {
+			return scan;
+		}
+		
+		long minTime = 0;
+		long maxTime = Long.MAX_VALUE;
+		for (String a: scanArgs.trim().split("\\s+")) {
+			String[] parts = a.split("=");
+			if (parts.length != 2) {
+				throw new HbaseException("Invalid scan option (key=value): " + a);
+			}
+			String key = parts[0];
+			String val = parts[1];
+			try {
+				if (key.equals("caching")) {
+					scan.setCaching(Integer.valueOf(val));
+				}
+				else if (key.equals("batch")) {
+					scan.setBatch(Integer.valueOf(val));
+				}
+				else if (key.equals("cacheBlocks")) {
+					scan.setCacheBlocks(Boolean.valueOf(val));
+				}
+				else if (key.equals("prefix")) {
+					byte[] prefix = Bytes.toBytes(val);
+					// Start at the first matching row. The filter stops the scan after the last
+					scan.setStartRow(prefix);
+					scan.setFilter(new PrefixFilter(prefix));
+				}
+				else if (key.equals("minTime")) {
+					minTime = Long.valueOf(val);
+				}
+				else if (key.equals("maxTime")) {
+					maxTime = Long.valueOf(val);
+				}
+				else {
+					throw new HbaseException("Unknown scan option: " + key);
+				}
+			} catch (NumberFormatException e) {
+				throw new HbaseException("Invalid value for scan option " + key + ": " + val);
+			}
+		}
+		
+		if ((minTime != 0) || (maxTime != Long.MAX_VALUE)) {
+			try {
+				scan.setTimeRange(minTime, maxTime);
+			} catch (IOException e) {
+				throw new HbaseException("Invalid time range: " + minTime + "-" + maxTime);
+			}
+		}
+		
+		return scan;
+	}
+	
 	/**
 	 * Convert an ArrayList<String> to a single String where the array elements are seperated with newlines.
 	 * This function will also convert any newlines in the array elements to <NEWLINE>. The last element does
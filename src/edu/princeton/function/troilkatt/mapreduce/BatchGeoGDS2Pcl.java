@@ -2,8 +2,6 @@ package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -114,7 +112,7 @@ public class BatchGeoGDS2Pcl extends PerFile {
 				String localFilename = OsPath.join(taskOutputDir, outputBasename);
 				bw = null;
 				try {
-					bw = new BufferedWriter(new FileWriter(new File(localFilename)));
+					bw = openLocalBufferedWriter(localFilename);
 					parser.convert(lin, bw);
 					bw.close();
 				} catch (IOException e) {
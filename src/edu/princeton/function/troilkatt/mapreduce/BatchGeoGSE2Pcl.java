@@ -4,7 +4,6 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -197,7 +196,7 @@ public class BatchGeoGSE2Pcl extends PerFile {
 						// All output files will be written in cleanup()
 						localFilename = OsPath.join(taskOutputDir, outputBasename);					
 						try {
-							bw = new BufferedWriter(new FileWriter(new File(localFilename)));	
+							bw = openLocalBufferedWriter(localFilename);	
 							parser.stage2(br, bw, pid); // parse and write output file
 							bw.close();
 						} catch (IOException e) {
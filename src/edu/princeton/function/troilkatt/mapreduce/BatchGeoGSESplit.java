@@ -2,9 +2,7 @@ package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -142,6 +140,7 @@ public class BatchGeoGSESplit extends PerFile {
 				else {
 					serFilesWritten.increment(1);					
 					serFile.close(); // always close
+					countLocalOutput(serFilename);
 				}
 			} catch (ParseException e) {
 				parserExceptions.increment(1);
@@ -199,7 +198,7 @@ public class BatchGeoGSESplit extends PerFile {
 						// All output files will be written in cleanup()
 						localFilename = OsPath.join(taskOutputDir, outputBasename);					
 						try {
-							bw = new BufferedWriter(new FileWriter(new File(localFilename)));	
+							bw = openLocalBufferedWriter(localFilename);	
 							parser.writeSoftPerPlatform(br, bw, pid);
 							bw.close();
 						} catch (IOException e) {
@@ -10,7 +10,6 @@ import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.util.GenericOptionsParser;
 
-import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
 import edu.princeton.function.troilkatt.tools.PclCleanupConsolidation;
@@ -27,6 +26,9 @@ public class BatchPclCleanupConsolidation extends BatchPclCommon {
 		@Override
 		public void setup(Context context) throws IOException {
 			super.setup(context);									
+			
+			// map() is thread-safe, so several files can be processed in parallel
+			mapThreads = getMapThreads(TroilkattMapReduce.confEget(conf, "troilkatt.stage.args").split(" "));
 		}
 		
 		/**
@@ -42,7 +44,7 @@ public class BatchPclCleanupConsolidation extends BatchPclCommon {
 				String inputFilename) throws IOException {
 			String gid = FilenameUtils.getDsetID(inputFilename);
 			// Read info data from GEO meta table
-			String logged = GeoMetaTableSchema.getInfoValue(metaTable, gid, "logged", mapLogger);
+			String logged = getInfoValue(gid, "logged");
 			if (logged == null) {
 				mapLogger.warn("Logged not calculated for file: " + inputFilename);
 				errors.increment(1);
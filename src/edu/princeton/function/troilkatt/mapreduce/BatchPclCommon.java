@@ -2,8 +2,6 @@ package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -77,6 +75,19 @@ public class BatchPclCommon extends PerFile {
 			}
 		}
 		
+		/**
+		 * Read an "calculated" value from the GEO meta table. The table handle is shared by all
+		 * map threads, so the reads are serialized.
+		 * 
+		 * @param gid dataset/series identifier
+		 * @param columnQualifier the field to read
+		 * @return value or null if the value could not be read
+		 * @throws IOException
+		 */
+		protected synchronized String getInfoValue(String gid, String columnQualifier) throws IOException {
+			return GeoMetaTableSchema.getInfoValue(metaTable, gid, columnQualifier, mapLogger);
+		}
+		
 		/**
 		 * Do the mapping: 
 		 * 1. Read one line at a time from a file in HDFS
@@ -114,13 +125,14 @@ public class BatchPclCommon extends PerFile {
 				bw.close();											
 			}
 			else { 				
-				// Could not write directly to HDFS, so must fallback on local file system		
+				// The compression format is supported by neither Hadoop nor commons-compress, so 
+				// must fallback on local file system		
 				// In addition IOExceptions must be explicitly caugth in order to do cleanup
 				// on open files
 				String localFilename = OsPath.join(taskOutputDir, outputBasename);
 				bw = null;
 				try {
-					bw = new BufferedWriter(new FileWriter(new File(localFilename)));
+					bw = openLocalBufferedWriter(localFilename);
 					processFile(lin, bw, inputFilename);
 					bw.close();
 				} catch (IOException e) {
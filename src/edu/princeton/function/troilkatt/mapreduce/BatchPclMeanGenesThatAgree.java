@@ -30,8 +30,11 @@ public class BatchPclMeanGenesThatAgree extends BatchPclCommon {
 		public void setup(Context context) throws IOException {
 			super.setup(context);
 				
-			// Parse arguments
-			writePDF = TroilkattMapReduce.confEget(conf, "troilkatt.stage.args").equals("1");					
+			// Parse arguments. map() is thread-safe, so several files can be processed in parallel
+			String[] args = TroilkattMapReduce.confEget(conf, "troilkatt.stage.args").split(" ");
+			mapThreads = getMapThreads(args);
+			args = removeMapThreadsArg(args);
+			writePDF = (args.length > 0) && args[0].equals("1");
 		}
 		
 		/**
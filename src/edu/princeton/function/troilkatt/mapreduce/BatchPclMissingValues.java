@@ -2,8 +2,6 @@ package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -15,7 +13,6 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.princeton.function.troilkatt.fs.OsPath;
-import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
 import edu.princeton.function.troilkatt.tools.PclMissingValues;
@@ -36,10 +33,6 @@ public class BatchPclMissingValues extends BatchPclCommon {
 		protected String mvCutoffStr;
 		protected boolean optArgsSpecified;
 		
-		
-		// MissingValue tool (initialized in each map call)
-		protected PclMissingValues converter;
-		
 		/**
 		 * Setup global variables. This function is called before map()
 		 * @throws IOException 
@@ -50,6 +43,9 @@ public class BatchPclMissingValues extends BatchPclCommon {
 			
 			// Parse arguments
 			String[] args = TroilkattMapReduce.confEget(conf, "troilkatt.stage.args").split(" ");
+			// map() is thread-safe, so several files can be processed in parallel
+			mapThreads = getMapThreads(args);
+			args = removeMapThreadsArg(args);
 			if (args.length < 3) {
 				mapLogger.fatal("Invalid arguments: " + args);				
 				throw new IOException("Invalid arguments: " + args);
@@ -91,8 +87,9 @@ public class BatchPclMissingValues extends BatchPclCommon {
 			String inputFilename = key.toString();
 			
 			String gid = FilenameUtils.getDsetID(inputFilename);
+			String zeroAreMVsStr = this.zeroAreMVsStr;
 			if (! optArgsSpecified) {
-				zeroAreMVsStr = GeoMetaTableSchema.getInfoValue(metaTable, gid, "zerosAreMVs", mapLogger);
+				zeroAreMVsStr = getInfoValue(gid, "zerosAreMVs");
 				if (zeroAreMVsStr == null) {
 					mapLogger.fatal("Could not read meta data for: " + gid);
 					errors.increment(1);
@@ -101,8 +98,9 @@ public class BatchPclMissingValues extends BatchPclCommon {
 			}
 			boolean zerosAsMVs = zeroAreMVsStr.equals("1");
 			
+			String mvCutoffStr = this.mvCutoffStr;
 			if (! optArgsSpecified) {
-				mvCutoffStr = GeoMetaTableSchema.getInfoValue(metaTable, gid, "cutoff", mapLogger);
+				mvCutoffStr = getInfoValue(gid, "cutoff");
 				if (mvCutoffStr == null) {
 					mapLogger.fatal("Could not read meta data for: " + gid);
 					errors.increment(1);
@@ -118,7 +116,8 @@ public class BatchPclMissingValues extends BatchPclCommon {
 				mapLogger.info("Missing value cutoff is: NaN (this is expected for some datasets)");
 			}
 			
-			converter = new PclMissingValues(geneCutoff, sampleCutoff, datasetCutoff, zerosAsMVs, mvCutoff);
+			// MissingValue tool (one per file since map() may be called by several threads)
+			PclMissingValues converter = new PclMissingValues(geneCutoff, sampleCutoff, datasetCutoff, zerosAsMVs, mvCutoff);
 					
 			/*
 			 * Open input stream
@@ -137,8 +136,8 @@ public class BatchPclMissingValues extends BatchPclCommon {
 			String outputBasename = tfs.getFilenameName(inputFilename) + ".mv";			
 			String localTmpFilename = OsPath.join(taskTmpDir, outputBasename); // In tmp dir			
 			try {
-				BufferedWriter bw = new BufferedWriter(new FileWriter(new File(localTmpFilename)));
-				processFile(bri, bw, inputFilename);
+				BufferedWriter bw = openLocalBufferedWriter(localTmpFilename);
+				processFile(bri, bw, converter);
 				bw.close();
 			} catch (IOException e) {
 				mapLogger.error("Could not process file", e);					
@@ -164,12 +163,11 @@ public class BatchPclMissingValues extends BatchPclCommon {
 		 * 
 		 * @param lin initialized BufferedReader
 		 * @param bw initialized BufferedWriter
-		 * @param inputFilename input filename
+		 * @param converter missing value tool for the file
 		 * @throws IOException 
 		 */
-		@Override
 		protected void processFile(BufferedReader lin, BufferedWriter bw,
-				String inputFilename) throws IOException {
+				PclMissingValues converter) throws IOException {
 			String line;
 			while ((line = lin.readLine()) != null) {
 				String outputLine = converter.insertMissingValues(line);
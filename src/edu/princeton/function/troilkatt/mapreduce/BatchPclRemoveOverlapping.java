@@ -2,8 +2,6 @@ package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -158,7 +156,7 @@ public class BatchPclRemoveOverlapping extends PerFile {
 				String localFilename = OsPath.join(taskOutputDir, outputBasename);
 				bw = null;
 				try {
-					bw = new BufferedWriter(new FileWriter(new File(localFilename)));
+					bw = openLocalBufferedWriter(localFilename);
 					processFile(br, bw, deleteColumnIndexes, headerLine);
 					bw.close();
 				} catch (IOException e) {
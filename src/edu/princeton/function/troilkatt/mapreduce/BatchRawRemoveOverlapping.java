@@ -9,14 +9,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.client.ResultScanner;
-import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.CompareFilter;
-import org.apache.hadoop.hbase.filter.Filter;
-import org.apache.hadoop.hbase.filter.RowFilter;
-import org.apache.hadoop.hbase.filter.SubstringComparator;
-import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Counter;
@@ -26,7 +18,6 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.hbase.HbaseException;
-import edu.princeton.function.troilkatt.hbase.TroilkattTable;
 import edu.princeton.function.troilkatt.pipeline.Stage;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
@@ -181,51 +172,7 @@ public class BatchRawRemoveOverlapping extends PerFile {
 		 * removed due to overlap)
 		 */
 		protected HashMap<String, ArrayList<String>> getParts(String seriesID) {
-			HashMap<String, ArrayList<String>> sid2gsm = new HashMap<String, ArrayList<String>>();
-			/*
-			 *  Read rows from Hbase meta table
-			 */					
-			String rowStartKey = seriesID;
-			String rowEndKey = seriesID + "zzz";
-			// Filter to ensure that only rows for the given stage are selected
-			Filter filter = new RowFilter(CompareFilter.CompareOp.EQUAL, 
-				      new SubstringComparator(seriesID));
-			// Need a scanner to iterate over all MapReduce task rows
-			Scan scan = new Scan(Bytes.toBytes(rowStartKey), Bytes.toBytes(rowEndKey));		
-			scan.setFilter(filter);
-			byte[] fam = Bytes.toBytes("calculated");
-			byte[] qual = Bytes.toBytes("sampleIDs-overlapRemoved");
-			//byte[] fam = Bytes.toBytes("meta");
-			//byte[] qual = Bytes.toBytes("sampleIDs");
-			scan.addColumn(fam, qual);
-			
-			// Get rows
-			ResultScanner scanner;
-			try {
-				scanner = metaTable.getScanner(scan);
-			} catch (IOException e) {
-				mapLogger.warn("Could not create Hbase table scanner ", e);
-				return null;
-			}			
-			// and iterate over all returned rows					
-			for (Result res: scanner) {
-				String sidWithPlatform = Bytes.toString(res.getRow());
-				if (! sidWithPlatform.startsWith(seriesID)) {
-					mapLogger.warn("Scanner returned row which was not a split of: " + rowStartKey);
-					continue;
-				}
-				
-				byte[] valBytes = res.getValue(fam, qual);
-				if (valBytes == null) {
-					mapLogger.error("Null value for sampleID in row: " + sidWithPlatform);
-					continue;	
-				}				
-				String val = Bytes.toString(valBytes);
-				ArrayList<String> gsmIDs = TroilkattTable.string2array(val);
-				sid2gsm.put(sidWithPlatform, gsmIDs);
-			}
-			
-			return sid2gsm;
+			return GeoMetaTableSchema.getSeriesParts(metaTable, seriesID, mapLogger);
 		}
 		
 		/**
@@ -343,6 +290,7 @@ public class BatchRawRemoveOverlapping extends PerFile {
 				OsPath.delete(outputTar);
 				return -1;
 			}
+			countLocalOutput(outputTar);
 			return nWritten;
 		} // for all platforms
 		
@@ -0,0 +1,124 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * In-mapper aggregation of (key, count) tuples for counting jobs. Instead of writing one
+ * (key, 1) tuple per token, the counts are summed in a bounded hash table and one
+ * (key, sum) tuple is written per distinct key when the table is flushed.
+ *
+ * The mapper should call flush() when needsFlush() returns true, and in cleanup(). The
+ * table needs to be flushed when it has maxEntries keys, or when the free heap is below
+ * MIN_FREE_HEAP of the maximum heap size. The output Text and IntWritable objects are
+ * reused for all tuples.
+ */
+public class CountAggregator {
+	// Job configuration key for the maximum number of keys in the table
+	public static final String MAX_ENTRIES_KEY = "troilkatt.aggregator.max.entries";
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+	// Flush if less than this fraction of the maximum heap is free
+	public static final double MIN_FREE_HEAP = 0.1;
+	// Number of add() calls between each heap check
+	public static final int HEAP_CHECK_INTERVAL = 1024;
+
+	// key: word, value: single element array with the count (to avoid boxing per add())
+	protected HashMap<String, int[]> counts;
+	protected int maxEntries;
+	protected int addsSinceCheck;
+
+	// Reused output objects
+	protected Text outKey;
+	protected IntWritable outValue;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries maximum number of keys in the table before it should be flushed
+	 */
+	public CountAggregator(int maxEntries) {
+		this.maxEntries = maxEntries;
+		counts = new HashMap<String, int[]>();
+		addsSinceCheck = 0;
+		outKey = new Text();
+		outValue = new IntWritable();
+	}
+
+	/**
+	 * Add a count for a key.
+	 *
+	 * @param key key to count
+	 * @param count value to add
+	 */
+	public void add(String key, int count) {
+		int[] c = counts.get(key);
+		if (c == null) {
+			counts.put(key, new int[] {count});
+		}
+		else {
+			c[0] += count;
+		}
+		addsSinceCheck++;
+	}
+
+	/**
+	 * @return true if the table is full, or if the task is running low on heap
+	 */
+	public boolean needsFlush() {
+		if (counts.size() >= maxEntries) {
+			return true;
+		}
+		if (addsSinceCheck >= HEAP_CHECK_INTERVAL) {
+			addsSinceCheck = 0;
+			Runtime rt = Runtime.getRuntime();
+			long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+			return free < rt.maxMemory() * MIN_FREE_HEAP;
+		}
+		return false;
+	}
+
+	/**
+	 * Write a (key, count) tuple for each key in the table, and clear the table.
+	 *
+	 * @param context task context to write to
+	 * @return number of tuples written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int flush(TaskInputOutputContext<?, ?, Text, IntWritable> context) throws IOException, InterruptedException {
+		int nWritten = 0;
+		for (Map.Entry<String, int[]> e: counts.entrySet()) {
+			outKey.set(e.getKey());
+			outValue.set(e.getValue()[0]);
+			context.write(outKey, outValue);
+			nWritten++;
+		}
+		counts.clear();
+		addsSinceCheck = 0;
+		return nWritten;
+	}
+
+	/**
+	 * @param key key to get count for
+	 * @return count for key since the last flush, or 0 if the key is not in the table
+	 */
+	public int getCount(String key) {
+		int[] c = counts.get(key);
+		if (c == null) {
+			return 0;
+		}
+		return c[0];
+	}
+
+	/**
+	 * @return number of keys in the table
+	 */
+	public int size() {
+		return counts.size();
+	}
+}
@@ -11,6 +11,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.log4j.Logger;
 
 import edu.princeton.function.troilkatt.PipelineException;
 import edu.princeton.function.troilkatt.PipelinePlaceholder;
@@ -69,6 +70,24 @@ public class ExecuteStage extends PerFile {
 		protected Stage stage;
 		// Initialized in setup()
 		protected ArrayList<String> metaFiles;
+		// Initialized in setup()
+		protected StageDirTracker dirTracker;
+		
+		/*
+		 * The stage instance, meta files, and local directories are kept between tasks 
+		 * executed in a reused JVM, since for short per file commands the stage setup time 
+		 * can exceed the command runtime. The key identifies the job, stage, and stage 
+		 * arguments the stage was created for.
+		 * 
+		 * The local directory of the stage instance is deleted when a stage with a different
+		 * key is created, or by a shutdown hook when the JVM exits.
+		 */
+		protected static String warmStageKey = null;
+		protected static Stage warmStage = null;
+		protected static ArrayList<String> warmMetaFiles = null;
+		protected static StageDirTracker warmDirTracker = null;
+		protected static volatile String warmStageDir = null;
+		protected static Thread warmStageDirHook = null;
 		
 		/**
 		 * Setup global variables. This function is called before map()
@@ -125,6 +144,39 @@ public class ExecuteStage extends PerFile {
 			}
 			timestamp = Long.valueOf(confEget(conf, "troilkatt.timestamp"));
 
+			// Get stage number from stageName
+			String parts[] = stageName.split("-");
+			if (parts.length < 2) {
+				mapLogger.fatal("Invalid stagename: " + stageName);
+				throw new RuntimeException("Invalid stagename: " + stageName);
+			}
+			int stageNum = 0;
+			try {
+				stageNum = Integer.valueOf(parts[0]);
+			} catch (NumberFormatException e) {
+				mapLogger.fatal("Invalid number in stagename " + stageName + ": " + parts[0], e);
+				throw new RuntimeException("Invalid number in stagename " + stageName + ": " + parts[0]);
+			}
+
+			String stageKey = jobID + " " + stageName + " " + stageType + " " + stageArgs;
+			if ((warmStage != null) && stageKey.equals(warmStageKey)) {
+				mapLogger.info("Reuse stage instance from previous task: " + warmStage.stageName);
+				stage = warmStage;
+				metaFiles = warmMetaFiles;
+				dirTracker = warmDirTracker;
+				// Output files are saved to the task specific output directory, and log 
+				// messages and files are for the current task
+				stage.tfsOutputDir = taskMapredOutputDir;
+				stage.stageName = String.format("%03d-%s", stageNum, taskStageName);
+				stage.logger = Logger.getLogger("troilkatt.stage-" + taskStageName);
+				stage.logTable = logTable;
+				// Remove any files left by the previous task
+				dirTracker.clean(mapLogger);
+				registerMR(context);
+				return;
+			}
+			releaseWarmStage(mapLogger);
+
 			try {
 				String localRootDir = troilkattProperties.get("troilkatt.localfs.mapreduce.dir");
 				String pipelineName = confEget(conf, "troilkatt.pipeline.name");
@@ -134,20 +186,6 @@ public class ExecuteStage extends PerFile {
 
 				String hdfsStageMetaDir = confEget(conf, "troilkatt.hdfs.meta.dir");
 				
-				// Get stage number from stageName
-				String parts[] = stageName.split("-");
-				if (parts.length < 2) {
-					mapLogger.fatal("Invalid stagename: " + stageName);
-					throw new RuntimeException("Invalid stagename: " + stageName);
-				}
-				int stageNum = 0;
-				try {
-					stageNum = Integer.valueOf(parts[0]);
-				} catch (NumberFormatException e) {
-					mapLogger.fatal("Invalid number in stagename " + stageName + ": " + parts[0], e);
-					throw new RuntimeException("Invalid number in stagename " + stageName + ": " + parts[0]);
-				}
-				
 				stage = StageFactory.newStage(stageType,
 						stageNum,
 						taskStageName, 
@@ -161,36 +199,25 @@ public class ExecuteStage extends PerFile {
 						pipeline,
 						mapLogger);
 				
-				if (stageType.equals("execute_per_file_mr")) {
-					ExecutePerFileMR mrStage = (ExecutePerFileMR) stage;
-					int maxMappers = Integer.valueOf(conf.get("mapred.tasktracker.map.tasks.maximum"));
+				registerMR(context);
 					
-					String val = conf.get("troilkatt.soft.max.memory.mb");
-					long heapMaxSize = Runtime.getRuntime().maxMemory(); // use JVM heap size
-					if (val != null) {	
-						// use job specific value - JVM heap size
-						heapMaxSize = (Long.valueOf(val) * 1024 * 1024) - heapMaxSize;  
-					}
+				// Copy meta-data files from the node-local cache, or download these from the stage 
+				// specific HDFS directory to the cache
+				String cacheDir = OsPath.join(confEget(conf, "troilkatt.localfs.meta.dir"), 
+						"cache/" + pipelineName + "-" + stageName);
+				metaFiles = downloadMetaFilesCached(tfs, hdfsStageMetaDir, cacheDir,
+						stage.stageMetaDir, stage.stageTmpDir, stage.stageLogDir, taskAttemptID);
 					
-					mrStage.registerMR(maxMappers, heapMaxSize, jobID, context);
-				}	
-				else if (stageType.equals("script_per_file_mr")) {
-					ScriptPerFileMR mrStage = (ScriptPerFileMR) stage;
-					int maxMappers = Integer.valueOf(conf.get("mapred.tasktracker.map.tasks.maximum"));
+				// The meta files are kept, while all other files are deleted after each map()
+				String[] dirs = {stage.stageLogDir, stage.stageInputDir, stage.stageMetaDir, stage.stageOutputDir, stage.stageTmpDir};
+				dirTracker = new StageDirTracker(dirs);
+				dirTracker.snapshot();
 
-					String val = conf.get("troilkatt.soft.max.memory.mb");
-					long heapMaxSize = Runtime.getRuntime().maxMemory(); // use JVM heap size
-					if (val != null) {	
-						// use job specific value - JVM heap size
-						heapMaxSize = (Long.valueOf(val) * 1024 * 1024) - heapMaxSize;  
-					}
-					
-					mrStage.registerMR(maxMappers, heapMaxSize, jobID, context);
-				}	
-					
-				// Download meta-data files from the stage specific HDFS directory to a task specific
-				// directory
-				metaFiles = downloadMetaFiles(tfs, hdfsStageMetaDir, stage.stageMetaDir, stage.stageTmpDir, stage.stageLogDir);
+				warmStageKey = stageKey;
+				warmStage = stage;
+				warmMetaFiles = metaFiles;
+				warmDirTracker = dirTracker;
+				setWarmStageDir(OsPath.dirname(stage.stageInputDir));
 			} catch (PipelineException e) {
 				mapLogger.fatal("Setup failed for task: " + taskStageName, e);				
 				throw new IOException("Pipeline exception: " + e.getMessage());			
@@ -207,6 +234,75 @@ public class ExecuteStage extends PerFile {
 		}	
 		
 		
+		/**
+		 * Delete the local directory of the stage instance kept from a previous task, and
+		 * clear the warm stage fields.
+		 * 
+		 * @param logger logger used to warn if the directory could not be deleted
+		 */
+		protected static synchronized void releaseWarmStage(Logger logger) {
+			String dir = warmStageDir;
+			warmStageKey = null;
+			warmStage = null;
+			warmMetaFiles = null;
+			warmDirTracker = null;
+			warmStageDir = null;
+			if ((dir != null) && OsPath.isdir(dir) && (OsPath.deleteAll(dir) == false)) {
+				logger.warn("Could not delete stage directory: " + dir);
+			}
+		}
+		
+		/**
+		 * Set the local directory of the warm stage instance. A shutdown hook that deletes
+		 * the directory is added the first time this is called in a JVM.
+		 * 
+		 * @param dir stage directory with the input, log, meta, output, and tmp directories
+		 */
+		protected static synchronized void setWarmStageDir(String dir) {
+			warmStageDir = dir;
+			if (warmStageDirHook == null) {
+				warmStageDirHook = new Thread() {
+					@Override
+					public void run() {
+						String d = warmStageDir;
+						if ((d != null) && OsPath.isdir(d)) {
+							OsPath.deleteAll(d);
+						}
+					}
+				};
+				Runtime.getRuntime().addShutdownHook(warmStageDirHook);
+			}
+		}
+		
+		/**
+		 * Register the MapReduce task context, and memory and process limits with the 
+		 * MapReduce specific stages. This must be done for each task also when the stage 
+		 * instance is reused.
+		 * 
+		 * @param context task context
+		 * @throws IOException if the limits could not be read from the configuration
+		 */
+		protected void registerMR(Context context) throws IOException {
+			if (! (stageType.equals("execute_per_file_mr") || stageType.equals("script_per_file_mr"))) {
+				return;
+			}
+			
+			int maxMappers = Integer.valueOf(confEget(conf, "mapred.tasktracker.map.tasks.maximum"));
+			String val = conf.get("troilkatt.soft.max.memory.mb");
+			long heapMaxSize = Runtime.getRuntime().maxMemory(); // use JVM heap size
+			if (val != null) {	
+				// use job specific value - JVM heap size
+				heapMaxSize = (Long.valueOf(val) * 1024 * 1024) - heapMaxSize;  
+			}
+			
+			if (stageType.equals("execute_per_file_mr")) {
+				((ExecutePerFileMR) stage).registerMR(maxMappers, heapMaxSize, jobID, context);
+			}
+			else {
+				((ScriptPerFileMR) stage).registerMR(maxMappers, heapMaxSize, jobID, context);
+			}
+		}
+		
 		/**
 		 * Do the mapping: execute the stage on the input file. The stage specific
 		 * code will take care of downloading input files and saving output and logfiles.
@@ -262,21 +358,9 @@ public class ExecuteStage extends PerFile {
 				}
 			}
 
-			// Cleanup after each map
-			String[] dirs = {stage.stageLogDir, stage.stageInputDir, stage.stageMetaDir, stage.stageOutputDir, stage.stageTmpDir, taskMapredOutputDir};			
-			// Delete and then re-create directory
-			for (String d: dirs) {
-				if (! OsPath.isdir(d)) {
-					mapLogger.warn("Stage directory: " + d + " does not exist");				
-				}
-				else {
-					if (OsPath.deleteAll(d) == false) {
-						mapLogger.warn("Could not delete directory: " + d);
-						throw new IOException("Cleanup failed: could not delete directory: " + d);
-					}
-				}
-				OsPath.mkdir(d);
-			}	
+			// Cleanup after each map: delete all files created by the stage, but keep the
+			// directories and the meta files
+			dirTracker.clean(mapLogger);
 			
 			//if (eThrown != null) {
 			//	doCleanup();
@@ -374,18 +458,7 @@ public class ExecuteStage extends PerFile {
 		
 		
 	    // Execute job and wait for completion
-		try {
-			return job.waitForCompletion(true) ? 0: -1;
-		} catch (InterruptedException e) {
-			jobLogger.fatal("Job execution failed: ", e);
-			return -1;
-		} catch (ClassNotFoundException e) {
-			jobLogger.fatal("Job execution failed: ", e);
-			return -1;
-		} catch (IOException e) {
-			jobLogger.fatal("Job execution failed: ", e);
-			return -1;
-		}	
+		return waitForCompletionLogged(job);	
 	}
 
 	/**
@@ -27,11 +27,14 @@ import edu.princeton.function.troilkatt.fs.LogTableHbase;
 import edu.princeton.function.troilkatt.hbase.GSMTableSchema;
 import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.hbase.HbaseException;
+import edu.princeton.function.troilkatt.hbase.TroilkattTable;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 import edu.princeton.function.troilkatt.tools.GeoGSMOverlap;
 
 /**
  * Calculate sample (GSM) overlap in GEO datsets (GDS) and series (GSE) files.
+ * 
+ * The stage arguments are optional scan options (see TroilkattTable.createScan()).
  */
 public class GSMOverlap extends TroilkattMapReduce {
 	enum GSMOverlapCounters {
@@ -443,7 +446,9 @@ public class GSMOverlap extends TroilkattMapReduce {
 			
 			/* Setup mapper */		
 			job.setMapperClass(OverlapMapper.class);
-			Scan scan = new Scan();		    
+			// Only the in:GDS and in:GSE columns are used by the mapper
+			String[] columns = {"in:GDS", "in:GSE"};
+			Scan scan = TroilkattTable.createScan(columns, conf.get("troilkatt.stage.args"));
 		    GSMTableSchema gsmTable = new GSMTableSchema();		    
 		    TableMapReduceUtil.initTableMapperJob(gsmTable.tableName, scan,
 		    		OverlapMapper.class, Text.class, Text.class, job);
@@ -460,6 +465,9 @@ public class GSMOverlap extends TroilkattMapReduce {
 		} catch (StageInitException e) {
 			jobLogger.fatal("Could not initialize job: ", e);
 			return -1;
+		} catch (HbaseException e) {
+			jobLogger.fatal("Invalid scan arguments: ", e);
+			return -1;
 		}
 
 		// Execute job and wait for completion
@@ -33,7 +33,8 @@ public class GeneCounter extends TroilkattMapReduce {
 		INVALID_LINES,
 		EMPTY_GENE_NAMES,
 		MISMATCHING_NAMES,
-		GENE_NAMES
+		GENE_NAMES,
+		RECORDS_WRITTEN
 	}
 	
 	/**
@@ -42,7 +43,6 @@ public class GeneCounter extends TroilkattMapReduce {
 	public static class GeneCounterMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
 		// Maximum line size: can be small since genes are in first column
 		static final int MAX_LINE_SIZE = 1024;			
-		private final IntWritable one = new IntWritable(1);
 		 
 		/*
 		 * All global variables are initialized in setup() 
@@ -61,6 +61,10 @@ public class GeneCounter extends TroilkattMapReduce {
 		protected Counter emptyGeneNames;
 		protected Counter mismatchingNames;
 		protected Counter geneNames;
+		protected Counter recordsWritten;
+		
+		// In-mapper aggregation of gene counts
+		protected CountAggregator aggregator;
 
 		/**
 		 * Setup global variables. This function is called once per task before map()
@@ -87,20 +91,25 @@ public class GeneCounter extends TroilkattMapReduce {
 			emptyGeneNames = context.getCounter(GeneCounters.EMPTY_GENE_NAMES);
 			mismatchingNames = context.getCounter(GeneCounters.MISMATCHING_NAMES);
 			geneNames = context.getCounter(GeneCounters.GENE_NAMES);
+			recordsWritten = context.getCounter(GeneCounters.RECORDS_WRITTEN);
+			
+			aggregator = new CountAggregator(conf.getInt(CountAggregator.MAX_ENTRIES_KEY, CountAggregator.DEFAULT_MAX_ENTRIES));
 		}
 		
 		/**
 		 * Cleanup function that is called once at the end of the task
 		 */
 		@Override
-		protected void cleanup(Context context) throws IOException {
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			recordsWritten.increment(aggregator.flush(context));
 			TroilkattMapReduce.saveTaskLogFiles(conf, taskLogDir, taskAttemptID, logTable);
 		}
 		
 		/**
 		 * Do the mapping: 
 		 * 1. Read a line from a file in HDFS
-		 * 2. For each row (excluding headers) output <gene-name, 1>		 
+		 * 2. For each row (excluding headers) count the gene name. The <gene-name, count>
+		 * tuples are output when the aggregation table is full, and at the end of the task
 		 * 
 		 * @param key byte offset of line in file
 		 * @param value a line
@@ -142,8 +151,10 @@ public class GeneCounter extends TroilkattMapReduce {
 			}
 			
 			geneNames.increment(1);
-			// Write (gene, 1) tuple
-			context.write(new Text(name1), one);
+			aggregator.add(name1, 1);
+			if (aggregator.needsFlush()) {
+				recordsWritten.increment(aggregator.flush(context));
+			}
 		}
 
 		
@@ -163,6 +174,8 @@ public class GeneCounter extends TroilkattMapReduce {
 		protected String taskLogDir;
 		protected LogTableHbase logTable;
 		protected Logger reduceLogger;
+		// Reused output value
+		protected IntWritable result = new IntWritable();
 		
 		/**
 		 * This function is called once at the start of the task
@@ -207,7 +220,8 @@ public class GeneCounter extends TroilkattMapReduce {
 				geneCount += val.get();
 			}
 			    			
-			context.write(key, new IntWritable(geneCount));		
+			result.set(geneCount);
+			context.write(key, result);		
 		}			
 	}
 	
@@ -265,6 +279,8 @@ public class GeneCounter extends TroilkattMapReduce {
 			/* Setup reducer */
 			job.setCombinerClass(GeneCounterReducer.class);
 			job.setReducerClass(GeneCounterReducer.class);		
+			// Compare the serialized gene names without deserializing these
+			job.setSortComparatorClass(Text.Comparator.class);
 			job.setOutputKeyClass(Text.class);
 			job.setOutputValueClass(IntWritable.class);
 		} catch (IOException e1) {
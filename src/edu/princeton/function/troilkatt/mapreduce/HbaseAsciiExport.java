@@ -18,6 +18,9 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import edu.princeton.function.troilkatt.hbase.HbaseException;
+import edu.princeton.function.troilkatt.hbase.TroilkattTable;
+
 /**
  * Export an HBase table.
  * 
@@ -104,18 +107,27 @@ public class HbaseAsciiExport {
 		Path outputDir = new Path(args[1]);
 		System.out.println("hdfsDir: " + args[1]);
 		
-		// Must be at least one column
-		String cols = args[2]; // newline seperated	
-		if (args[2].split(":").length != 2) {
-			System.err.println("Invalid colum identifier (family:qualifier): " + args[2]);
-			System.exit(-1);
-		}
-		for (int i = 3; i < args.length; i++) {	
+		// Must be at least one column. Arguments with a "=" are scan options
+		ArrayList<String> colList = new ArrayList<String>();
+		String scanArgs = null;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].contains("=")) {
+				scanArgs = (scanArgs == null) ? args[i] : scanArgs + " " + args[i];
+				continue;
+			}
 			if (args[i].split(":").length != 2) {
 				System.err.println("Invalid colum identifier (family:qualifier): " + args[i]);
 				System.exit(-1);
 			}
-			cols = cols + "\n" + args[i];
+			colList.add(args[i]);
+		}
+		if (colList.isEmpty()) {
+			System.err.println("At least one column must be specified");
+			System.exit(-1);
+		}
+		String cols = colList.get(0); // newline seperated
+		for (int i = 1; i < colList.size(); i++) {
+			cols = cols + "\n" + colList.get(i);
 		}
 		System.out.println("cols: " + cols);
 		conf.set("troilkatt.export.columns", cols);
@@ -123,22 +135,14 @@ public class HbaseAsciiExport {
 		Job job = Job.getInstance(conf, "export_" + tableName);
 		job.setJarByClass(HbaseAsciiExport.class);
 		job.setMapperClass(AsciiExporter.class);
-		Scan s = new Scan();
-		for (int i = 2; i < args.length; i++) {
-			// arguments checked above
-			String parts[] = args[i].split(":");
-			s.addColumn(Bytes.toBytes(parts[0]), Bytes.toBytes(parts[1]));
+		Scan s;
+		try {
+			s = TroilkattTable.createScan(colList.toArray(new String[colList.size()]), scanArgs);
+		} catch (HbaseException e) {
+			System.err.println("Invalid scan options: " + e.getMessage());
+			System.exit(-1);
+			return null;
 		}
-		
-		// Optional arguments.
-		//int versions = args.length > 2? Integer.parseInt(args[2]): 1;
-		//s.setMaxVersions(versions);
-		s.setMaxVersions(1);
-		//long startTime = args.length > 3? Long.parseLong(args[3]): 0L;
-		//long endTime = args.length > 4? Long.parseLong(args[4]): Long.MAX_VALUE;
-		//s.setTimeRange(startTime, endTime);
-		//Log.info("verisons=" + versions + ", starttime=" + startTime +
-		//		", endtime=" + endTime);
 		TableMapReduceUtil.initTableMapperJob(tableName, s, AsciiExporter.class, Text.class,
 				Text.class, job);
 		// No reducers.  Just write straight to output files.
@@ -156,7 +160,8 @@ public class HbaseAsciiExport {
 		if (errorMsg != null && errorMsg.length() > 0) {
 			System.err.println("ERROR: " + errorMsg);
 		}
-		System.err.println("Usage: Export <tablename> <outputdir> <column1> [column2 column3 ...]");
+		System.err.println("Usage: Export <tablename> <outputdir> <column1> [column2 column3 ...] [option=value ...]");
+		System.err.println("Options: see TroilkattTable.createScan()");
 	}
 
 	/**
@@ -0,0 +1,435 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.apache.hadoop.fs.Seekable;
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+/**
+ * Node-local, size-bounded cache of decompressed input files. The cache is shared by
+ * all tasks on a node, such that task retries, speculative tasks, and later jobs that
+ * read the same input file do not need to read and decompress the file again.
+ *
+ * Files are keyed by HDFS filename and modification time, so a file that is replaced
+ * in HDFS is not read from the cache. The least recently used files are deleted when the
+ * cache is full. The last modification time of a cached file is used as access time,
+ * such that the LRU order is shared between tasks.
+ *
+ * Files are added either by moving a local file into the cache (put()), or by copying
+ * the bytes read from a decompressed input stream (tee()). In both cases the file is
+ * first written to a temporary file that is renamed when complete, so other tasks never
+ * read partial files. Room for a new file is made before it is renamed, so the new file
+ * is never evicted to make room for itself. Temporary files left by killed tasks are
+ * deleted when a cache is initialized.
+ *
+ * The methods are synchronized since an instance may be shared by several threads in a
+ * task. Tasks in other JVMs on the same node only share the files in the cache directory.
+ */
+public class InputCache {
+	// Job configuration key for the cache size in MB. The cache is disabled by default
+	public static final String CACHE_SIZE_KEY = "troilkatt.input.cache.size.mb";
+	public static final long DEFAULT_CACHE_SIZE_MB = 0;
+	// Prefix for files that are being written
+	public static final String TMP_PREFIX = ".tmp-";
+	// Temporary files that have not been modified for this long are left by killed tasks
+	public static final long STALE_TMP_AGE = 60L * 60 * 1000; // ms
+
+	protected String cacheDir;
+	protected long maxBytes;
+	protected Logger logger;
+
+	/**
+	 * Stream that copies all bytes read to a temporary cache file. The file is added to
+	 * the cache when the end of the stream is reached. If the stream is closed before the
+	 * end, the file is added only if all compressed bytes have been read, since then only
+	 * the bytes buffered by the decompressor are left. Otherwise it is deleted.
+	 */
+	protected class CacheInputStream extends FilterInputStream {
+		protected String key;
+		protected String tmpFilename;
+		protected OutputStream cacheOut;
+		protected long nWritten;
+		// Compressed stream, and its length
+		protected Seekable rawIn;
+		protected long rawLength;
+
+		protected CacheInputStream(InputStream in, Seekable rawIn, long rawLength, String key) throws IOException {
+			super(in);
+			this.key = key;
+			this.rawIn = rawIn;
+			this.rawLength = rawLength;
+			tmpFilename = OsPath.join(cacheDir, TMP_PREFIX + key + "-" + System.nanoTime());
+			cacheOut = new FileOutputStream(tmpFilename);
+			nWritten = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b == -1) {
+				commit();
+			}
+			else if (cacheOut != null) {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n == -1) {
+				commit();
+			}
+			else if ((n > 0) && (cacheOut != null)) {
+				write(b, off, n);
+			}
+			return n;
+		}
+
+		/**
+		 * Skipped bytes must also be written to the cache file, so these are read.
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buf = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+				if (r == -1) {
+					break;
+				}
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ((cacheOut != null) && (rawIn != null)) {
+				try {
+					if (rawIn.getPos() >= rawLength) {
+						byte[] buf = new byte[8192];
+						while ((cacheOut != null) && (read(buf, 0, buf.length) != -1)) {
+							// read() writes to the cache file and commits at the end
+						}
+					}
+				} catch (IOException e) {
+					logger.warn("Could not read the rest of the input file: " + key, e);
+				}
+			}
+			abort();
+			super.close();
+		}
+
+		/**
+		 * Write to the cache file. Caching is given up if the file is larger than the
+		 * cache, or if the write fails. The input stream is not affected.
+		 */
+		protected void write(byte[] b, int off, int len) {
+			nWritten += len;
+			if (nWritten > maxBytes) {
+				logger.debug("Input file is larger than the cache: " + key);
+				abort();
+				return;
+			}
+			try {
+				cacheOut.write(b, off, len);
+			} catch (IOException e) {
+				logger.warn("Could not write to input cache file: " + tmpFilename, e);
+				abort();
+			}
+		}
+
+		/**
+		 * Add the temporary file to the cache.
+		 */
+		protected void commit() {
+			if (cacheOut == null) {
+				return;
+			}
+			try {
+				cacheOut.close();
+				cacheOut = null;
+				addFile(tmpFilename, key);
+			} catch (IOException e) {
+				logger.warn("Could not add file to input cache: " + key, e);
+				cacheOut = null;
+				OsPath.delete(tmpFilename);
+			}
+		}
+
+		/**
+		 * Delete the temporary file.
+		 */
+		protected void abort() {
+			if (cacheOut == null) {
+				return;
+			}
+			try {
+				cacheOut.close();
+			} catch (IOException e) {
+				logger.warn("Could not close input cache file: " + tmpFilename);
+			}
+			cacheOut = null;
+			OsPath.delete(tmpFilename);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param cacheDir node-local cache directory. It is created if it does not exist
+	 * @param maxBytes maximum size of all files in the cache
+	 * @param logger logger to use
+	 * @throws IOException if the cache directory could not be created
+	 */
+	public InputCache(String cacheDir, long maxBytes, Logger logger) throws IOException {
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		this.logger = logger;
+		if (OsPath.mkdir(cacheDir) == false) {
+			throw new IOException("Could not create input cache directory: " + cacheDir);
+		}
+		sweepTmpFiles(STALE_TMP_AGE);
+	}
+
+	/**
+	 * Get the cache key for a file.
+	 *
+	 * @param hdfsFilename HDFS filename
+	 * @param modificationTime HDFS modification time
+	 * @return key that is also used as cache filename
+	 */
+	public static String getKey(String hdfsFilename, long modificationTime) {
+		// The path hash separates files with the same basename in different directories
+		return OsPath.basename(hdfsFilename) + "." + modificationTime + "." +
+			Integer.toHexString(hdfsFilename.hashCode());
+	}
+
+	/**
+	 * Get a decompressed file from the cache.
+	 *
+	 * @param hdfsFilename HDFS filename
+	 * @param modificationTime HDFS modification time
+	 * @return local filename, or null if the file is not in the cache
+	 */
+	public synchronized String get(String hdfsFilename, long modificationTime) {
+		File f = new File(cacheDir, getKey(hdfsFilename, modificationTime));
+		if (! f.isFile()) {
+			return null;
+		}
+		// Update access time
+		f.setLastModified(System.currentTimeMillis());
+		return f.getAbsolutePath();
+	}
+
+	/**
+	 * Move a decompressed local file into the cache.
+	 *
+	 * @param localFilename decompressed file. The file is moved.
+	 * @param hdfsFilename HDFS filename
+	 * @param modificationTime HDFS modification time
+	 * @return cache filename, or localFilename if the file could not be added to the cache
+	 */
+	public synchronized String put(String localFilename, String hdfsFilename, long modificationTime) {
+		if (OsPath.fileSize(localFilename) > maxBytes) {
+			return localFilename;
+		}
+
+		String key = getKey(hdfsFilename, modificationTime);
+		String tmpFilename = OsPath.join(cacheDir, TMP_PREFIX + key + "-" + System.nanoTime());
+		if (OsPath.rename(localFilename, tmpFilename) == false) {
+			logger.warn("Could not move file to input cache: " + localFilename);
+			return localFilename;
+		}
+		// The file is not stale even if it was written a long time ago
+		new File(tmpFilename).setLastModified(System.currentTimeMillis());
+		try {
+			return addFile(tmpFilename, key);
+		} catch (IOException e) {
+			logger.warn("Could not add file to input cache: " + key, e);
+			OsPath.rename(tmpFilename, localFilename);
+			return localFilename;
+		}
+	}
+
+	/**
+	 * Wrap a decompressed input stream such that the bytes read are also written to the
+	 * cache. The file is added to the cache when the end of the stream is reached.
+	 *
+	 * @param ins decompressed input stream
+	 * @param hdfsFilename HDFS filename
+	 * @param modificationTime HDFS modification time
+	 * @return wrapped stream, or ins if the cache file could not be created
+	 */
+	public InputStream tee(InputStream ins, String hdfsFilename, long modificationTime) {
+		return tee(ins, null, -1, hdfsFilename, modificationTime);
+	}
+
+	/**
+	 * Wrap a decompressed input stream such that the bytes read are also written to the
+	 * cache. The file is added to the cache when the end of the stream is reached, or when
+	 * the stream is closed after all compressed bytes have been read.
+	 *
+	 * @param ins decompressed input stream
+	 * @param rawIn compressed stream read by ins. May be null.
+	 * @param rawLength length of the compressed file
+	 * @param hdfsFilename HDFS filename
+	 * @param modificationTime HDFS modification time
+	 * @return wrapped stream, or ins if the cache file could not be created
+	 */
+	public InputStream tee(InputStream ins, Seekable rawIn, long rawLength, String hdfsFilename, long modificationTime) {
+		try {
+			return new CacheInputStream(ins, rawIn, rawLength, getKey(hdfsFilename, modificationTime));
+		} catch (IOException e) {
+			logger.warn("Could not create input cache file", e);
+			return ins;
+		}
+	}
+
+	/**
+	 * @return total size of the files in the cache
+	 */
+	public synchronized long size() {
+		long size = 0;
+		for (File f: getCachedFiles()) {
+			size += f.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Delete the least recently used files until the cache size is below the limit.
+	 *
+	 * @return number of deleted files
+	 */
+	public synchronized int evict() {
+		return evict(maxBytes, null);
+	}
+
+	/**
+	 * Helper function to delete the least recently used files until the cache size is
+	 * below a limit.
+	 *
+	 * @param limit maximum size of the files left in the cache
+	 * @param excludeKey key of a file that is about to be replaced. It is neither counted
+	 * nor deleted. May be null.
+	 * @return number of deleted files
+	 */
+	protected int evict(long limit, String excludeKey) {
+		ArrayList<File> files = getCachedFiles();
+		long size = 0;
+		for (int i = files.size() - 1; i >= 0; i--) {
+			if (files.get(i).getName().equals(excludeKey)) {
+				files.remove(i);
+			}
+			else {
+				size += files.get(i).length();
+			}
+		}
+		if (size <= limit) {
+			return 0;
+		}
+
+		// Oldest access time first
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+			}
+		});
+
+		int nDeleted = 0;
+		for (File f: files) {
+			if (size <= limit) {
+				break;
+			}
+			long len = f.length();
+			// Tasks that have the file open can continue to read it after it is deleted
+			if (f.delete()) {
+				size -= len;
+				nDeleted++;
+			}
+		}
+		return nDeleted;
+	}
+
+	/**
+	 * Helper function to make room for a complete temporary file in the cache, and rename
+	 * it to its cache filename. The temporary file is not deleted if the rename fails.
+	 *
+	 * @return cache filename
+	 */
+	protected synchronized String addFile(String tmpFilename, String key) throws IOException {
+		File tmpFile = new File(tmpFilename);
+		evict(maxBytes - tmpFile.length(), key);
+
+		File cacheFile = new File(cacheDir, key);
+		if (tmpFile.renameTo(cacheFile) == false) {
+			throw new IOException("Could not rename: " + tmpFilename);
+		}
+		cacheFile.setLastModified(System.currentTimeMillis());
+		return cacheFile.getAbsolutePath();
+	}
+
+	/**
+	 * Delete temporary files left by tasks that were killed while writing to the cache.
+	 * Files written by running tasks are recently modified, so these are not deleted.
+	 *
+	 * @param minAge minimum time since the last modification in ms
+	 * @return number of deleted files
+	 */
+	public synchronized int sweepTmpFiles(long minAge) {
+		File[] children = new File(cacheDir).listFiles();
+		if (children == null) {
+			return 0;
+		}
+		long oldest = System.currentTimeMillis() - minAge;
+		int nDeleted = 0;
+		for (File f: children) {
+			if (f.isFile() && f.getName().startsWith(TMP_PREFIX) && (f.lastModified() < oldest)) {
+				if (f.delete()) {
+					nDeleted++;
+				}
+			}
+		}
+		if (nDeleted > 0) {
+			logger.info("Deleted " + nDeleted + " stale temporary files in input cache: " + cacheDir);
+		}
+		return nDeleted;
+	}
+
+	/**
+	 * Helper function to list the complete files in the cache.
+	 */
+	protected ArrayList<File> getCachedFiles() {
+		ArrayList<File> files = new ArrayList<File>();
+		File[] children = new File(cacheDir).listFiles();
+		if (children == null) {
+			return files;
+		}
+		for (File f: children) {
+			if (f.isFile() && (! f.getName().startsWith(TMP_PREFIX))) {
+				files.add(f);
+			}
+		}
+		return files;
+	}
+}
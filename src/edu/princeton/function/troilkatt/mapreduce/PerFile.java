@@ -5,14 +5,33 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.log4j.Logger;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
@@ -25,6 +44,7 @@ import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
@@ -39,12 +59,44 @@ import edu.princeton.function.troilkatt.fs.TroilkattHDFS;
  * Superclass for MapReduce jobs that read and write files.
  */
 public class PerFile extends TroilkattMapReduce {
+	// Target size in bytes of input splits with packed small files. Packing is disabled by 
+	// default, such that each file is in its own split. It is enabled by setting the key to
+	// a positive value, or by the SPLIT_SIZE_ARG stage argument. It is also enabled if the
+	// THREADS_ARG stage argument is larger than 1, such that a task gets files to process 
+	// in parallel
+	public static final String SPLIT_SIZE_KEY = "troilkatt.perfile.split.size";
+	// Split size used by PackedFileInputFormat if SPLIT_SIZE_KEY is not set
+	public static final long DEFAULT_SPLIT_SIZE = 256L * 1024 * 1024;
+	// Stage argument used to pack small input files into splits of the given size in MB
+	// (for example "splitsize=256"). The argument is removed from the stage arguments
+	// passed to the mapper
+	public static final String SPLIT_SIZE_ARG = "splitsize=";
+	// Stage argument used to enable the node-local input cache with the given size in MB
+	// (for example "inputcache=4096"). The argument is removed from the stage arguments
+	// passed to the mapper
+	public static final String INPUT_CACHE_ARG = "inputcache=";
+	// Stage argument used to set the number of files processed in parallel by a task, for
+	// mappers that support multithreaded processing (for example "threads=4")
+	public static final String THREADS_ARG = "threads=";
+	// Maximum number of locations per split
+	public static final int MAX_SPLIT_HOSTS = 3;
+	
 
 	/**
 	 * Generic PerFile mapper class. The mapper will be executed once per file, with the 
 	 * filename given as key, and the value field set to NULL. 
 	 */
-	public static class PerFileMapper extends Mapper<Text, BytesWritable, Text, Text> {		
+	public static class PerFileMapper extends PerFileKVMapper<Text, Text> {
+		// All functionality is implemented in PerFileKVMapper
+	}
+	
+	/**
+	 * PerFile mapper class where the output key and value types are specified by the 
+	 * subclass. This is for example needed for mappers that output Hbase rows that are
+	 * written to HFiles by HFileOutputFormat. Most subclasses should instead extend 
+	 * PerFileMapper.
+	 */
+	public static class PerFileKVMapper<KEYOUT, VALUEOUT> extends Mapper<Text, BytesWritable, KEYOUT, VALUEOUT> {		
 		/*
 		 * All global variables are initialized in setup() 
 		 */		
@@ -74,6 +126,19 @@ public class PerFile extends TroilkattMapReduce {
 		protected Logger mapLogger;
 		protected LogTableHbase logTable;
 		
+		// Per input file resource metrics
+		protected TaskMetrics taskMetrics;
+		// Metrics for the file processed by the current thread if files are processed in
+		// parallel by runThreads(). These are merged into taskMetrics when the file is done
+		protected ThreadLocal<TaskMetrics> threadMetrics = new ThreadLocal<TaskMetrics>();
+		
+		// Node-local cache of decompressed input files, or null if the cache is disabled
+		protected InputCache inputCache;
+		
+		// Number of files processed in parallel. Subclasses with a thread-safe map() may 
+		// set this in setup()
+		protected int mapThreads;
+		
 		// Set to true when output and log files have been saved. This is normally done in 
 		// cleanup, but in case of an IOException it may be necessary to do it in the 
 		// object destructor. 
@@ -120,9 +185,163 @@ public class PerFile extends TroilkattMapReduce {
 			hdfs = FileSystem.get(conf);
 			tfs = new TroilkattHDFS(hdfs);
 			
+			taskMetrics = new TaskMetrics();
+			
+			mapThreads = 1;
+			
+			long inputCacheSize = conf.getLong(InputCache.CACHE_SIZE_KEY, InputCache.DEFAULT_CACHE_SIZE_MB);
+			inputCache = null;
+			if (inputCacheSize > 0) {
+				String inputCacheDir = OsPath.join(TroilkattMapReduce.confEget(conf, "troilkatt.localfs.input.dir"), "cache");
+				try {
+					inputCache = new InputCache(inputCacheDir, inputCacheSize * 1024 * 1024, mapLogger);
+				} catch (IOException e) {
+					mapLogger.warn("Input cache is disabled: ", e);
+				}
+			}
+			
 			cleanupComplete = false;
 		}		
 		
+		/**
+		 * Run the mapper. The superclass' function is overridden to record resource
+		 * metrics for each input file, and to process files in parallel if mapThreads 
+		 * is set in setup(). 
+		 */
+		@Override
+		public void run(Context context) throws IOException, InterruptedException {
+			setup(context);
+			try {
+				if (mapThreads > 1) {
+					runThreads(context);
+					return;
+				}
+				
+				HashMap<String, Long> fileSizes = getSplitFileSizes(context.getInputSplit());
+				while (context.nextKeyValue()) {
+					Text key = context.getCurrentKey();
+					Long bytesIn = fileSizes.get(key.toString());
+					
+					taskMetrics.startFile(key.toString(), (bytesIn == null) ? 0 : bytesIn);
+					map(key, context.getCurrentValue(), context);
+					mapLogger.debug("Task metrics: " + taskMetrics.endFile(context));
+				}
+			} finally {
+				cleanup(context);
+			}
+		}
+		
+		/**
+		 * Helper function to get the size of the files in the task's split. The sizes are
+		 * set by the input format, so the file sizes need not be read from HDFS.
+		 * 
+		 * @param split FileSplit or CombineFileSplit
+		 * @return key: filename (as returned by FilenameReader), value: file size in bytes
+		 */
+		protected static HashMap<String, Long> getSplitFileSizes(InputSplit split) {
+			HashMap<String, Long> sizes = new HashMap<String, Long>();
+			if (split instanceof CombineFileSplit) {
+				CombineFileSplit combineSplit = (CombineFileSplit) split;
+				for (int i = 0; i < combineSplit.getNumPaths(); i++) {
+					sizes.put(combineSplit.getPath(i).toString(), combineSplit.getLength(i));
+				}
+			}
+			else if (split instanceof FileSplit) {
+				FileSplit fileSplit = (FileSplit) split;
+				sizes.put(fileSplit.getPath().toString(), fileSplit.getLength());
+			}
+			return sizes;
+		}
+		
+		/**
+		 * Process the files in the task's split using mapThreads threads, such that 
+		 * CPU-bound mappers can use several cores while sharing the task JVM and the state 
+		 * initialized in setup(). At most mapThreads files are processed at the same time, so 
+		 * the task memory limit must be set to fit mapThreads files.
+		 * 
+		 * Note! map() must be thread-safe. Per file metrics are recorded by each thread and 
+		 * merged into the task metrics. The GC time and peak heap are shared by all threads, 
+		 * so for a file these include the files processed at the same time.
+		 * 
+		 * @param context task context
+		 * @throws IOException if map() throws an IOException for a file
+		 * @throws InterruptedException
+		 */
+		protected void runThreads(final Context context) throws IOException, InterruptedException {
+			mapLogger.info("Process files using " + mapThreads + " threads");
+			final HashMap<String, Long> fileSizes = getSplitFileSizes(context.getInputSplit());
+			
+			ExecutorService executor = Executors.newFixedThreadPool(mapThreads);
+			final Semaphore slots = new Semaphore(mapThreads);
+			ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+			try {
+				while (context.nextKeyValue()) {
+					// The record reader may reuse the key object
+					final Text key = new Text(context.getCurrentKey());
+					final BytesWritable value = context.getCurrentValue();
+					
+					// Wait until a thread is available
+					slots.acquire();
+					checkThreadResults(results, false);
+					results.add(executor.submit(new Callable<Object>() {
+						@Override
+						public Object call() throws IOException, InterruptedException {
+							TaskMetrics metrics = new TaskMetrics(true);
+							threadMetrics.set(metrics);
+							try {
+								Long bytesIn = fileSizes.get(key.toString());
+								metrics.startFile(key.toString(), (bytesIn == null) ? 0 : bytesIn);
+								map(key, value, context);
+								mapLogger.debug("Task metrics: " + metrics.endFile(context));
+								taskMetrics.merge(metrics);
+							} finally {
+								threadMetrics.remove();
+								slots.release();
+							}
+							return null;
+						}
+					}));
+				}
+				checkThreadResults(results, true);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		
+		/**
+		 * Helper function to check the results of map() calls executed by runThreads(). 
+		 * Completed calls are removed from the list.
+		 * 
+		 * @param results map() results
+		 * @param wait true to wait for all calls to complete
+		 * @throws IOException if a map() call threw an exception
+		 * @throws InterruptedException
+		 */
+		protected void checkThreadResults(ArrayList<Future<Object>> results, boolean wait) throws IOException, InterruptedException {
+			Iterator<Future<Object>> it = results.iterator();
+			while (it.hasNext()) {
+				Future<Object> f = it.next();
+				if (wait || f.isDone()) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						mapLogger.fatal("Map failed: ", cause);
+						if (cause instanceof IOException) {
+							throw (IOException) cause;
+						}
+						else if (cause instanceof InterruptedException) {
+							throw (InterruptedException) cause;
+						}
+						else {
+							throw new RuntimeException("Map failed", cause);
+						}
+					}
+					it.remove();
+				}
+			}
+		}		
+		
 		/**
 		 * Cleanup function that is called once at the end of the task
 		 * 
@@ -156,6 +375,17 @@ public class PerFile extends TroilkattMapReduce {
 			
 			IOException eThrown = null;
 			
+			// Save per file metrics in the task output directory. These are moved to the job 
+			// output directory when the task is committed
+			if (taskMetrics != null) {
+				try {
+					String hdfsOutputDir = TroilkattMapReduce.getTaskHDFSOutputDir(conf);
+					taskMetrics.save(hdfs, hdfsOutputDir, taskAttemptID);
+				} catch (IOException e) {
+					mapLogger.warn("Could not save task metrics", e);
+				}
+			}
+			
 			// LogTable is closed in LogTable.destructor
 			try { 
 				TroilkattMapReduce.saveTaskOutputFiles(tfs, conf, taskOutputDir, taskTmpDir, taskLogDir, compressionFormat, timestamp);
@@ -198,15 +428,48 @@ public class PerFile extends TroilkattMapReduce {
 		}		
 				
 		/**
-		 * Helper function to open a line reader for a file either in HDFS or a file 
-		 * copied to the local file system (the file is stored in the stage input 
-		 * directory). The latter is necessary for files compressed with a codec that
-		 * is not supported by HDFS.
+		 * Helper function to open a line reader for a file either in HDFS, in the node-local 
+		 * input cache, or a file copied to the local file system (the file is stored in the 
+		 * stage input directory). 
+		 * 
+		 * Compressed files are decompressed while streamed from HDFS using either a Hadoop 
+		 * codec or commons-compress. If the input cache is enabled, the decompressed content 
+		 * is also written to the cache, such that task retries, speculative tasks, and other 
+		 * tasks on the same node can read the decompressed file. A local copy is only made for files compressed with 
+		 * a codec that is supported by neither.
 		 * 
 		 * @param inputFilename HDFS filename to open
 		 * @return initialized BufferedReader, or null if the file could not be opened		
 		 */
 		public BufferedReader openBufferedReader(String inputFilename) {
+			InputStream ins = openInputStream(inputFilename);
+			if (ins == null) {
+				return null;
+			}
+			return new BufferedReader(new InputStreamReader(ins));
+		}
+		
+		/**
+		 * Helper function to open a decompressed byte stream for a file. The file is read 
+		 * as described for openBufferedReader().
+		 * 
+		 * @param inputFilename HDFS filename to open
+		 * @return decompressed stream, or null if the file could not be opened		
+		 */
+		public InputStream openInputStream(String inputFilename) {
+			return openInputStream(inputFilename, true);
+		}
+		
+		/**
+		 * Helper function to open a decompressed byte stream for a file. 
+		 * 
+		 * @param inputFilename HDFS filename to open
+		 * @param cacheInput false if the caller usually stops reading before the end of the
+		 * file, such that writing the decompressed content to the input cache is wasted. The
+		 * file is still read from the cache if it is there.
+		 * @return decompressed stream, or null if the file could not be opened		
+		 */
+		public InputStream openInputStream(String inputFilename, boolean cacheInput) {
 			
 			try {
 				if (! tfs.isfile(inputFilename)) {
@@ -226,17 +489,11 @@ public class PerFile extends TroilkattMapReduce {
 				return null;
 			}
 
-			// Check if the compression format for the input file used is supported by Hadoop
-			CompressionCodecFactory factory = new CompressionCodecFactory(conf);
-			CompressionCodec inputCodec = factory.getCodec(inputPath);
-
-			// open a buffered reader either directly on the HDFs file or on a copy on local FS
-			InputStream ins = null;
-			FileInputStream fin = null;
+			// Uncompressed files are read directly from HDFS
 			if (compression.equals("none")) {
 				try {
-					ins = hdfs.open(inputPath); 	
-					return new BufferedReader(new InputStreamReader(ins));
+					InputStream ins = hdfs.open(inputPath); 	
+					return countInput(ins);
 				} catch (FileNotFoundException e) {
 					mapLogger.error("Open file failed: ", e);
 					return null;
@@ -245,37 +502,180 @@ public class PerFile extends TroilkattMapReduce {
 					return null;					
 				}
 			}
-			else if (inputCodec != null) {
+			
+			// Check if the file has already been decompressed on this node
+			long modificationTime = -1;
+			long fileLength = -1;
+			if (inputCache != null) {
 				try {
-					ins = inputCodec.createInputStream(hdfs.open(inputPath));
-					return new BufferedReader(new InputStreamReader(ins));					
-				} catch (FileNotFoundException e) {	
-					mapLogger.error("Open file failed: ", e);
-					return null;
+					FileStatus status = hdfs.getFileStatus(inputPath);
+					modificationTime = status.getModificationTime();
+					fileLength = status.getLen();
+					// Locked such that other threads cannot evict the file before it is opened
+					synchronized (inputCache) {
+						String cachedFilename = inputCache.get(inputFilename, modificationTime);
+						if (cachedFilename != null) {
+							mapLogger.debug("Read decompressed file from input cache: " + cachedFilename);
+							FileInputStream fin = new FileInputStream(new File(cachedFilename));
+							return countInput(fin);
+						}
+					}
 				} catch (IOException e) {
-					mapLogger.error("Open file failed: ", e);	
-					return null;					
+					mapLogger.warn("Could not read file from input cache: " + inputFilename, e);
+					modificationTime = -1;
 				}
 			}
-			else {
-				try {
-					String localInputFilename = tfs.getFile(inputFilename, taskInputDir, taskTmpDir, taskLogDir);
-					if (localInputFilename == null) {
-						return null;
+
+			// Check if the compression format for the input file used is supported by Hadoop
+			// or commons-compress, and if so decompress the file while streaming it from HDFS 
+			CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+			CompressionCodec inputCodec = factory.getCodec(inputPath);
+			InputStream ins = null;
+			FSDataInputStream rawIns = null;
+			try {
+				rawIns = hdfs.open(inputPath);
+				if (inputCodec != null) {
+					ins = inputCodec.createInputStream(rawIns);
+				}
+				else {
+					ins = openCompressorInputStream(rawIns, compression);
+				}
+			} catch (FileNotFoundException e) {	
+				mapLogger.error("Open file failed: ", e);
+				return null;
+			} catch (IOException e) {
+				mapLogger.error("Open file failed: ", e);	
+				return null;					
+			}
+			if (ins != null) {
+				ins = countInput(ins);
+				if ((modificationTime != -1) && cacheInput) {
+					ins = inputCache.tee(ins, rawIns, fileLength, inputFilename, modificationTime);
+				}
+				return ins;
+			}
+			
+			// Read input file to local FS and open a stream to the local file
+			try {
+				String localInputFilename = tfs.getFile(inputFilename, taskInputDir, taskTmpDir, taskLogDir);
+				if (localInputFilename == null) {
+					return null;					
+				}
+				if (modificationTime != -1) {
+					synchronized (inputCache) {
+						localInputFilename = inputCache.put(localInputFilename, inputFilename, modificationTime);
+						FileInputStream fin = new FileInputStream(new File(localInputFilename));
+						return countInput(fin);
 					}
-					// Read input file to local FS and open a stream to the local file				
-					fin = new FileInputStream(new File(localInputFilename));				
-					return new BufferedReader(new InputStreamReader(fin));
-				} catch (IOException e) {
-					mapLogger.error("Open file failed: ", e);
-					return null;
 				}
+				FileInputStream fin = new FileInputStream(new File(localInputFilename));				
+				return countInput(fin);
+			} catch (IOException e) {
+				mapLogger.error("Open file failed: ", e);
+				return null;
+			}
+		}
+		
+		/**
+		 * Helper function to open a commons-compress decompression stream.
+		 * 
+		 * @param ins compressed input stream
+		 * @param compression compression format (as used in tfs filenames)
+		 * @return decompressed stream, or null if the format is not supported by 
+		 * commons-compress. The compressed stream is closed in this case.
+		 * @throws IOException if the stream could not be read
+		 */
+		protected InputStream openCompressorInputStream(InputStream ins, String compression) throws IOException {
+			try {
+				return new CompressorStreamFactory().createCompressorInputStream(getCompressorFormat(compression), ins);
+			} catch (CompressorException e) { // This is expected for unknown formats
+				mapLogger.debug("Compression not supported by commons-compress: " + compression);
+				ins.close();
+				return null;
+			}
+		}
+		
+		/**
+		 * Helper function to map a tfs compression format to a commons-compress format name.
+		 */
+		protected String getCompressorFormat(String compression) {
+			if (compression.equals("bz2")) {
+				return "bzip2";
+			}
+			return compression;
+		}
+		
+		/**
+		 * Helper function to get the metrics for the file processed by the current thread.
+		 * 
+		 * @return metrics object, or null if task metrics are not used
+		 */
+		protected TaskMetrics getFileMetrics() {
+			TaskMetrics metrics = threadMetrics.get();
+			if (metrics != null) {
+				return metrics;
 			}
+			return taskMetrics;
+		}
+		
+		/**
+		 * Helper function to count the bytes read from an input stream in the task metrics.
+		 * 
+		 * @param ins stream to wrap
+		 * @return wrapped stream, or ins if task metrics are not used
+		 */
+		public InputStream countInput(InputStream ins) {
+			TaskMetrics metrics = getFileMetrics();
+			if (metrics == null) {
+				return ins;
+			}
+			return metrics.countInput(ins);
+		}
+		
+		/**
+		 * Helper function to count the bytes written to an output stream in the task metrics.
+		 * 
+		 * @param os stream to wrap
+		 * @return wrapped stream, or os if task metrics are not used
+		 */
+		public OutputStream countOutput(OutputStream os) {
+			TaskMetrics metrics = getFileMetrics();
+			if (metrics == null) {
+				return os;
+			}
+			return metrics.countOutput(os);
+		}
+		
+		/**
+		 * Helper function to add the size of a complete local output file to the task metrics. 
+		 * This should be called for output files that are not opened with 
+		 * openLocalBufferedWriter(), for example files created by external programs.
+		 * 
+		 * @param localFilename local output file
+		 */
+		public void countLocalOutput(String localFilename) {
+			TaskMetrics metrics = getFileMetrics();
+			if (metrics != null) {
+				metrics.countOutputFile(localFilename);
+			}
+		}
+		
+		/**
+		 * Helper function to open a buffered writer to a file on the local file system. The 
+		 * bytes written are counted in the task metrics.
+		 * 
+		 * @param localFilename absolute filename
+		 * @return BufferedWriter handle
+		 * @throws IOException if the file could not be created
+		 */
+		public BufferedWriter openLocalBufferedWriter(String localFilename) throws IOException {
+			return new BufferedWriter(new OutputStreamWriter(countOutput(new FileOutputStream(localFilename))));
 		}
 		
 		/**
 		 * Helper function to open a buffered writer to a file in the MapReduce task output directory
-		 * in HDFS. 
+		 * in HDFS. The output is compressed while written to HDFS using either a Hadoop codec 
+		 * or commons-compress.
 		 * 
 		 * @param filename base filename
 		 * @param compression to use. Note this method does not check if the compression method is 
@@ -295,13 +695,28 @@ public class PerFile extends TroilkattMapReduce {
 			CompressionCodecFactory factory = new CompressionCodecFactory(conf);
 			CompressionCodec outputCodec = factory.getCodec(outputPath);
 							
-			if ((outputCodec != null) || outputCompression.equals("none")) { // both input and output codec is supported by hadoop				
+			if (outputCompression.equals("none")) {
 				// Write directly to HDFS
-				OutputStream os = outputCodec.createOutputStream(hdfs.create(outputPath));
+				return new BufferedWriter(new OutputStreamWriter(countOutput(hdfs.create(outputPath))));
+			}
+			else if (outputCodec != null) {
+				// Write directly to HDFS using a Hadoop codec
+				OutputStream os = outputCodec.createOutputStream(countOutput(hdfs.create(outputPath)));
 				return new BufferedWriter(new OutputStreamWriter(os));	
 			}
 			else {
-				return null;
+				// Write directly to HDFS using a commons-compress codec
+				OutputStream hos = hdfs.create(outputPath);
+				try {
+					OutputStream os = new CompressorStreamFactory().createCompressorOutputStream(
+							getCompressorFormat(outputCompression), countOutput(hos));
+					return new BufferedWriter(new OutputStreamWriter(os));
+				} catch (CompressorException e) { // This is expected for unknown formats
+					mapLogger.debug("Compression not supported by commons-compress: " + outputCompression);
+					hos.close();
+					hdfs.delete(outputPath, false);
+					return null;
+				}
 			}
 		}		
 		
@@ -392,11 +807,200 @@ public class PerFile extends TroilkattMapReduce {
 		}
 	}
 	
+	/**
+	 * Input format that packs many small files into one split, such that a job with 
+	 * thousands of small input files does not start one map task per file. Files 
+	 * are packed into splits of up to troilkatt.perfile.split.size bytes:
+	 * - Files that are at least the target size get their own split. These splits are
+	 * returned first, with the largest file first, such that the large files start early.
+	 * - The small files are grouped by the host that stores most of the file's blocks, and 
+	 * each group is packed into splits of up to the target size. The remaining files of
+	 * all groups are then packed together.
+	 * 
+	 * The split locations are the hosts that store most of the files in the split.
+	 * 
+	 * This input format is only used if a split size is set, since packed splits change 
+	 * how files are assigned to tasks (see perFileConfInit()).
+	 * 
+	 * The code in this class is run by the JobClient the node where the MapReduce job is started.
+	 */
+	public static class PackedFileInputFormat extends WholeFileInputFormat {
+		
+		/**
+		 * Create the input splits.
+		 * 
+		 * @param job job context
+		 * @return list of CombineFileSplits
+		 */
+		@Override
+		public List<InputSplit> getSplits(JobContext job) throws IOException {
+			Configuration conf = job.getConfiguration();
+			long targetSize = conf.getLong(SPLIT_SIZE_KEY, DEFAULT_SPLIT_SIZE);
+			
+			ArrayList<FileStatus> largeFiles = new ArrayList<FileStatus>();
+			// Key: preferred host, value: small files stored on that host
+			TreeMap<String, ArrayList<FileStatus>> hostFiles = new TreeMap<String, ArrayList<FileStatus>>();
+			// Key: file, value: host that stores most of the file's data
+			HashMap<Path, String[]> fileHosts = new HashMap<Path, String[]>();
+			for (FileStatus f: listStatus(job)) {
+				if (f.isDirectory()) {
+					continue;
+				}
+				Path path = f.getPath();
+				FileSystem fs = path.getFileSystem(conf);				
+				String[] hosts = getHostsBySize(fs.getFileBlockLocations(f, 0, f.getLen()));
+				fileHosts.put(path, hosts);
+				
+				if (f.getLen() >= targetSize) {
+					largeFiles.add(f);
+				}
+				else {
+					String host = (hosts.length > 0) ? hosts[0] : "";
+					ArrayList<FileStatus> files = hostFiles.get(host);
+					if (files == null) {
+						files = new ArrayList<FileStatus>();
+						hostFiles.put(host, files);
+					}
+					files.add(f);
+				}
+			}
+			
+			ArrayList<InputSplit> splits = new ArrayList<InputSplit>();
+			
+			// Large files are in their own split and sorted by size, largest first
+			Collections.sort(largeFiles, new Comparator<FileStatus>() {
+				@Override
+				public int compare(FileStatus f1, FileStatus f2) {
+					return Long.valueOf(f2.getLen()).compareTo(f1.getLen());
+				}
+			});
+			for (FileStatus f: largeFiles) {
+				ArrayList<FileStatus> files = new ArrayList<FileStatus>();
+				files.add(f);
+				splits.add(createSplit(files, fileHosts));
+			}
+			
+			// Pack small files stored on the same host, in filename order
+			ArrayList<FileStatus> remaining = new ArrayList<FileStatus>();
+			for (ArrayList<FileStatus> files: hostFiles.values()) {
+				Collections.sort(files, new Comparator<FileStatus>() {
+					@Override
+					public int compare(FileStatus f1, FileStatus f2) {
+						return f1.getPath().compareTo(f2.getPath());
+					}
+				});
+				remaining.addAll(packFiles(files, targetSize, fileHosts, splits));
+			}
+			// Pack the remaining small files
+			ArrayList<FileStatus> lastFiles = packFiles(remaining, targetSize, fileHosts, splits);
+			if (! lastFiles.isEmpty()) {
+				splits.add(createSplit(lastFiles, fileHosts));
+			}
+			
+			return splits;
+		}
+		
+		/**
+		 * Pack files into splits of up to the target size.
+		 * 
+		 * @param files files to pack
+		 * @param targetSize maximum size of a split
+		 * @param fileHosts key: file, value: hosts storing the file
+		 * @param splits list where full splits are added
+		 * @return files not added to a split, since they do not fill a split
+		 */
+		protected ArrayList<FileStatus> packFiles(ArrayList<FileStatus> files, long targetSize,
+				HashMap<Path, String[]> fileHosts, ArrayList<InputSplit> splits) {
+			ArrayList<FileStatus> current = new ArrayList<FileStatus>();
+			long currentSize = 0;
+			for (FileStatus f: files) {
+				if ((currentSize + f.getLen() > targetSize) && (! current.isEmpty())) {
+					splits.add(createSplit(current, fileHosts));
+					current = new ArrayList<FileStatus>();
+					currentSize = 0;
+				}
+				current.add(f);
+				currentSize += f.getLen();
+			}
+			return current;
+		}
+		
+		/**
+		 * Create a split for a list of files
+		 * 
+		 * @param files files in split
+		 * @param fileHosts key: file, value: hosts storing the file
+		 * @return split 
+		 */
+		protected CombineFileSplit createSplit(ArrayList<FileStatus> files, HashMap<Path, String[]> fileHosts) {
+			Path[] paths = new Path[files.size()];
+			long[] starts = new long[files.size()];
+			long[] lengths = new long[files.size()];
+			// Key: host, value: number of bytes stored on the host
+			HashMap<String, Long> hostBytes = new HashMap<String, Long>();
+			for (int i = 0; i < files.size(); i++) {
+				FileStatus f = files.get(i);
+				paths[i] = f.getPath();
+				starts[i] = 0;
+				lengths[i] = f.getLen();
+				for (String h: fileHosts.get(paths[i])) {
+					Long bytes = hostBytes.get(h);
+					hostBytes.put(h, (bytes == null) ? f.getLen() : bytes + f.getLen());
+				}
+			}
+			return new CombineFileSplit(paths, starts, lengths, sortHosts(hostBytes));
+		}
+		
+		/**
+		 * Get the hosts that store a file's blocks, sorted by the number of bytes they 
+		 * store.
+		 * 
+		 * @param blocks file's block locations
+		 * @return hosts sorted by the number of stored bytes, most bytes first
+		 */
+		protected static String[] getHostsBySize(BlockLocation[] blocks) throws IOException {
+			HashMap<String, Long> hostBytes = new HashMap<String, Long>();
+			if (blocks != null) {
+				for (BlockLocation b: blocks) {
+					for (String h: b.getHosts()) {
+						Long bytes = hostBytes.get(h);
+						hostBytes.put(h, (bytes == null) ? b.getLength() : bytes + b.getLength());
+					}
+				}
+			}
+			return sortHosts(hostBytes);
+		}
+		
+		/**
+		 * Sort hosts by number of bytes, most bytes first. 
+		 * 
+		 * @param hostBytes key: host, value: bytes
+		 * @return sorted hosts (at most MAX_SPLIT_HOSTS)
+		 */
+		protected static String[] sortHosts(final HashMap<String, Long> hostBytes) {
+			ArrayList<String> hosts = new ArrayList<String>(hostBytes.keySet());
+			Collections.sort(hosts, new Comparator<String>() {
+				@Override
+				public int compare(String h1, String h2) {
+					int c = hostBytes.get(h2).compareTo(hostBytes.get(h1));
+					if (c == 0) {
+						return h1.compareTo(h2);
+					}
+					return c;
+				}
+			});
+			int nHosts = Math.min(hosts.size(), MAX_SPLIT_HOSTS);
+			return hosts.subList(0, nHosts).toArray(new String[nHosts]);
+		}
+	}
+	
 	/**
 	 * This class implemented a record reader that delivers filenames to the PerFileMapper.
 	 * It does not read the file content, nor send it to the mappers.
 	 * 
-	 * There is one RecordReader instance per file (input split)
+	 * There is one RecordReader instance per input split. A split is either a FileSplit
+	 * with one file (WholeFileInputFormat), or a CombineFileSplit with one or more files
+	 * (PackedFileInputFormat).
 	 * 
 	 * Note! The implementation assumes that files cannot be split.
 	 * 
@@ -404,11 +1008,16 @@ public class PerFile extends TroilkattMapReduce {
 	 * the cluster.
 	 */
 	public static class FilenameReader extends RecordReader<Text, BytesWritable>  {				
-		private FileSplit filesplit;
-		// Each split consits of a file which is either read or not. 
-		// When the filename has been returned to the map() function this
-		// value is set to processed
-		private boolean processed;
+		// Files in split
+		private Path[] paths;
+		// Size of each file in split
+		private long[] lengths;
+		// Total size of all files in split
+		private long totalBytes;
+		// Index of next file to return
+		private int nextFile;
+		// Size of files that have been returned to the map() function
+		private long processedBytes;
 		
 		// Key is the filename and is set for each file read
 		private Text key = null; 
@@ -418,15 +1027,30 @@ public class PerFile extends TroilkattMapReduce {
 		/**
 		 * Called once at initialization.
 		 * 
-		 * Since there is one instance per input split, this function is called once per fil.
+		 * Since there is one instance per input split, this function is called once per split.
 		 * 
-		 * @param split
+		 * @param split either a FileSplit or a CombineFileSplit
 		 * @param context
 		 */
 		@Override
 		public void initialize(InputSplit split, TaskAttemptContext context) {
-			this.filesplit = (FileSplit) split;
-			this.processed = false;
+			if (split instanceof CombineFileSplit) {
+				CombineFileSplit combineSplit = (CombineFileSplit) split;
+				paths = combineSplit.getPaths();
+				lengths = combineSplit.getLengths();
+			}
+			else {
+				FileSplit fileSplit = (FileSplit) split;
+				paths = new Path[] {fileSplit.getPath()};
+				lengths = new long[] {fileSplit.getLength()};
+			}
+			
+			totalBytes = 0;
+			for (long l: lengths) {
+				totalBytes += l;
+			}
+			nextFile = 0;
+			processedBytes = 0;
 		}
 
 		/**
@@ -456,12 +1080,14 @@ public class PerFile extends TroilkattMapReduce {
 		/**
 		 * The current progress of the record reader through its data. 
 		 * 
-		 * @return Zero progress if the file has not bean read, and full progress if it has.
+		 * @return fraction of the split's bytes that are in files that have been processed.
 		 */
 		@Override
 		public float getProgress() throws IOException {
-			// A file is eaitehr not read or read, so the progress is either zero or 100%
-			return processed ? 1.0f: 0.0f;
+			if (totalBytes == 0) { // only empty files
+				return (paths.length == 0) ? 1.0f : Math.min(1.0f, (float) nextFile / paths.length);
+			}
+			return (float) processedBytes / totalBytes;
 		}
 
 		/**
@@ -471,26 +1097,139 @@ public class PerFile extends TroilkattMapReduce {
 		 */
 		@Override
 		public boolean nextKeyValue() throws IOException {
-			if (! processed) {			
-				// Get filename of input split
-				Path file = filesplit.getPath();			
-				key = new Text(file.toString());
+			// The previously returned file has been processed
+			if ((nextFile > 0) && (nextFile <= paths.length)) {
+				processedBytes += lengths[nextFile - 1];
+			}
+			
+			if (nextFile < paths.length) {
+				key = new Text(paths[nextFile].toString());
 				
 				// The file content is not read since it can be very large, and the mapper may not need
 				// to read the entire file
 				value = null;
 								
-				// The input split has been processed
-				processed = true;
+				nextFile++;
 				return true;
 			}
 			else {
-				// Input split has already been processed
+				// All files in the input split have been processed
+				key = null;
+				nextFile = paths.length + 1;
 				return false;
 			}
 		}		
 	}			
 
+	/**
+	 * Get the number of files to process in parallel from the stage arguments.
+	 * 
+	 * @param args stage arguments
+	 * @return value of the THREADS_ARG argument, or 1 if the argument is not given
+	 * @throws IOException if the thread count is not a positive number
+	 */
+	public static int getMapThreads(String[] args) throws IOException {
+		for (String a: args) {
+			if (a.startsWith(THREADS_ARG)) {
+				try {
+					int nThreads = Integer.valueOf(a.substring(THREADS_ARG.length()));
+					if (nThreads > 0) {
+						return nThreads;
+					}
+				} catch (NumberFormatException e) {
+					// throw exception below
+				}
+				throw new IOException("Invalid thread count: " + a);
+			}
+		}
+		return 1;
+	}
+	
+	/**
+	 * Remove the THREADS_ARG argument from the stage arguments.
+	 * 
+	 * @param args stage arguments
+	 * @return stage arguments without the thread count
+	 */
+	public static String[] removeMapThreadsArg(String[] args) {
+		ArrayList<String> remaining = new ArrayList<String>();
+		for (String a: args) {
+			if (! a.startsWith(THREADS_ARG)) {
+				remaining.add(a);
+			}
+		}
+		return remaining.toArray(new String[remaining.size()]);
+	}
+	
+	/**
+	 * Get the split size from the stage arguments.
+	 * 
+	 * @param args stage arguments
+	 * @return value of the SPLIT_SIZE_ARG argument in bytes, or -1 if the argument is not 
+	 * given
+	 * @throws IOException if the split size is not a positive number
+	 */
+	public static long getSplitSize(String[] args) throws IOException {
+		long sizeMB = getSizeArg(args, SPLIT_SIZE_ARG);
+		if (sizeMB == -1) {
+			return -1;
+		}
+		return sizeMB * 1024 * 1024;
+	}
+	
+	/**
+	 * Get the input cache size from the stage arguments.
+	 * 
+	 * @param args stage arguments
+	 * @return value of the INPUT_CACHE_ARG argument in MB, or -1 if the argument is not 
+	 * given
+	 * @throws IOException if the cache size is not a positive number
+	 */
+	public static long getInputCacheSize(String[] args) throws IOException {
+		return getSizeArg(args, INPUT_CACHE_ARG);
+	}
+	
+	/**
+	 * Helper function to parse a size argument.
+	 * 
+	 * @param args stage arguments
+	 * @param prefix argument prefix
+	 * @return argument value, or -1 if the argument is not given
+	 * @throws IOException if the value is not a positive number
+	 */
+	protected static long getSizeArg(String[] args, String prefix) throws IOException {
+		for (String a: args) {
+			if (a.startsWith(prefix)) {
+				try {
+					long size = Long.valueOf(a.substring(prefix.length()));
+					if (size > 0) {
+						return size;
+					}
+				} catch (NumberFormatException e) {
+					// throw exception below
+				}
+				throw new IOException("Invalid size argument: " + a);
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Remove the SPLIT_SIZE_ARG and INPUT_CACHE_ARG arguments from the stage arguments.
+	 * 
+	 * @param args stage arguments
+	 * @return stage arguments without the arguments only used by perFileConfInit()
+	 */
+	public static String[] removeJobArgs(String[] args) {
+		ArrayList<String> remaining = new ArrayList<String>();
+		for (String a: args) {
+			if ((! a.startsWith(SPLIT_SIZE_ARG)) && (! a.startsWith(INPUT_CACHE_ARG))) {
+				remaining.add(a);
+			}
+		}
+		return remaining.toArray(new String[remaining.size()]);
+	}
+	
 	/**
 	 * Initialize MapReduce job to use per-file input and output classes 
 	 * 
@@ -498,8 +1237,9 @@ public class PerFile extends TroilkattMapReduce {
 	 * 
 	 * @param conf initialized hadoop configuration object
 	 * @param job initialized job object
+	 * @throws IOException if the stage arguments contain an invalid PerFile option
 	 */
-	public void perFileConfInit(Configuration conf, Job job) {
+	public void perFileConfInit(Configuration conf, Job job) throws IOException {
 		/* Turn off speculative execution since per-file-processing often results in an unbalanced workload
 		 * and therefore some task will take much longer to run. These should not be restarted on other
 		 * nodes. */
@@ -508,8 +1248,42 @@ public class PerFile extends TroilkattMapReduce {
 		
 		conf.setInt("mapred.task.timeout", 30 * 60 * 1000);
 		
-		/* Setup filter */
-		job.setInputFormatClass(WholeFileInputFormat.class);		
+		/* Setup filter: small files are packed into splits only if a split size is set, either
+		 * in the configuration or as a stage argument, or if several files are processed in 
+		 * parallel by each task */
+		Configuration jobConf = job.getConfiguration();
+		String stageArgs = jobConf.get("troilkatt.stage.args");
+		if (stageArgs != null) {
+			String[] args = stageArgs.split(" ");
+			long splitSize = getSplitSize(args);
+			long inputCacheSize = getInputCacheSize(args);
+			if ((splitSize != -1) || (inputCacheSize != -1)) {
+				// The arguments are only used here, so these are not passed to the mapper
+				StringBuilder sb = new StringBuilder();
+				for (String a: removeJobArgs(args)) {
+					if (sb.length() > 0) {
+						sb.append(" ");
+					}
+					sb.append(a);
+				}
+				jobConf.set("troilkatt.stage.args", sb.toString());
+			}
+			if (inputCacheSize != -1) {
+				jobConf.setLong(InputCache.CACHE_SIZE_KEY, inputCacheSize);
+			}
+			if (splitSize != -1) {
+				jobConf.setLong(SPLIT_SIZE_KEY, splitSize);
+			}
+			else if ((getMapThreads(args) > 1) && (jobConf.getLong(SPLIT_SIZE_KEY, 0) <= 0)) {
+				jobConf.setLong(SPLIT_SIZE_KEY, DEFAULT_SPLIT_SIZE);
+			}
+		}
+		if (jobConf.getLong(SPLIT_SIZE_KEY, 0) > 0) {
+			job.setInputFormatClass(PackedFileInputFormat.class);
+		}
+		else {
+			job.setInputFormatClass(WholeFileInputFormat.class);
+		}
 		//job.setOutputFormatClass(FileOutputFormat.class);
 		//job.setMapOutputKeyClass(Text.class);
 		//job.setMapOutputValueClass(Text.class);
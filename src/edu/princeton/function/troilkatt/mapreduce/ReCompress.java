@@ -1,24 +1,18 @@
 package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
-import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 
 /**
@@ -32,6 +26,10 @@ public class ReCompress extends PerFile {
 	public static class CompressMapper extends PerFileMapper {
 		protected Counter filesCompressed;
 		
+		// Target compression format, or Recompressor.AUTO to select the codec per file
+		protected String dstCompression;
+		protected Recompressor recompressor;
+		
 		/**
 		 * Setup global variables. This function is called before map()
 		 * @throws IOException 
@@ -41,6 +39,13 @@ public class ReCompress extends PerFile {
 			super.setup(context);			
 			
 			filesCompressed = context.getCounter(CompressCounters.FILES_COMPRESSED);
+			
+			// The stage argument "auto" enables per file codec selection
+			dstCompression = compressionFormat;
+			if (TroilkattMapReduce.confEget(conf, "troilkatt.stage.args").trim().equals(Recompressor.AUTO)) {
+				dstCompression = Recompressor.AUTO;
+			}
+			recompressor = new Recompressor(conf, hdfs, mapLogger);
 		}
 		
 		/**
@@ -53,7 +58,6 @@ public class ReCompress extends PerFile {
 		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
 			// Split filename into its different components
 			String inputFilename = key.toString();
-			Path inputPath = new Path(inputFilename);			
 			if (! tfs.isfile(inputFilename)) {
 				System.err.println("Not a file: " + inputFilename);
 				return;
@@ -66,46 +70,25 @@ public class ReCompress extends PerFile {
 				return;
 			}
 			
-			// Check if the compression format for the input file used is supported by hadoop
-			CompressionCodecFactory factory = new CompressionCodecFactory(conf);
-			CompressionCodec inputCodec = factory.getCodec(inputPath);
-			
 			// Create output filename
 			Path outputDirPath = FileOutputFormat.getOutputPath(context); // get task specific output directory
 			String outputDir = outputDirPath.toString();
-			String outputFilename = OsPath.join(outputDir, basename + "." + srcTimestamp + "." + compressionFormat);
-			Path outputPath = new Path(outputFilename);			
-			CompressionCodec outputCodec = factory.getCodec(outputPath);			
 			
-			if ((inputCodec != null) || (srcCompression.equals("none")) &&
-					(outputCodec != null) || (compressionFormat.equals("none"))) { // both input and output codec is supported by hadoop
-				OutputStream out = null;
-				try {
-					// Read compressed file directly and write compressed file directly
-					InputStream in = null;
-					if (inputCodec != null) {
-						in = inputCodec.createInputStream(hdfs.open(inputPath));
-					}
-					else {
-						in = hdfs.open(inputPath);
-					}				
-					if (outputCodec != null) {
-						out = outputCodec.createOutputStream(hdfs.create(outputPath));
-					}
-					else {
-						out = hdfs.create(outputPath);
-					}
-					IOUtils.copyBytes(in, out, conf);
-					IOUtils.closeStream(in);
-					IOUtils.closeStream(out);
-					filesCompressed.increment(1);
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.err.println("Could not recompress file: " + inputFilename);
-					IOUtils.closeStream(out);
-					tfs.deleteFile(outputFilename);
-					return;
-				}
+			// Stream the decompressed file directly to the compressor if both codecs are supported 
+			// by Hadoop or commons-compress
+			Recompressor.RecompressResult result = null;
+			try {
+				result = recompressor.recompress(inputFilename, srcCompression, outputDir, basename, srcTimestamp, dstCompression);
+			} catch (IOException e) {
+				mapLogger.error("Could not recompress file: " + inputFilename, e);
+				return;
+			}
+			
+			if (result != null) {
+				Recompressor.updateCounters(context, result);
+				filesCompressed.increment(1);
+				mapLogger.info(String.format("Recompressed %s to %s: %d -> %d bytes in %d CPU ms",
+						inputFilename, result.compression, result.inputBytes, result.outputBytes, result.cpuNanos / 1000000));
 			}			
 			else {
 				// Read input file to local FS, uncompress, re-compress and rewrite back to hadoop
@@ -190,7 +173,13 @@ public class ReCompress extends PerFile {
 		}			
 		
 	    // Execute job and wait for completion
-		return this.waitForCompletionLogged(job);
+		int rv = this.waitForCompletionLogged(job);
+		try {
+			jobLogger.info(Recompressor.createReport(job.getCounters()));
+		} catch (IOException e) {
+			jobLogger.warn("Could not read job counters: ", e);
+		}
+		return rv;
 	}
 	
 	/**
@@ -0,0 +1,402 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.fs.TroilkattFS;
+
+/**
+ * Recompress HDFS files in one pass by streaming the decompressed input directly into
+ * the compressor for the output file. Both Hadoop codecs and commons-compress codecs are
+ * supported.
+ *
+ * If the target compression is AUTO, the codec is selected per file by benchmarking all
+ * tfs compression formats on the first SAMPLE_SIZE bytes of the decompressed file. The
+ * selected codec is the one with the lowest estimated time to read the file, that is the
+ * time to read the compressed bytes from HDFS plus the time to decompress them.
+ */
+public class Recompressor {
+	// Target compression format used to select the codec per file
+	public static final String AUTO = "auto";
+	// Size of the decompressed sample used for benchmarking
+	public static final int SAMPLE_SIZE = 4 * 1024 * 1024;
+	// Configuration key and default for the HDFS read bandwidth used to estimate read times
+	public static final String READ_BANDWIDTH_KEY = "troilkatt.recompress.read.mb.per.sec";
+	public static final float DEFAULT_READ_BANDWIDTH = 100;
+	// Counter group for the compression statistics
+	public static final String COUNTER_GROUP = "Recompression";
+
+	/**
+	 * Benchmark result for one codec.
+	 */
+	public static class CodecResult {
+		public String compression;
+		public long uncompressedBytes;
+		public long compressedBytes;
+		public long compressNanos;
+		public long decompressNanos;
+
+		/**
+		 * Estimate the time to read and decompress the sample.
+		 *
+		 * @param readBytesPerSec HDFS read bandwidth
+		 * @return estimated time in seconds
+		 */
+		public double getReadSeconds(double readBytesPerSec) {
+			return (compressedBytes / readBytesPerSec) + (decompressNanos / 1e9);
+		}
+	}
+
+	/**
+	 * Statistics for one recompressed file.
+	 */
+	public static class RecompressResult {
+		public String outputFilename;
+		public String compression;
+		// Size of the input file
+		public long inputBytes;
+		public long uncompressedBytes;
+		// Size of the output file
+		public long outputBytes;
+		// CPU time used to decompress and compress the file
+		public long cpuNanos;
+	}
+
+	protected Configuration conf;
+	protected FileSystem hdfs;
+	protected CompressionCodecFactory factory;
+	protected double readBytesPerSec;
+	protected Logger logger;
+	protected ThreadMXBean threadBean;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param conf Hadoop configuration, also used to read READ_BANDWIDTH_KEY
+	 * @param hdfs HDFS handle
+	 * @param logger logger to use
+	 */
+	public Recompressor(Configuration conf, FileSystem hdfs, Logger logger) {
+		this.conf = conf;
+		this.hdfs = hdfs;
+		this.logger = logger;
+		factory = new CompressionCodecFactory(conf);
+		readBytesPerSec = conf.getFloat(READ_BANDWIDTH_KEY, DEFAULT_READ_BANDWIDTH) * 1024 * 1024;
+		threadBean = ManagementFactory.getThreadMXBean();
+	}
+
+	/**
+	 * Recompress a file.
+	 *
+	 * @param inputFilename HDFS filename
+	 * @param srcCompression compression format of the input file
+	 * @param outputDir HDFS directory for the output file
+	 * @param basename basename of the output file
+	 * @param timestamp timestamp of the output file
+	 * @param dstCompression compression format of the output file, or AUTO to benchmark
+	 * the tfs compression formats
+	 * @return result with output filename and statistics, or null if the input or output
+	 * compression format is not supported by Hadoop or commons-compress
+	 * @throws IOException if the file could not be recompressed. A partially written output
+	 * file is deleted.
+	 */
+	public RecompressResult recompress(String inputFilename, String srcCompression,
+			String outputDir, String basename, long timestamp, String dstCompression) throws IOException {
+		long cpuStart = getThreadCpuNanos();
+		Path inputPath = new Path(inputFilename);
+		// Read the input size before the stream is opened, so that the stream is not
+		// leaked if the file status cannot be read
+		RecompressResult result = new RecompressResult();
+		result.inputBytes = hdfs.getFileStatus(inputPath).getLen();
+		InputStream in = openInput(inputPath, srcCompression);
+		if (in == null) {
+			return null;
+		}
+
+		OutputStream out = null;
+		try {
+			// Read the first block that is used for benchmarking, and that is written before
+			// the rest of the stream is copied
+			byte[] sample = new byte[SAMPLE_SIZE];
+			int sampleLen = 0;
+			int n;
+			while ((sampleLen < sample.length) &&
+					((n = in.read(sample, sampleLen, sample.length - sampleLen)) != -1)) {
+				sampleLen += n;
+			}
+
+			result.compression = dstCompression;
+			if (dstCompression.equals(AUTO)) {
+				result.compression = selectCodec(sample, sampleLen, TroilkattFS.compressionExtensions);
+			}
+
+			result.outputFilename = OsPath.join(outputDir, basename + "." + timestamp + "." + result.compression);
+			Path outputPath = new Path(result.outputFilename);
+			out = openOutput(outputPath, result.compression);
+			if (out == null) {
+				in.close();
+				return null;
+			}
+
+			out.write(sample, 0, sampleLen);
+			result.uncompressedBytes = sampleLen;
+			byte[] buf = new byte[64 * 1024];
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+				result.uncompressedBytes += n;
+			}
+			in.close();
+			out.close();
+			out = null;
+			result.outputBytes = hdfs.getFileStatus(outputPath).getLen();
+		} catch (IOException e) {
+			IOUtils.closeStream(in);
+			IOUtils.closeStream(out);
+			if (result.outputFilename != null) {
+				hdfs.delete(new Path(result.outputFilename), false);
+			}
+			throw e;
+		}
+		result.cpuNanos = getThreadCpuNanos() - cpuStart;
+		return result;
+	}
+
+	/**
+	 * Select the codec with the lowest estimated read time for a sample.
+	 *
+	 * @param sample decompressed sample
+	 * @param len number of bytes in sample
+	 * @param candidates compression formats to benchmark
+	 * @return selected compression format
+	 * @throws IOException if the sample could not be compressed
+	 */
+	public String selectCodec(byte[] sample, int len, String[] candidates) throws IOException {
+		CodecResult best = null;
+		for (String c: candidates) {
+			CodecResult r = benchmark(sample, len, c);
+			if (r == null) {
+				continue;
+			}
+			logger.debug(String.format("Codec %s: %d -> %d bytes, compress %d ms, decompress %d ms",
+					c, r.uncompressedBytes, r.compressedBytes, r.compressNanos / 1000000, r.decompressNanos / 1000000));
+			if ((best == null) || (r.getReadSeconds(readBytesPerSec) < best.getReadSeconds(readBytesPerSec))) {
+				best = r;
+			}
+		}
+		if (best == null) {
+			throw new IOException("None of the compression formats are supported");
+		}
+		return best.compression;
+	}
+
+	/**
+	 * Compress and decompress a sample in memory.
+	 *
+	 * @param sample decompressed sample
+	 * @param len number of bytes in sample
+	 * @param compression compression format to benchmark
+	 * @return benchmark result, or null if the format is not supported
+	 * @throws IOException
+	 */
+	public CodecResult benchmark(byte[] sample, int len, String compression) throws IOException {
+		CodecResult r = new CodecResult();
+		r.compression = compression;
+		r.uncompressedBytes = len;
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 1);
+		long start = System.nanoTime();
+		OutputStream cos = createCompressedStream(bos, compression);
+		if (cos == null) {
+			return null;
+		}
+		cos.write(sample, 0, len);
+		cos.close();
+		r.compressNanos = System.nanoTime() - start;
+		r.compressedBytes = bos.size();
+
+		byte[] buf = new byte[64 * 1024];
+		start = System.nanoTime();
+		InputStream cis = createDecompressedStream(new ByteArrayInputStream(bos.toByteArray()), compression);
+		while (cis.read(buf) != -1) {
+			// decompress all
+		}
+		cis.close();
+		r.decompressNanos = System.nanoTime() - start;
+		return r;
+	}
+
+	/**
+	 * Open a decompressed stream for an HDFS file.
+	 *
+	 * @return stream, or null if the compression format is not supported
+	 */
+	public InputStream openInput(Path path, String compression) throws IOException {
+		if (! isSupported(compression)) {
+			return null;
+		}
+		return createDecompressedStream(hdfs.open(path), compression);
+	}
+
+	/**
+	 * Create an HDFS file with a compressed output stream.
+	 *
+	 * @return stream, or null if the compression format is not supported
+	 */
+	public OutputStream openOutput(Path path, String compression) throws IOException {
+		if (! isSupported(compression)) {
+			return null;
+		}
+		return createCompressedStream(hdfs.create(path), compression);
+	}
+
+	/**
+	 * @return true if the compression format is supported by Hadoop or commons-compress
+	 */
+	public boolean isSupported(String compression) {
+		if (compression.equals("none") || (getCodec(compression) != null)) {
+			return true;
+		}
+		try {
+			createCompressorStream(new ByteArrayOutputStream(), compression).close();
+			return true;
+		} catch (CompressorException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Helper function to wrap a stream with a compressor. A Hadoop codec is used if
+	 * available, and otherwise commons-compress.
+	 *
+	 * @return compressed stream, or null if the format is not supported
+	 */
+	protected OutputStream createCompressedStream(OutputStream os, String compression) throws IOException {
+		if (compression.equals("none")) {
+			return os;
+		}
+		CompressionCodec codec = getCodec(compression);
+		if (codec != null) {
+			return codec.createOutputStream(os);
+		}
+		try {
+			return createCompressorStream(os, compression);
+		} catch (CompressorException e) {
+			os.close();
+			return null;
+		}
+	}
+
+	/**
+	 * Helper function to wrap a stream with a decompressor. The format must be supported.
+	 */
+	protected InputStream createDecompressedStream(InputStream is, String compression) throws IOException {
+		if (compression.equals("none")) {
+			return is;
+		}
+		CompressionCodec codec = getCodec(compression);
+		if (codec != null) {
+			return codec.createInputStream(is);
+		}
+		try {
+			return new CompressorStreamFactory().createCompressorInputStream(getCompressorFormat(compression), is);
+		} catch (CompressorException e) {
+			is.close();
+			throw new IOException("Unsupported compression format: " + compression);
+		}
+	}
+
+	/**
+	 * Helper function to get the Hadoop codec for a compression format.
+	 */
+	protected CompressionCodec getCodec(String compression) {
+		return factory.getCodec(new Path("file." + compression));
+	}
+
+	/**
+	 * Helper function to create a commons-compress output stream.
+	 */
+	protected static OutputStream createCompressorStream(OutputStream os, String compression) throws CompressorException {
+		return new CompressorStreamFactory().createCompressorOutputStream(getCompressorFormat(compression), os);
+	}
+
+	/**
+	 * Helper function to map a tfs compression format to a commons-compress format name.
+	 */
+	protected static String getCompressorFormat(String compression) {
+		if (compression.equals("bz2")) {
+			return "bzip2";
+		}
+		return compression;
+	}
+
+	/**
+	 * Add the statistics for a recompressed file to the task counters.
+	 *
+	 * @param context task context
+	 * @param r recompression result
+	 */
+	public static void updateCounters(TaskAttemptContext context, RecompressResult r) {
+		context.getCounter(COUNTER_GROUP, "Input bytes").increment(r.inputBytes);
+		context.getCounter(COUNTER_GROUP, "Uncompressed bytes").increment(r.uncompressedBytes);
+		context.getCounter(COUNTER_GROUP, "Output bytes").increment(r.outputBytes);
+		context.getCounter(COUNTER_GROUP, "CPU milliseconds").increment(r.cpuNanos / 1000000);
+		context.getCounter(COUNTER_GROUP, "Files " + r.compression).increment(1);
+	}
+
+	/**
+	 * Create a summary of the recompression statistics for a job.
+	 *
+	 * @param counters job counters
+	 * @return report with space saved and CPU cost
+	 */
+	public static String createReport(Counters counters) {
+		CounterGroup group = counters.getGroup(COUNTER_GROUP);
+		long inputBytes = group.findCounter("Input bytes").getValue();
+		long outputBytes = group.findCounter("Output bytes").getValue();
+		long cpuMillis = group.findCounter("CPU milliseconds").getValue();
+		String report = String.format("Recompressed %d bytes to %d bytes: saved %d bytes (%.1f%%) using %.1f CPU seconds",
+				inputBytes, outputBytes, inputBytes - outputBytes,
+				(inputBytes > 0) ? (100.0 * (inputBytes - outputBytes) / inputBytes) : 0.0,
+				cpuMillis / 1000.0);
+		for (String c: TroilkattFS.compressionExtensions) {
+			long nFiles = group.findCounter("Files " + c).getValue();
+			if (nFiles > 0) {
+				report = report + String.format("\n%s: %d files", c, nFiles);
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Helper function to get the CPU time used by the current thread.
+	 *
+	 * @return CPU time in nanoseconds, or 0 if not supported by the JVM
+	 */
+	protected long getThreadCpuNanos() {
+		if (threadBean.isCurrentThreadCpuTimeSupported()) {
+			return threadBean.getCurrentThreadCpuTime();
+		}
+		return 0;
+	}
+}
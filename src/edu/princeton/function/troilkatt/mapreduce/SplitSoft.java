@@ -3,8 +3,8 @@ package edu.princeton.function.troilkatt.mapreduce;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -17,15 +17,25 @@ import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
+import edu.princeton.function.troilkatt.tools.ParseException;
+import edu.princeton.function.troilkatt.tools.SoftIndex;
 
 /**
  * Extract meta data from a SOFT file and store it in a separate file where the .soft 
  * extension is changed with a .meta extension
+ * 
+ * If the stage argument is "index", a byte offset index of the sections in the SOFT 
+ * file is instead stored in a file with an .index extension (see SoftIndex). Downstream 
+ * stages can use the index to read a section directly from the SOFT file.
  */
 public class SplitSoft extends PerFile {
+	// Stage argument used to enable index mode
+	public static final String INDEX_ARG = "index";
+	
 	enum LineCounters {
 		LINES_READ,
-		META_LINES_WRITTEN
+		META_LINES_WRITTEN,
+		SECTIONS_INDEXED
 	}
 	
 	/**
@@ -40,6 +50,10 @@ public class SplitSoft extends PerFile {
 		// Counters
 		protected Counter linesRead;
 		protected Counter linesWritten;
+		protected Counter sectionsIndexed;
+		
+		// Set if an index should be created instead of a meta file
+		protected boolean indexMode;
 		
 		/**
 		 * Setup global variables. This function is called before map()
@@ -52,6 +66,10 @@ public class SplitSoft extends PerFile {
 			// Counters used to report progress and avoid a job being assumed to be crashed
 			linesRead = context.getCounter(LineCounters.LINES_READ);
 			linesWritten = context.getCounter(LineCounters.META_LINES_WRITTEN);
+			sectionsIndexed = context.getCounter(LineCounters.SECTIONS_INDEXED);
+			
+			String stageArgs = conf.get("troilkatt.stage.args");
+			indexMode = (stageArgs != null) && stageArgs.trim().equals(INDEX_ARG);
 		}
 		
 		/**
@@ -75,6 +93,10 @@ public class SplitSoft extends PerFile {
 			 */
 			String inputFilename = key.toString();
 			String basename = tfs.getFilenameName(inputFilename);
+			if (indexMode) {
+				indexFile(inputFilename, basename, context);
+				return;
+			}
 			context.setStatus("Split: " + inputFilename);							
 			BufferedReader lin = openBufferedReader(inputFilename);			
 			if (lin == null) {
@@ -86,7 +108,7 @@ public class SplitSoft extends PerFile {
 			 *  Open output stream to a file on the local FS						
 			 */
 			String outputFilename = OsPath.join(taskOutputDir, basename + ".meta");
-			BufferedWriter bw = new BufferedWriter(new FileWriter(new File(outputFilename)));
+			BufferedWriter bw = openLocalBufferedWriter(outputFilename);
 			try {						
 				System.out.println("Split file: " + basename);	
 				context.setStatus("Split file: " + basename);
@@ -122,6 +144,48 @@ public class SplitSoft extends PerFile {
 			} finally {
 				lin.close();
 			}
+		}
+		
+		/**
+		 * Create a byte offset index for a SOFT file and write it to a file on the local FS.
+		 * 
+		 * @param inputFilename HDFS soft filename
+		 * @param basename basename of the soft file
+		 * @param context task context
+		 * @throws IOException
+		 */
+		protected void indexFile(String inputFilename, String basename, Context context) throws IOException {
+			context.setStatus("Index: " + inputFilename);
+			InputStream ins = openInputStream(inputFilename);
+			if (ins == null) {
+				mapLogger.fatal("Could not open input file: " + inputFilename);				
+				return;
+			}
+			
+			SoftIndex index;
+			try {
+				index = SoftIndex.build(ins);
+			} catch (IOException e) {
+				mapLogger.error("File index failed: ", e);
+				return;
+			} catch (ParseException e) {
+				mapLogger.error("File index failed: ", e);
+				return;
+			} finally {
+				ins.close();
+			}
+			
+			String outputFilename = OsPath.join(taskOutputDir, basename + ".index");
+			BufferedWriter bw = openLocalBufferedWriter(outputFilename);
+			try {
+				index.write(bw);
+				bw.close();
+			} catch (IOException e) {
+				mapLogger.error("Could not write index file: ", e);					
+				closeDeleteLocalBufferedWriter(bw, outputFilename);		
+				return;
+			}
+			sectionsIndexed.increment(index.getSections().size());
 		}			
 	}
 	
@@ -192,18 +256,7 @@ public class SplitSoft extends PerFile {
 		}	
 		
 	    // Execute job and wait for completion
-		try {
-			return job.waitForCompletion(true) ? 0: -1;
-		} catch (InterruptedException e) {
-			jobLogger.fatal("Job execution failed: ", e);
-			return -1;
-		} catch (ClassNotFoundException e) {
-			jobLogger.fatal("Job execution failed: ", e);
-			return -1;
-		} catch (IOException e) {
-			jobLogger.fatal("Job execution failed: ", e);
-			return -1;
-		}
+		return waitForCompletionLogged(job);
 	}
 
 	/**
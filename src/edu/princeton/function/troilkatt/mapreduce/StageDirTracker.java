@@ -0,0 +1,101 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+/**
+ * Track the files in a set of local stage directories such that the directories can be
+ * reused between map() calls, and between tasks executed in a reused JVM.
+ *
+ * Instead of deleting and re-creating the directories after each file, snapshot() records
+ * the files and sub-directories that should be kept (for example downloaded meta files),
+ * and clean() removes only the files and sub-directories created after the snapshot.
+ */
+public class StageDirTracker {
+	protected String[] dirs;
+	// key: directory, value: names of the files and sub-directories to keep
+	protected HashMap<String, HashSet<String>> keep;
+
+	/**
+	 * Constructor. The directories are created if they do not exist.
+	 *
+	 * @param dirs directories to track
+	 * @throws IOException if a directory could not be created
+	 */
+	public StageDirTracker(String[] dirs) throws IOException {
+		this.dirs = dirs;
+		keep = new HashMap<String, HashSet<String>>();
+		for (String d: dirs) {
+			if (OsPath.mkdir(d) == false) {
+				throw new IOException("Could not create directory: " + d);
+			}
+			keep.put(d, new HashSet<String>());
+		}
+	}
+
+	/**
+	 * Record the current content of all directories as files to keep.
+	 */
+	public void snapshot() {
+		for (String d: dirs) {
+			HashSet<String> names = keep.get(d);
+			names.clear();
+			String[] children = new File(d).list();
+			if (children != null) {
+				for (String c: children) {
+					names.add(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete all files and sub-directories that were created after the last snapshot.
+	 * Missing directories are re-created.
+	 *
+	 * @param logger logger used to warn about files that could not be deleted
+	 * @return number of deleted files and sub-directories
+	 * @throws IOException if a file or directory could not be deleted
+	 */
+	public int clean(Logger logger) throws IOException {
+		int nDeleted = 0;
+		for (String d: dirs) {
+			File dir = new File(d);
+			if (! dir.isDirectory()) {
+				logger.warn("Stage directory: " + d + " does not exist");
+				if (OsPath.mkdir(d) == false) {
+					throw new IOException("Cleanup failed: could not create directory: " + d);
+				}
+				continue;
+			}
+
+			HashSet<String> names = keep.get(d);
+			for (String c: dir.list()) {
+				if (names.contains(c)) {
+					continue;
+				}
+
+				File child = new File(dir, c);
+				boolean deleted;
+				if (child.isDirectory()) {
+					deleted = OsPath.deleteAll(child.getAbsolutePath());
+				}
+				else {
+					deleted = child.delete();
+				}
+				if (deleted == false) {
+					logger.warn("Could not delete: " + child.getAbsolutePath());
+					throw new IOException("Cleanup failed: could not delete: " + child.getAbsolutePath());
+				}
+				nDeleted++;
+			}
+		}
+		return nDeleted;
+	}
+}
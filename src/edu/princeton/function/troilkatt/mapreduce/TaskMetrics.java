@@ -0,0 +1,421 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+/**
+ * Per input file resource metrics for PerFile mappers.
+ *
+ * For each input file the mapper records:
+ * - bytesIn: size of the input file in HDFS
+ * - bytesRead: bytes read from streams opened with openBufferedReader() (uncompressed)
+ * - bytesOut: bytes written to streams opened with openBufferedWriter() or 
+ *   openLocalBufferedWriter(), and the size of local output files added using 
+ *   countLocalOutput()
+ * - wallMillis: time spent in map()
+ * - gcMillis: time spent in garbage collection during map()
+ * - peakHeapMB: peak heap usage during map()
+ *
+ * The metrics are written as one tab separated line per file to a side output file in the
+ * METRICS_DIR sub-directory of the task output directory, and aggregated into histogram
+ * job counters. The side output file is moved to the job output directory when the task is
+ * committed, so only successful task attempts are included. When the job is done, the job
+ * client collects the side output files into a per-file metrics file and a summary report
+ * in the stage log directory (see collect()).
+ */
+public class TaskMetrics {
+	// Sub-directory of the job output directory where the side output files are written
+	public static final String METRICS_DIR = "_task-metrics";
+	// Files written to the job client log directory by collect()
+	public static final String METRICS_FILENAME = "task-metrics.tsv";
+	public static final String REPORT_FILENAME = "task-metrics.report";
+	// Counter group for the aggregated metrics
+	public static final String COUNTER_GROUP = "Troilkatt task metrics";
+	public static final String HEADER = "#filename\tbytesIn\tbytesRead\tbytesOut\twallMillis\tgcMillis\tpeakHeapMB";
+	// Histogram bucket upper limits
+	public static final long[] WALL_TIME_BUCKETS = {1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000, 60 * 60 * 1000};
+	public static final long[] PEAK_HEAP_BUCKETS = {256, 1024, 4096, 16384};
+	// Number of files listed in each top list in the report
+	public static final int REPORT_TOP_FILES = 10;
+
+	/**
+	 * Input stream that counts the number of bytes read
+	 */
+	public class CountingInputStream extends FilterInputStream {
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				bytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				bytesRead += n;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Output stream that counts the number of bytes written
+	 */
+	public class CountingOutputStream extends FilterOutputStream {
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesWritten++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesWritten += len;
+		}
+	}
+
+	// Metrics for the current file
+	protected String filename;
+	protected long bytesIn;
+	protected long bytesRead;
+	protected long bytesWritten;
+	protected long startTime;
+	protected long startGCMillis;
+
+	// True if other files are processed in parallel in the same JVM
+	protected boolean concurrent;
+	// One line per processed file
+	protected ArrayList<String> lines;
+
+	/**
+	 * Constructor
+	 */
+	public TaskMetrics() {
+		this(false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param concurrent true if other files are processed in parallel in the same JVM. The
+	 * peak heap usage is then not reset when a file is started, since that would reset 
+	 * it for the other files, and the peak heap for a file is the task's peak heap so far.
+	 */
+	public TaskMetrics(boolean concurrent) {
+		this.concurrent = concurrent;
+		lines = new ArrayList<String>();
+	}
+
+	/**
+	 * Start recording metrics for a file.
+	 *
+	 * @param filename input filename
+	 * @param bytesIn size of the input file
+	 */
+	public void startFile(String filename, long bytesIn) {
+		this.filename = filename;
+		this.bytesIn = bytesIn;
+		bytesRead = 0;
+		bytesWritten = 0;
+		if (! concurrent) {
+			resetPeakHeap();
+		}
+		startGCMillis = getGCMillis();
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Stop recording metrics for the current file, update the job counters, and add a
+	 * line to the side output.
+	 *
+	 * @param context task context used to update counters. Can be null.
+	 * @return the metrics line for the file
+	 */
+	public String endFile(TaskInputOutputContext<?, ?, ?, ?> context) {
+		long wallMillis = System.currentTimeMillis() - startTime;
+		long gcMillis = getGCMillis() - startGCMillis;
+		long peakHeapMB = getPeakHeapMB();
+		long bytesOut = bytesWritten;
+
+		if (context != null) {
+			context.getCounter(COUNTER_GROUP, "Files").increment(1);
+			context.getCounter(COUNTER_GROUP, "Bytes in").increment(bytesIn);
+			context.getCounter(COUNTER_GROUP, "Bytes read").increment(bytesRead);
+			context.getCounter(COUNTER_GROUP, "Bytes out").increment(bytesOut);
+			context.getCounter(COUNTER_GROUP, "Wall time (ms)").increment(wallMillis);
+			context.getCounter(COUNTER_GROUP, "GC time (ms)").increment(gcMillis);
+			context.getCounter(COUNTER_GROUP, getBucketName("Wall time", wallMillis, WALL_TIME_BUCKETS, "ms")).increment(1);
+			context.getCounter(COUNTER_GROUP, getBucketName("Peak heap", peakHeapMB, PEAK_HEAP_BUCKETS, "MB")).increment(1);
+		}
+
+		String line = filename + "\t" + bytesIn + "\t" + bytesRead + "\t" + bytesOut + "\t" +
+				wallMillis + "\t" + gcMillis + "\t" + peakHeapMB;
+		lines.add(line);
+		filename = null;
+		return line;
+	}
+
+	/**
+	 * Wrap an input stream such that the bytes read are counted for the current file.
+	 */
+	public InputStream countInput(InputStream in) {
+		return new CountingInputStream(in);
+	}
+
+	/**
+	 * Wrap an output stream such that the bytes written are counted for the current file.
+	 */
+	public OutputStream countOutput(OutputStream out) {
+		return new CountingOutputStream(out);
+	}
+
+	/**
+	 * Add the size of a local output file written for the current file. This is used for
+	 * files that are not written through a stream returned by countOutput(), for example 
+	 * files written by external programs.
+	 *
+	 * @param filename local filename
+	 */
+	public void countOutputFile(String filename) {
+		long size = OsPath.fileSize(filename);
+		if (size > 0) {
+			bytesWritten += size;
+		}
+	}
+
+	/**
+	 * Add the lines recorded by another metrics object, for example one used by a thread 
+	 * that processes files in parallel with other threads.
+	 *
+	 * @param other metrics object with lines to add
+	 */
+	public synchronized void merge(TaskMetrics other) {
+		lines.addAll(other.getLines());
+	}
+
+	/**
+	 * @return metrics lines for all processed files
+	 */
+	public synchronized ArrayList<String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * Write the side output file with one line per processed file.
+	 *
+	 * @param fs file system of the output directory
+	 * @param hdfsOutputDir task output directory. This must be the task attempt's work
+	 * directory, such that the file is only moved to the job output directory if the
+	 * attempt is committed.
+	 * @param taskAttemptID task attempt ID, used as the side output filename
+	 * @throws IOException if the file could not be written
+	 */
+	public void save(FileSystem fs, String hdfsOutputDir, String taskAttemptID) throws IOException {
+		if (lines.isEmpty()) {
+			return;
+		}
+
+		Path metricsPath = new Path(OsPath.join(OsPath.join(hdfsOutputDir, METRICS_DIR), taskAttemptID));
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(metricsPath, true)));
+		try {
+			for (String l: lines) {
+				bw.write(l + "\n");
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * Collect the side output files written by all tasks of a job into a per-file metrics
+	 * file and a summary report in a local directory. The side output files are deleted.
+	 *
+	 * This function is called by the job client when the job is done.
+	 *
+	 * @param fs file system of the output directory
+	 * @param hdfsOutputDir job output directory
+	 * @param localDir local directory where the metrics and report files are written
+	 * @return number of files in the report, or -1 if no metrics were written
+	 * @throws IOException
+	 */
+	public static int collect(FileSystem fs, String hdfsOutputDir, String localDir) throws IOException {
+		Path metricsDir = new Path(OsPath.join(hdfsOutputDir, METRICS_DIR));
+		if (! fs.exists(metricsDir)) {
+			return -1;
+		}
+
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		BufferedWriter metricsFile = new BufferedWriter(new FileWriter(OsPath.join(localDir, METRICS_FILENAME)));
+		try {
+			metricsFile.write(HEADER + "\n");
+			for (FileStatus s: fs.listStatus(metricsDir)) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(s.getPath())));
+				try {
+					String line;
+					while ((line = br.readLine()) != null) {
+						String[] cols = line.split("\t");
+						if (cols.length != 7) {
+							continue;
+						}
+						metricsFile.write(line + "\n");
+						rows.add(cols);
+					}
+				} finally {
+					br.close();
+				}
+			}
+		} finally {
+			metricsFile.close();
+		}
+		fs.delete(metricsDir, true);
+
+		BufferedWriter reportFile = new BufferedWriter(new FileWriter(OsPath.join(localDir, REPORT_FILENAME)));
+		try {
+			reportFile.write(createReport(rows));
+		} finally {
+			reportFile.close();
+		}
+		return rows.size();
+	}
+
+	/**
+	 * Create a summary report.
+	 *
+	 * @param rows metrics lines split into columns
+	 * @return report
+	 */
+	public static String createReport(ArrayList<String[]> rows) {
+		long[] totals = new long[6];
+		for (String[] r: rows) {
+			for (int i = 0; i < 5; i++) {
+				totals[i] += Long.valueOf(r[i + 1]);
+			}
+			totals[5] = Math.max(totals[5], Long.valueOf(r[6]));
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Files: " + rows.size() + "\n");
+		sb.append("Bytes in: " + totals[0] + "\n");
+		sb.append("Bytes read: " + totals[1] + "\n");
+		sb.append("Bytes out: " + totals[2] + "\n");
+		sb.append("Wall time (ms): " + totals[3] + "\n");
+		sb.append("GC time (ms): " + totals[4] + "\n");
+		sb.append("Max peak heap (MB): " + totals[5] + "\n");
+		appendTopFiles(sb, "Slowest files (wall time ms)", rows, 4);
+		appendTopFiles(sb, "Largest heap files (peak heap MB)", rows, 6);
+		return sb.toString();
+	}
+
+	/**
+	 * Helper function to add the files with the largest value in a column to the report
+	 */
+	protected static void appendTopFiles(StringBuilder sb, String title, ArrayList<String[]> rows, final int col) {
+		ArrayList<String[]> sorted = new ArrayList<String[]>(rows);
+		Collections.sort(sorted, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] r1, String[] r2) {
+				return Long.valueOf(r2[col]).compareTo(Long.valueOf(r1[col]));
+			}
+		});
+
+		sb.append(title + ":\n");
+		for (int i = 0; i < Math.min(REPORT_TOP_FILES, sorted.size()); i++) {
+			sb.append("\t" + sorted.get(i)[col] + "\t" + sorted.get(i)[0] + "\n");
+		}
+	}
+
+	/**
+	 * Get the name of the histogram bucket for a value.
+	 *
+	 * @param prefix metric name
+	 * @param value value to find bucket for
+	 * @param buckets upper limits of the buckets
+	 * @param unit value unit
+	 * @return counter name, for example "Wall time < 1000ms" or "Wall time >= 3600000ms"
+	 */
+	public static String getBucketName(String prefix, long value, long[] buckets, String unit) {
+		for (long b: buckets) {
+			if (value < b) {
+				return prefix + " < " + b + unit;
+			}
+		}
+		return prefix + " >= " + buckets[buckets.length - 1] + unit;
+	}
+
+	/**
+	 * @return total garbage collection time of this JVM in milliseconds
+	 */
+	public static long getGCMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			long t = gc.getCollectionTime();
+			if (t > 0) {
+				millis += t;
+			}
+		}
+		return millis;
+	}
+
+	/**
+	 * Reset the peak usage of all heap memory pools
+	 */
+	public static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return sum of the peak usage of all heap memory pools since the last reset, in MB
+	 */
+	public static long getPeakHeapMB() {
+		long bytes = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				MemoryUsage peak = pool.getPeakUsage();
+				if (peak != null) {
+					bytes += peak.getUsed();
+				}
+			}
+		}
+		return bytes / (1024 * 1024);
+	}
+}
@@ -1,6 +1,7 @@
 package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -350,6 +351,115 @@ public class TroilkattMapReduce  {
 		}
 	}
 	
+	/** 
+	 * Copy meta files from HDFS to local FS using a node-local cache that is shared by all
+	 * tasks on a node. The cache has one sub-directory per meta directory timestamp, so the
+	 * files are downloaded from HDFS once per node and meta data version, and new versions
+	 * are detected by the newest directory name in HDFS.
+	 *
+	 * The cached files are copied to the stage meta directory since the stage may modify
+	 * these.
+	 *
+	 * @param tfs TroilkattFS handle
+	 * @param hdfsMetaDir directory with meta data
+	 * @param cacheDir node-local cache directory for this stage
+	 * @param stageMetaDir directory where the meta data is copied
+	 * @param stageTmpDir directory for temporary local files
+	 * @param stageLogDir directory for local log files
+	 * @param taskID task attempt ID used to create a unique download directory
+	 * @return list of meta files (local FS), or an empty list if the stage does not have
+	 * any metadata files.
+	 * @throws StageException if metafiles could not be downloaded
+	 */
+	public static ArrayList<String> downloadMetaFilesCached(TroilkattFS tfs,
+			String hdfsMetaDir, String cacheDir,
+			String stageMetaDir, String stageTmpDir, String stageLogDir,
+			String taskID) throws StageException {
+		String newestMetaDir;
+		try {
+			newestMetaDir = tfs.getNewestDir(hdfsMetaDir);
+		} catch (IOException e) {
+			throw new StageException("Could not list meta directory for stage: " + e);
+		}
+		if (newestMetaDir == null) {
+			return new ArrayList<String>();
+		}
+
+		String cachedDir = OsPath.join(cacheDir, newestMetaDir);
+		if (! OsPath.isdir(cachedDir)) {
+			// Download to a task specific directory that is renamed when the download is
+			// complete, such that other tasks never see a partial download
+			String downloadDir = cachedDir + "." + taskID;
+			if (OsPath.mkdir(downloadDir) == false) {
+				throw new StageException("Could not create meta file cache directory: " + downloadDir);
+			}
+			try {
+				ArrayList<String> downloaded = tfs.getDirFiles(OsPath.join(hdfsMetaDir, newestMetaDir),
+						downloadDir, stageLogDir, stageTmpDir);
+				if (downloaded == null) {
+					throw new StageException("Could not download meta file for stage");
+				}
+			} catch (IOException e) {
+				OsPath.deleteAll(downloadDir);
+				throw new StageException("Could not download meta file for stage: " + e);
+			}
+
+			if (new File(downloadDir).renameTo(new File(cachedDir)) == false) {
+				// Another task on this node completed the download first
+				OsPath.deleteAll(downloadDir);
+				if (! OsPath.isdir(cachedDir)) {
+					throw new StageException("Could not move meta files to cache directory: " + cachedDir);
+				}
+			}
+			removeOldCachedMetaDirs(cacheDir, newestMetaDir);
+		}
+
+		String[] cachedFiles = OsPath.listdirR(cachedDir);
+		if (cachedFiles == null) {
+			throw new StageException("Could not list meta file cache directory: " + cachedDir);
+		}
+		ArrayList<String> metaFiles = new ArrayList<String>();
+		for (String f: cachedFiles) {
+			String dst = OsPath.join(stageMetaDir, OsPath.absolute2relative(f, cachedDir));
+			OsPath.mkdir(OsPath.dirname(dst));
+			if (OsPath.copy(f, dst) == false) {
+				throw new StageException("Could not copy cached meta file: " + f);
+			}
+			metaFiles.add(dst);
+		}
+		return metaFiles;
+	}
+
+	/**
+	 * Helper function to delete cached meta directories that are older than the newest
+	 * directory. Partial downloads (with a task ID suffix) are not deleted.
+	 *
+	 * @param cacheDir node-local cache directory for a stage
+	 * @param newestMetaDir name of newest meta directory
+	 */
+	protected static void removeOldCachedMetaDirs(String cacheDir, String newestMetaDir) {
+		long newest;
+		try {
+			newest = Long.valueOf(newestMetaDir);
+		} catch (NumberFormatException e) {
+			return;
+		}
+
+		String[] children = new File(cacheDir).list();
+		if (children == null) {
+			return;
+		}
+		for (String c: children) {
+			try {
+				if (Long.valueOf(c) < newest) {
+					OsPath.deleteAll(OsPath.join(cacheDir, c));
+				}
+			} catch (NumberFormatException e) {
+				// not a complete meta directory
+			}
+		}
+	}
+
 	/** 
 	 * Helper function to setup task specific logger. The log files will be written to 
 	 * the HADOOP_LOG_DIR/userlogs/<job-id>/<task-id>/syslog file.
@@ -556,8 +666,23 @@ public class TroilkattMapReduce  {
 	 * @return 0 on success, -1 of failure
 	 */
 	public int waitForCompletionLogged(Job job) {
+		return waitForCompletionLogged(job, hdfsOutputDir);
+	}
+	
+	/**
+	 * Helper function to execute and job and wait for completion, including logging of
+	 * exceptions
+	 * 
+	 * @param job to execute
+	 * @param jobOutputDir job output directory with the task metrics, if it is not
+	 * hdfsOutputDir
+	 * @return 0 on success, -1 of failure
+	 */
+	public int waitForCompletionLogged(Job job, String jobOutputDir) {
 		try {
-			return job.waitForCompletion(true) ? 0: -1;
+			boolean success = job.waitForCompletion(true);
+			collectTaskMetrics(job, jobOutputDir);
+			return success ? 0: -1;
 		}  catch (InterruptedException e) {
 			jobLogger.fatal("Job execution failed: ", e);
 			return -1;
@@ -570,6 +695,32 @@ public class TroilkattMapReduce  {
 		}
 	}
 	
+	/**
+	 * Collect the per file metrics written by PerFile mappers into the task metrics file 
+	 * and report in the stage log directory. The report is read and logged by the
+	 * pipeline MapReduce stage.
+	 * 
+	 * @param job completed job
+	 * @param jobOutputDir job output directory
+	 */
+	protected void collectTaskMetrics(Job job, String jobOutputDir) {
+		Configuration conf = job.getConfiguration();
+		String logDir = conf.get("troilkatt.jobclient.log.dir");
+		if ((jobOutputDir == null) || (logDir == null)) {
+			return;
+		}
+		
+		try {
+			FileSystem fs = new Path(jobOutputDir).getFileSystem(conf);
+			int nFiles = TaskMetrics.collect(fs, jobOutputDir, logDir);
+			if (nFiles >= 0) {
+				jobLogger.info("Collected task metrics for " + nFiles + " files");
+			}
+		} catch (IOException e) {
+			jobLogger.warn("Could not collect task metrics: ", e);
+		}
+	}
+	
 	/**
 	 * Merge and return the Hadoop configuration file with the HBase configuration file.
 	 * 
@@ -2,20 +2,35 @@ package edu.princeton.function.troilkatt.mapreduce;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import edu.princeton.function.troilkatt.hbase.GeoMetaIndexTableSchema;
 import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.hbase.HbaseException;
 import edu.princeton.function.troilkatt.hbase.TroilkattTable;
@@ -50,11 +65,46 @@ import edu.princeton.function.troilkatt.tools.ParseException;
  * - column families: meta, calculated
  * - columns: meta:organism, meta:platformID, and so on
  * - values: tab separated values 
+ * 
+ * The rows can be written to Hbase in two ways:
+ * - online: each mapper writes one Put per file directly to the table. This is suitable 
+ *   for the small nightly updates.
+ * - bulk: the mappers emit the rows that are sorted, partitioned by the region boundaries
+ *   of the meta table, and written to HFiles by HFileOutputFormat. The HFiles are then loaded
+ *   into the table when the job has completed. This is much faster, and puts much less 
+ *   load on the region servers, when the entire GEO corpus is reprocessed.
+ * 
+ * In online mode the organism and platform index (GeoMetaIndexTableSchema) is updated by 
+ * the mappers. In bulk mode the mappers instead write the index updates to side files in the
+ * HFile directory, and the updates are applied after the HFiles have been loaded. The index 
+ * is therefore not changed if the job or the bulk load fails.
+ * 
+ * If the index has not yet been built from the full meta table (for example since the meta 
+ * table was created before the index was added), it is rebuilt when the job has completed. 
+ * 
+ * The mode is selected using the stage arguments: "online", "bulk", or "auto [threshold]".
+ * In auto mode (the default) the bulk mode is used if the number of input files is at
+ * least threshold (DEFAULT_BULK_LOAD_THRESHOLD if not specified).
  */
 public class UpdateGEOMetaTable extends PerFile {
+	// Minimum number of input files for which bulk load is used in "auto" mode
+	public static final int DEFAULT_BULK_LOAD_THRESHOLD = 1000;
+	// Configuration key used to tell the mappers whether bulk load is used
+	public static final String BULK_LOAD_KEY = "troilkatt.update.meta.bulkload";
+	// Size of the buffer used to read the SOFT files
+	protected static final int PARSE_BUFFER_SIZE = 1024 * 1024;
+	// Prefix for the index update side files written to the HFile directory. The "_" prefix
+	// ensures that the files are skipped by LoadIncrementalHFiles
+	protected static final String INDEX_UPDATES_PREFIX = "_index-";
+	// Index update operations in the side files
+	protected static final String INDEX_DELETE = "-";
+	protected static final String INDEX_PUT = "+";
+	// Maximum number of index updates sent to Hbase in one batch
+	protected static final int INDEX_BATCH_SIZE = 1000;
+
 	// MapReduce prgoress status counters
 	enum LineCounters {
-		LINES_READ,        // Number of lines read
+		BYTES_READ,        // Number of decompressed bytes read
 		DATASETS_READ,     // Number of datasets processed
 		ROWS_WRITTEN,      // Number of rows added to the meta data table
 		TAGS_FOUND,        // Total number of meta-data tags found
@@ -65,19 +115,29 @@ public class UpdateGEOMetaTable extends PerFile {
 	/**
 	 * Mapper class that gets as input a filename and outputs a filename. For each file
 	 * it does the following:
-	 * 1. Read in one line at a time (the files can be tens of gigabytes in size)
+	 * 1. Read the header sections of the file (the files can be tens of gigabytes in size,
+	 *    but the data table bodies are skipped by the parser)
 	 * 2. For all meta lines check if the key=value matches one of the specified meta-tags
 	 * 3. Build a row for the dataset and store it in Hbase
 	 * 3. Output 
+	 * 
+	 * In bulk load mode the row is not stored in Hbase in step 3, but instead output 
+	 * as a (row key, Put) pair that is written to a HFile by the reducer. The index updates
+	 * are written to a side file that is applied by the job when the HFiles are loaded.
 	 */
-	public static class MetaParserMapper extends PerFileMapper {
-		// Table handle
+	public static class MetaParserMapper extends PerFileKVMapper<ImmutableBytesWritable, Put> {
+		// Table handles
 		protected GeoMetaTableSchema geoMetaTable;
 		protected HTable table;
+		protected HTable indexTable;
+		// True if rows are output for bulk loading, false if they are written directly to Hbase
+		protected boolean bulkLoad;
+		// Index update side file (bulk load mode only)
+		protected PrintWriter indexUpdates = null;
 		
 		// Counters used to report progress and avoid a job being assumed to be crashed
 		protected Counter datasetsRead;
-		protected Counter linesRead;			
+		protected Counter bytesRead;			
 		protected Counter tagsFound;
 		protected Counter unknownFiletypes;
 		protected Counter invalidFiles;
@@ -91,21 +151,41 @@ public class UpdateGEOMetaTable extends PerFile {
 		public void setup(Context context) throws IOException {
 			super.setup(context);
 						
+			bulkLoad = conf.getBoolean(BULK_LOAD_KEY, false);
+			
 			/* Setup Htable */
 			//Configuration hbConf = HBaseConfiguration.create();
 			Configuration hbConf = conf;
 			
+			// Note! The meta table is also opened in bulk load mode since the current values 
+			// are read when the index is updated
 			geoMetaTable = new GeoMetaTableSchema();
+			GeoMetaIndexTableSchema geoMetaIndex = new GeoMetaIndexTableSchema();
 			try {
 				table = geoMetaTable.openTable(hbConf, true);
+				indexTable = geoMetaIndex.openTable(hbConf, true);
 			} catch (HbaseException e) {
 				mapLogger.fatal("Could not open hbase table: ", e);
 				throw new IOException("HbaseException: " + e);
 			}
 			
+			if (bulkLoad) {
+				// Written to the task work directory, such that the file is moved to the
+				// HFile directory only if the task attempt is committed
+				Path workDir;
+				try {
+					workDir = FileOutputFormat.getWorkOutputPath(context);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while getting task work directory");
+				}
+				Path indexFile = new Path(workDir, INDEX_UPDATES_PREFIX + context.getTaskAttemptID().getTaskID());
+				FileSystem fs = indexFile.getFileSystem(conf);
+				indexUpdates = new PrintWriter(new OutputStreamWriter(fs.create(indexFile), "UTF-8"));
+			}
+			
 			// Counters used to report progress and avoid a job being assumed to be crashed
 			datasetsRead = context.getCounter(LineCounters.DATASETS_READ);
-			linesRead = context.getCounter(LineCounters.LINES_READ);			
+			bytesRead = context.getCounter(LineCounters.BYTES_READ);			
 			tagsFound = context.getCounter(LineCounters.TAGS_FOUND);
 			unknownFiletypes = context.getCounter(LineCounters.UNKNOWN_FILETYPES);
 			invalidFiles = context.getCounter(LineCounters.INVALID_FILES);
@@ -117,7 +197,18 @@ public class UpdateGEOMetaTable extends PerFile {
 		 */
 		@Override
 		protected void cleanup(Context context) throws IOException {
-			table.close();
+			if (indexUpdates != null) {
+				indexUpdates.close();
+				if (indexUpdates.checkError()) {
+					throw new IOException("Could not write index updates");
+				}
+			}
+			if (table != null) {
+				table.close();
+			}
+			if (indexTable != null) {
+				indexTable.close();
+			}
 			super.cleanup(context);
 		}
 
@@ -128,9 +219,10 @@ public class UpdateGEOMetaTable extends PerFile {
 		 * @param value: always null since the SOFT files can be very large	
 		 * @throws IOException 
 		 * @throws IOException if input file could not be read
+		 * @throws InterruptedException 
 		 */
 		@Override
-		public void map(Text key, BytesWritable value, Context context) throws IOException {						
+		public void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {						
 			/*
 			 * Setup file for parsing
 			 */
@@ -140,8 +232,9 @@ public class UpdateGEOMetaTable extends PerFile {
 			String inputFilename = key.toString();			
 			
 			String basename = tfs.getFilenameName(inputFilename);
-			BufferedReader lin = openBufferedReader(inputFilename);
-			if (lin == null) {
+			// The parser stops at the data table, so the file is not written to the input cache
+			InputStream ins = openInputStream(inputFilename, false);
+			if (ins == null) {
 				mapLogger.error("Could not open input file: " + inputFilename);
 				invalidFiles.increment(1);
 				return;
@@ -160,34 +253,24 @@ public class UpdateGEOMetaTable extends PerFile {
 			else {
 				mapLogger.error("Uknown file type: " + basename);
 				unknownFiletypes.increment(1);
+				ins.close();
 				return;
 			}
 			
-			long lcnt = 0;
-			String line;
-			while ((line = lin.readLine()) != null) {				
-				linesRead.increment(1);
-				lcnt++;
-				
-				if (lcnt % 1000 == 0) {
-					context.setStatus("Lines read = " + lcnt);
-				}
-				
-				if (line.isEmpty()) {
-					continue;
-				}
+			long bcnt = 0;
+			byte[] buf = new byte[PARSE_BUFFER_SIZE];
+			int n;
+			while (! parser.isDone() && ((n = ins.read(buf)) != -1)) {
+				bytesRead.increment(n);
+				bcnt += n;
+				context.setStatus("Bytes read = " + bcnt);
 				
-				if ((line.charAt(0) != '!') && (line.charAt(0) != '^')) { // is not a meta line
-					continue;
-				}
-			
-				// Parse the line
-				if (parser.parseLine(line.toString())) {
-					tagsFound.increment(1);
-				}	
+				// Only header lines are parsed
+				tagsFound.increment(parser.parseBytes(buf, 0, n));
 			}
-			
-			lin.close();
+			tagsFound.increment(parser.endOfData());
+				
+			ins.close();
 			
 			/*
 			 * Create row with meta data and save the row in Hbase
@@ -196,6 +279,8 @@ public class UpdateGEOMetaTable extends PerFile {
 			 */
 			Put update = null;
 			String dsetID = null;
+			ArrayList<String> organisms = null;
+			ArrayList<String> platformIDs = null;
 			try {
 				dsetID = FilenameUtils.getDsetID(inputFilename, true);
 				if (dsetID == null) { // No ID found for file
@@ -204,31 +289,44 @@ public class UpdateGEOMetaTable extends PerFile {
 					return;
 				}
 				
-				update = new Put(Bytes.toBytes(dsetID), timestamp);
-				//update = new Put(Bytes.toBytes(dsetID));
-				byte[] family = Bytes.toBytes("meta");
-				
-				update.add(Bytes.toBytes("files"), Bytes.toBytes("softFilename"), Bytes.toBytes(inputFilename));
-				for (String k: parser.singleKeys) {
-					String val = parser.getSingleValue(k);
-					if (val != null) {
-						update.add(family, Bytes.toBytes(k), Bytes.toBytes(val));
-					}
-				}
-				for (String k: parser.multiKeys) {
-					ArrayList<String> val = parser.getValues(k);					
-					if (val != null) {
-						String s = TroilkattTable.array2string(val);					
-						update.add(family, Bytes.toBytes(k), Bytes.toBytes(s));
-					}
-				}
+				update = GeoMetaTableSchema.createMetaRow(dsetID, parser, inputFilename, timestamp);
+				organisms = parser.getValues("organisms");
+				platformIDs = parser.getValues("platformIDs");
 			} catch (ParseException e) {
 				mapLogger.warn("Parse exception for file: " + basename);
 				invalidFiles.increment(1);
 				return;
 			}
 			
-			// Do the update
+			// Output row and index updates to be bulk loaded...
+			if (bulkLoad) {
+				try {
+					HashSet<String> newKeys = GeoMetaTableSchema.getIndexKeys(dsetID, organisms, platformIDs);
+					for (String k: GeoMetaTableSchema.getStaleIndexKeys(table, dsetID, newKeys)) {
+						indexUpdates.println(formatIndexUpdate(INDEX_DELETE, dsetID, null, k));
+					}
+					String organismsValue = TroilkattTable.array2string(organisms);
+					for (String k: newKeys) {
+						indexUpdates.println(formatIndexUpdate(INDEX_PUT, dsetID, organismsValue, k));
+					}
+				} catch (IOException e) {
+					mapLogger.error("Could not read index values for row: " + dsetID, e);
+					throw e;
+				}
+				
+				mapLogger.debug("Output row " + dsetID + " for bulk load");
+				context.write(new ImmutableBytesWritable(update.getRow()), update);
+				metaTableRowsAdded.increment(1);
+				return;
+			}
+			
+			// ...or do the update. The index must be updated before the meta row is updated
+			try {
+				GeoMetaTableSchema.updateIndex(table, indexTable, dsetID, organisms, platformIDs, timestamp);
+			} catch (IOException e) {
+				mapLogger.error("Could not update index for row: " + dsetID, e);
+				throw e;
+			}
 			try {
 				mapLogger.info("Add row " + dsetID + " to table " + geoMetaTable.tableName);
 				table.put(update);				
@@ -277,63 +375,335 @@ public class UpdateGEOMetaTable extends PerFile {
 		}
 				
 		GeoMetaTableSchema geoMetaTable = new GeoMetaTableSchema();			
+		HTable table = null;
 		try {
-			// Create the table if it does not already exist
-			geoMetaTable.openTable(conf, true);
+			// Create the tables if these do not already exist. The meta table is opened last
+			// such that it is closed by the finally block below if the job is started
+			new GeoMetaIndexTableSchema().openTable(conf, true).close();
+			table = geoMetaTable.openTable(conf, true);
 		} catch (HbaseException e1) {
 			jobLogger.fatal("Could not open Hbase table: ", e1);
 			return -1;
+		} catch (IOException e1) {
+			jobLogger.fatal("Could not close Hbase table: ", e1);
+			return -1;
 		}
 		
-		/*
-		 * Setup MapReduce job
-		 */						
-		Job job;
+		// HFiles are written to a separate directory that is deleted when the job is done
+		Path hfileDir = null;
 		try {
-			// Set memory limits
-			// Note! must be done before creating job
-			setMemoryLimits(conf);
-						
-			job = Job.getInstance(conf, progName);
-			job.setJarByClass(UpdateGEOMetaTable.class);
+			boolean bulkLoad;
+			try {
+				bulkLoad = useBulkLoad(conf.get("troilkatt.stage.args"), inputFiles.size());
+			} catch (StageInitException e) {
+				jobLogger.fatal("Invalid stage arguments: ", e);
+				return -1;
+			}
+			conf.setBoolean(BULK_LOAD_KEY, bulkLoad);
+			jobLogger.info("Bulk load " + (bulkLoad ? "enabled" : "disabled") + " for " + inputFiles.size() + " input files");
+			if (bulkLoad) {
+				hfileDir = new Path(hdfsOutputDir + "-hfiles");
+			}
 			
-			// Add HBase jars
-			//TableMapReduceUtil.addDependencyJars(job); 
+			/*
+			 * Setup MapReduce job
+			 */						
+			Job job;
+			try {
+				// Set memory limits
+				// Note! must be done before creating job
+				setMemoryLimits(conf);
+							
+				job = Job.getInstance(conf, progName);
+				job.setJarByClass(UpdateGEOMetaTable.class);
+				
+				// Add HBase jars
+				//TableMapReduceUtil.addDependencyJars(job); 
+				
+				/* Setup mapper: use the Compress class*/
+				job.setMapperClass(MetaParserMapper.class);				
+
+				if (bulkLoad) {
+					/* Sort rows and partition these by region boundaries */
+					job.setMapOutputKeyClass(ImmutableBytesWritable.class);
+					job.setMapOutputValueClass(Put.class);
+					HFileOutputFormat.configureIncrementalLoad(job, table);
+				}
+				else {
+					/* Specify that no reducer should be used */
+					job.setNumReduceTasks(0);
+				}
+			   
+			    // Do per file job configuration
+			    perFileConfInit(conf, job);
+			    
+			    // Set input and output paths
+			    if (setInputPaths(job) == 0) { // No input files
+			    	return 0;
+			    }
+			    if (bulkLoad) {
+			    	if (hdfs.exists(hfileDir)) {
+			    		// Left by a job client that was killed
+			    		jobLogger.warn("Delete old HFile output path: " + hfileDir.toString());
+			    		hdfs.delete(hfileDir, true);
+			    	}
+			    	FileOutputFormat.setOutputPath(job, hfileDir);
+			    }
+			    else {
+			    	setOutputPath(hdfs, job);
+			    }
+			} catch (IOException e1) {
+				jobLogger.fatal("Job setup failed due to IOException: ", e1);
+				return -1;
+			} catch (StageInitException e) {
+				jobLogger.fatal("Could not initialize job: ", e);
+				return -1;
+			}	
 			
-			/* Setup mapper: use the Compress class*/
-			job.setMapperClass(MetaParserMapper.class);				
+		    // Execute job and wait for completion. With bulk load the task metrics are in 
+			// the HFile directory, so these are collected before the directory is deleted
+			if (waitForCompletionLogged(job, bulkLoad ? hfileDir.toString() : hdfsOutputDir) != 0) {
+				return -1;
+			}
+			if (bulkLoad && (bulkLoadHFiles(conf, hdfs, hfileDir, table) != 0)) {
+				return -1;
+			}
+			completeIndex(conf, table);
+			return 0;
+		} finally {
+			try {
+				table.close();
+			} catch (IOException e) {
+				jobLogger.warn("Could not close Hbase table: ", e);
+			}
+			// Also deleted if the job or the bulk load failed, since it would fail the next run
+			if (hfileDir != null) {
+				try {
+					hdfs.delete(hfileDir, true);
+				} catch (IOException e) {
+					jobLogger.warn("Could not delete HFile directory: " + hfileDir, e);
+				}
+			}
+		}
+	}
 
-			/* Specify that no reducer should be used */
-			job.setNumReduceTasks(0);	
-		   
-		    // Do per file job configuration
-		    perFileConfInit(conf, job);
-		    
-		    // Set input and output paths
-		    if (setInputPaths(job) == 0) { // No input files
-		    	return 0;
-		    }
-		    setOutputPath(hdfs, job);
-		} catch (IOException e1) {
-			jobLogger.fatal("Job setup failed due to IOException: ", e1);
-			return -1;
-		} catch (StageInitException e) {
-			jobLogger.fatal("Could not initialize job: ", e);
+	/**
+	 * Load the HFiles written by the job into the meta table, and apply the index updates 
+	 * written by the mappers. The index is only updated if the HFiles were successfully 
+	 * loaded. If the load or the index updates fail, the index is marked as incomplete, 
+	 * such that it is rebuilt from the meta table by the next run.
+	 * 
+	 * @param conf Hadoop configuration with Hbase entries
+	 * @param hdfs HDFS handle
+	 * @param hfileDir directory with HFiles written by HFileOutputFormat
+	 * @param table meta table handle
+	 * @return 0 on success, -1 on failure
+	 */
+	protected int bulkLoadHFiles(Configuration conf, FileSystem hdfs, Path hfileDir, HTable table) {
+		HTable indexTable = null;
+		try {
+			indexTable = new GeoMetaIndexTableSchema().openTable(conf, false);
+		} catch (HbaseException e) {
+			jobLogger.fatal("Could not open index table: ", e);
 			return -1;
-		}	
+		}
 		
-	    // Execute job and wait for completion
+		boolean loaded = false;
 		try {
-			return job.waitForCompletion(true) ? 0: -1;
-		} catch (InterruptedException e) {
-			jobLogger.fatal("Interrupt exception: ", e);
-			return -1;
-		} catch (ClassNotFoundException e) {
-			jobLogger.fatal("Class not found exception: ", e);
+			jobLogger.info("Load HFiles in: " + hfileDir);
+			LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
+			loader.doBulkLoad(hfileDir, table);
+			loaded = true;
+			
+			long timestamp = Long.valueOf(TroilkattMapReduce.confEget(conf, "troilkatt.timestamp"));
+			applyIndexUpdates(hdfs, hfileDir, indexTable, timestamp);
+			return 0;
+		} catch (Exception e) {
+			if (loaded) {
+				jobLogger.fatal("Could not update index: ", e);
+			}
+			else {
+				jobLogger.fatal("Could not bulk load HFiles: ", e);
+			}
+			// Some of the rows may have been loaded without updating the index
+			try {
+				GeoMetaTableSchema.invalidateIndex(indexTable);
+			} catch (IOException e2) {
+				jobLogger.error("Could not mark index as incomplete: ", e2);
+			}
 			return -1;
+		} finally {
+			try {
+				indexTable.close();
+			} catch (IOException e) {
+				jobLogger.warn("Could not close index table: ", e);
+			}
+		}
+	}
+	
+	/**
+	 * Apply the index updates in the side files written by the mappers.
+	 * 
+	 * @param hdfs HDFS handle
+	 * @param hfileDir HFile directory with the side files
+	 * @param indexTable index table handle
+	 * @param timestamp timestamp for the index rows
+	 * @throws IOException if a side file could not be read, or the index could not be updated
+	 */
+	protected void applyIndexUpdates(FileSystem hdfs, Path hfileDir, HTable indexTable, long timestamp) throws IOException {
+		FileStatus[] files = hdfs.listStatus(hfileDir);
+		if (files == null) {
+			return;
+		}
+		
+		ArrayList<Delete> deletes = new ArrayList<Delete>();
+		ArrayList<Put> puts = new ArrayList<Put>();
+		for (FileStatus f: files) {
+			if (! f.getPath().getName().startsWith(INDEX_UPDATES_PREFIX)) {
+				continue;
+			}
+			
+			jobLogger.info("Apply index updates in: " + f.getPath());
+			BufferedReader ins = new BufferedReader(new InputStreamReader(hdfs.open(f.getPath()), "UTF-8"));
+			try {
+				String line;
+				while ((line = ins.readLine()) != null) {
+					String[] parts = parseIndexUpdate(line);
+					if (parts[0].equals(INDEX_DELETE)) {
+						deletes.add(new Delete(Bytes.toBytes(parts[3])));
+					}
+					else {
+						puts.add(GeoMetaTableSchema.createIndexPut(parts[3], parts[1], parts[2], timestamp));
+					}
+					
+					// Deletes are sent first, since a put may re-add a deleted row
+					if (deletes.size() + puts.size() >= INDEX_BATCH_SIZE) {
+						flushIndexUpdates(indexTable, deletes, puts);
+					}
+				}
+			} finally {
+				ins.close();
+			}
+		}
+		flushIndexUpdates(indexTable, deletes, puts);
+	}
+	
+	/**
+	 * Helper function to send a batch of index updates to Hbase. The lists are cleared.
+	 */
+	protected static void flushIndexUpdates(HTable indexTable, ArrayList<Delete> deletes, ArrayList<Put> puts) throws IOException {
+		if (! deletes.isEmpty()) {
+			indexTable.delete(deletes);
+			deletes.clear();
+		}
+		if (! puts.isEmpty()) {
+			indexTable.put(puts);
+			puts.clear();
+		}
+	}
+	
+	/**
+	 * Rebuild the index from the meta table if it has not been built from the full meta 
+	 * table. Until then the index is not used for queries, so a failed rebuild is logged 
+	 * but does not fail the job.
+	 * 
+	 * @param conf Hadoop configuration with Hbase entries
+	 * @param table meta table handle
+	 */
+	protected void completeIndex(Configuration conf, HTable table) {
+		HTable indexTable = null;
+		try {
+			indexTable = new GeoMetaIndexTableSchema().openTable(conf, false);
+			if (GeoMetaTableSchema.isIndexComplete(indexTable)) {
+				return;
+			}
+			jobLogger.info("Rebuild index from meta table");
+			long timestamp = Long.valueOf(TroilkattMapReduce.confEget(conf, "troilkatt.timestamp"));
+			GeoMetaTableSchema.rebuildIndex(table, indexTable, timestamp, jobLogger);
+		} catch (HbaseException e) {
+			jobLogger.error("Could not open index table: ", e);
 		} catch (IOException e) {
-			jobLogger.fatal("Job execution failed: IOException: ", e);
-			return -1;
+			jobLogger.error("Could not rebuild index: ", e);
+		} finally {
+			if (indexTable != null) {
+				try {
+					indexTable.close();
+				} catch (IOException e) {
+					jobLogger.warn("Could not close index table: ", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Create a line for the index update side files.
+	 * 
+	 * @param op INDEX_DELETE or INDEX_PUT
+	 * @param gid dataset/series identifier
+	 * @param organisms organisms value stored in the index row (see 
+	 * GeoMetaTableSchema.createIndexPut()). Can be null.
+	 * @param key index row key. It may contain tabs.
+	 * @return line without a trailing newline
+	 * @throws IOException if the organisms value could not be encoded
+	 */
+	protected static String formatIndexUpdate(String op, String gid, String organisms, String key) throws IOException {
+		// The organisms value may contain newlines and tabs
+		String encoded = (organisms == null) ? "" : URLEncoder.encode(organisms, "UTF-8");
+		return op + "\t" + gid + "\t" + encoded + "\t" + key;
+	}
+	
+	/**
+	 * Parse a line in the index update side files.
+	 * 
+	 * @param line line created by formatIndexUpdate()
+	 * @return array with the operation, gid, organisms value (null if not set), and index 
+	 * row key
+	 * @throws IOException if the line is invalid
+	 */
+	protected static String[] parseIndexUpdate(String line) throws IOException {
+		String[] parts = line.split("\t", 4);
+		if ((parts.length != 4) || 
+				! (parts[0].equals(INDEX_DELETE) || parts[0].equals(INDEX_PUT))) {
+			throw new IOException("Invalid index update: " + line);
+		}
+		parts[2] = parts[2].isEmpty() ? null : URLDecoder.decode(parts[2], "UTF-8");
+		return parts;
+	}
+	
+	/**
+	 * Parse the stage arguments to decide whether bulk load should be used.
+	 * 
+	 * @param stageArgs "online", "bulk", or "auto [threshold]". Null, an empty string, 
+	 * or "null" is the same as "auto".
+	 * @param nInputFiles number of input files
+	 * @return true if bulk load should be used, false if rows should be written online
+	 * @throws StageInitException if the stage arguments are invalid
+	 */
+	public static boolean useBulkLoad(String stageArgs, int nInputFiles) throws StageInitException {
+		if ((stageArgs == null) || stageArgs.trim().isEmpty() || stageArgs.trim().equals("null")) {
+			stageArgs = "auto";
+		}
+		
+		String[] parts = stageArgs.trim().split("\\s+");
+		if (parts[0].equals("online")) {
+			return false;
+		}
+		else if (parts[0].equals("bulk")) {
+			return true;
+		}
+		else if (parts[0].equals("auto")) {
+			int threshold = DEFAULT_BULK_LOAD_THRESHOLD;
+			if (parts.length > 1) {
+				try {
+					threshold = Integer.valueOf(parts[1]);
+				} catch (NumberFormatException e) {
+					throw new StageInitException("Invalid bulk load threshold: " + parts[1]);
+				}
+			}
+			return nInputFiles >= threshold;
+		}
+		else {
+			throw new StageInitException("Invalid load mode: " + parts[0]);
 		}	
 	}
 
@@ -26,6 +26,7 @@ import edu.princeton.function.troilkatt.fs.LogTableHbase;
 import edu.princeton.function.troilkatt.hbase.GSMTableSchema;
 import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.hbase.HbaseException;
+import edu.princeton.function.troilkatt.hbase.TroilkattTable;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 
 /**
@@ -331,8 +332,9 @@ public class UpdateGSMTable extends TroilkattMapReduce {
 		
 			/* Setup mapper */		
 			job.setMapperClass(GSM2GIDMapper.class);
-			Scan scan = new Scan();
-		    scan.addColumn(Bytes.toBytes("meta"), Bytes.toBytes("sampleIDs"));		    
+			// Only the meta:sampleIDs column is used by the mapper
+			String[] columns = {"meta:sampleIDs"};
+			Scan scan = TroilkattTable.createScan(columns, conf.get("troilkatt.stage.args"));
 		    GeoMetaTableSchema geoMeta = new GeoMetaTableSchema();
 		    System.out.println("Table name = " + geoMeta.tableName);
 		    TableMapReduceUtil.initTableMapperJob(geoMeta.tableName, scan,
@@ -350,6 +352,9 @@ public class UpdateGSMTable extends TroilkattMapReduce {
 		} catch (StageInitException e2) {
 			jobLogger.fatal("Job setup failed due to set output path exception: ", e2);
 			return -1;
+		} catch (HbaseException e3) {
+			jobLogger.fatal("Invalid scan arguments: ", e3);
+			return -1;
 		} 
 		
 	    // Execute job and wait for completion
@@ -19,6 +19,7 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.IntSumReducer;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 /**
@@ -32,7 +33,8 @@ public class WordMatcher {
 	enum GeneCounters {
 		LINES_READ,
 		WORDS_READ,
-		WORDS_FOUND
+		WORDS_FOUND,
+		RECORDS_WRITTEN
 	}
 	
 	protected static Logger jobLogger;
@@ -50,7 +52,6 @@ public class WordMatcher {
 	public static class WordMatcherMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
 		// Maximum line size: can be small since genes are in first column
 		static final int MAX_LINE_SIZE = 65536;			 // 64KB
-		private final IntWritable one = new IntWritable(1);
 
 		/*
 		 * All global variables are initialized in setup() 
@@ -63,6 +64,10 @@ public class WordMatcher {
 		protected Counter linesRead;
 		protected Counter wordsRead;
 		protected Counter wordsFound;
+		protected Counter recordsWritten;
+		
+		// In-mapper aggregation of word counts
+		protected CountAggregator aggregator;
 		
 		// Task specific local variables
 		protected String jobID;
@@ -98,6 +103,9 @@ public class WordMatcher {
 			linesRead = context.getCounter(GeneCounters.LINES_READ);
 			wordsRead = context.getCounter(GeneCounters.WORDS_READ);
 			wordsFound = context.getCounter(GeneCounters.WORDS_FOUND);
+			recordsWritten = context.getCounter(GeneCounters.RECORDS_WRITTEN);
+			
+			aggregator = new CountAggregator(conf.getInt(CountAggregator.MAX_ENTRIES_KEY, CountAggregator.DEFAULT_MAX_ENTRIES));
 			
 			System.out.println("Output test: MapReduce job: taskID = " + taskAttemptID);
 			System.err.println("Output test: MapReduce job: taskID = " + taskAttemptID);
@@ -109,6 +117,8 @@ public class WordMatcher {
 		 */
 		@Override
 		public void cleanup(Context context) throws IOException, InterruptedException {
+			recordsWritten.increment(aggregator.flush(context));
+			
 			System.out.println("Output test: MapReduce job: System.out.println: in map cleanup");
 			System.err.println("Output test: MapReduce job: System.err.println: in map cleanup");
 			mapLogger.fatal("Output test: MapReduce job: logger.fatal: in map cleanup");
@@ -118,8 +128,9 @@ public class WordMatcher {
 		/**
 		 * Do the mapping: 
 		 * 1. Read a line from a file in HDFS
-		 * 2. For each word in the line compare with the list of inputWords, and output <word, 1> for
-		 * all matches	 
+		 * 2. For each word in the line compare with the list of inputWords, and count all matches.
+		 * The <word, count> tuples are output when the aggregation table is full, and at the end
+		 * of the task
 		 * 
 		 * @param key byte offset of line in file
 		 * @param value a line
@@ -145,11 +156,14 @@ public class WordMatcher {
 				w = w.toLowerCase();
 				for (String y: inputWords) {
 					if (w.equals(y)) {
-						context.write(new Text(y), one);
+						aggregator.add(y, 1);
 						wordsFound.increment(1);
 					}
 				}
 			}
+			if (aggregator.needsFlush()) {
+				recordsWritten.increment(aggregator.flush(context));
+			}
 		}
 	}
 
@@ -298,6 +312,10 @@ public class WordMatcher {
 
 		/* Setup reducer */                                                                                                                                  
 		job.setReducerClass(WordWritterReducer.class);                                                                                                       
+		// The reducer writes to named outputs, so a separate combiner is used
+		job.setCombinerClass(IntSumReducer.class);
+		// Compare the serialized words without deserializing these
+		job.setSortComparatorClass(Text.Comparator.class);
 		job.setOutputKeyClass(Text.class);                                                                                                                   
 		job.setOutputValueClass(IntWritable.class);                                                                                                          
 
@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -18,11 +19,13 @@ import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
 import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.hbase.GeoMetaTableCache;
 import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 import edu.princeton.function.troilkatt.hbase.HbaseException;
 import edu.princeton.function.troilkatt.hbase.TroilkattTable;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
 import edu.princeton.function.troilkatt.tools.GeoGSMOverlap;
+import edu.princeton.function.troilkatt.tools.GeoGSMOverlapReader;
 import edu.princeton.function.troilkatt.tools.ParseException;
 
 /**
@@ -57,6 +60,8 @@ public class FindGSMOverlap extends Stage {
 	
 	// Table handle	
 	protected HTable metaTable;
+	// Cache used to read and write meta table values in batches 
+	protected GeoMetaTableCache metaCache;
 	
 	/**
 	 * Constructor 
@@ -118,6 +123,7 @@ public class FindGSMOverlap extends Stage {
 			logger.error("Could not get handle to meta data table", e);
 			throw new StageInitException("Could not get handle to meta data table");
 		}
+		metaCache = new GeoMetaTableCache(metaTable, logger);
 	}
 	
 	/**
@@ -141,13 +147,10 @@ public class FindGSMOverlap extends Stage {
 		 */
 		try {
 			Collections.sort(inputFiles);
-			for (String f: inputFiles) {
-				String[] lines = FSUtils.readTextFile(f);
-				for (String l: lines) {
-					finder.addOverlapLine(l);
-				}
-
-			}
+			// The files are parsed in parallel (one thread per reducer output part)
+			GeoGSMOverlapReader reader = new GeoGSMOverlapReader(logger);
+			int nLines = reader.read(inputFiles, finder);
+			logger.info("Added " + nLines + " overlap lines from " + inputFiles.size() + " files");
 		} catch (IOException e) {
 			logger.error("Could not read from input file", e);			
 		} catch (ParseException e) {
@@ -213,44 +216,60 @@ public class FindGSMOverlap extends Stage {
 		}
 		
 		try {
+			ArrayList<String> allGids = new ArrayList<String>();
 			for (String f: allSoftFiles) {
-				String gid = FilenameUtils.getDsetID(f);
+				allGids.add(FilenameUtils.getDsetID(f));
+			}
+			String[] columns = {"meta:sampleIDs"};
+			
+			// Read sample IDs using multi-gets. The rows are read in batches that are used
+			// before the next batch is read, so that they are not evicted from the cache
+			for (int start = 0; start < allGids.size(); start += GeoMetaTableSchema.GET_BATCH_SIZE) {
+				List<String> batchGids = allGids.subList(start, Math.min(start + GeoMetaTableSchema.GET_BATCH_SIZE, allGids.size()));
+				metaCache.prefetch(batchGids, columns);
+				
+				for (String gid: batchGids) {
 
-				if (duplicates.contains(gid)) {
-					// Dataset is deleted due to being a duplicate of another dataset
-					putPostSamples(gid, null, timestamp);
-					continue;
-				}
+					if (duplicates.contains(gid)) {
+						// Dataset is deleted due to being a duplicate of another dataset
+						putPostSamples(gid, null, timestamp);
+						continue;
+					}
 				
-				if (supersets.contains(gid)) {
-					// Dataset is deelted due to being a superset of included subsets
-					putPostSamples(gid, null, timestamp);
-					continue;
-				}
+					if (supersets.contains(gid)) {
+						// Dataset is deelted due to being a superset of included subsets
+						putPostSamples(gid, null, timestamp);
+						continue;
+					}
 				
-				if (removed.contains(gid)) {
-					// Dataset has been removed
-					putPostSamples(gid, null, timestamp);
-					continue;
-				}				
+					if (removed.contains(gid)) {
+						// Dataset has been removed
+						putPostSamples(gid, null, timestamp);
+						continue;
+					}				
 
-				String preSamplesStr = GeoMetaTableSchema.getMetaValue(metaTable, gid, "sampleIDs", logger);
-				if (preSamplesStr == null) {
-					logger.warn("Ignoring dataset (no samples): " + gid);
-					continue;
-				}
-				ArrayList<String>  preSamples = TroilkattTable.string2array(preSamplesStr);
+					String preSamplesStr = metaCache.getMetaValue(gid, "sampleIDs");
+					if (preSamplesStr == null) {
+						logger.warn("Ignoring dataset (no samples): " + gid);
+						continue;
+					}
+					ArrayList<String>  preSamples = TroilkattTable.string2array(preSamplesStr);
 				
-				if (removedSamples.containsKey(gid)) {
-					// Some samples have been removed
-					for (String g: removedSamples.get(gid)) {
-						preSamples.remove(g);
+					if (removedSamples.containsKey(gid)) {
+						// Some samples have been removed
+						for (String g: removedSamples.get(gid)) {
+							preSamples.remove(g);
+						}
 					}
-				}
 				
-				putPostSamples(gid, preSamples, timestamp);
+					putPostSamples(gid, preSamples, timestamp);
 					
+				}
+			
 			}
+			
+			// Write buffered updates
+			metaCache.close();
 		} catch (IOException e) {
 			logger.fatal("Could not update meta data collection", e);
 			throw new StageException("Could not update Hbase meta table");
@@ -261,7 +280,9 @@ public class FindGSMOverlap extends Stage {
 	
 	
 	/**
-	 * Write the processed:sampleIDs-overlapRemoved value to the GEO meta table
+	 * Write the processed:sampleIDs-overlapRemoved value to the GEO meta table. The update
+	 * is buffered in the meta table cache, so metaCache.flush() must be called to write it 
+	 * to the table.
 	 * 
 	 * @param gid dataset/series identifier used as row key in the GEO meta table. 
 	 * @param sampleIDs list of sampleIDs to add. This value can also be null if there
@@ -285,7 +306,7 @@ public class FindGSMOverlap extends Stage {
 			
 		// Do the update
 		try {			
-			metaTable.put(update);
+			metaCache.put(update);
 		} catch (IOException e) {
 			logger.error("Could not save updated row in Hbase: " + gid, e);
 			throw e;
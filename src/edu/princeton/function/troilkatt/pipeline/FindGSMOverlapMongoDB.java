@@ -22,6 +22,7 @@ import edu.princeton.function.troilkatt.hbase.TroilkattTable;
 import edu.princeton.function.troilkatt.mongodb.GeoMetaCollection;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
 import edu.princeton.function.troilkatt.tools.GeoGSMOverlap;
+import edu.princeton.function.troilkatt.tools.GeoGSMOverlapReader;
 import edu.princeton.function.troilkatt.tools.ParseException;
 
 /**
@@ -148,13 +149,10 @@ public class FindGSMOverlapMongoDB extends Stage {
 		 */
 		try {
 			Collections.sort(inputFiles);
-			for (String f: inputFiles) {
-				String[] lines = FSUtils.readTextFile(f);
-				for (String l: lines) {
-					finder.addOverlapLine(l);
-				}
-
-			}
+			// The files are parsed in parallel (one thread per reducer output part)
+			GeoGSMOverlapReader reader = new GeoGSMOverlapReader(logger);
+			int nLines = reader.read(inputFiles, finder);
+			logger.info("Added " + nLines + " overlap lines from " + inputFiles.size() + " files");
 		} catch (IOException e) {
 			logger.error("Could not read from input file", e);			
 		} catch (ParseException e) {
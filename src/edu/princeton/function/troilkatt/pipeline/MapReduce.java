@@ -4,12 +4,16 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
 
 import org.apache.log4j.Level;
 
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.mapreduce.TaskMetrics;
 
 /** 
  * Superclass to execute a stage as a MapReduce job. The MapReduce job to execute should be 
@@ -20,7 +24,7 @@ import edu.princeton.function.troilkatt.fs.OsPath;
 public class MapReduce extends Stage {
 	// List of Hadoop internal output files
 	public static final String[] hadoopInternalOutputFiles = {
-		"_logs", "_SUCCESS"};
+		"_logs", "_SUCCESS", TaskMetrics.METRICS_DIR};
 	
 	// The MapReduce jar file to execute
 	protected String jarFile;
@@ -34,6 +38,9 @@ public class MapReduce extends Stage {
 	// and for job distribution by the MapReduce framework. In megabytes.
 	// Note! This value should be larger than troilkattMaxVMemSize 
 	protected long taskMaxVMem;
+	// If true, the task memory limits are set per file using TaskMemoryModel, and 
+	// troilkattMaxVMem is not used
+	protected boolean predictMemory = false;
 	// The stage arguments
 	protected String stageArgs; 
 	// File with input arguments to MapReduce program
@@ -45,7 +52,9 @@ public class MapReduce extends Stage {
 	/**
 	 * Constructor.
 	 * 
-	 * @param args [0] jar file to run, [1] main class, [2] max troilkatt in MB, [3] max VM in MB, [4...] stage arguments
+	 * @param args [0] jar file to run, [1] main class, [2] max troilkatt in MB, [3] max VM in MB, [4...] stage arguments.
+	 * If [2] is "auto", the files are grouped into job waves with different memory limits
+	 * using TaskMemoryModel, and [3] is the largest task memory limit.
 	 * @param see description for ExecutePerFile class
 	 */
 	public MapReduce(int stageNum, String name, String args, 
@@ -81,7 +90,13 @@ public class MapReduce extends Stage {
 		mainClass = argsParts[1];
 		
 		try {
-			troilkattMaxVMem = Long.valueOf(argsParts[2]);
+			if (argsParts[2].equals("auto")) {
+				predictMemory = true;
+				troilkattMaxVMem = -1;
+			}
+			else {
+				troilkattMaxVMem = Long.valueOf(argsParts[2]);
+			}
 			taskMaxVMem = Long.valueOf(argsParts[3]);			
 		} catch (NumberFormatException e) {
 			logger.fatal("Invalid max memory size argument: ", e);
@@ -134,6 +149,23 @@ public class MapReduce extends Stage {
 	 */
 	public void writeMapReduceArgsFile(ArrayList<String> inputFiles, 
 			String hdfsTmpOutputDir, long timestamp) throws StageException {
+		writeMapReduceArgsFile(inputFiles, hdfsTmpOutputDir, timestamp, troilkattMaxVMem, taskMaxVMem);
+	}
+	
+	/**
+	 * Helper function to create an arguments file with the given memory limits. 
+	 * 
+	 * @param inputFiles of input files to process
+	 * @param hdfsTmpOutputDir output directory for MapReduce job
+	 * @param timstamp for this iteration
+	 * @param softMaxVMem task heap size in MB
+	 * @param hardMaxVMem task virtual memory limit in MB
+	 * @return none
+	 * @throws StageException if file could not be created
+	 */
+	public void writeMapReduceArgsFile(ArrayList<String> inputFiles, 
+			String hdfsTmpOutputDir, long timestamp, 
+			long softMaxVMem, long hardMaxVMem) throws StageException {
 		// Note! write order of lines must match read order in TroilkattMapReduce.readMapReduceArgsFile
 		try {
 			PrintWriter out = new PrintWriter(new FileWriter(argsFilename));
@@ -190,8 +222,8 @@ public class MapReduce extends Stage {
 			out.println("logging.level = " + logLevelName);			
 			out.println("timestamp = " + timestamp);
 			
-			out.println("soft.max.memory.mb = " + troilkattMaxVMem);
-			out.println("hard.max.memory.mb = " + taskMaxVMem);
+			out.println("soft.max.memory.mb = " + softMaxVMem);
+			out.println("hard.max.memory.mb = " + hardMaxVMem);
 			
 			out.println("input.files.start");
 			for (String f: inputFiles) {
@@ -283,20 +315,80 @@ public class MapReduce extends Stage {
 		// Temporary MapReduce output directory
 		String hdfsTmpOutputDir = OsPath.join(tfsTmpDir, getStageID() + "-" + timestamp);
 		
+		if (! predictMemory) {
+			ArrayList<String> outputFiles = runMapReduceJob(inputFiles, hdfsTmpOutputDir, 
+					timestamp, troilkattMaxVMem, taskMaxVMem, "", logFiles);
+			// Update list of meta and log files 
+			updateMetaFiles(metaFiles);
+			return outputFiles;
+		}
+		
+		/*
+		 * Run one job per wave of files with the same estimated memory requirements,
+		 * starting with the smallest files
+		 */
+		TaskMemoryModel model = new TaskMemoryModel(tfs, logger);
+		TreeMap<Long, ArrayList<String>> waves;
+		try {
+			HashMap<String, Long> estimates = model.estimateHeapMB(inputFiles);
+			waves = TaskMemoryModel.groupWaves(inputFiles, estimates, taskMaxVMem, logger);
+		} catch (IOException e) {
+			logger.fatal("Could not estimate memory requirements: ", e);
+			throw new StageException("Could not estimate memory requirements");
+		} finally {
+			model.close();
+		}
+		
+		ArrayList<String> outputFiles = new ArrayList<String>();
+		int waveNum = 0;
+		for (long heap: waves.keySet()) {
+			ArrayList<String> waveFiles = waves.get(heap);
+			long vmem = TaskMemoryModel.getTaskVMem(heap, taskMaxVMem);
+			logger.info(String.format("Wave %d: %d files with heap %dMB and task memory %dMB", 
+					waveNum, waveFiles.size(), heap, vmem));
+			outputFiles.addAll(runMapReduceJob(waveFiles, hdfsTmpOutputDir + "-" + waveNum, 
+					timestamp, heap, vmem, "." + waveNum, logFiles));
+			waveNum++;
+		}
+		
+		// Update list of meta and log files 
+		updateMetaFiles(metaFiles);
+		
+		return outputFiles;
+	}
+	
+	/**
+	 * Run the MapReduce program for a list of files, and move the output files to the 
+	 * output directory.
+	 * 
+	 * @param inputFiles list of HDFS input files to process
+	 * @param hdfsTmpOutputDir output directory for MapReduce job
+	 * @param timestamp timestamp for this iteration
+	 * @param softMaxVMem task heap size in MB
+	 * @param hardMaxVMem task virtual memory limit in MB
+	 * @param logSuffix suffix added to the job output and error log filenames
+	 * @param logFiles list for storing log files
+	 * @return list of output files
+	 * @throws StageException if the job failed
+	 */
+	protected ArrayList<String> runMapReduceJob(ArrayList<String> inputFiles, String hdfsTmpOutputDir,
+			long timestamp, long softMaxVMem, long hardMaxVMem, String logSuffix, 
+			ArrayList<String> logFiles) throws StageException {
 		// Create arguments file for MapReduce Job-task
-		writeMapReduceArgsFile(inputFiles, hdfsTmpOutputDir, timestamp);
+		writeMapReduceArgsFile(inputFiles, hdfsTmpOutputDir, timestamp, softMaxVMem, hardMaxVMem);
 		
 		// DEBUG
 		//System.out.println("MapReduce cmd = " + mapReduceCmd);
 		//System.exit(0);
 		
 		// Redirect output and execute MapReduce job
-		String outputLogfile = OsPath.join(stageLogDir, "mapreduce.output");
-		String errorLogfile = OsPath.join(stageLogDir, "mapreduce.error");
+		String outputLogfile = OsPath.join(stageLogDir, "mapreduce.output" + logSuffix);
+		String errorLogfile = OsPath.join(stageLogDir, "mapreduce.error" + logSuffix);
 		int rv = Stage.executeCmd(mapReduceCmd + " > " + outputLogfile + " 2> " + errorLogfile, logger);
 		//int rv = Stage.executeCmd(mapReduceCmd, logger);
 		
 		//int rv = executeMapReduceCmd(hdftTmpOutputDir); 
+		logTaskMetrics(logSuffix);
 		// Always update log files even if job crashes
 		updateLogFiles(logFiles);
 		if (rv != 0) {
@@ -305,12 +397,37 @@ public class MapReduce extends Stage {
 		}
 		
 		// Comrpess, timestamp and move MapReduce output files to output directory
-		ArrayList<String> outputFiles = moveMapReduceOutputFiles(hdfsTmpOutputDir, timestamp);
+		return moveMapReduceOutputFiles(hdfsTmpOutputDir, timestamp);
+	}
+	
+	/**
+	 * Log the task metrics report written by the MapReduce job client (see 
+	 * edu.princeton.function.troilkatt.mapreduce.TaskMetrics). 
+	 * 
+	 * @param logSuffix suffix added to the metrics and report filenames, such that the 
+	 * files are not overwritten by the next job run by this stage
+	 */
+	protected void logTaskMetrics(String logSuffix) {
+		String reportFilename = OsPath.join(stageLogDir, TaskMetrics.REPORT_FILENAME);
+		String metricsFilename = OsPath.join(stageLogDir, TaskMetrics.METRICS_FILENAME);
+		if (! OsPath.isfile(reportFilename)) {
+			return;
+		}
 		
-		// Update list of meta and log files 
-		updateMetaFiles(metaFiles);		
+		try {
+			String report = "";
+			for (String l: FSUtils.readTextFile(reportFilename)) {
+				report = report + l + "\n";
+			}
+			logger.info("Task metrics report:\n" + report);
+		} catch (IOException e) {
+			logger.warn("Could not read task metrics report: ", e);
+		}
 		
-		return outputFiles;
+		if (! logSuffix.isEmpty()) {
+			OsPath.rename(reportFilename, reportFilename + logSuffix);
+			OsPath.rename(metricsFilename, metricsFilename + logSuffix);
+		}
 	}
 	
 	public static void main(String args[]) {
@@ -0,0 +1,276 @@
+package edu.princeton.function.troilkatt.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.fs.TroilkattFS;
+import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
+import edu.princeton.function.troilkatt.hbase.HbaseException;
+import edu.princeton.function.troilkatt.hbase.TroilkattTable;
+import edu.princeton.function.troilkatt.tools.FilenameUtils;
+
+/**
+ * Memory model used to estimate the peak heap size needed by a PerFile MapReduce task
+ * to process a file, and to group files into job waves with different task memory limits.
+ *
+ * The peak heap is estimated from:
+ * - The file size and the compression ratio for the file's compression format. This
+ * estimate assumes that the mapper holds the uncompressed file in memory as strings.
+ * - The number of samples and rows for the dataset/series in the GEO meta table. This
+ * estimate assumes that the mapper holds the expression values in memory.
+ *
+ * The largest of the two estimates is used. Files are then assigned to the smallest
+ * heap level that fits the estimate, where the heap levels start at MIN_HEAP_MB and
+ * are doubled until the task memory limit is reached.
+ */
+public class TaskMemoryModel {
+	public static final long MB = 1024 * 1024;
+	// Heap used by the task JVM and mapper data structures independent of the input file
+	public static final long BASE_HEAP_MB = 256;
+	// Heap bytes used per uncompressed input byte (Java strings use two bytes per character,
+	// plus object overhead and temporary copies)
+	public static final double HEAP_PER_INPUT_BYTE = 3.0;
+	// Heap bytes used per expression value (double plus parsing overhead)
+	public static final long HEAP_PER_VALUE = 16;
+	// Smallest heap level
+	public static final long MIN_HEAP_MB = 1024;
+	// Task virtual memory limit relative to the heap size
+	public static final long VMEM_PER_HEAP = 2;
+
+	protected TroilkattFS tfs;
+	protected HTable metaTable;
+	// True if the meta table was opened by the constructor, and must be closed by close()
+	protected boolean ownsMetaTable = false;
+	protected Logger logger;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tfs TroilkattFS handle used to read file sizes
+	 * @param metaTable GEO meta table handle used to read sample and row counts. If null
+	 * only the file sizes are used.
+	 * @param logger logger to use
+	 */
+	public TaskMemoryModel(TroilkattFS tfs, HTable metaTable, Logger logger) {
+		this.tfs = tfs;
+		this.metaTable = metaTable;
+		this.logger = logger;
+	}
+
+	/**
+	 * Constructor that opens the GEO meta table. If the table cannot be opened the
+	 * estimates are based only on the file sizes. The table is closed by close().
+	 *
+	 * @param tfs TroilkattFS handle used to read file sizes
+	 * @param logger logger to use
+	 */
+	public TaskMemoryModel(TroilkattFS tfs, Logger logger) {
+		this(tfs, null, logger);
+		Configuration hbConf = HBaseConfiguration.create();
+		try {
+			metaTable = new GeoMetaTableSchema().openTable(hbConf, false);
+			ownsMetaTable = true;
+		} catch (HbaseException e) {
+			logger.warn("Could not open GEO meta table: memory estimates are based on file sizes only", e);
+		}
+	}
+
+	/**
+	 * Close the GEO meta table if it was opened by the constructor. A table handle passed 
+	 * to the constructor is not closed.
+	 */
+	public void close() {
+		if (ownsMetaTable && (metaTable != null)) {
+			try {
+				metaTable.close();
+			} catch (IOException e) {
+				logger.warn("Could not close GEO meta table", e);
+			}
+			metaTable = null;
+			ownsMetaTable = false;
+		}
+	}
+
+	/**
+	 * Estimate the peak heap size for a list of files.
+	 *
+	 * @param files list of tfs files
+	 * @return key: filename, value: estimated peak heap in MB
+	 * @throws IOException if the file sizes could not be read
+	 */
+	public HashMap<String, Long> estimateHeapMB(ArrayList<String> files) throws IOException {
+		// Read sample IDs and row counts for all datasets/ series using multi-gets
+		HashMap<String, HashMap<String, String>> metaValues = new HashMap<String, HashMap<String, String>>();
+		ArrayList<String> gids = new ArrayList<String>();
+		for (String f: files) {
+			gids.add(FilenameUtils.getDsetID(OsPath.basename(f)));
+		}
+		if (metaTable != null) {
+			String[] columns = {"meta:sampleIDs", "meta:rowCounts"};
+			try {
+				metaValues = GeoMetaTableSchema.getValues(metaTable, gids, columns, logger);
+			} catch (IOException e) {
+				logger.warn("Could not read sample and row counts from GEO meta table", e);
+			}
+		}
+
+		HashMap<String, Long> estimates = new HashMap<String, Long>();
+		for (int i = 0; i < files.size(); i++) {
+			String f = files.get(i);
+			long fileSize = tfs.fileSize(f);
+			if (fileSize < 0) {
+				logger.warn("Could not read size of file: " + f);
+				fileSize = 0;
+			}
+			String compression = tfs.getFilenameCompression(f);
+
+			int nSamples = 0;
+			long nRows = 0;
+			HashMap<String, String> rowValues = metaValues.get(gids.get(i));
+			if (rowValues != null) {
+				nSamples = countValues(rowValues.get("meta:sampleIDs"));
+				nRows = maxValue(rowValues.get("meta:rowCounts"));
+			}
+
+			estimates.put(f, estimateHeapMB(fileSize, compression, nSamples, nRows));
+		}
+		return estimates;
+	}
+
+	/**
+	 * Estimate the peak heap size for a file.
+	 *
+	 * @param fileBytes file size in bytes
+	 * @param compression file's compression format
+	 * @param nSamples number of samples in the dataset/series, or 0 if unknown
+	 * @param nRows number of rows in the dataset/series, or 0 if unknown
+	 * @return estimated peak heap size in MB
+	 */
+	public static long estimateHeapMB(long fileBytes, String compression, int nSamples, long nRows) {
+		double uncompressedBytes = fileBytes * getCompressionRatio(compression);
+		double sizeEstimate = uncompressedBytes * HEAP_PER_INPUT_BYTE;
+		double valueEstimate = (double) nSamples * nRows * HEAP_PER_VALUE;
+		return BASE_HEAP_MB + (long) Math.ceil(Math.max(sizeEstimate, valueEstimate) / MB);
+	}
+
+	/**
+	 * Get the typical compression ratio for GEO text files.
+	 *
+	 * @param compression compression format (as used in tfs filenames)
+	 * @return uncompressed size divided by compressed size
+	 */
+	public static double getCompressionRatio(String compression) {
+		if ((compression == null) || compression.equals("none")) {
+			return 1.0;
+		}
+		else if (compression.equals("bz2")) {
+			return 7.0;
+		}
+		else { // gz and other formats
+			return 5.0;
+		}
+	}
+
+	/**
+	 * Get the heap levels for a task memory limit. The smallest level is MIN_HEAP_MB,
+	 * unless the task memory limit is too small to fit it, in which case the smallest
+	 * level is reduced such that the heap plus the JVM overhead fits the limit.
+	 *
+	 * @param maxTaskVMem maximum virtual memory for a task in MB
+	 * @return heap levels in MB, smallest first
+	 */
+	public static ArrayList<Long> getHeapLevels(long maxTaskVMem) {
+		ArrayList<Long> levels = new ArrayList<Long>();
+		long heap = Math.min(MIN_HEAP_MB, maxTaskVMem / VMEM_PER_HEAP);
+		levels.add(heap);
+		while (heap * 2 * VMEM_PER_HEAP <= maxTaskVMem) {
+			heap = heap * 2;
+			levels.add(heap);
+		}
+		return levels;
+	}
+
+	/**
+	 * Get the task virtual memory limit for a heap size.
+	 *
+	 * @param heapMB heap size in MB
+	 * @param maxTaskVMem maximum virtual memory for a task in MB
+	 * @return virtual memory limit in MB
+	 */
+	public static long getTaskVMem(long heapMB, long maxTaskVMem) {
+		return Math.min(heapMB * VMEM_PER_HEAP, maxTaskVMem);
+	}
+
+	/**
+	 * Group files into waves where all files in a wave are processed with the same
+	 * task heap size.
+	 *
+	 * @param files files to group. The file order is kept within each wave
+	 * @param estimates key: filename, value: estimated peak heap in MB
+	 * @param maxTaskVMem maximum virtual memory for a task in MB
+	 * @param logger logger used to warn about files that are larger than the largest level
+	 * @return key: heap size in MB, value: files in wave.
+	 */
+	public static TreeMap<Long, ArrayList<String>> groupWaves(ArrayList<String> files,
+			HashMap<String, Long> estimates, long maxTaskVMem, Logger logger) {
+		ArrayList<Long> levels = getHeapLevels(maxTaskVMem);
+		TreeMap<Long, ArrayList<String>> waves = new TreeMap<Long, ArrayList<String>>();
+		for (String f: files) {
+			long estimate = estimates.get(f);
+			long heap = levels.get(levels.size() - 1);
+			for (long l: levels) {
+				if (estimate <= l) {
+					heap = l;
+					break;
+				}
+			}
+			if (estimate > heap) {
+				logger.warn("Estimated heap size " + estimate + "MB is larger than the largest heap " + heap + "MB for: " + f);
+			}
+
+			ArrayList<String> wave = waves.get(heap);
+			if (wave == null) {
+				wave = new ArrayList<String>();
+				waves.put(heap, wave);
+			}
+			wave.add(f);
+		}
+		return waves;
+	}
+
+	/**
+	 * Helper function to count the values in a newline separated list
+	 */
+	protected static int countValues(String listStr) {
+		if (listStr == null) {
+			return 0;
+		}
+		return TroilkattTable.string2array(listStr).size();
+	}
+
+	/**
+	 * Helper function to find the largest number in a newline separated list
+	 */
+	protected static long maxValue(String listStr) {
+		long max = 0;
+		if (listStr == null) {
+			return max;
+		}
+		for (String s: TroilkattTable.string2array(listStr)) {
+			try {
+				max = Math.max(max, Long.valueOf(s.trim()));
+			} catch (NumberFormatException e) {
+				// ignore invalid counts
+			}
+		}
+		return max;
+	}
+}
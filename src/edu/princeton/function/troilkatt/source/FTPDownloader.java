@@ -0,0 +1,160 @@
+package edu.princeton.function.troilkatt.source;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.pipeline.StageException;
+
+/**
+ * Download files from an FTP server with retries. The connections and the order of the
+ * downloads are managed by GeoFetchCoordinator.
+ *
+ * Each file is retried up to maxAttempts times with exponential backoff and jitter. The
+ * connection used for a failed attempt is reconnected. A partially downloaded file is 
+ * resumed from its current size (using the FTP REST command) in the next attempt.
+ */
+public class FTPDownloader {
+	/**
+	 * A connection to an FTP server. A connection is only used by one thread at a time.
+	 */
+	public interface Connection {
+		/**
+		 * Connect and login to the server.
+		 *
+		 * @throws IOException if the connection could not be established
+		 */
+		public void connect() throws IOException;
+
+		/**
+		 * @return true if connect() has been called successfully and the connection has not
+		 * been disconnected
+		 */
+		public boolean isConnected();
+
+		/**
+		 * Download a file.
+		 *
+		 * @param remoteFilename file on the server
+		 * @param os stream to write the file content to
+		 * @param offset offset in the remote file to start the download at
+		 * @return true if the file was downloaded, false if the server refused the transfer
+		 * @throws IOException if the transfer failed
+		 */
+		public boolean retrieve(String remoteFilename, OutputStream os, long offset) throws IOException;
+
+		/**
+		 * Disconnect from the server. Errors are ignored.
+		 */
+		public void disconnect();
+	}
+
+	/**
+	 * Handler for downloaded files.
+	 */
+	public interface FileHandler {
+		/**
+		 * Process a downloaded file. The local file should be deleted by the handler.
+		 *
+		 * @param remoteFilename file on the server
+		 * @param localFilename downloaded file
+		 * @return handler result, or null if the file could not be processed
+		 * @throws StageException if the download should be aborted
+		 */
+		public String handle(String remoteFilename, String localFilename) throws StageException;
+	}
+
+	protected int maxAttempts;
+	protected long initialBackoff;
+	protected long maxBackoff;
+	protected Logger logger;
+	protected Random random;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxAttempts maximum number of download attempts per file
+	 * @param initialBackoff time in milliseconds to wait before the second attempt
+	 * @param maxBackoff maximum time in milliseconds to wait between attempts
+	 * @param logger logger to use
+	 */
+	public FTPDownloader(int maxAttempts, long initialBackoff, long maxBackoff, Logger logger) {
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.logger = logger;
+		random = new Random();
+	}
+
+	/**
+	 * Download one file with retries.
+	 *
+	 * @param c connection to use
+	 * @param remoteFilename file on the server
+	 * @param localFilename local file to write to. If it exists, the download is resumed.
+	 * @return true if the file was downloaded, false if all attempts failed
+	 * @throws InterruptedException if interrupted during backoff
+	 */
+	protected boolean download(Connection c, String remoteFilename, String localFilename) throws InterruptedException {
+		File localFile = new File(localFilename);
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			if (attempt > 0) {
+				long backoff = getBackoff(attempt);
+				logger.info("Retry download of " + remoteFilename + " in " + backoff + " ms");
+				Thread.sleep(backoff);
+			}
+
+			long offset = localFile.length();
+			try {
+				if (! c.isConnected()) {
+					c.connect();
+				}
+				OutputStream os = new FileOutputStream(localFile, true);
+				boolean retrieved;
+				try {
+					retrieved = c.retrieve(remoteFilename, os, offset);
+				} finally {
+					os.close();
+				}
+				if (retrieved) {
+					return true;
+				}
+				logger.warn("Server refused transfer of " + remoteFilename + " at offset " + offset);
+			} catch (IOException e) {
+				logger.warn("Download of " + remoteFilename + " failed at attempt " + (attempt + 1) + ": " + e);
+			}
+
+			// Reconnect before the next attempt, since the server often closes the connection
+			c.disconnect();
+			if ((offset > 0) && (localFile.length() == offset)) {
+				// The server may not support resume: restart the transfer from the beginning
+				localFile.delete();
+			}
+		}
+
+		localFile.delete();
+		return false;
+	}
+
+	/**
+	 * Helper function to calculate the time to wait before a retry.
+	 *
+	 * @param attempt attempt number (1 for the first retry)
+	 * @return exponential backoff with jitter, in milliseconds
+	 */
+	protected long getBackoff(int attempt) {
+		long backoff = maxBackoff;
+		if (attempt < 31) {
+			backoff = Math.min(maxBackoff, initialBackoff << (attempt - 1));
+		}
+		// Jitter: wait between half and the full backoff time
+		long half = backoff / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (backoff - half));
+		}
+	}
+}
@@ -0,0 +1,1016 @@
+package edu.princeton.function.troilkatt.source;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.TroilkattProperties;
+import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.pipeline.StageException;
+
+/**
+ * Process-wide coordinator for all listings and downloads from the GEO FTP server. The GEO
+ * sources in all pipelines share:
+ *
+ * - A pool of FTP connections, which bounds the number of concurrent connections to the
+ *   server.
+ * - A bandwidth budget for all transfers.
+ * - A queue of requested files, where small files are downloaded first to maximize the
+ *   number of completed datasets per hour. Files with unknown size, such as RAW and series
+ *   files, are downloaded last in request order. A queued file is cancelled if no source
+ *   is waiting for it.
+ * - Directory listings, which are cached for the Troilkatt iteration.
+ * - Downloaded files. A file requested by multiple sources (such as a series with samples
+ *   from multiple organisms) is only downloaded once. Downloaded files are kept in a local
+ *   cache directory until the next iteration, or until the cache size is exceeded.
+ *
+ * Each source gets a hard link to a downloaded file, which is passed to a
+ * FTPDownloader.FileHandler in the calling thread as the files complete. The cached files are
+ * read-only, such that a source cannot modify the file seen by the other sources. The file
+ * is only copied if a link cannot be created, for example if the directories are on
+ * different file systems. A source can also attach a tee stream to a download, which
+ * receives a copy of the bytes while the file is downloaded.
+ *
+ * Sources get the coordinator with getInstance() and call release() in their cleanup. The
+ * worker threads and connections are shut down when no source uses the coordinator, and
+ * restarted by the next fetchAll(). The listings and downloaded files are kept for the
+ * sources that run later in the same iteration.
+ */
+public class GeoFetchCoordinator {
+	public static final String FTP_SERVER = "ftp.ncbi.nih.gov";
+
+	// Optional Troilkatt properties used to configure the shared coordinator
+	public static final String CONNECTIONS_PROPERTY = "troilkatt.geo.ftp.connections";
+	public static final String BANDWIDTH_PROPERTY = "troilkatt.geo.ftp.bandwidth"; // KB/s
+	public static final String CACHE_SIZE_PROPERTY = "troilkatt.geo.ftp.cache.size"; // MB
+	public static final int DEFAULT_CONNECTIONS = 4;
+	public static final long DEFAULT_BANDWIDTH = 0; // unlimited
+	public static final long DEFAULT_CACHE_SIZE = 16 * 1024; // 16 GB
+
+	// Number of times to try FTP listing (these often fail on the GEO FTP server)
+	public static final int FTP_LS_ATTEMPTS = 5;
+	// Initial time to wait until retrying an FTP listing
+	public static final long LS_INITIAL_WAIT_TIME = 900000; // 15 minutes in milliseconds
+	// Number of times to try to download a file
+	public static final int DOWNLOAD_ATTEMPTS = 5;
+	// Initial and maximum time to wait until retrying a download
+	public static final long DOWNLOAD_INITIAL_BACKOFF = 30000; // 30 seconds in milliseconds
+	public static final long DOWNLOAD_MAX_BACKOFF = 900000; // 15 minutes in milliseconds
+
+	/**
+	 * A connection to the FTP server that can also list directories.
+	 */
+	public interface Connection extends FTPDownloader.Connection {
+		/**
+		 * List a directory with file details.
+		 *
+		 * @param dir absolute directory name on the server
+		 * @return files in the directory, or null if the listing failed. Hidden files are
+		 * not included.
+		 * @throws IOException if the connection failed
+		 */
+		public FTPFile[] list(String dir) throws IOException;
+	}
+
+	/**
+	 * Factory used to create the connections in the pool.
+	 */
+	public interface ConnectionFactory {
+		public Connection createConnection();
+	}
+
+	/**
+	 * Anonymous connection to the GEO FTP server. All filenames are absolute.
+	 */
+	public static class GeoFTPConnection implements Connection {
+		protected String server;
+		protected String email;
+		protected Logger logger;
+		protected FTPClient ftp;
+
+		public GeoFTPConnection(String server, String email, Logger logger) {
+			this.server = server;
+			this.email = email;
+			this.logger = logger;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			ftp = new FTPClient();
+			ftp.connect(server);
+			if (! ftp.login("anonymous", email)) {
+				disconnect();
+				throw new IOException("Could not login to GEO FTP server");
+			}
+			// FTP Passive mode must be used to get through many firewalls
+			ftp.enterLocalPassiveMode();
+			if (ftp.setFileType(FTP.BINARY_FILE_TYPE) == false) {
+				disconnect();
+				throw new IOException("Could not set filetype to binary");
+			}
+		}
+
+		@Override
+		public boolean isConnected() {
+			return (ftp != null) && ftp.isConnected();
+		}
+
+		@Override
+		public boolean retrieve(String remoteFilename, OutputStream os, long offset) throws IOException {
+			ftp.setRestartOffset(offset);
+			return ftp.retrieveFile(remoteFilename, os);
+		}
+
+		@Override
+		public FTPFile[] list(String dir) throws IOException {
+			// MLSD is used if supported by the server, otherwise LIST
+			FTPFile[] ftpFiles = ftp.mlistDir(dir);
+			if ((ftpFiles == null) || (ftpFiles.length == 0)) {
+				ftpFiles = ftp.listFiles(dir);
+			}
+			if (ftpFiles == null) {
+				return null;
+			}
+			// Entries that could not be parsed are null
+			ArrayList<FTPFile> files = new ArrayList<FTPFile>();
+			for (FTPFile f: ftpFiles) {
+				if ((f != null) && ! f.getName().startsWith(".")) {
+					files.add(f);
+				}
+			}
+			return files.toArray(new FTPFile[files.size()]);
+		}
+
+		@Override
+		public void disconnect() {
+			if (ftp == null) {
+				return;
+			}
+			try {
+				ftp.disconnect();
+			} catch (IOException e) {
+				logger.warn("IOException during disconnect: ", e);
+			}
+			ftp = null;
+		}
+	}
+
+	/**
+	 * A requested file. There is one request per remote file, which is shared by all
+	 * sources that request the file.
+	 */
+	protected static class Request implements Comparable<Request> {
+		public String remoteFilename;
+		// Size on the server, or -1 if not known
+		public long size;
+		// Used to download files of the same size in request order
+		public long seq;
+		// Set when the download is done
+		public boolean done = false;
+		// Downloaded file in the cache directory, or null if the download failed
+		public String cacheFilename = null;
+		// Number of fetchAll() calls that have not yet received the file
+		public int waiters = 0;
+		// Queues of the fetchAll() calls waiting for the download
+		public ArrayList<BlockingQueue<Request>> listeners = new ArrayList<BlockingQueue<Request>>();
+		// Time the file was last passed to a receiver
+		public long lastUsed;
+		// Stream that receives a copy of the downloaded bytes, or null
+		public OutputStream tee = null;
+		// Number of bytes written to the tee
+		public long teePosition = 0;
+
+		public Request(String remoteFilename, long size, long seq) {
+			this.remoteFilename = remoteFilename;
+			this.size = size;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Request o) {
+			long s1 = (size < 0) ? Long.MAX_VALUE : size;
+			long s2 = (o.size < 0) ? Long.MAX_VALUE : o.size;
+			if (s1 != s2) {
+				return (s1 < s2) ? -1 : 1;
+			}
+			if (seq != o.seq) {
+				return (seq < o.seq) ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Output stream that also writes the bytes to the tee of a request. Each byte is written
+	 * to the tee once, also if the transfer is resumed or restarted. The tee is detached if 
+	 * it fails, such that it cannot fail the download.
+	 */
+	protected class TeeOutputStream extends FilterOutputStream {
+		protected Request req;
+		// Position of the next byte in the remote file
+		protected long position;
+
+		public TeeOutputStream(OutputStream out, Request req, long offset) {
+			super(out);
+			this.req = req;
+			this.position = offset;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			long skip = req.teePosition - position;
+			position += len;
+			if ((req.tee == null) || (skip >= len)) { // bytes already written to the tee
+				return;
+			}
+			if (skip < 0) {
+				logger.warn("Tee detached due to missing bytes: " + req.remoteFilename);
+				req.tee = null;
+				return;
+			}
+			try {
+				req.tee.write(b, off + (int) skip, len - (int) skip);
+				req.teePosition = position;
+			} catch (IOException e) {
+				logger.warn("Tee detached for " + req.remoteFilename + ": " + e);
+				req.tee = null;
+			}
+		}
+	}
+
+	/**
+	 * Token bucket shared by all transfers. A thread that exceeds the budget sleeps while
+	 * holding the lock, such that the other threads wait behind it.
+	 */
+	protected static class RateLimiter {
+		protected long bytesPerSecond;
+		protected long available;
+		protected long lastRefill;
+
+		public RateLimiter(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+			available = 0;
+			lastRefill = System.currentTimeMillis();
+		}
+
+		public synchronized void acquire(long bytes) throws InterruptedException {
+			long now = System.currentTimeMillis();
+			// At most one second of unused budget is saved
+			available = Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1000);
+			lastRefill = now;
+			available -= bytes;
+			if (available < 0) {
+				Thread.sleep(-available * 1000 / bytesPerSecond);
+			}
+		}
+	}
+
+	/**
+	 * Output stream where writes are limited by a RateLimiter.
+	 */
+	protected static class ThrottledOutputStream extends FilterOutputStream {
+		// Maximum bytes acquired at a time, such that concurrent transfers are interleaved
+		protected static final int CHUNK_SIZE = 64 * 1024;
+		protected RateLimiter limiter;
+
+		public ThrottledOutputStream(OutputStream out, RateLimiter limiter) {
+			super(out);
+			this.limiter = limiter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			acquire(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, CHUNK_SIZE);
+				acquire(n);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		protected void acquire(int n) throws IOException {
+			try {
+				limiter.acquire(n);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+			}
+		}
+	}
+
+	// Coordinator shared by all sources in this process
+	private static GeoFetchCoordinator instance = null;
+	// Number of getInstance() calls not yet released
+	private static int nUsers = 0;
+
+	protected Logger logger;
+	protected String cacheDir;
+	// Cache size in bytes
+	protected long cacheSize;
+	// null if the bandwidth is not limited
+	protected RateLimiter limiter;
+	// Used for the retry and resume logic
+	protected FTPDownloader downloader;
+	// Time to wait before the second listing attempt
+	protected long lsInitialWaitTime = LS_INITIAL_WAIT_TIME;
+
+	// Connections not currently used
+	protected BlockingQueue<Connection> connections;
+	protected int nConnections;
+	// Requests not yet downloaded, smallest file first
+	protected PriorityBlockingQueue<Request> queue;
+	// Empty if the workers are shut down
+	protected ArrayList<Thread> workers;
+	// Set by shutdown(). The interrupt may be lost if it arrives during a transfer
+	protected volatile boolean stopped = false;
+
+	// Timestamp of the current Troilkatt iteration
+	protected long currentTimestamp = -1;
+	// Remote filename -> request, for requests that are queued, downloading, or cached
+	protected HashMap<String, Request> requests;
+	// Directory -> listing for the current iteration. An array with a null element is
+	// used while the listing is done
+	protected HashMap<String, FTPFile[][]> listings;
+	protected long nextSeq = 0;
+	// Total size of the downloaded files in the cache directory
+	protected long cachedBytes = 0;
+	// Statistics
+	protected int nDownloads = 0;
+	protected int nDeduplicated = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param factory factory used to create connections
+	 * @param nConnections maximum number of concurrent connections to the server
+	 * @param bytesPerSecond maximum total bandwidth used for downloads, or 0 if not limited
+	 * @param cacheSize maximum size of downloaded files kept in the cache directory, in bytes
+	 * @param cacheDir local directory where files are downloaded to
+	 * @param logger logger to use
+	 */
+	public GeoFetchCoordinator(ConnectionFactory factory, int nConnections, long bytesPerSecond,
+			long cacheSize, String cacheDir, Logger logger) {
+		this.logger = logger;
+		this.cacheDir = cacheDir;
+		this.cacheSize = cacheSize;
+		if (bytesPerSecond > 0) {
+			limiter = new RateLimiter(bytesPerSecond);
+		}
+		downloader = new FTPDownloader(DOWNLOAD_ATTEMPTS, DOWNLOAD_INITIAL_BACKOFF, DOWNLOAD_MAX_BACKOFF, logger);
+
+		OsPath.deleteAll(cacheDir);
+		OsPath.mkdir(cacheDir);
+
+		requests = new HashMap<String, Request>();
+		listings = new HashMap<String, FTPFile[][]>();
+		queue = new PriorityBlockingQueue<Request>();
+		this.nConnections = nConnections;
+		connections = new ArrayBlockingQueue<Connection>(nConnections);
+		for (int i = 0; i < nConnections; i++) {
+			connections.add(factory.createConnection());
+		}
+
+		workers = new ArrayList<Thread>();
+		startWorkers();
+	}
+
+	/**
+	 * Helper function to start the worker threads, if these are not running. One worker is
+	 * started per connection, such that a worker never waits for a connection unless it is
+	 * used for a listing. Must be called while holding the lock.
+	 */
+	protected void startWorkers() {
+		if (! workers.isEmpty()) {
+			return;
+		}
+		stopped = false;
+		for (int i = 0; i < nConnections; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runWorker();
+				}
+			}, "geo-fetch-" + i);
+			t.setDaemon(true);
+			t.start();
+			workers.add(t);
+		}
+	}
+
+	/**
+	 * Get the coordinator shared by all GEO sources. It is created the first time this
+	 * method is called. Each call must be followed by a call to release().
+	 *
+	 * @param troilkattProperties properties used to configure the coordinator
+	 * @return shared coordinator
+	 * @throws TroilkattPropertiesException if a property is missing or invalid
+	 */
+	public static synchronized GeoFetchCoordinator getInstance(TroilkattProperties troilkattProperties) throws TroilkattPropertiesException {
+		if (instance == null) {
+			final String email = troilkattProperties.get("troilkatt.admin.email");
+			final Logger coordinatorLogger = Logger.getLogger("troilkatt.geo-fetch");
+			String cacheDir = OsPath.join(troilkattProperties.get("troilkatt.localfs.dir"), "geo-fetch-cache");
+			int nConnections = (int) getOptionalLong(troilkattProperties, CONNECTIONS_PROPERTY, DEFAULT_CONNECTIONS);
+			long bandwidth = getOptionalLong(troilkattProperties, BANDWIDTH_PROPERTY, DEFAULT_BANDWIDTH);
+			long cacheSize = getOptionalLong(troilkattProperties, CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+			if (nConnections < 1) {
+				throw new TroilkattPropertiesException("Invalid value for property: " + CONNECTIONS_PROPERTY);
+			}
+
+			instance = new GeoFetchCoordinator(new ConnectionFactory() {
+				@Override
+				public Connection createConnection() {
+					return new GeoFTPConnection(FTP_SERVER, email, coordinatorLogger);
+				}
+			}, nConnections, bandwidth * 1024, cacheSize * 1024 * 1024, cacheDir, coordinatorLogger);
+		}
+		nUsers++;
+		return instance;
+	}
+
+	/**
+	 * Release a coordinator returned by getInstance(). The worker threads and connections
+	 * are shut down when the coordinator is no longer used by any source.
+	 */
+	public static void release() {
+		GeoFetchCoordinator idle = null;
+		synchronized (GeoFetchCoordinator.class) {
+			if (nUsers == 0) {
+				return;
+			}
+			nUsers--;
+			if (nUsers == 0) {
+				idle = instance;
+			}
+		}
+		if (idle != null) {
+			idle.shutdown(false);
+		}
+	}
+
+	/**
+	 * Helper function to read an optional numeric property.
+	 *
+	 * @return property value, or defaultValue if the property is not set
+	 * @throws TroilkattPropertiesException if the value is not a number
+	 */
+	protected static long getOptionalLong(TroilkattProperties troilkattProperties, String name, long defaultValue) throws TroilkattPropertiesException {
+		String value = troilkattProperties.getAll().get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			throw new TroilkattPropertiesException("Invalid value for property: " + name);
+		}
+	}
+
+	/**
+	 * List a directory on the FTP server. The listing is cached until the next iteration.
+	 *
+	 * @param dir absolute directory name
+	 * @param timestamp timestamp of the Troilkatt iteration
+	 * @return files in the directory
+	 * @throws StageException if the directory could not be listed
+	 */
+	public FTPFile[] listDir(String dir, long timestamp) throws StageException {
+		FTPFile[][] listing;
+		synchronized (this) {
+			startIteration(timestamp);
+			listing = listings.get(dir);
+			if (listing == null) {
+				listing = new FTPFile[1][];
+				listings.put(dir, listing);
+			}
+		}
+
+		// Concurrent requests for the same directory wait for the first listing
+		synchronized (listing) {
+			if (listing[0] == null) {
+				listing[0] = list(dir);
+				logger.debug("Received list of " + listing[0].length + " files in: " + dir);
+			}
+			else {
+				logger.info("Using cached listing of: " + dir);
+			}
+			return listing[0];
+		}
+	}
+
+	/**
+	 * Helper function to list a directory using a connection from the pool.
+	 *
+	 * @param dir absolute directory name
+	 * @return files in the directory
+	 * @throws StageException if the directory could not be listed
+	 */
+	protected FTPFile[] list(String dir) throws StageException {
+		Connection c;
+		try {
+			c = connections.take();
+		} catch (InterruptedException e) {
+			throw new StageException("Interrupted while waiting for FTP connection");
+		}
+
+		try {
+			/*
+			 * The list operation frequently fails on the GEO FTP server, especially
+			 * for the series directory. We there make multiple attempts to retrieve
+			 * the directory listing, each with a very long wait between
+			 */
+			long waitTime = lsInitialWaitTime;
+			for (int i = 0; i < FTP_LS_ATTEMPTS; i++) {
+				try {
+					if (! c.isConnected()) {
+						c.connect();
+					}
+					FTPFile[] ftpFiles = c.list(dir);
+					if ((ftpFiles != null) && (ftpFiles.length > 0)) {
+						return ftpFiles;
+					}
+				} catch (IOException e) {
+					// A pooled connection may have been closed by the server
+					logger.warn("Could not list FTP directory: " + dir + ": " + e);
+					c.disconnect();
+				}
+
+				if (i == FTP_LS_ATTEMPTS - 1) {
+					break;
+				}
+				logger.warn("Could not list FTP directory...retrying in " + (waitTime / (60 * 1000)) + " minutes");
+				try {
+					Thread.sleep(waitTime);
+				} catch (InterruptedException e) {
+					throw new StageException("Interrupted while waiting to list FTP directory");
+				}
+				waitTime = waitTime * 2; // wait longer before next attempt
+			}
+		} finally {
+			connections.add(c);
+		}
+
+		logger.fatal("Could not list FTP directory: " + dir);
+		throw new StageException("Could not list FTP directory");
+	}
+
+	/**
+	 * Download files and pass a link to each downloaded file to a handler.
+	 *
+	 * @param remoteFilenames absolute names of the files to download
+	 * @param sizes map with remote filename as key and the file size as value. Files not in
+	 * the map, or all files if null, are downloaded after files with a known size.
+	 * @param localDir directory where the files passed to the handler are written
+	 * @param timestamp timestamp of the Troilkatt iteration
+	 * @param handler handler called for each downloaded file in the calling thread
+	 * @return map with remote filename as key and handler result as value. Files that could
+	 * not be downloaded or processed are not included.
+	 * @throws StageException if the handler throws an exception
+	 */
+	public HashMap<String, String> fetchAll(List<String> remoteFilenames, Map<String, Long> sizes,
+			String localDir, long timestamp, FTPDownloader.FileHandler handler) throws StageException {
+		return fetchAll(remoteFilenames, sizes, localDir, timestamp, handler, null);
+	}
+
+	/**
+	 * Download files and pass a link to each downloaded file to a handler. A tee stream 
+	 * receives a copy of the bytes while the file is downloaded, and it is closed when the 
+	 * download completes. 
+	 * 
+	 * Note that a tee is only used if the file is not already downloaded, or requested by 
+	 * another source, and that it is not closed if the download fails. The caller must 
+	 * therefore check that the tee has received the full file.
+	 *
+	 * @param tees map with remote filename as key and tee stream as value. Can be null.
+	 * 
+	 * See above for the other arguments.
+	 */
+	public HashMap<String, String> fetchAll(List<String> remoteFilenames, Map<String, Long> sizes,
+			String localDir, long timestamp, FTPDownloader.FileHandler handler, 
+			Map<String, ? extends OutputStream> tees) throws StageException {
+		HashMap<String, String> results = new HashMap<String, String>();
+		if (remoteFilenames.isEmpty()) {
+			return results;
+		}
+		OsPath.mkdir(localDir);
+
+		BlockingQueue<Request> completed = new LinkedBlockingQueue<Request>();
+		HashSet<Request> waiting = new HashSet<Request>();
+		synchronized (this) {
+			startWorkers();
+			startIteration(timestamp);
+			ArrayList<Request> newRequests = new ArrayList<Request>();
+			for (String r: new LinkedHashSet<String>(remoteFilenames)) {
+				Request req = requests.get(r);
+				if (req == null) {
+					Long size = (sizes == null) ? null : sizes.get(r);
+					req = new Request(r, (size == null) ? -1 : size, nextSeq++);
+					if (tees != null) {
+						req.tee = tees.get(r);
+					}
+					requests.put(r, req);
+					newRequests.add(req);
+				}
+				else {
+					nDeduplicated++;
+					logger.debug("Already requested: " + r);
+				}
+				req.waiters++;
+				if (req.done) {
+					completed.add(req);
+				}
+				else {
+					req.listeners.add(completed);
+				}
+				waiting.add(req);
+			}
+			// Added in priority order such that an idle worker takes the smallest file
+			Collections.sort(newRequests);
+			queue.addAll(newRequests);
+			logger.info("Requested " + waiting.size() + " files: " + newRequests.size() + " new downloads");
+		}
+
+		try {
+			while (! waiting.isEmpty()) {
+				Request req = completed.take();
+				waiting.remove(req);
+				String localFilename = OsPath.join(localDir, OsPath.basename(req.remoteFilename));
+				boolean received = receive(req, localFilename);
+				if (! received) {
+					logger.warn("Could not download file: " + req.remoteFilename);
+					continue;
+				}
+				String result = handler.handle(req.remoteFilename, localFilename);
+				if (result == null) {
+					logger.warn("Could not process downloaded file: " + req.remoteFilename);
+					continue;
+				}
+				results.put(req.remoteFilename, result);
+			}
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for downloads");
+			throw new StageException("Interrupted while waiting for downloads");
+		} finally {
+			// The handler may have aborted the download. Queued files that no other
+			// fetchAll() call is waiting for are not downloaded
+			synchronized (this) {
+				int nCancelled = 0;
+				for (Request req: waiting) {
+					req.listeners.remove(completed);
+					req.waiters--;
+					if ((req.waiters == 0) && (! req.done) && queue.remove(req)) {
+						requests.remove(req.remoteFilename);
+						nCancelled++;
+					}
+				}
+				if (nCancelled > 0) {
+					logger.info("Cancelled " + nCancelled + " queued downloads");
+				}
+				evict();
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Helper function to link a downloaded file from the cache.
+	 *
+	 * @param req downloaded request
+	 * @param localFilename file to create
+	 * @return true if the file was received, false if the download failed
+	 */
+	protected boolean receive(Request req, String localFilename) {
+		String cacheFilename;
+		synchronized (this) {
+			req.lastUsed = System.currentTimeMillis();
+			cacheFilename = req.cacheFilename;
+			if (cacheFilename == null) {
+				req.waiters--;
+				return false;
+			}
+			// A file that is too large to be cached is moved to the last receiver
+			long fileSize = OsPath.fileSize(cacheFilename);
+			if ((req.waiters == 1) && (fileSize > cacheSize)) {
+				req.waiters--;
+				req.cacheFilename = null;
+				requests.remove(req.remoteFilename);
+				cachedBytes -= fileSize;
+				return OsPath.rename(cacheFilename, localFilename);
+			}
+		}
+
+		// The file is not evicted while the waiters count includes this receiver
+		boolean linked = link(cacheFilename, localFilename);
+		synchronized (this) {
+			req.waiters--;
+		}
+		return linked;
+	}
+
+	/**
+	 * Helper function to create a hard link to a cached file. The file is copied if the link
+	 * cannot be created.
+	 *
+	 * @param cacheFilename file in the cache directory
+	 * @param localFilename link to create. An existing file is replaced.
+	 * @return true on success, false if the file could neither be linked nor copied
+	 */
+	protected boolean link(String cacheFilename, String localFilename) {
+		OsPath.delete(localFilename);
+		try {
+			Files.createLink(Paths.get(localFilename), Paths.get(cacheFilename));
+			return true;
+		} catch (IOException e) {
+			logger.debug("Could not link " + cacheFilename + ": " + e);
+		} catch (UnsupportedOperationException e) {
+			logger.debug("Hard links are not supported: " + e);
+		}
+		return OsPath.copy(cacheFilename, localFilename, logger);
+	}
+
+	/**
+	 * Helper function to delete cached files if the cache size is exceeded. The least recently
+	 * used files that no fetchAll() call is waiting for are deleted first. Must be called
+	 * while holding the lock.
+	 */
+	protected void evict() {
+		if (cachedBytes <= cacheSize) {
+			return;
+		}
+
+		ArrayList<Request> candidates = new ArrayList<Request>();
+		for (Request req: requests.values()) {
+			if (req.done && (req.cacheFilename != null) && (req.waiters == 0)) {
+				candidates.add(req);
+			}
+		}
+
+		while ((cachedBytes > cacheSize) && ! candidates.isEmpty()) {
+			Request lru = candidates.get(0);
+			for (Request req: candidates) {
+				if (req.lastUsed < lru.lastUsed) {
+					lru = req;
+				}
+			}
+			candidates.remove(lru);
+			cachedBytes -= OsPath.fileSize(lru.cacheFilename);
+			OsPath.delete(lru.cacheFilename);
+			requests.remove(lru.remoteFilename);
+		}
+	}
+
+	/**
+	 * Helper function to clear the cached listings and files when a new iteration starts.
+	 * Must be called while holding the lock.
+	 *
+	 * @param timestamp timestamp of the Troilkatt iteration
+	 */
+	protected void startIteration(long timestamp) {
+		if (timestamp == currentTimestamp) {
+			return;
+		}
+		if (currentTimestamp != -1) {
+			logger.info("Previous iteration: " + nDownloads + " downloads, " + nDeduplicated + " duplicate requests");
+		}
+		currentTimestamp = timestamp;
+		nDownloads = 0;
+		nDeduplicated = 0;
+		listings.clear();
+
+		// Files on the server may have changed. Requests that are not done are kept
+		ArrayList<String> remove = new ArrayList<String>();
+		for (Request req: requests.values()) {
+			if (req.done && (req.waiters == 0)) {
+				if (req.cacheFilename != null) {
+					cachedBytes -= OsPath.fileSize(req.cacheFilename);
+					OsPath.delete(req.cacheFilename);
+				}
+				remove.add(req.remoteFilename);
+			}
+		}
+		for (String r: remove) {
+			requests.remove(r);
+		}
+	}
+
+	/**
+	 * Worker thread main loop: download requested files, smallest first.
+	 */
+	protected void runWorker() {
+		while (! stopped) {
+			Request req;
+			Connection c;
+			try {
+				req = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				c = connections.take();
+			} catch (InterruptedException e) {
+				// Cancelled by shutdown()
+				queue.add(req);
+				return;
+			}
+
+			String cacheFilename = OsPath.join(cacheDir, req.seq + "-" + OsPath.basename(req.remoteFilename));
+			boolean downloaded = false;
+			try {
+				FTPDownloader.Connection tc = c;
+				if (limiter != null) {
+					tc = throttle(tc);
+				}
+				if (req.tee != null) {
+					tc = tee(tc, req);
+				}
+				downloaded = downloader.download(tc, req.remoteFilename, cacheFilename);
+				if (downloaded && (req.tee != null)) {
+					closeTee(req);
+				}
+			} catch (InterruptedException e) {
+				OsPath.delete(cacheFilename);
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				logger.error("Download of " + req.remoteFilename + " failed: ", e);
+				OsPath.delete(cacheFilename);
+			} finally {
+				connections.add(c);
+				complete(req, downloaded ? cacheFilename : null);
+			}
+		}
+	}
+
+	/**
+	 * Helper function to mark a request as done and notify the waiting fetchAll() calls.
+	 *
+	 * @param req request
+	 * @param cacheFilename downloaded file, or null if the download failed
+	 */
+	protected synchronized void complete(Request req, String cacheFilename) {
+		req.done = true;
+		req.cacheFilename = cacheFilename;
+		if (cacheFilename != null) {
+			nDownloads++;
+			cachedBytes += OsPath.fileSize(cacheFilename);
+			// Shared by the links passed to the receivers
+			new File(cacheFilename).setReadOnly();
+		}
+		else {
+			// A later request should retry the download
+			requests.remove(req.remoteFilename);
+		}
+		for (BlockingQueue<Request> l: req.listeners) {
+			l.add(req);
+		}
+		req.listeners.clear();
+		evict();
+	}
+
+	/**
+	 * Helper function to wrap a connection such that the transfers are limited by the
+	 * bandwidth budget.
+	 */
+	protected FTPDownloader.Connection throttle(final FTPDownloader.Connection c) {
+		return new FTPDownloader.Connection() {
+			@Override
+			public void connect() throws IOException {
+				c.connect();
+			}
+
+			@Override
+			public boolean isConnected() {
+				return c.isConnected();
+			}
+
+			@Override
+			public boolean retrieve(String remoteFilename, OutputStream os, long offset) throws IOException {
+				return c.retrieve(remoteFilename, new ThrottledOutputStream(os, limiter), offset);
+			}
+
+			@Override
+			public void disconnect() {
+				c.disconnect();
+			}
+		};
+	}
+
+	/**
+	 * Helper function to wrap a connection such that the transferred bytes are also written
+	 * to the tee of a request.
+	 */
+	protected FTPDownloader.Connection tee(final FTPDownloader.Connection c, final Request req) {
+		return new FTPDownloader.Connection() {
+			@Override
+			public void connect() throws IOException {
+				c.connect();
+			}
+
+			@Override
+			public boolean isConnected() {
+				return c.isConnected();
+			}
+
+			@Override
+			public boolean retrieve(String remoteFilename, OutputStream os, long offset) throws IOException {
+				return c.retrieve(remoteFilename, new TeeOutputStream(os, req, offset), offset);
+			}
+
+			@Override
+			public void disconnect() {
+				c.disconnect();
+			}
+		};
+	}
+
+	/**
+	 * Helper function to close the tee of a request when the download is complete.
+	 */
+	protected void closeTee(Request req) {
+		try {
+			req.tee.close();
+		} catch (IOException e) {
+			logger.warn("Could not close tee for " + req.remoteFilename + ": " + e);
+		}
+		req.tee = null;
+	}
+
+	/**
+	 * Stop the worker threads and disconnect all connections. Files in the cache directory
+	 * are deleted.
+	 */
+	public void shutdown() {
+		shutdown(true);
+	}
+
+	/**
+	 * Stop the worker threads and disconnect all connections. Queued downloads are cancelled.
+	 *
+	 * @param deleteCache true if the files in the cache directory should be deleted. Otherwise
+	 * these can be used after the workers are restarted.
+	 */
+	protected void shutdown(boolean deleteCache) {
+		ArrayList<Thread> stoppedWorkers;
+		synchronized (this) {
+			stopped = true;
+			stoppedWorkers = new ArrayList<Thread>(workers);
+			workers.clear();
+		}
+		for (Thread t: stoppedWorkers) {
+			t.interrupt();
+		}
+		for (Thread t: stoppedWorkers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted while waiting for worker thread");
+			}
+		}
+		for (Connection c: connections) {
+			c.disconnect();
+		}
+
+		// Requests that are queued but not started must be requested again
+		ArrayList<Request> queued = new ArrayList<Request>();
+		queue.drainTo(queued);
+		for (Request req: queued) {
+			complete(req, null);
+		}
+		if (deleteCache) {
+			OsPath.deleteAll(cacheDir);
+		}
+	}
+}
@@ -1,38 +1,51 @@
 package edu.princeton.function.troilkatt.source;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
 
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
 import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.hbase.GeoMetaIndexTableSchema;
+import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
+import edu.princeton.function.troilkatt.hbase.HbaseException;
 import edu.princeton.function.troilkatt.pipeline.StageException;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
+import edu.princeton.function.troilkatt.tools.GeoSoftParser;
+import edu.princeton.function.troilkatt.tools.ParseException;
 
 /**
  * Mirror all GEO GDS (dataset) files.
+ * 
+ * If the "meta" argument is given, the meta-data in the SOFT files is parsed while the files
+ * are downloaded, and written to the GEO meta table when the files are saved in tfs. This 
+ * replaces the UpdateGEOMetaTable job, which re-reads the entire file.
  */
 public class GeoGDSMirror extends TFSSource {
-	protected final String ftpServer = "ftp.ncbi.nih.gov";	
 	public static final String GDSftpDir = "/pub/geo/DATA/SOFT/GDS";
 	
 	protected String ftpDir = null;    
-	protected String adminEmail = null;    
-    
-    // Number of times to try FTP listing (these often fail on the GEO FTP server)
-    protected final int FTP_LS_ATTEMPTS = 5;
-    // Initial time to wait until retrying an FTP listing
-	protected final int INITIAL_WAIT_TIME = 900000; // 15 minutes in milliseconds
+	
+	// Mirror manifest file in the stage meta directory
+	public static final String MANIFEST_FILENAME = "manifest";
+	
+	// Set to update the GEO meta table with the meta-data in the downloaded files
+	protected boolean updateMeta = false;
+	// Table handles
+	protected HTable metaTable;
+	protected HTable indexTable;
+	// Shared GEO FTP coordinator, or null if not used since the last cleanup
+	protected GeoFetchCoordinator coordinator = null;
 	
     /**
 	 * Constructor called in SourceFactory.
@@ -45,6 +58,7 @@ public class GeoGDSMirror extends TFSSource {
 			Pipeline pipeline)
 			throws TroilkattPropertiesException, StageInitException {
 		this(name, arguments, outputDir, compressionFormat, storageTime, localRootDir, tfsStageMetaDir, tfsStageTmpDir, pipeline, GDSftpDir);
+		setupMetaUpdate();
 	}
 	
 	/**
@@ -65,38 +79,86 @@ public class GeoGDSMirror extends TFSSource {
 		super(name, arguments, outputDir, compressionFormat, storageTime, localRootDir, tfsStageMetaDir, tfsStageTmpDir, pipeline);
 		
 		this.ftpDir = dir;
-		adminEmail = troilkattProperties.get("troilkatt.admin.email");		
 	}
 
 	/**
-	 * Helper function to connect, login, and change directory on the FTP server.
+	 * Helper function to parse the mirror arguments, and open the GEO meta tables if the 
+	 * "meta" argument is given. Other arguments are ignored.
 	 * 
-	 * @param ftp iniaitlized ftp client
-	 * @param return true on success, false on failure
-	 * @throws IOException 
-	 * @throws SocketException 
+	 * @throws StageInitException if the tables could not be opened
 	 */
-	protected boolean connectFTP(FTPClient ftp) throws SocketException, IOException {
-		ftp.connect(ftpServer);
-		if (! ftp.login("anonymous", adminEmail)) {
-			logger.fatal("Could not login to GEO FTP server");
-			return false;
+	protected void setupMetaUpdate() throws StageInitException {
+		if (args == null) {
+			return;
 		}
-		
-		// FTP Passive mode must be used to get through many firewalls
-		ftp.enterLocalPassiveMode();
-		
-		if (! ftp.changeWorkingDirectory(ftpDir)) {
-			logger.fatal("Could not change working directory to: " + ftpDir);
-			return false;
+		for (String a: splitArgs(args)) {
+			if (a.equals("meta")) {
+				updateMeta = true;
+			}
+		}
+		if (updateMeta) {
+			logger.info("Meta-data is parsed during download");
+			openMetaTables();
 		}
-		return true;
 	}
 	
 	/**
-	 * Download new files from the GEO FTP server and save these in tfs.
+	 * Helper function to open the GEO meta table and index table.
 	 * 
-	 * @param metaFiles ignored
+	 * @throws StageInitException if the tables could not be opened
+	 */
+	protected void openMetaTables() throws StageInitException {
+		Configuration hbConf = HBaseConfiguration.create();
+		GeoMetaTableSchema metaTableSchema = new GeoMetaTableSchema();
+		GeoMetaIndexTableSchema indexTableSchema = new GeoMetaIndexTableSchema();
+		try {
+			metaTable = metaTableSchema.openTable(hbConf, true);
+			indexTable = indexTableSchema.openTable(hbConf, true);
+		} catch (HbaseException e) {
+			logger.error("Could not get handle to meta data table", e);
+			throw new StageInitException("Could not get handle to meta data table");
+		}
+	}
+
+	/**
+	 * Helper function to get the coordinator used for all listings and downloads from the
+	 * GEO FTP server.
+	 * 
+	 * @return coordinator shared by all GEO sources. It is released in cleanupLocalDirs()
+	 * @throws StageException if the coordinator could not be created
+	 */
+	protected GeoFetchCoordinator getCoordinator() throws StageException {
+		if (coordinator == null) {
+			try {
+				coordinator = GeoFetchCoordinator.getInstance(troilkattProperties);
+			} catch (TroilkattPropertiesException e) {
+				logger.fatal("Could not create GEO fetch coordinator: ", e);
+				throw new StageException("Could not create GEO fetch coordinator: " + e);
+			}
+		}
+		return coordinator;
+	}
+	
+	/**
+	 * Release the GEO FTP coordinator, and delete the content of the local stage 
+	 * directories.
+	 */
+	@Override
+	public void cleanupLocalDirs() throws StageException {
+		if (coordinator != null) {
+			GeoFetchCoordinator.release();
+			coordinator = null;
+		}
+		super.cleanupLocalDirs();
+	}
+
+	/**
+	 * Download new and changed files from the GEO FTP server and save these in tfs.
+	 * 
+	 * The files are compared to the mirror manifest stored in the stage meta directory.
+	 * 
+	 * @param metaFiles list of meta files, which includes the mirror manifest if it has
+	 * been created
 	 * @param logFiles list of log files which includes a file with the files new, and 
 	 * downloaded files for each iteration.
 	 * @return list of output files in tfs
@@ -107,87 +169,133 @@ public class GeoGDSMirror extends TFSSource {
 			ArrayList<String> logFiles, long timestamp) throws StageException {
 		logger.info("Retrieve");
 		
-		FTPClient ftp = new FTPClient();		
-	    try {
-	    	if (connectFTP(ftp) == false) {
-	    		throw new StageException("Could not connect to GEO FTP server");
-	    	}			
-		} catch (SocketException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
-		} catch (IOException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
-		}
+		// List files with size and modification time. The listing is shared with the other
+		// GEO sources in this iteration
+		FTPFile[] ftpFiles = getCoordinator().listDir(ftpDir, timestamp);
 	
-		// Get list of files that have not already been downloaded
-		HashSet<String> oldIDs = getOldIDs(tfsOutputDir);		
+		// Get manifest of previously downloaded files
+		String manifestFilename = OsPath.join(stageMetaDir, MANIFEST_FILENAME);
+		MirrorManifest manifest = readManifest(metaFiles, manifestFilename, ftpFiles);
 		// Create log file with old IDs
 		String oldLog = OsPath.join(stageLogDir, "old");
 		try {
-			FSUtils.writeTextFile(oldLog, oldIDs.toArray(new String[oldIDs.size()]));
+			ArrayList<String> oldIDs = new ArrayList<String>();
+			for (MirrorManifest.Entry e: manifest.getEntries()) {
+				oldIDs.add(e.id);
+			}
+			FSUtils.writeTextFile(oldLog, oldIDs);
 			logFiles.add(oldLog);
 		} catch (IOException e1) {
 			logger.warn("Could not create log file: " + oldLog, e1);			
 		}
 		
-		// Get list of files with ID not in oldIDs
-		ArrayList<String> newFiles = getNewFiles(ftp, oldIDs);
+		// Get list of files that are new or changed since the last download
+		final HashMap<String, FTPFile> newFiles = getChangedFiles(ftpFiles, manifest);
 		// Create log file with new files to be downloaded
 		String newLog = OsPath.join(stageLogDir, "new");
 		try {			
-			FSUtils.writeTextFile(newLog, newFiles);
+			FSUtils.writeTextFile(newLog, newFiles.keySet().toArray(new String[newFiles.size()]));
 			logFiles.add(newLog);
 		} catch (IOException e1) {
 			logger.warn("Could not create log file: " + newLog, e1);			
 		}
 		
-		// Download new files from FTP server, one at a time, save the file in tfs,
-		// and then delete the file on the local FS
+		// Download new files from FTP server, smallest first. Downloaded files are unpacked 
+		// and saved in tfs, while the remaining files are downloaded
+		final long saveTimestamp = timestamp;
+		final MirrorManifest fManifest = manifest;
+		// Files where only the listing changed
+		final HashSet<String> unchangedFiles = new HashSet<String>();
+		final HashMap<String, String> ftpToName = new HashMap<String, String>();
+		HashMap<String, Long> sizes = new HashMap<String, Long>();
+		// Meta-data is parsed while the files are downloaded
+		final HashMap<String, GeoMetaTee> tees = new HashMap<String, GeoMetaTee>();
+		for (String n: newFiles.keySet()) {
+			String r = getFTPFilename(n);
+			ftpToName.put(r, n);
+			// The series directory lists directories, whose size is not the size of the
+			// downloaded file. These are downloaded in request order
+			if (newFiles.get(n).isFile()) {
+				sizes.put(r, newFiles.get(n).getSize());
+			}
+			if (updateMeta) {
+				tees.put(r, new GeoMetaTee(r));
+			}
+		}
+		HashMap<String, String> tfsFilenames = null;
+		try {
+			tfsFilenames = getCoordinator().fetchAll(new ArrayList<String>(ftpToName.keySet()), 
+					sizes, OsPath.join(stageInputDir, "download"), timestamp,
+					new FTPDownloader.FileHandler() {
+						@Override
+						public String handle(String remoteFilename, String localFilename) throws StageException {
+							String n = ftpToName.get(remoteFilename);
+							String id = FilenameUtils.getDsetID(n);
+							FTPFile f = newFiles.get(n);
+							String checksum;
+							try {
+								checksum = FSUtils.sha1file(localFilename);
+							} catch (IOException e) {
+								logger.warn("Could not calculate checksum for: " + localFilename, e);
+								OsPath.delete(localFilename);
+								return null;
+							}
+						
+							// The listing may change without the content changing
+							MirrorManifest.Entry old = fManifest.get(id);
+							if ((old != null) && checksum.equals(old.checksum)) {
+								OsPath.delete(localFilename);
+								fManifest.put(new MirrorManifest.Entry(id, f.getSize(), getModificationTime(f), checksum, old.tfsFilename));
+								unchangedFiles.add(remoteFilename);
+								return old.tfsFilename;
+							}
+						
+							GeoSoftParser parser = null;
+							if (updateMeta) {
+								parser = getMetaParser(tees.get(remoteFilename), localFilename);
+							}
+						
+							String tfsFilename = saveFile(localFilename, saveTimestamp);
+							if (tfsFilename != null) {
+								fManifest.put(new MirrorManifest.Entry(id, f.getSize(), getModificationTime(f), checksum, tfsFilename));
+								if (parser != null) {
+									updateMetaRow(parser, tfsFilename, saveTimestamp);
+								}
+							}
+							return tfsFilename;
+						}
+			}, tees);
+		} finally {
+			if (tfsFilenames == null) {
+				// The meta files are only saved if retrieve() succeeds, so the manifest is
+				// saved here to avoid downloading the files saved in tfs again
+				checkpointManifest(manifest, manifestFilename, metaFiles, timestamp);
+			}
+		}
+		
 		ArrayList<String> outputFiles = new ArrayList<String>();
 		ArrayList<String> outputIDs = new ArrayList<String>();
-		for (String n: newFiles) {
-			String tfsFilename = downloadFile(ftp, n, timestamp);
+		for (String r: ftpToName.keySet()) {
+			String n = ftpToName.get(r);
+			String tfsFilename = tfsFilenames.get(r);
 			if (tfsFilename == null) {
 				logger.warn("File with ID: " + n + " not downloaded");
-				// Sleep a while before continuing
-				try {
-					Thread.sleep(300000);
-				} catch (InterruptedException e) {
-					// Do nothing if sleep was interrupted
-				} // 5 minutes
-				
-				try {
-					ftp.disconnect();
-				} catch (IOException e1) {
-					logger.warn("IOException during disconnet: ", e1);
-				}
-				
-				ftp = new FTPClient();				
-				try {
-					if (connectFTP(ftp) == false) {
-						logger.error("Could not reconnect to FTP server");
-						throw new StageException("Could not reconnect to FTP server");
-					}
-				} catch (SocketException e) {
-					logger.warn("Could not reconnect to FTP server: ", e);
-					throw new StageException("Could not reconnect to FTP server");
-				} catch (IOException e) {
-					logger.warn("Could not reconnect to FTP server: ", e);
-					throw new StageException("Could not reconnect to FTP server");
-				}
-				
 				continue;
 			}
-			String id = OsPath.basename(n).split("\\.")[0];
+			if (unchangedFiles.contains(r)) {
+				logger.info("File with ID: " + n + " has not changed");
+				continue;
+			}
 			outputFiles.add(tfsFilename);
-			outputIDs.add(id);
+			outputIDs.add(FilenameUtils.getDsetID(n));
 		}	
 		
+		// Save manifest. It is copied to tfs with the other meta files
 		try {
-			ftp.disconnect();
-		} catch (IOException e1) {
-			logger.warn("IOException during disconnet: ", e1);
+			manifest.write(manifestFilename);
+		} catch (IOException e) {
+			logger.fatal("Could not write manifest file: ", e);
+			throw new StageException("Could not write manifest file: " + e);
 		}
 		
 		// Create log file with list of downloaded fiels
@@ -205,179 +313,240 @@ public class GeoGDSMirror extends TFSSource {
 	}
 	
 	/**
-	 * Helper function to create a hash set with the IDs of previously downloaded datasets.
+	 * Helper function to write the manifest and save the meta files in tfs if the download
+	 * is aborted. Errors are logged, such that the exception that aborted the download is
+	 * not replaced.
 	 * 
-	 * @param tfsOutputDir directory with previously downloaded datasets	
-	 * @return list with datasets IDs in tfsOutputDir
-	 * @throws StageException if tfsOutputDir could not be listed
+	 * @param manifest manifest with the files saved in tfs so far
+	 * @param manifestFilename manifest file in the stage meta directory
+	 * @param metaFiles list of meta files, which includes the manifest
+	 * @param timestamp timestamp of the iteration
 	 */
-	protected HashSet<String> getOldIDs(String tfsOutputDir) throws StageException {		
-		
-		// Get list of files already downloaded
-		ArrayList<String> oldFiles;
+	protected void checkpointManifest(MirrorManifest manifest, String manifestFilename,
+			ArrayList<String> metaFiles, long timestamp) {
 		try {
-			oldFiles = tfs.listdirR(tfsOutputDir);
-		} catch (IOException e2) {
-			logger.fatal("Could not list output directory: ", e2);
-			throw new StageException("Could not list output directory: " + e2);
-		}
-		if (oldFiles == null) {
-			logger.fatal("Could not list output directory: " + tfsOutputDir);
-			throw new StageException("Could not list output directory");
+			manifest.write(manifestFilename);
+			saveMetaFiles(metaFiles, timestamp);
+			logger.info("Saved manifest with " + manifest.size() + " entries");
+		} catch (IOException e) {
+			logger.error("Could not write manifest file: ", e);
+		} catch (StageException e) {
+			logger.error("Could not save manifest file: ", e);
 		}
-		HashSet<String> oldIDs = new HashSet<String>();
-		for (String s: oldFiles) {
-			String id = FilenameUtils.getDsetID(s);
-			oldIDs.add(id);
+	}
+	
+	/**
+	 * Helper function to get the meta-data parsed while a file was downloaded. If the tee did
+	 * not receive the full file, for example since the file was downloaded for another 
+	 * source, the downloaded file is parsed.
+	 * 
+	 * @param tee tee used for the download, or null
+	 * @param localFilename downloaded file
+	 * @return parser with the meta-data, or null if the file could not be parsed
+	 */
+	protected GeoSoftParser getMetaParser(GeoMetaTee tee, String localFilename) {
+		if ((tee != null) && tee.isComplete()) {
+			return tee.getParser();
 		}
 		
-		logger.debug("Found " + oldIDs.size() + " previously downloaded files.");
-		
-		return oldIDs;
+		logger.info("Parse meta-data in downloaded file: " + localFilename);
+		try {
+			tee = GeoMetaTee.parseFile(localFilename);
+		} catch (IOException e) {
+			logger.warn("Could not parse meta-data in: " + localFilename, e);
+			return null;
+		}
+		if (! tee.isComplete()) {
+			logger.warn("Incomplete meta-data in: " + localFilename);
+			return null;
+		}
+		return tee.getParser();
 	}
-
+	
 	/**
-	 * Helper function to compare the dataset IDs on the FTP server to the IDs of 
-	 * previously downloaded datasets
+	 * Helper function to write the meta-data for a downloaded file to the GEO meta table, 
+	 * as done by UpdateGEOMetaTable.
 	 * 
-	 * @param oldIDs hash set with previously downloaded IDs
-	 * @return list of files on the FTP server that have an ID that is not in oldIDs
-	 * @throws StageException 
+	 * @param parser parser with the meta-data
+	 * @param tfsFilename SOFT file saved in tfs
+	 * @param timestamp timestamp for the row
+	 * @throws StageException if the meta table could not be updated
 	 */
-	protected ArrayList<String> getNewFiles(FTPClient ftp, HashSet<String> oldIDs) throws StageException {
-		ArrayList<String> newFiles = new ArrayList<String>(); 
-		ArrayList<String> newIDs = new ArrayList<String>();
-		
-		logger.debug("List files");
-		
-		// Get list of files on the FTP server
-		String[] ftpFiles = listFTPDir(ftp);
-		if (ftpFiles == null) {
-			logger.fatal("Could not list FTP directory: null value returned");
-			throw new StageException("Could not list FTP directory");
+	protected void updateMetaRow(GeoSoftParser parser, String tfsFilename, long timestamp) throws StageException {
+		String dsetID = FilenameUtils.getDsetID(tfsFilename, true);
+		if (dsetID == null) {
+			logger.warn("ID not found for file: " + tfsFilename);
+			return;
 		}
 		
-		logger.debug("Received list of " + ftpFiles.length + " filenames");
-					
-		// Compare list of files on FTP server with files already downloaded
-		for (String f: ftpFiles) {
-			String id = FilenameUtils.getDsetID(f);
-			if (! oldIDs.contains(id)) {
-				newFiles.add(f);
-				newIDs.add(id);
-			}
-		}	
-		
-		logger.debug("Of " + ftpFiles.length + " files on FTP server: " + newFiles.size() + " are new.");
+		Put update;
+		try {
+			update = GeoMetaTableSchema.createMetaRow(dsetID, parser, tfsFilename, timestamp);
+		} catch (ParseException e) {
+			logger.warn("Parse exception for file: " + tfsFilename, e);
+			return;
+		}
 		
-		return newFiles;
+		try {
+			// Must be done before the meta row is updated
+			GeoMetaTableSchema.updateIndex(metaTable, indexTable, dsetID, 
+					parser.getValues("organisms"), parser.getValues("platformIDs"), timestamp);
+			metaTable.put(update);
+		} catch (IOException e) {
+			logger.error("Could not update meta table row: " + dsetID, e);
+			throw new StageException("Could not update meta table row: " + dsetID);
+		}
 	}
 	
 	/**
-	 * Helper function to list the current FTP working directory.
+	 * Helper function to read the mirror manifest. If there is no manifest, the manifest is 
+	 * initialized with the datasets in the tfs output directory. These are assumed to be 
+	 * unchanged since they were downloaded.
 	 * 
-	 * @return array of files in the directory
-	 * @throws StageException 
+	 * @param metaFiles list of meta files. The manifest filename is added if the manifest 
+	 * is created.
+	 * @param manifestFilename manifest file in the stage meta directory
+	 * @param ftpFiles files on the FTP server
+	 * @return manifest
+	 * @throws StageException if the manifest could not be read, or the output directory 
+	 * could not be listed
 	 */
-	protected String[] listFTPDir(FTPClient ftp) throws StageException {
-		String[] ftpFiles = null;
-		
-		/*
-		 * The list operation frequently fails on the GEO FTP server, especially
-		 * for the series directory. We there make multiple attempts to retrieve 
-		 * the directory listing, each with a very long wait between
-		 */		
-		int waitTime = INITIAL_WAIT_TIME;
-		for (int i = 0; i < FTP_LS_ATTEMPTS; i++) {		
+	protected MirrorManifest readManifest(ArrayList<String> metaFiles, String manifestFilename, 
+			FTPFile[] ftpFiles) throws StageException {
+		if (OsPath.isfile(manifestFilename)) { // downloaded with the other meta files
 			try {
-				// cwd = GDS directory 
-				ftpFiles = ftp.listNames();
+				return MirrorManifest.read(manifestFilename);
 			} catch (IOException e) {
-				logger.fatal("Could not list FTP directory: ", e);
-				throw new StageException("Could not list FTP directory");
-			}
-			
-			if (ftpFiles == null) {
-				int waitTimeInMin = waitTime / (60 * 1000);			
-				logger.warn("Could not list FTP directory...retrying in " + waitTimeInMin + " minutes");
-				try {
-					Thread.sleep(waitTime);
-				} catch (InterruptedException e) {
-					logger.warn("Interrupted during sleep.", e);				
-				}
-				waitTime = waitTime * 2; // wait longer before next attempt
+				logger.fatal("Could not read manifest file: ", e);
+				throw new StageException("Could not read manifest file: " + e);
 			}
 		}
 		
-		return ftpFiles;
+		logger.warn("Creating new manifest file: " + manifestFilename);
+		metaFiles.add(manifestFilename);
+		MirrorManifest manifest = new MirrorManifest();
+		HashMap<String, String> oldFiles = getOldFiles(tfsOutputDir);
+		for (FTPFile f: ftpFiles) {
+			String id = FilenameUtils.getDsetID(f.getName());
+			String tfsFilename = oldFiles.get(id);
+			if (tfsFilename != null) {
+				manifest.put(new MirrorManifest.Entry(id, f.getSize(), getModificationTime(f), "unknown", tfsFilename));
+			}
+		}
+		return manifest;
 	}
-
+	
 	/**
-	 * Helper function to download a file, unpack it, and save the unpacked files in tfs.
+	 * Helper function to find the files on the FTP server that are new or changed.
 	 * 
-	 * @param filename file to download. The file should be in the ftpDir
-	 * @return tfs filename or null if file could not be downlaoded
-	 * @throws StageException if an exception occurs during download, unpacking or tfs save
+	 * @param ftpFiles files on the FTP server
+	 * @param manifest mirror manifest
+	 * @return map with the name of the files as key, and the FTP listing as value 
 	 */
-	protected String downloadFile(FTPClient ftp, String filename, long timestamp) throws StageException {
+	protected HashMap<String, FTPFile> getChangedFiles(FTPFile[] ftpFiles, MirrorManifest manifest) {
+		HashMap<String, FTPFile> newFiles = new HashMap<String, FTPFile>();
+		for (FTPFile f: ftpFiles) {
+			String id = FilenameUtils.getDsetID(f.getName());
+			if (manifest.isChanged(id, f.getSize(), getModificationTime(f))) {
+				newFiles.put(f.getName(), f);
+			}
+		}
+		logger.debug("Of " + ftpFiles.length + " files on FTP server: " + newFiles.size() + " are new or changed.");
+		return newFiles;
+	}
 	
-		logger.debug("Download: " + filename);
-		
-		// Make sure inputDir is empty before downloading, since it is later used to
-		// unpack the files that are output of this stage
-		OsPath.deleteAll(stageInputDir);
-		OsPath.mkdir(stageInputDir);
+	/**
+	 * Helper function to get the modification time of a file in an FTP listing.
+	 * 
+	 * @return modification time in milliseconds, or -1 if not known
+	 */
+	protected static long getModificationTime(FTPFile f) {
+		if (f.getTimestamp() == null) {
+			return -1;
+		}
+		return f.getTimestamp().getTimeInMillis();
+	}
 	
-		// Download file
-		String outputFilename = OsPath.join(stageInputDir, OsPath.basename(filename));
-		FileOutputStream fp = null;
+	/**
+	 * Helper function to create a map with the tfs files of previously downloaded datasets.
+	 * 
+	 * @param tfsOutputDir directory with previously downloaded datasets	
+	 * @return map with dataset ID as key and the newest tfs filename as value
+	 * @throws StageException if tfsOutputDir could not be listed
+	 */
+	protected HashMap<String, String> getOldFiles(String tfsOutputDir) throws StageException {
+		ArrayList<String> oldFiles;
 		try {
-			fp = new FileOutputStream(new File(outputFilename));
-		} catch (FileNotFoundException e) {
-			logger.fatal("Could not open output file: " + e.toString() + ": ", e);
-			throw new StageException("Could not open output file: " + e);
+			oldFiles = tfs.listdirR(tfsOutputDir);
+		} catch (IOException e2) {
+			logger.fatal("Could not list output directory: ", e2);
+			throw new StageException("Could not list output directory: " + e2);
 		}
-		
-		try {
-			if (ftp.setFileType(FTP.BINARY_FILE_TYPE) == false) {
-				logger.warn("Could not set filetype to binary");
-				fp.close();
-				return null;
-			}
-			if (ftp.retrieveFile(filename, fp) == false) {
-				logger.warn("Could not download file: " + filename);
-				OsPath.delete(outputFilename);
-				return null;
+		if (oldFiles == null) {
+			logger.fatal("Could not list output directory: " + tfsOutputDir);
+			throw new StageException("Could not list output directory");
+		}
+		HashMap<String, String> idToFile = new HashMap<String, String>();
+		for (String s: oldFiles) {
+			String id = FilenameUtils.getDsetID(s);
+			String prev = idToFile.get(id);
+			if ((prev == null) || (tfs.getFilenameTimestamp(prev) < tfs.getFilenameTimestamp(s))) {
+				idToFile.put(id, s);
 			}
-			fp.close();
-		} catch (IOException e) {
-			// This exception can be thrown if server closes connectin
-			logger.fatal("Could not download file: ", e);
-			OsPath.delete(outputFilename);
-			return null;
 		}
-		 
-		boolean fileUnpacked = unpackAll(stageInputDir, stageOutputDir);
-		OsPath.delete(outputFilename);
+		return idToFile;
+	}
+	
+	/**
+	 * Helper function to get the name of a file on the FTP server.
+	 * 
+	 * @param filename filename in the FTP listing
+	 * @return absolute filename on the FTP server
+	 */
+	protected String getFTPFilename(String filename) {
+		return OsPath.join(ftpDir, filename);
+	}
+	
+	/**
+	 * Helper function to unpack a downloaded file, and save the unpacked SOFT file in tfs.
+	 * The downloaded file is unpacked in a file specific directory, such that multiple 
+	 * downloaded files can be in the stage input directory.
+	 * 
+	 * @param localFilename downloaded file. The file is deleted.
+	 * @param timestamp timestamp to add to the tfs file
+	 * @return tfs filename or null if the file could not be unpacked
+	 * @throws StageException if the file could not be saved in tfs
+	 */
+	protected String saveFile(String localFilename, long timestamp) throws StageException {
+		String unpackDir = OsPath.join(stageOutputDir, OsPath.basename(localFilename) + ".unpack");
+		OsPath.deleteAll(unpackDir);
+		OsPath.mkdir(unpackDir);
+		
+		boolean fileUnpacked = unpackFile(localFilename, unpackDir);
+		OsPath.delete(localFilename);
 		if (fileUnpacked == false) {
-			logger.warn("Could not unpack file: " + outputFilename);			
+			logger.warn("Could not unpack file: " + localFilename);
+			OsPath.deleteAll(unpackDir);
 			return null;
 		}
-		String[] unpackedFiles = OsPath.listdir(stageOutputDir, logger);
 	
-		for (String u: unpackedFiles) {
-			if (u.endsWith(".SOFT") || u.endsWith(".soft")) {
-				String tfsFilename = tfs.putLocalFile(u, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);				
-				OsPath.delete(u);
-				if (tfsFilename != null) {
-					// File was successfully downloaded
-					return tfsFilename;
-				}
-				else {
-					logger.fatal("Could not copy downloaded file to tfs");					
-					throw new StageException("Could not copy downloaded file to tfs");
+		try {
+			String[] unpackedFiles = OsPath.listdir(unpackDir, logger);
+			for (String u: unpackedFiles) {
+				if (u.endsWith(".SOFT") || u.endsWith(".soft")) {
+					String tfsFilename = tfs.putLocalFile(u, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);				
+					if (tfsFilename != null) {
+						// File was successfully downloaded
+						return tfsFilename;
+					}
+					else {
+						logger.fatal("Could not copy downloaded file to tfs");					
+						throw new StageException("Could not copy downloaded file to tfs");
+					}
 				}
 			}
+		} finally {
+			OsPath.deleteAll(unpackDir);
 		}		
 		
 		// File could not be downloaded
@@ -385,39 +554,23 @@ public class GeoGDSMirror extends TFSSource {
 	}
 
 	/**
-	 * Uncompress and unpack all files in a directory. The source file may or may not be deleted,
-	 * depending on the program used to unpack the file.
+	 * Uncompress and unpack a file.
 	 * 
-	 * @param srcDir directory with files to uncompress/unpack 
-	 * @param dstDir directory where files are uncompressed
-	 * @return true if at least one file was successfully unpacked/uncompressed
-	 */	
-	protected boolean unpackAll(String srcDir, String dstDir) {
-		logger.info("Unpack all files in :" + srcDir);
-
-		String[] files = OsPath.listdirR(srcDir, logger);
-
-		for (String f: files) {
-			String basename = OsPath.basename(f);
-			String[] parts = basename.split("\\.");			
-			if (parts[parts.length - 2].equals("tar")) {				
-				ArrayList<String> uncompressedFiles = tfs.uncompressDirectory(f, dstDir, stageLogDir);
-				if (uncompressedFiles.size() > 0) {
-					return true;
-				}
-				else {
-					return false;
-				}
-			}	
-			else {
-				String compression = parts[parts.length - 1];
-				String uncompressedName = OsPath.join(dstDir, basename.replace("." + compression, ""));
-				if (tfs.uncompressFile(f, uncompressedName, stageLogDir)) { // one or more file unpacked
-					return true;
-				}
-			}
+	 * @param f file to uncompress/unpack
+	 * @param dstDir directory where the file is uncompressed
+	 * @return true if one or more files were unpacked/uncompressed
+	 */
+	protected boolean unpackFile(String f, String dstDir) {
+		String basename = OsPath.basename(f);
+		String[] parts = basename.split("\\.");			
+		if (parts[parts.length - 2].equals("tar")) {				
+			ArrayList<String> uncompressedFiles = tfs.uncompressDirectory(f, dstDir, stageLogDir);
+			return (uncompressedFiles.size() > 0);
+		}	
+		else {
+			String compression = parts[parts.length - 1];
+			String uncompressedName = OsPath.join(dstDir, basename.replace("." + compression, ""));
+			return tfs.uncompressFile(f, uncompressedName, stageLogDir);
 		}
-				
-		return false; // no files where uncompressed
 	}
 }
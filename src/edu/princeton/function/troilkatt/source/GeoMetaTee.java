@@ -0,0 +1,249 @@
+package edu.princeton.function.troilkatt.source;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.tools.GeoGDSParser;
+import edu.princeton.function.troilkatt.tools.GeoGSEParser;
+import edu.princeton.function.troilkatt.tools.GeoSoftParser;
+
+/**
+ * Output stream that parses the meta-data in a SOFT file while the file is downloaded. A
+ * copy of the downloaded bytes is written to the stream, and passed to the parseBytes() 
+ * method of a GeoSoftParser.
+ *
+ * Only the header sections are parsed, and the data table rows are skipped at the byte 
+ * level. A GDS file has a single data table at the end of the file, so parsing stops (and 
+ * the remaining bytes are ignored) when the table begins. A GSE family file has a header 
+ * section before each platform and sample table, so the table bodies are skipped until the
+ * end of the file.
+ *
+ * Gzip compressed files are decompressed while they are written. Only the first member of a
+ * multi-member gzip file is parsed.
+ */
+public class GeoMetaTee extends OutputStream {
+	// Size of the buffer used for decompressed bytes
+	protected static final int BUFFER_SIZE = 64 * 1024;
+	// Gzip header flags
+	protected static final int FHCRC = 2;
+	protected static final int FEXTRA = 4;
+	protected static final int FNAME = 8;
+	protected static final int FCOMMENT = 16;
+
+	protected GeoSoftParser parser;
+
+	// null if the file is not compressed
+	protected Inflater inflater = null;
+	protected byte[] inflated;
+	// Bytes of the gzip header until the full header has been written, and null afterwards
+	protected ByteArrayOutputStream gzipHeader = null;
+
+	// Set if the file is invalid or truncated
+	protected boolean failed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param filename name of the SOFT file (GDSxxx.soft or GSExxx_family.soft), optionally
+	 * with a .gz extension. It is used to select the parser, and whether the bytes are
+	 * decompressed.
+	 * @throws IllegalArgumentException if the filename is not for a GDS or GSE file
+	 */
+	public GeoMetaTee(String filename) {
+		String basename = OsPath.basename(filename);
+		if (basename.startsWith("GDS")) {
+			parser = new GeoGDSParser();
+		}
+		else if (basename.startsWith("GSE")) {
+			parser = new GeoGSEParser();
+		}
+		else {
+			throw new IllegalArgumentException("Not a GDS or GSE file: " + basename);
+		}
+
+		if (basename.endsWith(".gz")) {
+			inflater = new Inflater(true); // the gzip header and trailer are handled here
+			inflated = new byte[BUFFER_SIZE];
+			gzipHeader = new ByteArrayOutputStream();
+		}
+	}
+
+	/**
+	 * Parse the meta data in a local SOFT file. This is used if the meta data could not be
+	 * parsed while the file was downloaded.
+	 *
+	 * @param filename SOFT file, optionally gzip compressed
+	 * @return tee with the parsed meta data
+	 * @throws IOException if the file could not be read or is not a valid gzip file
+	 */
+	public static GeoMetaTee parseFile(String filename) throws IOException {
+		GeoMetaTee tee = new GeoMetaTee(filename);
+		InputStream ins = new FileInputStream(filename);
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int n;
+			while (! tee.isDone() && ((n = ins.read(buf)) != -1)) {
+				tee.write(buf, 0, n);
+			}
+		} finally {
+			ins.close();
+			tee.close();
+		}
+		return tee;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (isDone()) {
+			return;
+		}
+
+		try {
+			if (inflater == null) {
+				parser.parseBytes(b, off, len);
+			}
+			else if (gzipHeader != null) {
+				gzipHeader.write(b, off, len);
+				byte[] header = gzipHeader.toByteArray();
+				int headerLength = getGzipHeaderLength(header);
+				if (headerLength == -1) { // header not yet complete
+					return;
+				}
+				gzipHeader = null;
+				inflate(header, headerLength, header.length - headerLength);
+			}
+			else {
+				inflate(b, off, len);
+			}
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Called when all bytes in the file have been written. The last line is parsed, if it
+	 * does not end with a newline.
+	 */
+	@Override
+	public void close() {
+		if (! isDone()) {
+			if ((inflater == null) || inflater.finished()) {
+				parser.endOfData();
+			}
+			else { // truncated gzip file
+				failed = true;
+			}
+		}
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @return true if all meta lines in the file were parsed.
+	 */
+	public boolean isComplete() {
+		return parser.isDone() && ! failed;
+	}
+
+	/**
+	 * @return true if no more bytes are parsed
+	 */
+	public boolean isDone() {
+		return parser.isDone() || failed;
+	}
+
+	/**
+	 * @return parser with the meta data
+	 */
+	public GeoSoftParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * Helper function to decompress and parse bytes.
+	 */
+	protected void inflate(byte[] b, int off, int len) throws IOException {
+		inflater.setInput(b, off, len);
+		try {
+			int n;
+			while (! parser.isDone() && ((n = inflater.inflate(inflated)) > 0)) {
+				parser.parseBytes(inflated, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid gzip data: " + e.getMessage());
+		}
+		if (parser.isDone()) {
+			return;
+		}
+		if (inflater.needsDictionary()) {
+			throw new IOException("Invalid gzip data: dictionary required");
+		}
+		if (inflater.finished()) {
+			parser.endOfData();
+		}
+	}
+
+	/**
+	 * Helper function to find the length of a gzip header.
+	 *
+	 * @param h first bytes of the file
+	 * @return header length, or -1 if h does not contain the full header
+	 * @throws IOException if the file is not in gzip format
+	 */
+	protected static int getGzipHeaderLength(byte[] h) throws IOException {
+		if (h.length < 10) {
+			return -1;
+		}
+		if (((h[0] & 0xff) != 0x1f) || ((h[1] & 0xff) != 0x8b) || (h[2] != 8)) {
+			throw new IOException("Not in gzip format");
+		}
+		int flags = h[3] & 0xff;
+		int pos = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (h.length < pos + 2) {
+				return -1;
+			}
+			pos += 2 + ((h[pos] & 0xff) | ((h[pos + 1] & 0xff) << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			pos = skipString(h, pos);
+		}
+		if (((flags & FCOMMENT) != 0) && (pos != -1)) {
+			pos = skipString(h, pos);
+		}
+		if (((flags & FHCRC) != 0) && (pos != -1)) {
+			pos += 2;
+		}
+		if ((pos == -1) || (pos > h.length)) {
+			return -1;
+		}
+		return pos;
+	}
+
+	/**
+	 * Helper function to skip a zero terminated string in a gzip header.
+	 *
+	 * @return position after the string, or -1 if the string is not terminated
+	 */
+	protected static int skipString(byte[] h, int pos) {
+		for (int i = pos; i < h.length; i++) {
+			if (h[i] == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+}
@@ -4,8 +4,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import org.apache.commons.net.ftp.FTP;
@@ -75,7 +75,7 @@ public class GeoRawMirror extends GeoGDSMirror {
 		logger.info("Retrieve at: " + timestamp);
 	
 		// Get list of files that have not already been downloaded
-		HashSet<String> oldIDs = getOldIDs(tfsOutputDir);		
+		HashSet<String> oldIDs = new HashSet<String>(getOldFiles(tfsOutputDir).keySet());
 		// Create log file with old IDs
 		String oldLog = OsPath.join(stageLogDir, "old");
 		try {
@@ -86,20 +86,6 @@ public class GeoRawMirror extends GeoGDSMirror {
 		}
 	
 		
-		FTPClient ftp = new FTPClient();		
-		try {
-			if (connectFTP(ftp) == false) {
-				throw new StageException("Could not connect to GEO FTP server");
-			}			
-		} catch (SocketException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
-		} catch (IOException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
-		}
-		
-		//DEBUG ArrayList<String> newFiles = getNewFiles(ftp, oldIDs);
 		ArrayList<String> newFiles = new ArrayList<String>();		
 		for (String i: currentIDList) {
 			if (! oldIDs.contains(i)) {
@@ -116,40 +102,36 @@ public class GeoRawMirror extends GeoGDSMirror {
 			logger.warn("Could not create log file: " + newLog, e1);			
 		}
 		
-		// Download new files from FTP server, one at a time, save the file in tfs,
-		// and then delete the file on the local FS
+		// Download new files from FTP server using the connections shared by all GEO 
+		// sources, save each file in tfs, and then delete the file on the local FS
+		final long saveTimestamp = timestamp;
+		HashMap<String, String> tfsFilenames = getCoordinator().fetchAll(newFiles, null, 
+				OsPath.join(stageTmpDir, "download"), timestamp, 
+				new FTPDownloader.FileHandler() {
+					@Override
+					public String handle(String remoteFilename, String localFilename) throws StageException {
+						// Upload file to tfs
+						String tfsFilename = tfs.putLocalFile(localFilename, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, saveTimestamp);
+						// Delete downloaded file
+						OsPath.delete(localFilename);
+						if (tfsFilename == null) {
+							logger.fatal("Could not copy downloaded file to tfs");
+							throw new StageException("Could not copy downloaded file to tfs");
+						}
+						return tfsFilename;
+					}
+		});
+		
 		ArrayList<String> outputFiles = new ArrayList<String>();
 		ArrayList<String> outputIDs = new ArrayList<String>();
 		for (String n: newFiles) {						
-			// Download file
-			String outputFilename = OsPath.join(stageTmpDir, OsPath.basename(n));
-			if (downloadRawFile(ftp, n, outputFilename, logger) == false) {
-				// File could not be downloaded
+			String tfsFilename = tfsFilenames.get(n);
+			if (tfsFilename == null) {
 				// Log messages already written 
 				continue;
 			}				
-
-			// Upload file to tfs
-			String tfsFilename = tfs.putLocalFile(outputFilename, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);
-			String id = FilenameUtils.getDsetID(n, false);
-			if (tfsFilename != null) {
-				outputFiles.add(tfsFilename);
-				outputIDs.add(id);
-			}
-			else {
-				logger.fatal("Could not copy downloaded file to tfs");
-				OsPath.delete(outputFilename);
-				throw new StageException("Could not copy downloaded file to tfs");
-			}
-
-			// Delete downloaded file
-			OsPath.delete(outputFilename);			
-		}	
-		
-		try {
-			ftp.disconnect();
-		} catch (IOException e1) {
-			logger.warn("IOException during disconnet: ", e1);
+			outputFiles.add(tfsFilename);
+			outputIDs.add(FilenameUtils.getDsetID(n, false));
 		}
 		
 		// Create log file with a list of downloaded files
@@ -1,17 +1,16 @@
 package edu.princeton.function.troilkatt.source;
 
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.SocketException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import org.apache.commons.net.ftp.FTPClient;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
@@ -22,10 +21,10 @@ import edu.princeton.function.troilkatt.TroilkattPropertiesException;
 import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
-import edu.princeton.function.troilkatt.hbase.HbaseException;
 import edu.princeton.function.troilkatt.pipeline.StageException;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 import edu.princeton.function.troilkatt.tools.FilenameUtils;
+import edu.princeton.function.troilkatt.tools.RawTarSplitter;
 
 /**
  * Download all raw files for an organism from the GEO FTP server.s
@@ -36,18 +35,20 @@ public class GeoRawOrg extends GeoGDSMirror {
 	// Text file with the list of files that were returned by the retrieve() method in the last iteration
 	protected final String metaFilename = "idlist";
 	
-	// Table handle	
-	protected HTable metaTable;
-	
 	// Regexp used to select matching organisms
 	protected Pattern orgPattern;
 	
 	private HashSet<String> currentIDList;
 	
+	// Set to split the RAW files by platform while they are downloaded
+	protected boolean splitRaw;
+	
 	/**
 	 * Constructor
 	 * 
-	 * @param arguments organism name (latin name in hypens such as 'Homo sapiens').
+	 * @param arguments organism name (latin name in hypens such as 'Homo sapiens'), and 
+	 * optionally "split" to split the CEL files in the RAW tar files into one tar file per
+	 * platform specific series while downloading (as done by BatchRawRemoveOverlapping).
 	 */
 	public GeoRawOrg(String name, String arguments, String outputDir,
 			String compressionFormat, int storageTime, 
@@ -58,14 +59,7 @@ public class GeoRawOrg extends GeoGDSMirror {
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir, pipeline, rawFtpDir);
 		
 		/* Setup Htable */
-		Configuration hbConf = HBaseConfiguration.create();
-		GeoMetaTableSchema metaTableSchema = new GeoMetaTableSchema();
-		try {
-			metaTable = metaTableSchema.openTable(hbConf, true);
-		} catch (HbaseException e) {
-			logger.error("Could not get handle to meta data table", e);
-			throw new StageInitException("Could not get handle to meta data table");
-		}
+		openMetaTables();
 		
 		/* setup regexp used to find organism names */
 		String[] argsParts = splitArgs(this.args);
@@ -76,6 +70,7 @@ public class GeoRawOrg extends GeoGDSMirror {
 			logger.fatal("Invalid filter pattern: " + argsParts[0], e);
 			throw new StageInitException("Invalid filter pattern: " + argsParts[0]);
 		}
+		splitRaw = (argsParts.length > 1) && argsParts[1].equals("split");
 		
 		// Debug
 		/*if (argsParts.length != 2) {
@@ -166,71 +161,87 @@ public class GeoRawOrg extends GeoGDSMirror {
 		}
 		
 		/*
-		 * Connect to GEO FTP server
+		 * Download new files from FTP server using the connections shared by all GEO
+		 * sources. Each file is saved in HDFS and deleted on the local FS while the 
+		 * remaining files are downloaded
 		 */
-		FTPClient ftp = new FTPClient();		
-	    try {
-	    	if (connectFTP(ftp) == false) {
-	    		throw new StageException("Could not connect to GEO FTP server");
-	    	}			
-		} catch (SocketException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
-		} catch (IOException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
+		final long saveTimestamp = timestamp;
+		final HashMap<String, String> ftpToID = new HashMap<String, String>();
+		// In split mode the files are split while they are downloaded
+		final HashMap<String, RawSplitTee> tees = new HashMap<String, RawSplitTee>();
+		// Series ID -> HDFS files created by the tee
+		final HashMap<String, HashMap<String, String>> idToCreated = new HashMap<String, HashMap<String, String>>();
+		for (String i: newIDs) {
+			String r = OsPath.join(ftpDir, i + "/" + i + "_RAW.tar");
+			if (splitRaw) {
+				HashMap<String, String> created = new HashMap<String, String>();
+				RawTarSplitter splitter = createSplitter(i, timestamp, created);
+				if (splitter == null) {
+					// Log messages already written
+					continue;
+				}
+				tees.put(r, new RawSplitTee(splitter, i, logger));
+				idToCreated.put(i, created);
+			}
+			ftpToID.put(r, i);
+		}
+		// Series ID -> HDFS files
+		final HashMap<String, ArrayList<String>> idToFiles = new HashMap<String, ArrayList<String>>();
+		try {
+			getCoordinator().fetchAll(new ArrayList<String>(ftpToID.keySet()), null,
+					OsPath.join(stageTmpDir, "download"), timestamp,
+					new FTPDownloader.FileHandler() {
+						@Override
+						public String handle(String remoteFilename, String localFilename) throws StageException {
+							String i = ftpToID.get(remoteFilename);
+							ArrayList<String> hdfsFilenames;
+							if (splitRaw) {
+								// Get the platform specific files in HDFS
+								hdfsFilenames = getSplitFiles(i, tees.get(remoteFilename), idToCreated.get(i),
+										localFilename, saveTimestamp);
+								OsPath.delete(localFilename);
+								if (hdfsFilenames == null) {
+									// Log messages already written
+									return null;
+								}
+							}
+							else {
+								// Upload file to HDFS
+								String hdfsFilename = tfs.putLocalFile(localFilename, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, saveTimestamp);
+								// Delete downloaded file
+								OsPath.delete(localFilename);
+								if (hdfsFilename == null) {
+									logger.fatal("Could not copy downloaded file to HDFS");
+									throw new StageException("Could not copy downloaded file to HDFS");
+								}
+								hdfsFilenames = new ArrayList<String>();
+								hdfsFilenames.add(hdfsFilename);
+							}
+		
+							// Update metafile with new downloaded file ID
+							updateMetaFile(i);
+							idToFiles.put(i, hdfsFilenames);
+							return i;
+						}
+			}, tees);
+		} finally {
+			// Delete the files split by tees that were not passed to the handler
+			for (String r: tees.keySet()) {
+				String i = ftpToID.get(r);
+				if (! idToFiles.containsKey(i)) {
+					abortSplit(tees.get(r), idToCreated.get(i));
+				}
+			}
 		}
 		
-		/*
-		 * Download new files from FTP server, one at a time, save the file in HDFS,
-		 * and then delete the file on the local FS
-		 */
 		ArrayList<String> outputFiles = new ArrayList<String>();
 		ArrayList<String> outputIDs = new ArrayList<String>();
 		for (String i: newIDs) {
-			String ftpFilename = OsPath.join(ftpDir, i + "/" + i + "_RAW.tar");
-			String outputFilename = OsPath.join(stageTmpDir, i + "_RAW.tar");
-
-			// Download raw file
-			if (GeoRawMirror.downloadRawFile(ftp, ftpFilename, outputFilename, logger) == false) {
-				// File could not be downloaded
-				// Log messages already written 
-				continue;
-			}				
-
-			// Upload file to HDFS
-			String hdfsFilename = tfs.putLocalFile(outputFilename, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);				
-			if (hdfsFilename != null) {
-				outputFiles.add(hdfsFilename);
+			ArrayList<String> hdfsFilenames = idToFiles.get(i);
+			if (hdfsFilenames != null) {
+				outputFiles.addAll(hdfsFilenames);
 				outputIDs.add(i);
 			}
-			else {
-				logger.fatal("Could not copy downloaded file to HDFS");
-				OsPath.delete(outputFilename);
-				throw new StageException("Could not copy downloaded file to HDFS");
-			}
-
-			// Update metafile with new downloaded file ID
-			// This is done after each file to avoid re-downloading these in case of a crash
-			try {
-				// Create list with single entry since it is used as input to the appendTextFile 
-				// method
-				ArrayList<String> newIDlist = new ArrayList<String>();
-				newIDlist.add(i);
-				FSUtils.appendTextFile(OsPath.join(stageMetaDir, metaFilename), newIDlist);
-			} catch (IOException e) {
-				logger.fatal("Could not update metadata file: ", e);
-				throw new StageException("Could not update metadata file: " + e);
-			}
-			
-			// Delete downloaded file
-			OsPath.delete(outputFilename);			
-		}	
-		
-		try {
-			ftp.disconnect();
-		} catch (IOException e1) {
-			logger.warn("IOException during disconnet: ", e1);
 		}
 
 		// Create log file with a list of downloaded files
@@ -246,6 +257,160 @@ public class GeoRawOrg extends GeoGDSMirror {
 		return outputFiles;
 	}
 	
+	/**
+	 * Helper function to add a downloaded ID to the meta file. This is done after each file 
+	 * to avoid re-downloading these in case of a crash.
+	 * 
+	 * @param id downloaded ID
+	 * @throws StageException if the meta file could not be updated
+	 */
+	protected void updateMetaFile(String id) throws StageException {
+		try {
+			// Create list with single entry since it is used as input to the appendTextFile 
+			// method
+			ArrayList<String> newIDlist = new ArrayList<String>();
+			newIDlist.add(id);
+			FSUtils.appendTextFile(OsPath.join(stageMetaDir, metaFilename), newIDlist);
+		} catch (IOException e) {
+			logger.fatal("Could not update metadata file: ", e);
+			throw new StageException("Could not update metadata file: " + e);
+		}
+	}
+	
+	/**
+	 * Helper function to get the platform specific files for a downloaded raw file. The files
+	 * are normally split by the tee while the file is downloaded. If the tee did not receive 
+	 * the full file, for example since the file was downloaded for another source, the 
+	 * downloaded file is split.
+	 * 
+	 * @param seriesID series ID
+	 * @param tee tee used for the download
+	 * @param created HDFS files created by the tee
+	 * @param localFilename downloaded raw file
+	 * @param timestamp timestamp to add to the output files
+	 * @return list of HDFS files, or null if the file could not be split
+	 */
+	protected ArrayList<String> getSplitFiles(String seriesID, RawSplitTee tee, HashMap<String, String> created,
+			String localFilename, long timestamp) {
+		if (tee.isComplete()) {
+			logCounts(tee.getCounts());
+			return new ArrayList<String>(created.values());
+		}
+		if (tee.getError() != null) {
+			// The outputs are deleted by the splitter
+			logger.warn("Could not split file: " + localFilename, tee.getError());
+			return null;
+		}
+		
+		abortSplit(tee, created);
+		logger.info("Split downloaded file: " + localFilename);
+		return splitRawFile(seriesID, localFilename, timestamp);
+	}
+	
+	/**
+	 * Helper function to stop a tee and delete the files it has created.
+	 */
+	protected void abortSplit(RawSplitTee tee, HashMap<String, String> created) {
+		tee.abort();
+		deleteFiles(created.values().toArray(new String[created.size()]));
+		created.clear();
+	}
+	
+	/**
+	 * Split the CEL files in a downloaded raw file into one tar file per platform specific 
+	 * series. The tar files are written directly to HDFS.
+	 * 
+	 * @param seriesID series ID
+	 * @param localFilename downloaded raw file
+	 * @param timestamp timestamp to add to the output files
+	 * @return list of HDFS files, or null if the file could not be split
+	 */
+	protected ArrayList<String> splitRawFile(String seriesID, String localFilename, long timestamp) {
+		HashMap<String, String> created = new HashMap<String, String>();
+		RawTarSplitter splitter = createSplitter(seriesID, timestamp, created);
+		if (splitter == null) {
+			return null;
+		}
+		
+		try {
+			InputStream ins = new FileInputStream(localFilename);
+			try {
+				// The size is used to detect truncated files
+				logCounts(splitter.split(ins, OsPath.fileSize(localFilename)));
+			} finally {
+				ins.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not split file: " + localFilename, e);
+			deleteFiles(created.values().toArray(new String[created.size()]));
+			return null;
+		}
+		
+		return new ArrayList<String>(created.values());
+	}
+	
+	/**
+	 * Helper function to create a splitter that writes one tar file per platform specific
+	 * series directly to HDFS.
+	 * 
+	 * @param seriesID series ID
+	 * @param timestamp timestamp to add to the output files
+	 * @param created map where the platform specific series ID and HDFS filename of the 
+	 * created files are added
+	 * @return splitter, or null if the series has no platform specific samples
+	 */
+	protected RawTarSplitter createSplitter(String seriesID, final long timestamp, 
+			final HashMap<String, String> created) {
+		HashMap<String, ArrayList<String>> sidp2gsm = GeoMetaTableSchema.getSeriesParts(metaTable, seriesID, logger);
+		if ((sidp2gsm == null) || sidp2gsm.isEmpty()) {
+			logger.warn("No platform specific samples for series: " + seriesID);
+			return null;
+		}
+		
+		return new RawTarSplitter(sidp2gsm, new RawTarSplitter.OutputFactory() {
+			@Override
+			public OutputStream create(String sidp) throws IOException {
+				String hdfsFilename = OsPath.join(tfsOutputDir, sidp + ".tar." + timestamp + "." + compressionFormat);
+				OutputStream os = tfs.createFile(hdfsFilename, compressionFormat);
+				if (os == null) {
+					throw new IOException("Compression format cannot be used for streaming: " + compressionFormat);
+				}
+				created.put(sidp, hdfsFilename);
+				return os;
+			}
+
+			@Override
+			public void abort(String sidp) {
+				deleteFiles(created.remove(sidp));
+			}
+		}, logger);
+	}
+	
+	/**
+	 * Helper function to log the number of samples added to each platform specific file.
+	 */
+	protected void logCounts(HashMap<String, Integer> counts) {
+		for (String sidp: counts.keySet()) {
+			logger.info("Samples added for " + sidp + ": " + counts.get(sidp));
+		}
+	}
+	
+	/**
+	 * Helper function to delete partially written HDFS files. Errors are logged.
+	 */
+	protected void deleteFiles(String... hdfsFilenames) {
+		for (String f: hdfsFilenames) {
+			if (f == null) {
+				continue;
+			}
+			try {
+				tfs.deleteFile(f);
+			} catch (IOException e) {
+				logger.warn("Could not delete file: " + f, e);
+			}
+		}
+	}
+	
 	/**
 	 * Read in a list of filenames from the meta file with basename "metaFilename"
 	 * 
@@ -286,12 +451,40 @@ public class GeoRawOrg extends GeoGDSMirror {
 	}
 	
 	/**
-	 * Get a list of datset IDs for an organism from the geo-meta data table
+	 * Get a list of datset IDs for an organism using the organism index for the geo-meta 
+	 * data table. If the index has not been built from the full geo-meta data table, the 
+	 * entire geo-meta data table is scanned instead.
+	 * 
 	 * @throws StageException 
 	 */
 	protected HashSet<String> getOrgIDs() throws StageException {
 		HashSet<String> inputIDs = new HashSet<String>();
 		
+		ArrayList<String> gids;
+		try {
+			if (! GeoMetaTableSchema.isIndexComplete(indexTable)) {
+				logger.warn("Organism index is not complete: scanning meta data table");
+				return getOrgIDsFullScan();
+			}
+			gids = GeoMetaTableSchema.getGIDsByOrganism(indexTable, orgPattern);
+		} catch (IOException e) {
+			logger.error("Could not scan organism index: ", e);
+			throw new StageException("Could not scan organism index");
+		}
+		for (String g: gids) {
+			// Dataset ID without platform
+			inputIDs.add(FilenameUtils.getDsetID(g, false));
+		}
+		return inputIDs;
+	}
+	
+	/**
+	 * Get a list of datset IDs for an organism by scanning the entire geo-meta data table
+	 * @throws StageException 
+	 */
+	protected HashSet<String> getOrgIDsFullScan() throws StageException {
+		HashSet<String> inputIDs = new HashSet<String>();
+		
 		Scan scan = new Scan();	
 		byte[] fam = Bytes.toBytes("meta");
 		byte[] qual = Bytes.toBytes("organisms");
@@ -1,15 +1,13 @@
 package edu.princeton.function.troilkatt.source;
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import org.apache.commons.net.ftp.FTPClient;
-
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -197,71 +195,55 @@ public class GeoRawOrgMongoDB extends GeoGDSMirror {
 		}
 		
 		/*
-		 * Connect to GEO FTP server
+		 * Download new files from FTP server using the connections shared by all GEO
+		 * sources. Each file is saved in NFS and deleted on the local FS while the 
+		 * remaining files are downloaded
 		 */
-		FTPClient ftp = new FTPClient();		
-	    try {
-	    	if (connectFTP(ftp) == false) {
-	    		throw new StageException("Could not connect to GEO FTP server");
-	    	}			
-		} catch (SocketException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
-		} catch (IOException e) {
-			logger.fatal("Could not connect to GEO FTP server: ", e);
-			throw new StageException("Could not connect to GEO FTP server");
+		final long saveTimestamp = timestamp;
+		final HashMap<String, String> ftpToID = new HashMap<String, String>();
+		for (String i: newIDs) {
+			ftpToID.put(OsPath.join(ftpDir, i + "/" + i + "_RAW.tar"), i);
 		}
+		HashMap<String, String> nfsFilenames = getCoordinator().fetchAll(new ArrayList<String>(ftpToID.keySet()), null,
+				OsPath.join(stageTmpDir, "download"), timestamp,
+				new FTPDownloader.FileHandler() {
+					@Override
+					public String handle(String remoteFilename, String localFilename) throws StageException {
+						String i = ftpToID.get(remoteFilename);
+		
+						// Upload file to NFS
+						String nfsFilename = tfs.putLocalFile(localFilename, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, saveTimestamp);
+						// Delete downloaded file
+						OsPath.delete(localFilename);
+						if (nfsFilename == null) {
+							logger.fatal("Could not copy downloaded file to NFS");
+							throw new StageException("Could not copy downloaded file to NFS");
+						}
+
+						// Update metafile with new downloaded file ID
+						// This is done after each file to avoid re-downloading these in case of a crash
+						try {
+							// Create list with single entry since it is used as input to the appendTextFile 
+							// method
+							ArrayList<String> newIDlist = new ArrayList<String>();
+							newIDlist.add(i);
+							FSUtils.appendTextFile(OsPath.join(stageMetaDir, metaFilename), newIDlist);
+						} catch (IOException e) {
+							logger.fatal("Could not update metadata file: ", e);
+							throw new StageException("Could not update metadata file: " + e.getMessage());
+						}
+						return nfsFilename;
+					}
+		});
 		
-		/*
-		 * Download new files from FTP server, one at a time, save the file in NFS,
-		 * and then delete the file on the local FS
-		 */
 		ArrayList<String> outputFiles = new ArrayList<String>();
 		ArrayList<String> outputIDs = new ArrayList<String>();
-		for (String i: newIDs) {
-			String ftpFilename = OsPath.join(ftpDir, i + "/" + i + "_RAW.tar");
-			String outputFilename = OsPath.join(stageTmpDir, i + "_RAW.tar");
-
-			// Download raw file
-			if (GeoRawMirror.downloadRawFile(ftp, ftpFilename, outputFilename, logger) == false) {
-				// File could not be downloaded
-				// Log messages already written 
-				continue;
-			}				
-
-			// Upload file to NFS
-			String nfsFilename = tfs.putLocalFile(outputFilename, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);				
+		for (String r: ftpToID.keySet()) {
+			String nfsFilename = nfsFilenames.get(r);
 			if (nfsFilename != null) {
 				outputFiles.add(nfsFilename);
-				outputIDs.add(i);
-			}
-			else {
-				logger.fatal("Could not copy downloaded file to NFS");
-				OsPath.delete(outputFilename);
-				throw new StageException("Could not copy downloaded file to NFS");
+				outputIDs.add(ftpToID.get(r));
 			}
-
-			// Update metafile with new downloaded file ID
-			// This is done after each file to avoid re-downloading these in case of a crash
-			try {
-				// Create list with single entry since it is used as input to the appendTextFile 
-				// method
-				ArrayList<String> newIDlist = new ArrayList<String>();
-				newIDlist.add(i);
-				FSUtils.appendTextFile(OsPath.join(stageMetaDir, metaFilename), newIDlist);
-			} catch (IOException e) {
-				logger.fatal("Could not update metadata file: ", e);
-				throw new StageException("Could not update metadata file: " + e.getMessage());
-			}
-			
-			// Delete downloaded file
-			OsPath.delete(outputFilename);			
-		}	
-		
-		try {
-			ftp.disconnect();
-		} catch (IOException e1) {
-			logger.warn("IOException during disconnet: ", e1);
 		}
 
 		// Create log file with a list of downloaded files
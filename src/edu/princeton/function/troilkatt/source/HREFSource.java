@@ -13,12 +13,17 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import org.apache.commons.compress.utils.IOUtils;
+
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
 import edu.princeton.function.troilkatt.fs.FSUtils;
@@ -29,20 +34,32 @@ import edu.princeton.function.troilkatt.pipeline.StageInitException;
 /**
  * Download all files linked to from a HTML page that match a set of patterns. 
  * 
+ * In crawler mode the files are fetched concurrently using conditional requests, such that
+ * files that have not changed since the previous iteration are not downloaded again. The
+ * ETag and Last-Modified values returned by the server are stored in the stage meta 
+ * directory. The downloaded files are compressed and written directly to tfs.
  */
 public class HREFSource extends Source {
+	// Cache file with the HTTP validators in the stage meta directory
+	public static final String CACHE_FILENAME = "http-cache";
+	// Default number of concurrent downloads in crawler mode
+	public static final int DEFAULT_CONNECTIONS = 4;
 
 	// Link to page with URL's to download
 	protected URL pageURL;	
 	// Regular expression pattern to match
 	protected Pattern pattern;
+	// True if the files should be downloaded in crawler mode
+	protected boolean crawl = false;
+	// Maximum number of concurrent downloads in crawler mode
+	protected int nConnections = DEFAULT_CONNECTIONS;
 	
 	/**
 	 * Constructor.
 	 * 
 	 * For argument description, refer to superclass.
 	 *
-	 * @param arguments URL pattern1 pattern2...patternN
+	 * @param arguments URL pattern [crawl [connections]]
 	 */
 	public HREFSource(String name, String arguments, String outputDir,
 			String compressionFormat, int storageTime, String localRootDir,
@@ -75,12 +92,32 @@ public class HREFSource extends Source {
 			throw new StageInitException("Invalid filter pattern: " + parts[1]);
 		}
 				
+		if (parts.length > 2) {
+			if (! parts[2].equals("crawl")) {
+				logger.fatal("Invalid mode argument: " + parts[2]);
+				throw new StageInitException("Invalid mode argument: " + parts[2]);
+			}
+			crawl = true;
+			if (parts.length > 3) {
+				try {
+					nConnections = Integer.valueOf(parts[3]);
+				} catch (NumberFormatException e) {
+					logger.fatal("Invalid number of connections: " + parts[3]);
+					throw new StageInitException("Invalid number of connections: " + parts[3]);
+				}
+				if (nConnections < 1) {
+					logger.fatal("Invalid number of connections: " + parts[3]);
+					throw new StageInitException("Invalid number of connections: " + parts[3]);
+				}
+			}
+			logger.info("Crawler mode with " + nConnections + " connections");
+		}
 	}
 	
 	/**
 	 * Download the source page and the files linked from the source file
 	 * 
-	 * @param metaFiles ignored
+	 * @param metaFiles list of meta files. In crawler mode this includes the cache file.
 	 * @param logFiles list for storing log files produced by this step
 	 * @return list of output files in TFS
 	 * @throws StageException 
@@ -151,42 +188,39 @@ public class HREFSource extends Source {
 		 * Attempt to download retrieved URL's that match pattern, and save
 		 * downloaded files in TFS
 		 */		
-		try {
-			URI cwd = pageURL.toURI();		
-			for (String u: toDownload) {
-				logger.info("Download file: " + u);
-				URI uri = new URI(u);
-				URL url = null;
-				if (uri.isAbsolute()) {
-					url = new URL(u);
-				}
-				else {
-					URI absUri = cwd.resolve(uri);
-					url = absUri.toURL();
-				}
+		if (crawl) {
+			outputFiles = crawl(toDownload, metaFiles, timestamp);
+		}
+		else {
+			try {
+				URI cwd = pageURL.toURI();		
+				for (String u: toDownload) {
+					logger.info("Download file: " + u);
+					URL url = resolveURL(cwd, u);
 
-				String fn = downloadBinaryFile(url, stageOutputDir);
-				String tfsFilename = tfs.putLocalFile(fn, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);
-				if (tfsFilename != null) {
-					outputFiles.add(tfsFilename);
+					String fn = downloadBinaryFile(url, stageOutputDir);
+					String tfsFilename = tfs.putLocalFile(fn, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);
+					if (tfsFilename != null) {
+						outputFiles.add(tfsFilename);
+					}
+					else {
+						logger.warn("Could not save file in TFS: " + fn);
+					}
+					OsPath.delete(fn);				
 				}
-				else {
-					logger.warn("Could not save file in TFS: " + fn);
-				}
-				OsPath.delete(fn);				
+			} catch (MalformedURLException e) {
+				logger.warn("Invalid URL in href: " + e.getMessage());
+			} catch (IOException e) {
+				logger.warn("Could not download file: " + e.getMessage());
+			} catch (URISyntaxException e) {
+				logger.warn("Invalid URI in href: " + e.getMessage());
 			}
-		} catch (MalformedURLException e) {
-			logger.warn("Invalid URL in href: " + e.getMessage());
-		} catch (IOException e) {
-			logger.warn("Could not download file: " + e.getMessage());
-		} catch (URISyntaxException e) {
-			logger.warn("Invalid URI in href: " + e.getMessage());
 		}
 		logger.info("Downloaded: " + outputFiles.size() + " files");
 		
 		logFilename = OsPath.join(stageLogDir, "downloaded");
 		try {			
-			FSUtils.writeTextFile(logFilename, outputFiles.toArray(new String[toDownload.size()]));
+			FSUtils.writeTextFile(logFilename, outputFiles.toArray(new String[outputFiles.size()]));
 		} catch (IOException e) {
 			logger.error("Could not write logfile: " + logFilename);
 		}
@@ -195,6 +229,191 @@ public class HREFSource extends Source {
 		return outputFiles;
 	}
 	
+	/**
+	 * Download files in crawler mode. The files are fetched concurrently, and only new or
+	 * changed files are downloaded and saved in tfs.
+	 * 
+	 * @param toDownload URLs that match the pattern
+	 * @param metaFiles list of meta files. The cache file is added if it does not exist.
+	 * @param timestamp timestamp added to the output files
+	 * @return list of output files in TFS
+	 * @throws StageException if the cache file could not be read or written
+	 */
+	protected ArrayList<String> crawl(ArrayList<String> toDownload, ArrayList<String> metaFiles,
+			final long timestamp) throws StageException {
+		ArrayList<URL> urls = new ArrayList<URL>();
+		try {
+			URI cwd = pageURL.toURI();
+			for (String u: toDownload) {
+				try {
+					urls.add(resolveURL(cwd, u));
+				} catch (MalformedURLException e) {
+					logger.warn("Invalid URL in href: " + e.getMessage());
+				} catch (URISyntaxException e) {
+					logger.warn("Invalid URI in href: " + e.getMessage());
+				}
+			}
+		} catch (URISyntaxException e) {
+			logger.fatal("Invalid source page URI: " + e.getMessage());
+			throw new StageException("Invalid source page URI: " + e.getMessage());
+		}
+		
+		String cacheFilename = OsPath.join(stageMetaDir, CACHE_FILENAME);
+		HashMap<String, HTTPFetcher.CacheEntry> cache = null;
+		if (OsPath.isfile(cacheFilename)) { // downloaded with the other meta files
+			try {
+				cache = HTTPFetcher.readCache(cacheFilename);
+			} catch (IOException e) {
+				logger.fatal("Could not read cache file: ", e);
+				throw new StageException("Could not read cache file: " + e);
+			}
+		}
+		else {
+			logger.warn("Creating new cache file: " + cacheFilename);
+			metaFiles.add(cacheFilename);
+			cache = new HashMap<String, HTTPFetcher.CacheEntry>();
+		}
+		
+		// The files are saved concurrently, so each URL must have its own tfs filename
+		final HashMap<String, String> basenames = getUniqueBasenames(urls);
+		HTTPFetcher fetcher = new HTTPFetcher(nConnections, logger);
+		HashMap<String, String> fetched = fetcher.fetchAll(urls, cache, new HTTPFetcher.BodyHandler() {
+			@Override
+			public String handle(URL url, InputStream body) throws IOException {
+				return saveStream(basenames.get(url.toString()), body, timestamp);
+			}
+		});
+		
+		// Only keep the validators for URLs that are still linked from the page
+		HashMap<String, HTTPFetcher.CacheEntry> linked = new HashMap<String, HTTPFetcher.CacheEntry>();
+		for (URL u: urls) {
+			HTTPFetcher.CacheEntry e = cache.get(u.toString());
+			if (e != null) {
+				linked.put(e.url, e);
+			}
+		}
+		try {
+			HTTPFetcher.writeCache(cacheFilename, linked.values());
+		} catch (IOException e) {
+			logger.fatal("Could not write cache file: ", e);
+			throw new StageException("Could not write cache file: " + e);
+		}
+		
+		return new ArrayList<String>(fetched.values());
+	}
+	
+	/**
+	 * Get a unique basename for each URL. The basename of the URL path is used, unless 
+	 * several URLs have the same basename. For these a hash of the URL is added before the
+	 * file extension, for example "data-1a2b3c4d.txt".
+	 * 
+	 * @param urls list of URLs
+	 * @return key: URL string, value: basename
+	 */
+	protected static HashMap<String, String> getUniqueBasenames(ArrayList<URL> urls) {
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (URL u: urls) {
+			String basename = OsPath.basename(u.getPath());
+			Integer cnt = counts.get(basename);
+			counts.put(basename, (cnt == null) ? 1 : cnt + 1);
+		}
+		
+		HashMap<String, String> basenames = new HashMap<String, String>();
+		for (URL u: urls) {
+			String basename = OsPath.basename(u.getPath());
+			if (counts.get(basename) > 1) {
+				String hash = sha1(u.toString());
+				int extPos = basename.indexOf('.', 1);
+				if (extPos == -1) {
+					basename = basename + "-" + hash.substring(0, 8);
+				}
+				else {
+					basename = basename.substring(0, extPos) + "-" + hash.substring(0, 8) + basename.substring(extPos);
+				}
+			}
+			basenames.put(u.toString(), basename);
+		}
+		return basenames;
+	}
+	
+	/**
+	 * Helper function to calculate a SHA-1 digest for a string.
+	 * 
+	 * @param s string
+	 * @return hex encoded digest
+	 */
+	protected static String sha1(String s) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {			
+			throw new RuntimeException("SHA-1 algorithm not implemented");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b: md.digest(s.getBytes())) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Compress a downloaded file and write it directly to tfs. If the compression format
+	 * cannot be used for streaming, the file is saved on the local FS and then put to tfs.
+	 * 
+	 * @param basename basename for the file, as returned by getUniqueBasenames()
+	 * @param body response body
+	 * @param timestamp timestamp added to the tfs file
+	 * @return tfs filename, or null if the file could not be saved in tfs
+	 * @throws IOException if the body could not be read or written
+	 */
+	protected String saveStream(String basename, InputStream body, long timestamp) throws IOException {
+		String tfsFilename = OsPath.join(tfsOutputDir, basename + "." + timestamp + "." + compressionFormat);
+		OutputStream os = tfs.createFile(tfsFilename, compressionFormat);
+		if (os == null) {
+			String fn = OsPath.join(stageOutputDir, basename);
+			os = new FileOutputStream(fn);
+			try {
+				IOUtils.copy(body, os);
+			} finally {
+				os.close();
+			}
+			tfsFilename = tfs.putLocalFile(fn, tfsOutputDir, stageTmpDir, stageLogDir, compressionFormat, timestamp);
+			OsPath.delete(fn);
+			return tfsFilename;
+		}
+		
+		try {
+			IOUtils.copy(body, os);
+			os.close();
+		} catch (IOException e) {
+			try {
+				os.close();
+			} catch (IOException e2) {
+				// already failed
+			}
+			tfs.deleteFile(tfsFilename);
+			throw e;
+		}
+		return tfsFilename;
+	}
+	
+	/**
+	 * Helper function to convert a href value to an absolute URL.
+	 * 
+	 * @param cwd URI of the source page
+	 * @param href href value that is either absolute or relative to the source page
+	 * @return absolute URL
+	 */
+	protected static URL resolveURL(URI cwd, String href) throws URISyntaxException, MalformedURLException {
+		URI uri = new URI(href);
+		if (uri.isAbsolute()) {
+			return new URL(href);
+		}
+		else {
+			return cwd.resolve(uri).toURL();
+		}
+	}
+	
 	/**
 	 * Parse HTML file to find href tags
 	 * 
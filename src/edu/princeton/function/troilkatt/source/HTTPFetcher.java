@@ -0,0 +1,262 @@
+package edu.princeton.function.troilkatt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.pipeline.StageException;
+
+/**
+ * Fetch a list of URLs using a bounded number of concurrent HTTP connections.
+ *
+ * The ETag and Last-Modified response headers of fetched files are kept in a cache, and
+ * are sent as If-None-Match and If-Modified-Since headers the next time the URL is
+ * fetched. A server that supports conditional requests then replies "304 Not Modified"
+ * instead of sending an unchanged file.
+ *
+ * The response body of a new or changed file is passed as a stream to a BodyHandler, such
+ * that the file can be written directly to tfs without first saving it on the local FS.
+ */
+public class HTTPFetcher {
+	// Timeouts in milliseconds
+	public static final int CONNECT_TIMEOUT = 60 * 1000;
+	public static final int READ_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * Cache entry with the validators returned by the server for a URL.
+	 */
+	public static class CacheEntry {
+		public String url;
+		// ETag header value, or null if not returned by the server
+		public String etag;
+		// Last-Modified header value, or null if not returned by the server
+		public String lastModified;
+		// Result returned by the body handler when the file was fetched
+		public String result;
+
+		public CacheEntry(String url, String etag, String lastModified, String result) {
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Handler for fetched files. The handler is called concurrently from several threads.
+	 */
+	public interface BodyHandler {
+		/**
+		 * Process the response body of a fetched file.
+		 *
+		 * @param url fetched URL
+		 * @param body response body stream. The stream is closed by the fetcher.
+		 * @return handler result, or null if the file could not be processed
+		 * @throws IOException if the body could not be read or saved
+		 */
+		public String handle(URL url, InputStream body) throws IOException;
+	}
+
+	protected int nConnections;
+	protected Logger logger;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nConnections maximum number of concurrent connections
+	 * @param logger logger to use
+	 */
+	public HTTPFetcher(int nConnections, Logger logger) {
+		this.nConnections = nConnections;
+		this.logger = logger;
+	}
+
+	/**
+	 * Fetch URLs and pass the body of each new or changed file to a handler.
+	 *
+	 * @param urls URLs to fetch
+	 * @param cache map with URL as key and cache entry as value. Entries for fetched URLs
+	 * are added or replaced.
+	 * @param handler handler called for each new or changed file
+	 * @return map with URL as key and handler result as value. URLs that are not modified,
+	 * or that could not be fetched or processed, are not included.
+	 * @throws StageException if interrupted while waiting for the fetches to complete
+	 */
+	public HashMap<String, String> fetchAll(List<URL> urls, HashMap<String, CacheEntry> cache,
+			final BodyHandler handler) throws StageException {
+		HashMap<String, String> results = new HashMap<String, String>();
+		if (urls.isEmpty()) {
+			return results;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(nConnections);
+		ArrayList<Future<CacheEntry>> futures = new ArrayList<Future<CacheEntry>>();
+		int notModified = 0;
+		try {
+			for (final URL u: urls) {
+				final CacheEntry old = cache.get(u.toString());
+				futures.add(executor.submit(new Callable<CacheEntry>() {
+					@Override
+					public CacheEntry call() throws IOException {
+						return fetch(u, old, handler);
+					}
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				URL u = urls.get(i);
+				CacheEntry fetched;
+				try {
+					fetched = futures.get(i).get();
+				} catch (ExecutionException e) {
+					logger.warn("Could not fetch " + u + ": " + e.getCause());
+					continue;
+				}
+				if (fetched == null) {
+					notModified++;
+					continue;
+				}
+				if (fetched.result == null) {
+					logger.warn("Could not process fetched file: " + u);
+					continue;
+				}
+				cache.put(fetched.url, fetched);
+				results.put(fetched.url, fetched.result);
+			}
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for fetches");
+			throw new StageException("Interrupted while waiting for fetches");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		logger.info("Fetched " + results.size() + " of " + urls.size() + " URLs, " + notModified + " not modified");
+		return results;
+	}
+
+	/**
+	 * Fetch one URL using a conditional request.
+	 *
+	 * @param url URL to fetch
+	 * @param old cache entry for the URL, or null if the URL has not been fetched before
+	 * @param handler handler for the response body
+	 * @return new cache entry, or null if the file is not modified. The result in the cache
+	 * entry is null if the handler could not process the file.
+	 * @throws IOException if the file could not be fetched
+	 */
+	protected CacheEntry fetch(URL url, CacheEntry old, BodyHandler handler) throws IOException {
+		URLConnection conn = url.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setUseCaches(false);
+		if (old != null) {
+			// The validators are sent back exactly as returned by the server
+			if (old.etag != null) {
+				conn.setRequestProperty("If-None-Match", old.etag);
+			}
+			if (old.lastModified != null) {
+				conn.setRequestProperty("If-Modified-Since", old.lastModified);
+			}
+		}
+
+		if (conn instanceof HttpURLConnection) {
+			HttpURLConnection hconn = (HttpURLConnection) conn;
+			int status = hconn.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				logger.debug("Not modified: " + url);
+				hconn.disconnect();
+				return null;
+			}
+			else if (status != HttpURLConnection.HTTP_OK) {
+				hconn.disconnect();
+				throw new IOException("HTTP status " + status + " " + hconn.getResponseMessage());
+			}
+		}
+
+		logger.info("Fetch file: " + url);
+		InputStream body = conn.getInputStream();
+		String result;
+		try {
+			result = handler.handle(url, body);
+		} finally {
+			body.close();
+		}
+		return new CacheEntry(url.toString(), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"), result);
+	}
+
+	/**
+	 * Read a cache file. The file has one tab separated line per URL:
+	 *
+	 *   URL \t ETag \t Last-Modified \t result
+	 *
+	 * where a missing header value is "-".
+	 *
+	 * @param filename cache file on the local FS
+	 * @return map with URL as key and cache entry as value
+	 * @throws IOException if the file could not be read or has an invalid line
+	 */
+	public static HashMap<String, CacheEntry> readCache(String filename) throws IOException {
+		HashMap<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+		String[] lines = FSUtils.readTextFile(filename);
+		for (String l: lines) {
+			if (l.isEmpty()) {
+				continue;
+			}
+			String[] cols = l.split("\t");
+			if (cols.length != 4) {
+				throw new IOException("Invalid cache line: " + l);
+			}
+			cache.put(cols[0], new CacheEntry(cols[0], fromColumn(cols[1]), fromColumn(cols[2]), cols[3]));
+		}
+		return cache;
+	}
+
+	/**
+	 * Write a cache file in the format described in readCache().
+	 *
+	 * @param filename cache file on the local FS
+	 * @param entries entries to write
+	 * @throws IOException
+	 */
+	public static void writeCache(String filename, Collection<CacheEntry> entries) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>(entries.size());
+		for (CacheEntry e: entries) {
+			lines.add(e.url + "\t" + toColumn(e.etag) + "\t" + toColumn(e.lastModified) + "\t" + e.result);
+		}
+		FSUtils.writeTextFile(filename, lines);
+	}
+
+	/**
+	 * Helper function to convert a header value to a cache file column.
+	 */
+	protected static String toColumn(String value) {
+		if ((value == null) || value.isEmpty()) {
+			return "-";
+		}
+		return value.replace('\t', ' ');
+	}
+
+	/**
+	 * Helper function to convert a cache file column to a header value.
+	 */
+	protected static String fromColumn(String col) {
+		if (col.equals("-")) {
+			return null;
+		}
+		return col;
+	}
+}
@@ -2,6 +2,11 @@ package edu.princeton.function.troilkatt.source;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -11,24 +16,54 @@ import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.MasterNotRunningException;
 import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.RegexStringComparator;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.TroilkattStatus;
 import edu.princeton.function.troilkatt.pipeline.StageException;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 
+/**
+ * Return the values of a column for all rows where another column matches a regular
+ * expression.
+ *
+ * The table is scanned by region, and the regions are scanned in parallel. The columns
+ * and the regular expression are passed to the region servers such that only the
+ * matching rows are returned. In incremental mode only rows updated since the last
+ * successful Troilkatt iteration are returned.
+ */
 public class HbaseSource extends Source {
+	// Default number of regions scanned in parallel
+	public static final int DEFAULT_THREADS = 4;
+	// Rows returned per scanner call to a region server
+	public static final int SCANNER_CACHING = 1000;
+	// Rows updated this many milliseconds before the last successful iteration are also
+	// returned in incremental mode. This covers clock differences between the Troilkatt
+	// frontend and the region servers.
+	public static final long TIMESTAMP_MARGIN = 10 * 60 * 1000;
+
+	protected Configuration hbConf;
+	protected String tableName;
 	protected HTable table;
 	protected String whereColumnFamily;
 	protected String whereColumnQualifier;
 	protected Pattern wherePattern;
 	protected String selectColumnFamily;
 	protected String selectColumnQualifier;
+	// Set to only return rows updated since the last successful iteration
+	protected boolean incremental = false;
+	// Number of regions scanned in parallel
+	protected int nThreads = DEFAULT_THREADS;
 	
 	/**
 	 * Constructor.
@@ -39,6 +74,9 @@ public class HbaseSource extends Source {
 	 *                  [1] family:column queried
 	 *                  [2] regular expression used to select rows
 	 *                  [3] family:column the field returned
+	 *                  [4] optional: "full" to scan all rows (default), or "incremental"
+	 *                      to scan rows updated since the last successful iteration
+	 *                  [5] optional: number of regions scanned in parallel
 	 */
 	public HbaseSource(String name, String arguments, String outputDir,
 			String compressionFormat, int storageTime, String localRootDir,
@@ -48,17 +86,17 @@ public class HbaseSource extends Source {
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir, pipeline);
 				
 		String[] argsParts = splitArgs(this.args);
-		if (argsParts.length != 4) {
+		if ((argsParts.length < 4) || (argsParts.length > 6)) {
 			logger.error("Invalid arguments: ");
 			for (String p: argsParts) {
 				logger.error("\t" + p);
 			}
-			throw new StageInitException("Invalid number of arguments: expected 4, got " + argsParts.length);
+			throw new StageInitException("Invalid number of arguments: expected 4 to 6, got " + argsParts.length);
 		}
 		
-		String tableName = argsParts[0];
+		tableName = argsParts[0];
 		try {
-			Configuration hbConf = HBaseConfiguration.create();
+			hbConf = HBaseConfiguration.create();
 			table = new HTable(hbConf, tableName);
 		} catch (TableNotFoundException e) {
 			logger.error("Table given as argument does not exist:", e);
@@ -94,6 +132,26 @@ public class HbaseSource extends Source {
 		}
 		selectColumnFamily = selectParts[0];
 		selectColumnQualifier = selectParts[1];
+
+		if (argsParts.length > 4) {
+			if (argsParts[4].equals("incremental")) {
+				incremental = true;
+			}
+			else if (! argsParts[4].equals("full")) {
+				throw new StageInitException("Invalid scan mode (use full or incremental): " + argsParts[4]);
+			}
+		}
+
+		if (argsParts.length > 5) {
+			try {
+				nThreads = Integer.valueOf(argsParts[5]);
+			} catch (NumberFormatException e) {
+				throw new StageInitException("Invalid number of threads: " + argsParts[5]);
+			}
+			if (nThreads < 1) {
+				throw new StageInitException("Invalid number of threads: " + argsParts[5]);
+			}
+		}
 	}
 	
 	/**
@@ -110,44 +168,249 @@ public class HbaseSource extends Source {
 	protected ArrayList<String> retrieve(ArrayList<String> metaFiles, 
 			ArrayList<String> logFiles, long timestamp) throws StageException {
 		
-		// Scanner to iterate over all rows
-		Scan scan = new Scan();	
-		scan.addColumn(Bytes.toBytes(whereColumnFamily), Bytes.toBytes(whereColumnQualifier));
-		scan.addColumn(Bytes.toBytes(selectColumnFamily), Bytes.toBytes(selectColumnQualifier));
-		scan.setMaxVersions(1);
+		long minTimestamp = 0;
+		if (incremental) {
+			minTimestamp = getMinTimestamp(timestamp);
+		}
 		
-		ArrayList<String> outputFiles = new ArrayList<String>();
+		Pair<byte[][], byte[][]> regionKeys;
+		try {
+			regionKeys = table.getStartEndKeys();
+		} catch (IOException e) {
+			logger.error("Could not get Hbase table regions", e);
+			throw new StageException("Could not get Hbase table regions");
+		}
+		byte[][] startKeys = regionKeys.getFirst();
+		byte[][] endKeys = regionKeys.getSecond();
+		logger.info("Scan " + startKeys.length + " regions using " + nThreads + " threads");
+
+		// The matching values are added by the region scans as the rows are returned
+		final ArrayList<String> outputFiles = new ArrayList<String>();
 
-		ResultScanner scanner;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, startKeys.length)));
+		ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>();
 		try {
-			scanner = table.getScanner(scan);
+			for (int i = 0; i < startKeys.length; i++) {
+				final Scan scan = createScan(startKeys[i], endKeys[i], minTimestamp);
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						return scanRegion(scan, outputFiles);
+					}
+				}));
+			}
+
+			for (Future<Integer> f: futures) {
+				f.get();
+			}
 		} catch (IOException e) {
 			logger.error("Could not create Hbase table scanner", e);
 			throw new StageException("Could not create Hbase table scanner");
+		} catch (ExecutionException e) {
+			logger.error("Could not scan Hbase table", e.getCause());
+			throw new StageException("Could not scan Hbase table: " + e.getCause());
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while scanning Hbase table");
+			throw new StageException("Interrupted while scanning Hbase table");
+		} finally {
+			executor.shutdownNow();
 		}
 		
-		for (Result res: scanner) {
-			byte[] whereBytes = res.getValue(Bytes.toBytes(whereColumnFamily), Bytes.toBytes(whereColumnQualifier));
-			if (whereBytes == null) {
-				logger.warn("Ignoring row that does not include where column: " + whereColumnFamily + ":" + whereColumnQualifier);
-				continue;
+		logger.info("Returning " + outputFiles.size() + " values");
+		return outputFiles;
+	}
+	
+	/**
+	 * Get the oldest row update timestamp to include in an incremental scan.
+	 *
+	 * @param timestamp of Troilkatt iteration
+	 * @return timestamp of the last successful iteration minus the margin, or 0 if all
+	 * rows should be scanned
+	 * @throws StageException if the status file could not be read
+	 */
+	protected long getMinTimestamp(long timestamp) throws StageException {
+		long lastDone;
+		try {
+			TroilkattStatus status = new TroilkattStatus(tfs, troilkattProperties);
+			lastDone = status.getLastStatusTimestamp("Troilkatt", "done");
+		} catch (IOException e) {
+			logger.error("Could not read status file", e);
+			throw new StageException("Could not read status file");
+		} catch (TroilkattPropertiesException e) {
+			logger.error("Invalid properties file", e);
+			throw new StageException("Invalid properties file");
+		}
+
+		if ((lastDone == -1) || (lastDone >= timestamp)) {
+			logger.info("No previous successful iteration: scan all rows");
+			return 0;
+		}
+		logger.info("Scan rows updated since: " + lastDone);
+		return Math.max(0, lastDone - TIMESTAMP_MARGIN);
+	}
+
+	/**
+	 * Create a scanner for one region that returns the where and select column of the
+	 * rows where the where column matches the regular expression.
+	 *
+	 * @param startRow first row in region. An empty array is used for the first region.
+	 * @param stopRow first row in next region. An empty array is used for the last region.
+	 * @param minTimestamp only return columns updated since this timestamp. Zero to return
+	 * all rows.
+	 * @return scan object
+	 * @throws IOException if the time range is invalid
+	 */
+	protected Scan createScan(byte[] startRow, byte[] stopRow, long minTimestamp) throws IOException {
+		byte[] whereFamily = Bytes.toBytes(whereColumnFamily);
+		byte[] whereQualifier = Bytes.toBytes(whereColumnQualifier);
+
+		Scan scan = new Scan(startRow, stopRow);
+		scan.addColumn(whereFamily, whereQualifier);
+		scan.addColumn(Bytes.toBytes(selectColumnFamily), Bytes.toBytes(selectColumnQualifier));
+		scan.setMaxVersions(1);
+		scan.setCaching(SCANNER_CACHING);
+		// Each block is read once, so it should not replace hot blocks in the cache
+		scan.setCacheBlocks(false);
+
+		// The comparator also uses find(), so the filter returns a superset of the rows
+		// matched by wherePattern. The rows are therefore also checked in checkRow()
+		SingleColumnValueFilter filter = new SingleColumnValueFilter(whereFamily, whereQualifier,
+				CompareOp.EQUAL, new RegexStringComparator(wherePattern.pattern()));
+		if (minTimestamp > 0) {
+			scan.setTimeRange(minTimestamp, Long.MAX_VALUE);
+			// The where column is not returned if it was not updated in the time range
+			filter.setFilterIfMissing(false);
+		}
+		else {
+			filter.setFilterIfMissing(true);
+		}
+		scan.setFilter(filter);
+		return scan;
+	}
+
+	/**
+	 * Scan one region and add the selected values to the output list.
+	 *
+	 * @param scan scan object returned by createScan()
+	 * @param outputFiles list where the selected values are added. The list is shared by
+	 * all region scans.
+	 * @return number of values added
+	 * @throws IOException if the region could not be scanned
+	 */
+	protected int scanRegion(Scan scan, ArrayList<String> outputFiles) throws IOException {
+		// HTable objects are not thread safe, but share the connection to the cluster
+		HTable regionTable = new HTable(hbConf, tableName);
+		ResultScanner scanner = null;
+		boolean timeRange = (scan.getTimeRange().getMin() > 0);
+		int nAdded = 0;
+		try {
+			scanner = regionTable.getScanner(scan);
+			// Rows where only some of the columns were updated in the time range
+			ArrayList<Get> partialRows = new ArrayList<Get>();
+
+			for (Result res: scanner) {
+				if (timeRange && (! hasColumns(res))) {
+					partialRows.add(createGet(res.getRow()));
+					if (partialRows.size() == SCANNER_CACHING) {
+						nAdded += getRows(regionTable, partialRows, outputFiles);
+						partialRows.clear();
+					}
+					continue;
+				}
+				if (checkRow(res, outputFiles)) {
+					nAdded++;
+				}
+			}
+
+			if (! partialRows.isEmpty()) {
+				nAdded += getRows(regionTable, partialRows, outputFiles);
+			}
+		} catch (RuntimeException e) { // the scanner iterator wraps IOExceptions
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		} finally {
+			if (scanner != null) {
+				scanner.close();
 			}
-			String whereVal = Bytes.toString(whereBytes);
-			
-			byte[] selectBytes = res.getValue(Bytes.toBytes(selectColumnFamily), Bytes.toBytes(selectColumnQualifier));
-			if (selectBytes == null) {
-				logger.warn("Ignoring row that does not include select column: " + selectColumnFamily + ":" + selectColumnQualifier);
+			regionTable.close();
+		}
+
+		return nAdded;
+	}
+
+	/**
+	 * Helper function to read the where and select column of rows, and add the selected
+	 * values to the output list.
+	 *
+	 * @param regionTable table handle
+	 * @param gets rows to read
+	 * @param outputFiles list where the selected values are added
+	 * @return number of values added
+	 * @throws IOException
+	 */
+	protected int getRows(HTable regionTable, ArrayList<Get> gets, ArrayList<String> outputFiles) throws IOException {
+		int nAdded = 0;
+		for (Result res: regionTable.get(gets)) {
+			if ((res == null) || res.isEmpty()) { // deleted after scan
 				continue;
 			}
-			String selectVal = Bytes.toString(selectBytes);
-			
-			Matcher matcher = wherePattern.matcher(whereVal);
-			if (matcher.find()) {									
+			if (checkRow(res, outputFiles)) {
+				nAdded++;
+			}
+		}
+		return nAdded;
+	}
+
+	/**
+	 * Create a get object for the where and select column of a row.
+	 */
+	protected Get createGet(byte[] row) {
+		Get get = new Get(row);
+		get.addColumn(Bytes.toBytes(whereColumnFamily), Bytes.toBytes(whereColumnQualifier));
+		get.addColumn(Bytes.toBytes(selectColumnFamily), Bytes.toBytes(selectColumnQualifier));
+		return get;
+	}
+
+	/**
+	 * @return true if the result includes both the where and the select column
+	 */
+	protected boolean hasColumns(Result res) {
+		return res.containsColumn(Bytes.toBytes(whereColumnFamily), Bytes.toBytes(whereColumnQualifier)) &&
+			res.containsColumn(Bytes.toBytes(selectColumnFamily), Bytes.toBytes(selectColumnQualifier));
+	}
+
+	/**
+	 * Check if the where column of a row matches the regular expression, and if so add
+	 * the select column value to the output list.
+	 *
+	 * @param res row to check
+	 * @param outputFiles list where the selected value is added
+	 * @return true if the value was added
+	 */
+	protected boolean checkRow(Result res, ArrayList<String> outputFiles) {
+		byte[] whereBytes = res.getValue(Bytes.toBytes(whereColumnFamily), Bytes.toBytes(whereColumnQualifier));
+		if (whereBytes == null) {
+			logger.warn("Ignoring row that does not include where column: " + whereColumnFamily + ":" + whereColumnQualifier);
+			return false;
+		}
+		String whereVal = Bytes.toString(whereBytes);
+
+		byte[] selectBytes = res.getValue(Bytes.toBytes(selectColumnFamily), Bytes.toBytes(selectColumnQualifier));
+		if (selectBytes == null) {
+			logger.warn("Ignoring row that does not include select column: " + selectColumnFamily + ":" + selectColumnQualifier);
+			return false;
+		}
+		String selectVal = Bytes.toString(selectBytes);
+
+		Matcher matcher = wherePattern.matcher(whereVal);
+		if (matcher.find()) {
+			synchronized (outputFiles) {
 				outputFiles.add(selectVal);
-			} 
+			}
+			return true;
 		}
-		
-		return outputFiles;
+		return false;
 	}
-	
 }
@@ -2,10 +2,12 @@ package edu.princeton.function.troilkatt.source;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
 
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.fs.DirManifest;
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.pipeline.StageException;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
@@ -14,8 +16,15 @@ import edu.princeton.function.troilkatt.tools.FilenameUtils;
 /**
  * Compare the content of two directories A and B, and return a list of files that are 
  * only in directory A. For the comparison the filename extensions are removed. 
+ * 
+ * The listings of both directories are saved as sorted manifests in the stage meta 
+ * directory, such that only changed directories are listed in the next iteration.
  */
 public class ListDirDiff extends TFSSource {
+	// Sorted manifests of the directory listings in the last iteration
+	protected final String srcManifestFilename = "manifest-src";
+	protected final String dstManifestFilename = "manifest-dst";
+	
 	protected String srcDir;
 	protected String dstDir;
 	
@@ -70,7 +79,8 @@ public class ListDirDiff extends TFSSource {
 	 * Compare directory content of A and B, and return files that are only in A.
 	 * 
 	 * @param inputFiles list of input files to process.
-	 * @param metaFiles ignored by ListDor.
+	 * @param metaFiles list of meta files, which includes the manifests of the previous
+	 * listings. The manifests are updated after the retrieve.
 	 * @param logFiles list for storing log files.
 	 * @return list of output files.
 	 * @throws StageException thrown if stage cannot be executed.
@@ -81,44 +91,49 @@ public class ListDirDiff extends TFSSource {
 		logger.info("List dir at: " + timestamp);
 		 
 		// Get directory listings
-		ArrayList<String> filesA = null;
-		ArrayList<String> filesB = null;	
-		try {
-			filesA = tfs.listdirR(srcDir);
-			filesB = tfs.listdirR(dstDir);
-			if (filesA == null) {
-				logger.fatal("Could not list directory: " + srcDir);
-				throw new StageException("Could not list directory");
-			}
-			if (filesB == null) {
-				logger.fatal("Could not list directory: " + dstDir);
-				throw new StageException("Could not list directory");
-			}
-		} catch (IOException e) {
-			logger.fatal("Could not list directory: ", e);
-			throw new StageException("Could not list directory" + e);
-		}
+		DirManifest manifestA = listDirManifest(srcDir, srcManifestFilename, 
+				readDirManifest(srcManifestFilename, metaFiles));
+		DirManifest manifestB = listDirManifest(dstDir, dstManifestFilename, 
+				readDirManifest(dstManifestFilename, metaFiles));
 		
-		HashSet<String> setB = new HashSet<String>();
-		for (String s: filesB) {
-			String basename = OsPath.basename(s);
-			//String noExts = basename.split("\\.")[0];
-			String noExts = FilenameUtils.getDsetID(basename, false);
-			setB.add(noExts);
-		}
+		// Sort both listings by dataset ID
+		ArrayList<String[]> filesA = getDsetIDs(manifestA.getFiles());
+		ArrayList<String[]> filesB = getDsetIDs(manifestB.getFiles());
 		
-		// Compare content of directories
+		// Merge-join the listings to find the files only in A
 		ArrayList<String> outputFiles = new ArrayList<String>();
-		for (String s: filesA) {
-			String basename = OsPath.basename(s);
-			//String noExts = basename.split("\\.")[0];
-			String noExts = FilenameUtils.getDsetID(basename, false);
-			if (! setB.contains(noExts)) {
-				outputFiles.add(s);
+		int b = 0;
+		for (String[] a: filesA) {
+			while ((b < filesB.size()) && (filesB.get(b)[0].compareTo(a[0]) < 0)) {
+				b++;
+			}
+			if ((b == filesB.size()) || (! filesB.get(b)[0].equals(a[0]))) {
+				outputFiles.add(a[1]);
 			}
 		}
 			
 		logger.info("Returning " + outputFiles.size() + " files");
 		return outputFiles;
 	}
+	
+	/**
+	 * Helper function to get the dataset IDs for a list of files.
+	 * 
+	 * @param files list of filenames
+	 * @return list of [dataset ID, filename] sorted by dataset ID
+	 */
+	protected static ArrayList<String[]> getDsetIDs(ArrayList<String> files) {
+		ArrayList<String[]> ids = new ArrayList<String[]>(files.size());
+		for (String f: files) {
+			String basename = OsPath.basename(f);
+			ids.add(new String[] {FilenameUtils.getDsetID(basename, false), f});
+		}
+		Collections.sort(ids, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] o1, String[] o2) {
+				return o1[0].compareTo(o2[0]);
+			}
+		});
+		return ids;
+	}
 }
@@ -2,10 +2,12 @@ package edu.princeton.function.troilkatt.source;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.fs.DirManifest;
 import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.pipeline.StageException;
@@ -14,10 +16,17 @@ import edu.princeton.function.troilkatt.pipeline.StageInitException;
 /**
  * Return a list of files in a TFS directory that have been added since the last iteration. 
  * Note! that the listing is recursive.
+ * 
+ * The directory listing is saved as a sorted manifest in the stage meta directory, such 
+ * that only changed directories are listed in the next iteration, and the new files are 
+ * found by a merge-join of the sorted previous and current listings.
  */
 public class ListDirNew extends ListDir {
-	// Text file with the list of files that were returned by the retrieve() method in the last iteration
+	// Text file with the list of files that were returned by the retrieve() method. Only 
+	// used if there is no manifest file from the last iteration.
 	protected final String metaFilename = "filelist";
+	// Sorted manifest of the directory listing in the last iteration
+	protected final String manifestFilename = "manifest";
 	
 	/**    
 	 * Constructor. See superclass description for arguments.
@@ -33,8 +42,8 @@ public class ListDirNew extends ListDir {
 	 * List directory content and return a list of files added since the last listing.
 	 * 
 	 * @param inputFiles list of input files to process.
-	 * @param metaFiles array list with a single filename, which is the list of previously
-	 * returned filenames. The file is updated after the retrieve.
+	 * @param metaFiles array list with a single filename, which is the manifest of the
+	 * previous listing. The file is updated after the retrieve. 
 	 * @param logFiles list for storing log files.
 	 * @return list of output files in TFS.
 	 * @throws StageException thrown if source cannot be executed.
@@ -44,23 +53,30 @@ public class ListDirNew extends ListDir {
 			long timestamp) throws StageException {
 		logger.info("List dir at: " + timestamp);
 		 
-		// Read set of previous files
-		HashSet<String> prevFiles = readMetaFile(metaFiles, metaFilename, listDir);
-		
-		// Get set of current files
-		ArrayList<String> curFiles = absolute2relative(listDir,
-				super.retrieve(metaFiles, logFiles, timestamp));		
+		// Sorted list of previous files
+		ArrayList<String> prevFiles;
+		DirManifest prevManifest = null;
+		if (OsPath.isfile(OsPath.join(stageMetaDir, manifestFilename))) {
+			prevManifest = readDirManifest(manifestFilename, metaFiles);
+			prevFiles = prevManifest.getFiles();
+		}
+		else {
+			// Use the list of previously returned files saved by earlier versions
+			prevFiles = OsPath.relative2absolute(listDir, 
+					new ArrayList<String>(readMetaFile(metaFiles, metaFilename, listDir)));
+			Collections.sort(prevFiles);
+			// The file list is replaced by the manifest
+			metaFiles.clear();
+			readDirManifest(manifestFilename, metaFiles);
+		}
 		
-		// Compare set of previous and current files, and add new files to output list
-		ArrayList<String> outputFiles = OsPath.relative2absolute(listDir,
-				compareSets(prevFiles, curFiles));
+		// Get current files
+		DirManifest manifest = listDirManifest(listDir, manifestFilename, prevManifest);
+		ArrayList<String> curFiles = tfs.getNewestFiles(manifest.getFiles());
+		Collections.sort(curFiles);
 		
-		try {
-			FSUtils.appendTextFile(OsPath.join(stageMetaDir, metaFilename), outputFiles);
-		} catch (IOException e) {
-			logger.fatal("Could not update metadata file: ", e);
-			throw new StageException("Could not update metadata file: " + e);
-		}
+		// Merge-join previous and current files, and add new files to output list
+		ArrayList<String> outputFiles = DirManifest.diff(curFiles, prevFiles);
 		
 		logger.info("Returning " + outputFiles.size() + " files");
 		return outputFiles;
@@ -0,0 +1,138 @@
+package edu.princeton.function.troilkatt.source;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import edu.princeton.function.troilkatt.fs.FSUtils;
+
+/**
+ * Manifest of the files mirrored by a source. The manifest has one entry per dataset ID
+ * with the size and modification time of the file on the remote server (as reported in
+ * the directory listing), the checksum of the downloaded file, and the tfs filename.
+ *
+ * A source stores the manifest in its stage meta directory, and uses it to download new
+ * and changed files without listing the tfs output directory. The manifest is stored as
+ * a text file with one tab separated line per entry:
+ *
+ *   ID \t size \t modification time \t checksum \t tfs filename
+ *
+ * The size or modification time is -1 if not known.
+ */
+public class MirrorManifest {
+	/**
+	 * Manifest entry for one dataset.
+	 */
+	public static class Entry {
+		public String id;
+		public long size;
+		public long modificationTime;
+		public String checksum;
+		public String tfsFilename;
+
+		public Entry(String id, long size, long modificationTime, String checksum, String tfsFilename) {
+			this.id = id;
+			this.size = size;
+			this.modificationTime = modificationTime;
+			this.checksum = checksum;
+			this.tfsFilename = tfsFilename;
+		}
+	}
+
+	// ID -> entry
+	protected HashMap<String, Entry> entries;
+
+	/**
+	 * Constructor for an empty manifest.
+	 */
+	public MirrorManifest() {
+		entries = new HashMap<String, Entry>();
+	}
+
+	/**
+	 * Read a manifest file.
+	 *
+	 * @param filename manifest file on the local FS
+	 * @return manifest
+	 * @throws IOException if the file could not be read or has an invalid line
+	 */
+	public static MirrorManifest read(String filename) throws IOException {
+		MirrorManifest manifest = new MirrorManifest();
+		String[] lines = FSUtils.readTextFile(filename);
+		for (String l: lines) {
+			if (l.isEmpty()) {
+				continue;
+			}
+			String[] cols = l.split("\t");
+			if (cols.length != 5) {
+				throw new IOException("Invalid manifest line: " + l);
+			}
+			try {
+				manifest.put(new Entry(cols[0], Long.valueOf(cols[1]), Long.valueOf(cols[2]), cols[3], cols[4]));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid manifest line: " + l);
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Write manifest to a file.
+	 *
+	 * @param filename manifest file on the local FS
+	 * @throws IOException
+	 */
+	public void write(String filename) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>(entries.size());
+		for (Entry e: entries.values()) {
+			lines.add(e.id + "\t" + e.size + "\t" + e.modificationTime + "\t" + e.checksum + "\t" + e.tfsFilename);
+		}
+		FSUtils.writeTextFile(filename, lines);
+	}
+
+	/**
+	 * Add or replace an entry.
+	 */
+	public void put(Entry e) {
+		entries.put(e.id, e);
+	}
+
+	/**
+	 * @return entry for id, or null if the id is not in the manifest
+	 */
+	public Entry get(String id) {
+		return entries.get(id);
+	}
+
+	/**
+	 * Check if a remote file is new or changed since it was mirrored.
+	 *
+	 * @param id dataset ID
+	 * @param size size in the remote listing, or -1 if not known
+	 * @param modificationTime modification time in the remote listing, or -1 if not known
+	 * @return true if the id is not in the manifest, or if the size or modification time
+	 * differ from the manifest entry
+	 */
+	public boolean isChanged(String id, long size, long modificationTime) {
+		Entry e = entries.get(id);
+		if (e == null) {
+			return true;
+		}
+		return (size != e.size) || (modificationTime != e.modificationTime);
+	}
+
+	/**
+	 * @return all entries
+	 */
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
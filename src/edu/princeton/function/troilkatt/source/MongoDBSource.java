@@ -4,12 +4,19 @@ package edu.princeton.function.troilkatt.source;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.apache.log4j.Logger;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -23,12 +30,19 @@ import edu.princeton.function.troilkatt.pipeline.StageException;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 
 public class MongoDBSource extends Source {	
+	// Number of documents returned per cursor batch in pushdown mode
+	public static final int BATCH_SIZE = 1000;
+	
 	protected String serverAdr;
 	protected int serverPort;
 	protected String collectionName;
 	protected String whereKey;	
 	protected Pattern wherePattern;
 	protected String selectKey;	
+	// True if the selection and projection should be done by the MongoDB server
+	protected boolean pushdown = false;
+	// Number of key ranges to scan in parallel in pushdown mode
+	protected int nRanges = 1;
 	
 	/**
 	 * Constructor.
@@ -40,6 +54,8 @@ public class MongoDBSource extends Source {
 	 *                  [2] query key
 	 *                  [3] regular expression used to select entries
 	 *                  [4] key of the field to return
+	 *                  [5] optional "pushdown" to do the selection in the MongoDB query
+	 *                  [6] optional number of key ranges to scan in parallel in pushdown mode
 	 */
 	public MongoDBSource(String name, String arguments, String outputDir,
 			String compressionFormat, int storageTime, String localRootDir,
@@ -49,12 +65,12 @@ public class MongoDBSource extends Source {
 				localRootDir, nfsStageMetaDir, nfsStageTmpDir, pipeline);
 				
 		String[] argsParts = splitArgs(this.args);
-		if (argsParts.length != 6) {
+		if ((argsParts.length < 6) || (argsParts.length > 8)) {
 			logger.error("Invalid arguments: ");
 			for (String p: argsParts) {
 				logger.error("\t" + p);
 			}
-			throw new StageInitException("Invalid number of arguments: expected 6, got " + argsParts.length);
+			throw new StageInitException("Invalid number of arguments: expected 6 to 8, got " + argsParts.length);
 		}
 		
 		serverAdr = argsParts[0];
@@ -71,6 +87,26 @@ public class MongoDBSource extends Source {
 		}
 		
 		selectKey = argsParts[5];
+		
+		if (argsParts.length > 6) {
+			if (! argsParts[6].equals("pushdown")) {
+				logger.fatal("Invalid mode argument: " + argsParts[6]);
+				throw new StageInitException("Invalid mode argument: " + argsParts[6]);
+			}
+			pushdown = true;
+			if (argsParts.length > 7) {
+				try {
+					nRanges = Integer.valueOf(argsParts[7]);
+				} catch (NumberFormatException e) {
+					logger.fatal("Invalid number of key ranges: " + argsParts[7]);
+					throw new StageInitException("Invalid number of key ranges: " + argsParts[7]);
+				}
+				if (nRanges < 1) {
+					logger.fatal("Invalid number of key ranges: " + argsParts[7]);
+					throw new StageInitException("Invalid number of key ranges: " + argsParts[7]);
+				}
+			}
+		}
 	}
 	
 	/**
@@ -79,13 +115,18 @@ public class MongoDBSource extends Source {
 	 * SELECT <selectKey>
 	 * WHERE  <whereKey> = whereRegExp
 	 * 
+	 * For each key only the first matching entry is returned, so the cursor should be sorted
+	 * in descending order according to timestamp.
+	 * 
+	 * @param cursor cursor or other iterator over the entries to check
 	 * @param sk selectKey: field to return
-	 * @param wk whereKey: field to check
+	 * @param wk whereKey: field to check, or null if the entries have already been selected 
+	 * by the query
 	 * @param wre whereRegExp: regexp to use for the check. NOTE! must be in lower case.
 	 * @param l optional Logger. null if no logger should be used
 	 * return value list with strings for the select field
 	 */
-	public static ArrayList<String> scanMongoDB(DBCursor cursor, String sk, String wk, Pattern wre, Logger l) {
+	public static ArrayList<String> scanMongoDB(Iterator<DBObject> cursor, String sk, String wk, Pattern wre, Logger l) {
 		ArrayList<String> returnVals = new ArrayList<String>();
 		
 		// Already checked entries
@@ -94,18 +135,20 @@ public class MongoDBSource extends Source {
 		while(cursor.hasNext()) {
 			DBObject entry = cursor.next();
 		
-			String whereVal = (String) entry.get(wk);			
-			if (whereVal == null) {
-				if (l != null) {
-					l.warn("Ignoring row that does not include where field: " + wk);
+			if (wk != null) {
+				String whereVal = (String) entry.get(wk);			
+				if (whereVal == null) {
+					if (l != null) {
+						l.warn("Ignoring row that does not include where field: " + wk);
+					}				
+					continue;
 				}				
-				continue;
-			}
 			
-			// ignore case
-			Matcher matcher = wre.matcher(whereVal.toLowerCase());
-			if (matcher.find() == false) { // no match		
-				continue;
+				// ignore case
+				Matcher matcher = wre.matcher(whereVal.toLowerCase());
+				if (matcher.find() == false) { // no match		
+					continue;
+				}
 			}
 							
 			String selectVal = (String)entry.get(sk);
@@ -159,18 +202,188 @@ public class MongoDBSource extends Source {
 		DB db = mongoClient.getDB("troilkatt");
 		DBCollection coll = db.getCollection(collectionName);
 		
-		DBCursor cursor = coll.find();
-		// no limit, since the number of entries should be relatively low
-		cursor.limit(0); 
-		// sort in descending order according to timestamp
+		ArrayList<String> outputFiles;
+		try {
+			if (pushdown) {
+				outputFiles = scanPushdown(coll);
+			}
+			else {
+				DBCursor cursor = coll.find();
+				// no limit, since the number of entries should be relatively low
+				cursor.limit(0); 
+				// sort in descending order according to timestamp
+				cursor.sort(new BasicDBObject("timestamp", -1));
+
+				outputFiles = scanMongoDB(cursor, selectKey, whereKey, wherePattern, logger);
+				cursor.close();
+			}
+		} finally {
+			mongoClient.close();
+		}
+		
+		logger.info("Returning " + outputFiles.size() + " values");
+		return outputFiles;
+	}
+	
+	/**
+	 * Scan a collection with the selection and projection done by the MongoDB server. If 
+	 * more than one key range is specified, the ranges are scanned in parallel.
+	 * 
+	 * @param coll collection to scan
+	 * @return list with strings for the select field
+	 * @throws StageException if a range scan failed
+	 */
+	protected ArrayList<String> scanPushdown(final DBCollection coll) throws StageException {
+		final DBObject query = getQuery(whereKey, wherePattern);
+		final DBObject fields = getFields(selectKey);
+		if (nRanges == 1) {
+			return scanRange(coll, query, fields, selectKey, logger);
+		}
+		
+		// All entries for a key are in the same range, so each range can be scanned separately
+		ArrayList<String> splitKeys = getSplitKeys(coll, query, nRanges);
+		logger.info("Scan " + (splitKeys.size() + 1) + " key ranges in parallel");
+		ExecutorService executor = Executors.newFixedThreadPool(splitKeys.size() + 1);
+		ArrayList<Future<ArrayList<String>>> futures = new ArrayList<Future<ArrayList<String>>>();
+		for (int i = 0; i <= splitKeys.size(); i++) {
+			String lo = (i == 0) ? null : splitKeys.get(i - 1);
+			String hi = (i == splitKeys.size()) ? null : splitKeys.get(i);
+			final DBObject rangeQuery = getRangeQuery(query, lo, hi);
+			futures.add(executor.submit(new Callable<ArrayList<String>>() {
+				@Override
+				public ArrayList<String> call() {
+					return scanRange(coll, rangeQuery, fields, selectKey, logger);
+				}
+			}));
+		}
+		
+		ArrayList<String> returnVals = new ArrayList<String>();
+		try {
+			for (Future<ArrayList<String>> f: futures) {
+				returnVals.addAll(f.get());
+			}
+		} catch (ExecutionException e) {
+			logger.fatal("Could not scan MongoDB collection: ", e.getCause());
+			throw new StageException("Could not scan MongoDB collection: " + e.getCause());
+		} catch (InterruptedException e) {
+			logger.fatal("Interrupted while scanning MongoDB collection");
+			throw new StageException("Interrupted while scanning MongoDB collection");
+		} finally {
+			executor.shutdownNow();
+		}
+		return returnVals;
+	}
+	
+	/**
+	 * Helper function to scan the entries that match a query.
+	 * 
+	 * @param coll collection to scan
+	 * @param query query returned by getQuery() or getRangeQuery()
+	 * @param fields fields returned by getFields()
+	 * @param sk selectKey: field to return
+	 * @param l optional Logger. null if no logger should be used
+	 * @return list with strings for the select field
+	 */
+	public static ArrayList<String> scanRange(DBCollection coll, DBObject query, DBObject fields, String sk, Logger l) {
+		DBCursor cursor = coll.find(query, fields);
 		cursor.sort(new BasicDBObject("timestamp", -1));
+		cursor.batchSize(BATCH_SIZE);
+		try {
+			return scanMongoDB(cursor, sk, null, null, l);
+		} finally {
+			cursor.close();
+		}
+	}
 		
-		ArrayList<String> outputFiles = scanMongoDB(cursor, selectKey, whereKey, wherePattern, logger);
+	/**
+	 * Create a query that selects the entries where a field matches a regular expression.
+	 * The match ignores case as in scanMongoDB().
+	 * 
+	 * @param wk whereKey: field to check
+	 * @param wre whereRegExp: regexp to use for the check
+	 * @return query object
+	 */
+	public static DBObject getQuery(String wk, Pattern wre) {
+		// The driver sends a Pattern as a BSON regular expression
+		return new BasicDBObject(wk, Pattern.compile(wre.pattern(), Pattern.CASE_INSENSITIVE));
+	}
 		
-		cursor.close();
-		mongoClient.close();
+	/**
+	 * Create a projection that only returns the fields used by scanMongoDB().
+	 * 
+	 * @param sk selectKey: field to return
+	 * @return fields object
+	 */
+	public static DBObject getFields(String sk) {
+		BasicDBObject fields = new BasicDBObject(sk, 1);
+		fields.append("key", 1);
+		fields.append("_id", 0);
+		return fields;
+	}
 		
-		return outputFiles;
+	/**
+	 * Restrict a query to a range of keys.
+	 * 
+	 * @param query query returned by getQuery()
+	 * @param lo first key in the range, or null if the range has no lower bound
+	 * @param hi first key after the range, or null if the range has no upper bound
+	 * @return new query object
+	 */
+	public static DBObject getRangeQuery(DBObject query, String lo, String hi) {
+		BasicDBObject range = new BasicDBObject();
+		if (lo != null) {
+			range.append("$gte", lo);
+		}
+		if (hi != null) {
+			range.append("$lt", hi);
+		}
+		if (range.isEmpty()) {
+			return query;
+		}
+		
+		if (query.containsField("key")) { // the key is also the where field
+			BasicDBList and = new BasicDBList();
+			and.add(query);
+			and.add(new BasicDBObject("key", range));
+			return new BasicDBObject("$and", and);
+		}
+		BasicDBObject rangeQuery = new BasicDBObject(query.toMap());
+		rangeQuery.append("key", range);
+		return rangeQuery;
+	}
+	
+	/**
+	 * Find keys that split the entries that match a query into ranges of about the same 
+	 * size. 
+	 * 
+	 * @param coll collection to scan
+	 * @param query query returned by getQuery()
+	 * @param nRanges number of ranges
+	 * @return sorted list with at most nRanges - 1 unique keys
+	 */
+	public static ArrayList<String> getSplitKeys(DBCollection coll, DBObject query, int nRanges) {
+		ArrayList<String> splitKeys = new ArrayList<String>();
+		long n = coll.count(query);
+		BasicDBObject keyField = new BasicDBObject("key", 1).append("_id", 0);
+		for (int i = 1; i < nRanges; i++) {
+			DBCursor cursor = coll.find(query, keyField).sort(new BasicDBObject("key", 1));
+			cursor.skip((int) (i * n / nRanges)).limit(1);
+			try {
+				if (! cursor.hasNext()) {
+					break;
+				}
+				Object key = cursor.next().get("key");
+				if (! (key instanceof String)) {
+					continue;
+				}
+				if (splitKeys.isEmpty() || (((String) key).compareTo(splitKeys.get(splitKeys.size() - 1)) > 0)) {
+					splitKeys.add((String) key);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		return splitKeys;
 	}
 	
 }
@@ -0,0 +1,183 @@
+package edu.princeton.function.troilkatt.source;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+import edu.princeton.function.troilkatt.tools.RawTarSplitter;
+
+/**
+ * Output stream that splits a GEO series RAW tar file by platform while the file is
+ * downloaded. The bytes written to the stream are passed through a pipe to a RawTarSplitter,
+ * which runs in a separate thread since it reads the tar file as an input stream.
+ *
+ * The splitter thread is started when the first byte is written, such that a tee can be
+ * created for each requested file without starting a thread per file. A write blocks while
+ * the pipe is full, so the download proceeds at the speed the splitter writes its outputs.
+ */
+public class RawSplitTee extends OutputStream {
+	// Size of the pipe between the download and the splitter thread
+	protected static final int PIPE_SIZE = 1024 * 1024;
+
+	protected RawTarSplitter splitter;
+	protected String name;
+	protected Logger logger;
+
+	// Set when the first byte is written
+	protected PipedOutputStream pipe = null;
+	protected Thread thread = null;
+	// Set by the splitter thread
+	protected HashMap<String, Integer> counts = null;
+	protected IOException error = null;
+
+	protected boolean closed = false;
+	protected boolean aborted = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param splitter splitter for the file
+	 * @param name name of the file, used in the thread name and log messages
+	 * @param logger logger to use
+	 */
+	public RawSplitTee(RawTarSplitter splitter, String name, Logger logger) {
+		this.splitter = splitter;
+		this.name = name;
+		this.logger = logger;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (thread == null) {
+			start();
+		}
+		// Throws an IOException if the splitter has failed and closed the pipe
+		pipe.write(b, off, len);
+	}
+
+	/**
+	 * Called when all bytes in the file have been written. Waits until the splitter has
+	 * written and closed all outputs.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (thread == null) {
+			error = new IOException("Empty file: " + name);
+			return;
+		}
+		pipe.close();
+		join();
+	}
+
+	/**
+	 * Stop the splitter if the file was not completely written, for example since the
+	 * download failed. Note that the splitter may still succeed if the tar stream ended at
+	 * an entry boundary, so the caller must delete the outputs. Does nothing if the stream
+	 * is already closed.
+	 */
+	public synchronized void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		aborted = true;
+		if (thread == null) {
+			return;
+		}
+		try {
+			pipe.close();
+			join();
+		} catch (IOException e) {
+			logger.warn("Could not stop splitter for: " + name, e);
+		}
+	}
+
+	/**
+	 * @return true if the full file was written and split
+	 */
+	public synchronized boolean isComplete() {
+		return closed && ! aborted && (counts != null);
+	}
+
+	/**
+	 * @return map with platform specific series ID as key, and the number of samples added
+	 * as value, or null if the file was not split
+	 */
+	public synchronized HashMap<String, Integer> getCounts() {
+		return isComplete() ? counts : null;
+	}
+
+	/**
+	 * @return the exception thrown by the splitter, or null
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Helper function to create the pipe and start the splitter thread.
+	 */
+	protected void start() throws IOException {
+		final PipedInputStream ins = new PipedInputStream(PIPE_SIZE);
+		pipe = new PipedOutputStream(ins);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				HashMap<String, Integer> result = null;
+				IOException exception = null;
+				try {
+					result = splitter.split(ins, -1);
+				} catch (IOException e) {
+					exception = e;
+				} finally {
+					// Also unblocks the writer if the split failed
+					try {
+						ins.close();
+					} catch (IOException e) {
+						logger.warn("Could not close pipe for: " + name, e);
+					}
+				}
+				setResult(result, exception);
+			}
+		}, "raw-split-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Helper function called by the splitter thread when it is done.
+	 */
+	protected void setResult(HashMap<String, Integer> result, IOException exception) {
+		// Not synchronized since close() and abort() hold the lock while joining the thread
+		counts = result;
+		error = exception;
+	}
+
+	/**
+	 * Helper function to wait for the splitter thread.
+	 */
+	protected void join() throws IOException {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for splitter: " + name);
+		}
+	}
+}
@@ -1,9 +1,12 @@
 package edu.princeton.function.troilkatt.source;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.fs.DirManifest;
+import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.pipeline.StageException;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 
@@ -67,6 +70,73 @@ public class TFSSource extends Source {
 		return outputFiles;
 	}
 	
+	/**
+	 * Read the directory manifest saved in the stage meta directory in the previous 
+	 * iteration.
+	 * 
+	 * @param manifestBasename basename of the manifest file in the stage meta directory
+	 * @param metaFiles list of meta files. The manifest filename is added if the manifest
+	 * does not exist.
+	 * @return manifest, or null if there is no manifest
+	 * @throws StageException if the manifest could not be read
+	 */
+	protected DirManifest readDirManifest(String manifestBasename, 
+			ArrayList<String> metaFiles) throws StageException {
+		String manifestFilename = OsPath.join(stageMetaDir, manifestBasename);
+		if (! OsPath.isfile(manifestFilename)) { // downloaded with the other meta files
+			logger.warn("Creating new manifest file: " + manifestFilename);
+			if (! metaFiles.contains(manifestFilename)) {
+				metaFiles.add(manifestFilename);
+			}
+			return null;
+		}
+		
+		try {
+			return DirManifest.read(manifestFilename);
+		} catch (IOException e) {
+			logger.fatal("Could not read manifest file: ", e);
+			throw new StageException("Could not read manifest file: " + e);
+		}
+	}
+	
+	/**
+	 * Do a recursive listing of a tfs directory. Only directories that have changed since
+	 * the previous listing are listed. The new manifest is written to the stage meta 
+	 * directory.
+	 * 
+	 * @param dir directory to list
+	 * @param manifestBasename basename of the manifest file in the stage meta directory
+	 * @param prevManifest manifest returned by readDirManifest(), or null
+	 * @return manifest for the directory
+	 * @throws StageException if the directory could not be listed, or the manifest could not
+	 * be written
+	 */
+	protected DirManifest listDirManifest(String dir, String manifestBasename, 
+			DirManifest prevManifest) throws StageException {
+		DirManifest manifest;
+		try {
+			manifest = DirManifest.list(tfs, dir, prevManifest);
+		} catch (IOException e) {
+			logger.fatal("Could not list directory: ", e);
+			throw new StageException("Could not list directory" + e);
+		}
+		if (manifest == null) {
+			logger.fatal("Could not list directory: " + dir);
+			throw new StageException("Could not list directory");
+		}
+		logger.info("Listed " + manifest.getDirsListed() + " directories in " + dir + ", " + 
+				manifest.getDirsReused() + " unchanged");
+		
+		String manifestFilename = OsPath.join(stageMetaDir, manifestBasename);
+		try {
+			manifest.write(manifestFilename);
+		} catch (IOException e) {
+			logger.fatal("Could not write manifest file: ", e);
+			throw new StageException("Could not write manifest file: " + e);
+		}
+		return manifest;
+	}
+	
 	/**
 	 * TFS sources have no output files to save
 	 */
@@ -12,6 +12,8 @@ public class GeoGDSParser extends GeoSoftParser {
 		super();
 		setupTags();
 		checkTags();
+		// The data table is at the end of the file
+		singleTable = true;
 	}
 
 	/**
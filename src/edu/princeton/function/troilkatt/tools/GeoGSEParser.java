@@ -1,7 +1,5 @@
 package edu.princeton.function.troilkatt.tools;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -96,13 +94,8 @@ public class GeoGSEParser extends GeoSoftParser {
 			System.exit(2);
 		}
 
-		BufferedReader ins = new BufferedReader(new FileReader(argv[0]));
 		GeoGSEParser parser = new GeoGSEParser();
-		String line;
-		while ((line = ins.readLine()) != null) {
-			parser.parseLine(line);
-		}			
-		ins.close();
+		parser.parseFile(argv[0]);
 
 		for (String k: parser.singleKeys) {
 			String val = parser.getSingleValue(k);
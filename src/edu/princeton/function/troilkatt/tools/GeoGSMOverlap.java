@@ -273,6 +273,8 @@ public class GeoGSMOverlap {
 	protected HashMap<String, OverlapSet> overlap;
 	// List of overlap links (edges)
 	protected ArrayList<OverlapLink> subsetLinks;
+	// Shared GSM ID strings: key and value are the same string instance
+	protected HashMap<String, String> gsmIDs;
 	
 	/*
 	 * Dataset structures calculated once all overlap lines are added
@@ -294,6 +296,7 @@ public class GeoGSMOverlap {
 		duplicates = new ArrayList<Duplicate>();
 		overlap = new HashMap<String, OverlapSet>();
 		subsetLinks = new ArrayList<OverlapLink>();
+		gsmIDs = new HashMap<String, String>();
 		supersets = new ArrayList<Superset>();
 		treeRoots = new ArrayList<OverlapSet>();
 		minSamplesRemoved = new ArrayList<OverlapSet>();
@@ -308,6 +311,7 @@ public class GeoGSMOverlap {
 		duplicates.clear();
 		overlap.clear();
 		subsetLinks.clear();
+		gsmIDs.clear();
 		supersets.clear();
 		treeRoots.clear();
 		minSamplesRemoved.clear();
@@ -333,28 +337,36 @@ public class GeoGSMOverlap {
 	 * @throws ParseException 
 	 */
 	public boolean addOverlapLine(String line) throws ParseException {
+		int[] sampleCounts = new int[3];
+		String[] fields = parseOverlapLine(line, sampleCounts);
+		String[] gsms = Arrays.copyOfRange(fields, 2, fields.length);
+		return addOverlap(fields[0], fields[1], sampleCounts[1], sampleCounts[2], gsms);
+	}
+	
+	/**
+	 * Parse a line with GSM overlap information. See addOverlapLine() for the line format.
+	 * 
+	 * @param line to parse
+	 * @param sampleCounts array with (at least) three elements where the overlap count,
+	 * the GID_i sample count, and the GID_j sample count are stored
+	 * @return array where [0] is GID_i, [1] is GID_j, and [2..] are the GSM IDs of the 
+	 * overlapping samples
+	 * @throws ParseException if the line is invalid
+	 */
+	public static String[] parseOverlapLine(String line, int[] sampleCounts) throws ParseException {
 		String[] parts = line.split("\t");
 		if ((parts.length != 8) && (parts.length != 4)) {			
 			throw new ParseException("Could not parse line (invalid column count): " + line);
 		}
 				
-		/*
-		 * Parse line
-		 */
-		String gid1 = parts[0];
-		String gid2 = parts[1];
-		@SuppressWarnings("unused")
-		int nOverlapping = 0;
-		int nSamples1 = 0;
-		int nSamples2 = 0;
 		try {
 			String[] subParts = parts[2].split(",");
 			if (subParts.length != 3) {
 				throw new ParseException("Could not parse line (invalid sample count): " + line);
 			}
-			nOverlapping = Integer.valueOf(subParts[0]);
-			nSamples1 = Integer.valueOf(subParts[1]);
-			nSamples2 = Integer.valueOf(subParts[2]);
+			sampleCounts[0] = Integer.valueOf(subParts[0]);
+			sampleCounts[1] = Integer.valueOf(subParts[1]);
+			sampleCounts[2] = Integer.valueOf(subParts[2]);
 		} catch (NumberFormatException e) {
 			throw new ParseException("Could not parse line (invalid sample count number): " + line);
 		}
@@ -364,22 +376,33 @@ public class GeoGSMOverlap {
 			throw new ParseException("Could not parse line (no gsms): " + line);
 		}
 		
+		String[] fields = new String[gsms.length + 2];
+		fields[0] = parts[0];
+		fields[1] = parts[1];
+		System.arraycopy(gsms, 0, fields, 2, gsms.length);
+		return fields;
+	}
+	
+	/**
+	 * Add GSM overlap information for a pair of datasets/ series. The GSM ID strings
+	 * are replaced by a shared instance such that each GSM ID is stored only once 
+	 * in memory.
+	 * 
+	 * @param gid1 first dataset/series ID (GID_i)
+	 * @param gid2 second dataset/series ID (GID_j)
+	 * @param nSamples1 number of samples in gid1
+	 * @param nSamples2 number of samples in gid2
+	 * @param gsms GSM IDs of the overlapping samples. Note! the array is modified
+	 * @return true if the overlap was added, or ignored since gid1 > gid2. False if the 
+	 * pair is between a dataset and a series.
+	 */
+	public boolean addOverlap(String gid1, String gid2, int nSamples1, int nSamples2, String[] gsms) {
 		/*
 		 * Make sure gid1 < gid2
 		 */
 		if (compareIDs(gid1, gid2) > 0) {
-			// Switch
-			//String tmp = gid1;
-			//gid1 = gid2;
-			//gid2 = tmp;
-			//int tmp2 = nSamples1;
-			//nSamples1 = nSamples2;
-			//nSamples2 = tmp2;
-			
 			// Ignore
 			return true;
-			
-			//throw new ParseException(String.format("Invalid overlap pair: %s > %s", gid1, gid2));
 		}
 		
 		/*
@@ -391,6 +414,10 @@ public class GeoGSMOverlap {
 			return false;
 		}	
 		else {
+			for (int i = 0; i < gsms.length; i++) {
+				gsms[i] = internGSM(gsms[i]);
+			}
+			
 			// o[i] covers o[j]
 			OverlapSet sup = overlap.get(gid1);
 			if (sup == null) {
@@ -406,12 +433,22 @@ public class GeoGSMOverlap {
 			subsetLinks.add(link);						
 			return true;
 		}
-		//else {
-		//	return false;
-		//}
 	}
 	
-	
+	/**
+	 * Get the shared instance of a GSM ID string.
+	 * 
+	 * @param gsm GSM ID
+	 * @return shared string instance for the GSM ID
+	 */
+	protected String internGSM(String gsm) {
+		String shared = gsmIDs.get(gsm);
+		if (shared == null) {
+			gsmIDs.put(gsm, gsm);
+			return gsm;
+		}
+		return shared;
+	}
 	
 	/**
 	 * Find clusters. This function will initialize the clusters data structure.
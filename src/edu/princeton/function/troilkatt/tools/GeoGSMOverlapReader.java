@@ -0,0 +1,277 @@
+package edu.princeton.function.troilkatt.tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Read GSM overlap files, as output by the GSMOverlap MapReduce job, into a GeoGSMOverlap
+ * object.
+ *
+ * The files are parsed in parallel, with one thread per file (that is, one thread per
+ * reducer output part). The lines are streamed from the file and each line is parsed
+ * into a compact int-indexed structure (OverlapPart) such that neither the file content
+ * nor the per line strings are kept in memory. The parsed parts are added to the
+ * GeoGSMOverlap object in the order of the file list, so the result is the same as when
+ * the lines are added using GeoGSMOverlap.addOverlapLine(). Besides the part being added, 
+ * at most one part per thread is parsed or waiting to be added, and a part is released 
+ * when it has been added.
+ */
+public class GeoGSMOverlapReader {
+	/**
+	 * Parsed content of one overlap file. The strings (GIDs and GSM IDs) are stored once
+	 * in a symbol table, and each line is stored as a sequence of ints in a single array:
+	 *
+	 *   GID_i symbol, GID_j symbol, GID_i sample count, GID_j sample count,
+	 *   overlap count N, GSM_1 symbol, ..., GSM_N symbol
+	 */
+	public static class OverlapPart {
+		// Symbol table: index to string
+		protected ArrayList<String> symbols;
+		// Symbol table: string to index (only used while parsing)
+		protected HashMap<String, Integer> symbolIndex;
+		// Parsed lines
+		protected int[] records;
+		// Number of ints used in records
+		protected int size;
+		// Number of parsed lines
+		protected int nLines;
+
+		/**
+		 * Constructor
+		 */
+		public OverlapPart() {
+			symbols = new ArrayList<String>();
+			symbolIndex = new HashMap<String, Integer>();
+			records = new int[1024];
+			size = 0;
+			nLines = 0;
+		}
+
+		/**
+		 * Parse and add a line. See GeoGSMOverlap.addOverlapLine() for the line format.
+		 *
+		 * @param line line to parse
+		 * @throws ParseException if the line is invalid
+		 */
+		public void addLine(String line) throws ParseException {
+			int[] sampleCounts = new int[3];
+			String[] fields = GeoGSMOverlap.parseOverlapLine(line, sampleCounts);
+			int nGsms = fields.length - 2;
+
+			ensureCapacity(size + 5 + nGsms);
+			records[size++] = getSymbol(fields[0]);
+			records[size++] = getSymbol(fields[1]);
+			records[size++] = sampleCounts[1];
+			records[size++] = sampleCounts[2];
+			records[size++] = nGsms;
+			for (int i = 2; i < fields.length; i++) {
+				records[size++] = getSymbol(fields[i]);
+			}
+			nLines++;
+		}
+
+		/**
+		 * Called when all lines have been added to release the memory used by the
+		 * parse-time data structures.
+		 */
+		public void done() {
+			symbolIndex = null;
+			symbols.trimToSize();
+		}
+
+		/**
+		 * Add all parsed lines to a GeoGSMOverlap object.
+		 *
+		 * @param finder object to add lines to
+		 * @return number of lines that were added
+		 */
+		public int addTo(GeoGSMOverlap finder) {
+			int nAdded = 0;
+			int i = 0;
+			while (i < size) {
+				String gid1 = symbols.get(records[i]);
+				String gid2 = symbols.get(records[i + 1]);
+				int nSamples1 = records[i + 2];
+				int nSamples2 = records[i + 3];
+				int nGsms = records[i + 4];
+				i += 5;
+				String[] gsms = new String[nGsms];
+				for (int j = 0; j < nGsms; j++) {
+					gsms[j] = symbols.get(records[i + j]);
+				}
+				i += nGsms;
+
+				if (finder.addOverlap(gid1, gid2, nSamples1, nSamples2, gsms)) {
+					nAdded++;
+				}
+			}
+			return nAdded;
+		}
+
+		/**
+		 * @return number of parsed lines
+		 */
+		public int getNLines() {
+			return nLines;
+		}
+
+		/**
+		 * Get the index of a symbol. The symbol is added to the table if necessary.
+		 */
+		protected int getSymbol(String s) {
+			Integer index = symbolIndex.get(s);
+			if (index == null) {
+				index = symbols.size();
+				symbols.add(s);
+				symbolIndex.put(s, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Grow the records array if needed
+		 */
+		protected void ensureCapacity(int minCapacity) {
+			if (minCapacity > records.length) {
+				int newCapacity = Math.max(records.length * 2, minCapacity);
+				int[] newRecords = new int[newCapacity];
+				System.arraycopy(records, 0, newRecords, 0, size);
+				records = newRecords;
+			}
+		}
+	}
+
+	/**
+	 * Task that parses one overlap file.
+	 */
+	protected static class PartParser implements Callable<OverlapPart> {
+		protected String filename;
+
+		public PartParser(String filename) {
+			this.filename = filename;
+		}
+
+		@Override
+		public OverlapPart call() throws IOException, ParseException {
+			return readOverlapPart(filename);
+		}
+	}
+
+	// Maximum number of files parsed in parallel
+	protected int maxThreads;
+	protected Logger logger;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxThreads maximum number of files to parse in parallel
+	 * @param logger logger to use
+	 */
+	public GeoGSMOverlapReader(int maxThreads, Logger logger) {
+		if (maxThreads < 1) {
+			maxThreads = 1;
+		}
+		this.maxThreads = maxThreads;
+		this.logger = logger;
+	}
+
+	/**
+	 * Constructor that uses one thread per available processor.
+	 *
+	 * @param logger logger to use
+	 */
+	public GeoGSMOverlapReader(Logger logger) {
+		this(Runtime.getRuntime().availableProcessors(), logger);
+	}
+
+	/**
+	 * Parse overlap files in parallel, and add the lines to a GeoGSMOverlap object.
+	 *
+	 * @param filenames files to read. The files are added in list order.
+	 * @param finder object to add overlap lines to
+	 * @return number of lines added to the finder
+	 * @throws IOException if a file could not be read
+	 * @throws ParseException if a file contains an invalid line
+	 */
+	public int read(ArrayList<String> filenames, GeoGSMOverlap finder) throws IOException, ParseException {
+		if (filenames.isEmpty()) {
+			return 0;
+		}
+
+		int nThreads = Math.min(maxThreads, filenames.size());
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		// Parts that are parsed or waiting to be added, in file list order
+		LinkedList<Future<OverlapPart>> window = new LinkedList<Future<OverlapPart>>();
+		int nSubmitted = 0;
+		for (; nSubmitted < nThreads; nSubmitted++) {
+			window.add(executor.submit(new PartParser(filenames.get(nSubmitted))));
+		}
+
+		int nAdded = 0;
+		try {
+			for (int i = 0; i < filenames.size(); i++) {
+				OverlapPart part = window.removeFirst().get();
+				// Start parsing the next file while this part is added
+				if (nSubmitted < filenames.size()) {
+					window.add(executor.submit(new PartParser(filenames.get(nSubmitted))));
+					nSubmitted++;
+				}
+				nAdded += part.addTo(finder);
+				logger.debug("Added " + part.getNLines() + " lines from: " + filenames.get(i));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading overlap files");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			else if (cause instanceof ParseException) {
+				throw (ParseException) cause;
+			}
+			else {
+				throw new RuntimeException("Could not parse overlap file", cause);
+			}
+		} finally {
+			// Stops the parsers of the remaining files if a file could not be read
+			executor.shutdownNow();
+		}
+
+		return nAdded;
+	}
+
+	/**
+	 * Stream and parse one overlap file.
+	 *
+	 * @param filename file to read
+	 * @return parsed file content
+	 * @throws IOException if the file could not be read
+	 * @throws ParseException if the file contains an invalid line
+	 */
+	public static OverlapPart readOverlapPart(String filename) throws IOException, ParseException {
+		OverlapPart part = new OverlapPart();
+		BufferedReader ins = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = ins.readLine()) != null) {
+				part.addLine(line);
+			}
+		} finally {
+			ins.close();
+		}
+		part.done();
+		return part;
+	}
+}
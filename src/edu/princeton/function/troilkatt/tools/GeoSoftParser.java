@@ -1,10 +1,13 @@
 package edu.princeton.function.troilkatt.tools;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * Superclass for parsing a GEO soft file. The GeoSeriesParser and GeoDatasetParser implements
@@ -29,8 +32,17 @@ import java.util.HashMap;
  * - Number of samples
  * - Sample IDs
  * - Sample descriptions
+ * 
+ * Lines can either be passed one at a time to parseLine(), or the bytes of a file can be 
+ * passed to parseBytes() or parseHeader(). The latter only parse the header sections: the 
+ * bodies of the data tables (between the "!xxx_table_begin" and "!xxx_table_end" lines) are
+ * skipped at the byte level, and lines that do not start with '!' or '^' are never converted
+ * to strings.
  */
 public class GeoSoftParser {
+	// Buffer size used when reading files
+	protected static final int BUFFER_SIZE = 64 * 1024;
+	
 	/* Lists of meta field names: first for fields with only one value, and the second for fields
 	 * with multiple values. id is not included in the list. */
 	public final String[] singleKeys = {"id", "title", "date", "description"};
@@ -42,10 +54,25 @@ public class GeoSoftParser {
 	protected HashMap<String, String> metaTags;        // meta tag -> meta ID
 	/* Meta data found in file */
 	protected HashMap<String, ArrayList<String>> meta; // meta ID -> [meta value 1, meta value 2,...] 
+	/* Used to check for duplicate values */
+	protected HashMap<String, HashSet<String>> metaSets; // meta ID -> {meta value 1, meta value 2,...}
+	
+	/* Set if the file has a single data table at the end of the file, such that 
+	 * parseBytes() can stop when the table begins. Set in the subclass constructor. */
+	protected boolean singleTable = false;
+	
+	/* State used by parseBytes() */
+	protected ByteArrayOutputStream lineBuf;	
+	protected boolean lineStart = true; // at the first byte of a line
+	protected boolean skipLine = false; // the current line is not parsed
+	protected boolean inTable = false;  // between table begin and table end lines
+	protected boolean done = false;     // no more lines are parsed
 	
 	public GeoSoftParser() {
 		metaTags = new HashMap<String, String>();
 		meta = new HashMap<String, ArrayList<String>>();
+		metaSets = new HashMap<String, HashSet<String>>();
+		lineBuf = new ByteArrayOutputStream();
 	}
 	
 	/**
@@ -122,48 +149,178 @@ public class GeoSoftParser {
 	  * @return true if the line contained a valid meta tag. False otherwise
 	  */
 	public boolean parseLine(String line) {
-		String[] lineParts = line.toString().split("=");
-		if (lineParts.length < 2) {
+		int sep = line.indexOf('=');
+		if (sep == -1) {
 			//System.err.println("Ignoring meta line: " + line);
 			return false;
 		}
+		// As for split("="): the value ends at the next '=', and the line is ignored if
+		// there are only '=' characters after the tag
+		int end = line.indexOf('=', sep + 1);
+		if (end == -1) {
+			end = line.length();
+		}
+		if ((end == sep + 1) && line.substring(end).replace("=", "").isEmpty()) {
+			return false;
+		}
 			
 		// tags should be in lower case
-		String lkey = lineParts[0].trim().toLowerCase();
+		String lkey = line.substring(0, sep).trim().toLowerCase();
+		String tagKey = metaTags.get(lkey);
+		if (tagKey == null) {
+			return false;
+		}
+		
 		// values are unchanged
-		String lvalue = lineParts[1].trim();
+		String lvalue = line.substring(sep + 1, end).trim();
+		HashSet<String> valsSet = metaSets.get(tagKey);
+		if (valsSet == null) {
+			valsSet = new HashSet<String>();
+			metaSets.put(tagKey, valsSet);
+			meta.put(tagKey, new ArrayList<String>());
+		}
+		if (valsSet.add(lvalue)) {
+			meta.get(tagKey).add(lvalue);
+		}
+		return true;
+	}
 			
-		if (metaTags.containsKey(lkey)) {
-			String tagKey = metaTags.get(lkey);
-			if (! meta.containsKey(tagKey)) {
-				meta.put(tagKey, new ArrayList<String>());
+	/**
+	 * Parse the next bytes of a decompressed SOFT file. The bytes of a file can be passed 
+	 * in chunks of any size. Only the header lines are parsed as described in the class 
+	 * comment.
+	 * 
+	 * @param b buffer with bytes
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @return number of valid meta tags found
+	 */
+	public int parseBytes(byte[] b, int off, int len) {
+		int nTags = 0;
+		int end = off + len;
+		int start = off;
+		for (int i = off; (i < end) && ! done; i++) {
+			if (lineStart) {
+				// Only table end lines are parsed in a table
+				skipLine = (b[i] != '!') && (inTable || (b[i] != '^'));
+				lineStart = false;
 			}
-			ArrayList<String> valsList = meta.get(tagKey);
-			if (! valsList.contains(lvalue)) {
-				valsList.add(lvalue);
+			if (skipLine) {
+				// Skip to the end of the line
+				while ((i < end) && (b[i] != '\n')) {
+					i++;
+				}
+				if (i == end) {
+					break;
+				}
+			}
+			if (b[i] == '\n') {
+				if (! skipLine) {
+					lineBuf.write(b, start, i - start);
+					if (parseBufferedLine()) {
+						nTags++;
+					}
+				}
+				lineStart = true;
+				start = i + 1;
 			}
-			return true;
-			
 		}
-		else {
+		if (! done && ! skipLine && ! lineStart && (start < end)) {
+			lineBuf.write(b, start, end - start);
+		}
+		return nTags;
+	}
+	
+	/**
+	 * Called when all bytes have been passed to parseBytes(). The last line is parsed, if it 
+	 * does not end with a newline.
+	 * 
+	 * @return number of valid meta tags found
+	 */
+	public int endOfData() {
+		int nTags = 0;
+		if (! done && ! lineStart && ! skipLine) {
+			if (parseBufferedLine()) {
+				nTags++;
+			}
+		}
+		done = true;
+		return nTags;
+	}
+	
+	/**
+	 * @return true if parseBytes() will not parse more lines
+	 */
+	public boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Helper function to parse the line in the line buffer.
+	 * 
+	 * @return true if the line contained a valid meta tag
+	 */
+	protected boolean parseBufferedLine() {
+		String line;
+		try {
+			line = lineBuf.toString("UTF-8").trim();
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		lineBuf.reset();
+		
+		if (line.isEmpty()) {
 			return false;
 		}
+		if (line.charAt(0) != '^') {
+			String lower = line.toLowerCase();
+			if (lower.endsWith("_table_begin")) {
+				if (singleTable) {
+					done = true;
+				}
+				inTable = true;
+				return false;
+			}
+			if (lower.endsWith("_table_end")) {
+				inTable = false;
+				return false;
+			}
+			if (inTable) {
+				return false;
+			}
+		}
+		return parseLine(line);
 	}
 	
 	/**
-	 * Parse a file
+	 * Parse the header sections of a decompressed SOFT file stream.
+	 * 
+	 * @param ins stream to read from. The stream is not closed.
+	 * @throws IOException 
+	 */
+	public void parseHeader(InputStream ins) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		int n;
+		while (! done && ((n = ins.read(buf)) != -1)) {
+			parseBytes(buf, 0, n);
+		}
+		endOfData();
+	}
+	
+	/**
+	 * Parse the header sections of a file
 	 * 
 	 * @param filename file to parse
 	 * @return None, but the global singleKeys and multiKeys are initialized
 	 * @throws IOException 
 	 */
 	public void parseFile(String filename) throws IOException {
-		BufferedReader ins = new BufferedReader(new FileReader(filename));		
-		String line;
-		while ((line = ins.readLine()) != null) {
-			parseLine(line);
+		InputStream ins = new FileInputStream(filename);
+		try {
+			parseHeader(ins);
+		} finally {
+			ins.close();
 		}			
-		ins.close();
 	}
 	
 	/**
@@ -0,0 +1,177 @@
+package edu.princeton.function.troilkatt.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Split a GEO series RAW tar stream into one tar file per platform specific series. Only
+ * the Affymetrix CEL files for the samples in each platform are added to the output tar
+ * files, such that the result is the same as when the RAW file is unpacked and split by
+ * BatchRawRemoveOverlapping.
+ *
+ * The input tar is read as a stream (for example directly from an FTP connection), and
+ * each CEL file entry is copied directly to the output tar for its platform. The output
+ * tar files are opened on demand using an OutputFactory.
+ */
+public class RawTarSplitter {
+	/**
+	 * Factory for the output streams.
+	 */
+	public interface OutputFactory {
+		/**
+		 * Create the output stream for a platform specific series.
+		 *
+		 * @param sidp platform specific series ID
+		 * @return output stream for the tar file. The stream is closed by the splitter.
+		 * @throws IOException
+		 */
+		public OutputStream create(String sidp) throws IOException;
+
+		/**
+		 * Delete a partially written output file. Called after the stream has been closed
+		 * if the split failed.
+		 *
+		 * @param sidp platform specific series ID
+		 */
+		public void abort(String sidp);
+	}
+
+	// Sample ID at the start of a raw filename
+	protected static final Pattern gsmPattern = Pattern.compile("^(gsm\\d+)");
+
+	// lower case sample ID -> platform specific series ID
+	protected HashMap<String, String> gsm2sidp;
+	protected OutputFactory factory;
+	protected Logger logger;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sidp2gsm map with platform specific series ID as key, and the list of samples
+	 * to include as value, as returned by GeoMetaTableSchema.getSeriesParts(). Series where
+	 * all samples are deleted have the value "none".
+	 * @param factory factory used to create the output streams
+	 * @param logger logger to use
+	 */
+	public RawTarSplitter(HashMap<String, ArrayList<String>> sidp2gsm, OutputFactory factory, Logger logger) {
+		this.factory = factory;
+		this.logger = logger;
+		gsm2sidp = new HashMap<String, String>();
+		for (String sidp: sidp2gsm.keySet()) {
+			ArrayList<String> gsms = sidp2gsm.get(sidp);
+			if (gsms.isEmpty() || gsms.get(0).equals("none")) {
+				logger.info("All samples deleted for: " + sidp);
+				continue;
+			}
+			for (String g: gsms) {
+				gsm2sidp.put(g.toLowerCase(), sidp);
+			}
+		}
+	}
+
+	/**
+	 * Split a tar stream.
+	 *
+	 * @param ins RAW tar stream. The stream is read until end of stream, but not closed.
+	 * @param expectedSize size of the tar file, or -1 if not known. The tar reader pads 
+	 * a truncated stream with zeros, so the size is used to detect truncated streams.
+	 * @return map with platform specific series ID as key, and the number of samples added
+	 * to the output tar as value. Platforms with no CEL files are not included.
+	 * @throws IOException if the input could not be read, is truncated, or an output could 
+	 * not be written. All output files are aborted in this case.
+	 */
+	public HashMap<String, Integer> split(InputStream ins, long expectedSize) throws IOException {
+		HashMap<String, TarArchiveOutputStream> outputs = new HashMap<String, TarArchiveOutputStream>();
+		HashMap<String, HashSet<String>> samplesAdded = new HashMap<String, HashSet<String>>();
+		boolean success = false;
+
+		try {
+			CountingInputStream cin = new CountingInputStream(ins);
+			TarArchiveInputStream tin = new TarArchiveInputStream(cin);
+			TarArchiveEntry entry;
+			while ((entry = tin.getNextTarEntry()) != null) {
+				if (! entry.isFile()) {
+					continue;
+				}
+				String basename = entry.getName();
+				int slash = basename.lastIndexOf('/');
+				if (slash != -1) {
+					basename = basename.substring(slash + 1);
+				}
+				String lowerName = basename.toLowerCase();
+				if (! (lowerName.contains(".cel.") || lowerName.endsWith(".cel"))) {
+					continue;
+				}
+				Matcher m = gsmPattern.matcher(lowerName);
+				if (! m.find()) {
+					continue;
+				}
+				String gsm = m.group(1);
+				String sidp = gsm2sidp.get(gsm);
+				if (sidp == null) { // sample deleted due to overlap
+					continue;
+				}
+
+				TarArchiveOutputStream tout = outputs.get(sidp);
+				if (tout == null) {
+					tout = new TarArchiveOutputStream(factory.create(sidp));
+					tout.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+					outputs.put(sidp, tout);
+					samplesAdded.put(sidp, new HashSet<String>());
+				}
+				TarArchiveEntry outEntry = new TarArchiveEntry(basename);
+				outEntry.setSize(entry.getSize());
+				outEntry.setModTime(entry.getModTime());
+				tout.putArchiveEntry(outEntry);
+				IOUtils.copy(tin, tout);
+				tout.closeArchiveEntry();
+				samplesAdded.get(sidp).add(gsm);
+			}
+
+			// Read the padding after the end of archive marker
+			byte[] buf = new byte[8192];
+			while (cin.read(buf) != -1) {
+				// skip
+			}
+			if ((expectedSize != -1) && (cin.getBytesRead() != expectedSize)) {
+				throw new IOException("Truncated tar stream: read " + cin.getBytesRead() + " of " + expectedSize + " bytes");
+			}
+
+			for (TarArchiveOutputStream tout: outputs.values()) {
+				tout.finish();
+				tout.close();
+			}
+			success = true;
+		} finally {
+			if (! success) {
+				for (String sidp: outputs.keySet()) {
+					try {
+						outputs.get(sidp).close();
+					} catch (IOException e) {
+						logger.warn("Could not close output for: " + sidp, e);
+					}
+					factory.abort(sidp);
+				}
+			}
+		}
+
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (String sidp: samplesAdded.keySet()) {
+			counts.put(sidp, samplesAdded.get(sidp).size());
+		}
+		return counts;
+	}
+}
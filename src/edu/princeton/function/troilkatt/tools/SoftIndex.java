@@ -0,0 +1,295 @@
+package edu.princeton.function.troilkatt.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Byte offset index of the sections in a SOFT file. A section starts with a "^TYPE = ID"
+ * line (for example ^PLATFORM or ^SAMPLE) and ends where the next section starts. If the
+ * section has a data table, the offsets of the first table line (after the
+ * "!xxx_table_begin" line) and of the "!xxx_table_end" line are also stored.
+ *
+ * The index is built in one pass over the file, and is written as a text file with one
+ * line per section:
+ *
+ *   TYPE \t ID \t start \t tableStart \t tableEnd \t end
+ *
+ * where tableStart and tableEnd are -1 if the section has no table. The offsets are in the
+ * decompressed file, so for uncompressed files a reader can seek directly to a section,
+ * while for compressed files the preceding bytes are skipped while decompressing.
+ */
+public class SoftIndex {
+	/**
+	 * Offsets for one section.
+	 */
+	public static class Section {
+		public String type;
+		public String id;
+		// Offset of the "^TYPE = ID" line
+		public long start;
+		// Offset of the first table line, or -1 if there is no table
+		public long tableStart;
+		// Offset of the table end line, or -1 if there is no table
+		public long tableEnd;
+		// Offset of the first byte after the section
+		public long end;
+
+		public Section(String type, String id, long start) {
+			this.type = type;
+			this.id = id;
+			this.start = start;
+			this.tableStart = -1;
+			this.tableEnd = -1;
+			this.end = -1;
+		}
+	}
+
+	// Sections in file order
+	protected ArrayList<Section> sections;
+
+	/**
+	 * Constructor for an empty index.
+	 */
+	public SoftIndex() {
+		sections = new ArrayList<Section>();
+	}
+
+	/**
+	 * Build an index for a SOFT file.
+	 *
+	 * @param ins decompressed SOFT file stream. The stream is not closed.
+	 * @return index
+	 * @throws IOException
+	 * @throws ParseException if a section line is invalid
+	 */
+	public static SoftIndex build(InputStream ins) throws IOException, ParseException {
+		SoftIndex index = new SoftIndex();
+		BufferedInputStream bis = new BufferedInputStream(ins, 1024 * 1024);
+		ByteArrayOutputStream lineBuf = new ByteArrayOutputStream(1024);
+		Section current = null;
+		long offset = 0;
+
+		while (true) {
+			long lineStart = offset;
+			// Only the start of each line is needed to recognize tags
+			lineBuf.reset();
+			int b;
+			while (((b = bis.read()) != -1) && (b != '\n')) {
+				offset++;
+				if (lineBuf.size() < 1024) {
+					lineBuf.write(b);
+				}
+			}
+			if (b == '\n') {
+				offset++;
+			}
+			else if (lineStart == offset) { // EOF
+				break;
+			}
+
+			if (lineBuf.size() == 0) {
+				continue;
+			}
+			String line = lineBuf.toString("ISO-8859-1");
+			char c = line.charAt(0);
+			if (c == '^') {
+				if (current != null) {
+					current.end = lineStart;
+				}
+				current = parseSectionLine(line, lineStart);
+				index.sections.add(current);
+			}
+			else if ((c == '!') && (current != null)) {
+				String tag = line.trim().toLowerCase();
+				if (tag.endsWith("_table_begin")) {
+					current.tableStart = offset;
+				}
+				else if (tag.endsWith("_table_end")) {
+					current.tableEnd = lineStart;
+				}
+			}
+		}
+		if (current != null) {
+			current.end = offset;
+		}
+		return index;
+	}
+
+	/**
+	 * Helper function to parse a "^TYPE = ID" line.
+	 */
+	protected static Section parseSectionLine(String line, long offset) throws ParseException {
+		String[] parts = line.substring(1).split("=", 2);
+		if (parts.length != 2) {
+			throw new ParseException("Invalid section line: " + line);
+		}
+		return new Section(parts[0].trim(), parts[1].trim(), offset);
+	}
+
+	/**
+	 * Write index in the text format described above.
+	 *
+	 * @param bw writer to write to. The writer is not closed.
+	 * @throws IOException
+	 */
+	public void write(BufferedWriter bw) throws IOException {
+		for (Section s: sections) {
+			bw.write(s.type + "\t" + s.id + "\t" + s.start + "\t" + s.tableStart + "\t" + s.tableEnd + "\t" + s.end + "\n");
+		}
+	}
+
+	/**
+	 * Read an index written by write().
+	 *
+	 * @param br reader to read from. The reader is not closed.
+	 * @return index
+	 * @throws IOException
+	 * @throws ParseException if a line is invalid
+	 */
+	public static SoftIndex read(BufferedReader br) throws IOException, ParseException {
+		SoftIndex index = new SoftIndex();
+		String line;
+		while ((line = br.readLine()) != null) {
+			String[] cols = line.split("\t");
+			if (cols.length != 6) {
+				throw new ParseException("Invalid index line: " + line);
+			}
+			try {
+				Section s = new Section(cols[0], cols[1], Long.valueOf(cols[2]));
+				s.tableStart = Long.valueOf(cols[3]);
+				s.tableEnd = Long.valueOf(cols[4]);
+				s.end = Long.valueOf(cols[5]);
+				index.sections.add(s);
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid offset in index line: " + line);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return all sections in file order
+	 */
+	public ArrayList<Section> getSections() {
+		return sections;
+	}
+
+	/**
+	 * @param type section type, for example "SAMPLE"
+	 * @return sections with the given type in file order
+	 */
+	public ArrayList<Section> getSections(String type) {
+		ArrayList<Section> matches = new ArrayList<Section>();
+		for (Section s: sections) {
+			if (s.type.equals(type)) {
+				matches.add(s);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @param id section ID, for example "GSM1234"
+	 * @return section, or null if not found
+	 */
+	public Section getSection(String id) {
+		for (Section s: sections) {
+			if (s.id.equals(id)) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open a stream that returns the bytes in [start, end) of a SOFT file stream. If the
+	 * stream is Seekable (such as an uncompressed HDFS file) the stream is positioned using
+	 * seek(), otherwise the bytes before start are skipped.
+	 *
+	 * @param ins SOFT file stream positioned at offset 0
+	 * @param start first offset to read
+	 * @param end offset of the first byte after the range
+	 * @return stream limited to the range. Closing it closes ins.
+	 * @throws IOException
+	 */
+	public static InputStream openRange(InputStream ins, long start, long end) throws IOException {
+		if (ins instanceof Seekable) {
+			((Seekable) ins).seek(start);
+		}
+		else {
+			long remaining = start;
+			while (remaining > 0) {
+				long n = ins.skip(remaining);
+				if (n <= 0) {
+					if (ins.read() == -1) {
+						throw new IOException("Offset is after end of file: " + start);
+					}
+					n = 1;
+				}
+				remaining -= n;
+			}
+		}
+		return new RangeInputStream(ins, end - start);
+	}
+
+	/**
+	 * Stream that returns at most a given number of bytes.
+	 */
+	protected static class RangeInputStream extends FilterInputStream {
+		protected long remaining;
+
+		protected RangeInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
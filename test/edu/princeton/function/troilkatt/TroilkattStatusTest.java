@@ -264,6 +264,18 @@ public class TroilkattStatusTest extends TestSuper {
 		assertEquals(-1, s.getLastStatusTimestamp("nonExistingStage"));
 	}
 
+	@Test
+	public void testGetLastStatusTimestampOfType() throws IOException, TroilkattPropertiesException {
+		TroilkattStatus s = new TroilkattStatus(tfs, troilkattProperties);
+		
+		assertEquals(3, s.getLastStatusTimestamp("Troilkatt", "done"));
+		assertEquals(4, s.getLastStatusTimestamp("Troilkatt", "start"));
+		assertEquals(4, s.getLastStatusTimestamp("secondStage", "recover"));
+		assertEquals(3, s.getLastStatusTimestamp("secondStage", "done"));
+		assertEquals(4, s.getLastStatusTimestamp("secondStage", null));
+		assertEquals(-1, s.getLastStatusTimestamp("Troilkatt", "recover"));
+	}
+
 	@Test
 	public void testSetStatus() throws IOException, TroilkattPropertiesException {
 		troilkattProperties.set("troilkatt.tfs.status.file", hdfsStatusFilename + ".modified");
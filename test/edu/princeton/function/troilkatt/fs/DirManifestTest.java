@@ -0,0 +1,143 @@
+package edu.princeton.function.troilkatt.fs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+
+public class DirManifestTest extends TestSuper {
+	protected FileSystem fs;
+	protected TroilkattHDFS tfs;
+	protected String listDir;
+
+	@Before
+	public void setUp() throws Exception {
+		fs = FileSystem.getLocal(new Configuration());
+		tfs = new TroilkattHDFS(fs);
+
+		listDir = OsPath.join(tmpDir, "manifest-ls");
+		OsPath.deleteAll(listDir);
+		createFile("file1.1.gz");
+		createFile("subdir1/file2.1.gz");
+		createFile("subdir1/.hidden");
+		createFile("subdir2/subdir3/file3.1.gz");
+	}
+
+	protected void createFile(String name) throws IOException {
+		fs.create(new Path(OsPath.join(listDir, name))).close();
+	}
+
+	// Set modification time of all directories such that they can be reused
+	protected void setOldDirTimes() throws IOException {
+		long t = System.currentTimeMillis() - 10 * DirManifest.MTIME_MARGIN;
+		String[] dirs = {"", "subdir1", "subdir2", "subdir2/subdir3"};
+		for (String d: dirs) {
+			fs.setTimes(new Path(OsPath.join(listDir, d)), t, -1);
+		}
+	}
+
+	@Test
+	public void testList() throws IOException {
+		DirManifest manifest = DirManifest.list(tfs, listDir, null);
+		assertEquals(listDir, manifest.getRootDir());
+		assertEquals(4, manifest.getDirsListed());
+		assertEquals(0, manifest.getDirsReused());
+
+		ArrayList<String> files = manifest.getFiles();
+		assertEquals(3, files.size());
+		assertEquals(OsPath.join(listDir, "file1.1.gz"), files.get(0));
+		assertEquals(OsPath.join(listDir, "subdir1/file2.1.gz"), files.get(1));
+		assertEquals(OsPath.join(listDir, "subdir2/subdir3/file3.1.gz"), files.get(2));
+
+		// 4 directories and 3 files, sorted by name with the root directory first
+		ArrayList<DirManifest.Entry> entries = manifest.getEntries();
+		assertEquals(7, entries.size());
+		assertEquals("", entries.get(0).name);
+		assertTrue(entries.get(0).isDir);
+		for (int i = 1; i < entries.size(); i++) {
+			assertTrue(entries.get(i - 1).name.compareTo(entries.get(i).name) < 0);
+		}
+
+		assertNull(DirManifest.list(tfs, OsPath.join(listDir, "invalid"), null));
+	}
+
+	@Test
+	public void testListIncremental() throws IOException {
+		setOldDirTimes();
+		DirManifest prev = DirManifest.list(tfs, listDir, null);
+		assertEquals(4, prev.getDirsListed());
+
+		// No changes
+		DirManifest manifest = DirManifest.list(tfs, listDir, prev);
+		assertEquals(0, manifest.getDirsListed());
+		assertEquals(4, manifest.getDirsReused());
+		assertEquals(prev.getFiles(), manifest.getFiles());
+
+		// Only the changed directory is listed
+		createFile("subdir2/subdir3/file4.1.gz");
+		manifest = DirManifest.list(tfs, listDir, prev);
+		assertEquals(1, manifest.getDirsListed());
+		assertEquals(3, manifest.getDirsReused());
+		ArrayList<String> files = manifest.getFiles();
+		assertEquals(4, files.size());
+		assertEquals(OsPath.join(listDir, "subdir2/subdir3/file4.1.gz"), files.get(3));
+
+		// Recently modified directories are always listed
+		manifest = DirManifest.list(tfs, listDir, manifest);
+		assertEquals(1, manifest.getDirsListed());
+
+		// Manifest for another directory is ignored
+		DirManifest other = DirManifest.list(tfs, OsPath.join(listDir, "subdir1"), null);
+		manifest = DirManifest.list(tfs, listDir, other);
+		assertEquals(4, manifest.getDirsListed());
+		assertEquals(4, manifest.getFiles().size());
+	}
+
+	@Test
+	public void testReadWrite() throws IOException {
+		DirManifest manifest = DirManifest.list(tfs, listDir, null);
+		String filename = OsPath.join(tmpDir, "dir-manifest");
+		manifest.write(filename);
+
+		DirManifest manifest2 = DirManifest.read(filename);
+		assertEquals(listDir, manifest2.getRootDir());
+		assertEquals(manifest.getFiles(), manifest2.getFiles());
+		assertEquals(manifest.getEntries().size(), manifest2.getEntries().size());
+		for (int i = 0; i < manifest.getEntries().size(); i++) {
+			DirManifest.Entry e1 = manifest.getEntries().get(i);
+			DirManifest.Entry e2 = manifest2.getEntries().get(i);
+			assertEquals(e1.name, e2.name);
+			assertEquals(e1.isDir, e2.isDir);
+			assertEquals(e1.size, e2.size);
+			assertEquals(e1.modificationTime, e2.modificationTime);
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testReadUnsorted() throws IOException {
+		String filename = OsPath.join(tmpDir, "dir-manifest");
+		String[] lines = {"#\t/foo\t10", "d\t0\t1\t", "f\t2\t1\tb", "f\t2\t1\ta"};
+		FSUtils.writeTextFile(filename, lines);
+		DirManifest.read(filename);
+	}
+
+	@Test
+	public void testDiff() {
+		ArrayList<String> a = new ArrayList<String>(Arrays.asList("a", "b", "c", "e"));
+		ArrayList<String> b = new ArrayList<String>(Arrays.asList("b", "d", "e", "f"));
+		assertEquals(Arrays.asList("a", "c"), DirManifest.diff(a, b));
+		assertEquals(Arrays.asList("d", "f"), DirManifest.diff(b, a));
+		assertEquals(a, DirManifest.diff(a, new ArrayList<String>()));
+		assertTrue(DirManifest.diff(new ArrayList<String>(), b).isEmpty());
+		assertTrue(DirManifest.diff(a, a).isEmpty());
+	}
+}
@@ -13,6 +13,7 @@ import org.junit.runners.Suite.SuiteClasses;
 	//TroilkattHDFSTest.class,
 	//TroilkattNFSTest.class,
 	TroilkattGSTest.class,
+	DirManifestTest.class,
 	//LogTableTest.class,
 	//LogTableHbaseTest.class,
 	//LogTableTarTest.class,
@@ -3,9 +3,13 @@ package edu.princeton.function.troilkatt.hbase;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -21,6 +25,7 @@ import edu.princeton.function.troilkatt.hbase.GeoMetaTableSchema;
 public class GeoMetaTableTest {
 	protected static GeoMetaTableSchema schema;
 	protected static HTable metaTable;
+	protected static HTable indexTable;
 	protected static Logger testLogger;
 
 	@BeforeClass
@@ -28,6 +33,7 @@ public class GeoMetaTableTest {
 		Configuration hbConf = HBaseConfiguration.create();
 		schema = new GeoMetaTableSchema();
 		metaTable = schema.openTable(hbConf, true);
+		indexTable = new GeoMetaIndexTableSchema().openTable(hbConf, true);
 		
 		testLogger = Logger.getLogger("test");
 		
@@ -105,4 +111,126 @@ public class GeoMetaTableTest {
 		assertEquals("NaN", GeoMetaTableSchema.getInfoValue(metaTable, "unittest", "cutoff", testLogger));			
 	}
 
+	@Test
+	public void testGetIndexKey() {
+		assertEquals("org\tHomo sapiens\tGSE1234", GeoMetaTableSchema.getIndexKey(GeoMetaTableSchema.ORGANISM_INDEX, "Homo sapiens", "GSE1234"));
+		assertEquals("gpl\tGPL96\t", GeoMetaTableSchema.getIndexKey(GeoMetaTableSchema.PLATFORM_INDEX, "GPL96", null));
+	}
+	
+	@Test
+	public void testUpdateIndex() throws IOException {
+		ArrayList<String> orgs = new ArrayList<String>();
+		orgs.add("Notareal organism");
+		orgs.add("Alsonot real");
+		ArrayList<String> platforms = new ArrayList<String>();
+		platforms.add("GPLunittest1");
+		
+		// The row does not exist in the meta table
+		GeoMetaTableSchema.updateIndex(metaTable, indexTable, "GSEunittest", orgs, platforms, 31278);
+		ArrayList<String> gids = GeoMetaTableSchema.getGIDsByOrganism(indexTable, "Notareal organism");
+		assertEquals(1, gids.size());
+		assertEquals("GSEunittest", gids.get(0));
+		gids = GeoMetaTableSchema.getGIDsByOrganism(indexTable, Pattern.compile("Alsonot"));
+		assertEquals(1, gids.size());
+		gids = GeoMetaTableSchema.getGIDsByPlatform(indexTable, "GPLunittest1");
+		assertEquals(1, gids.size());
+		assertEquals("GSEunittest", gids.get(0));
+		
+		// Write meta row, and change organisms and platforms
+		Put update = new Put(Bytes.toBytes("GSEunittest"), 31278);
+		update.add(Bytes.toBytes("meta"), Bytes.toBytes("organisms"), Bytes.toBytes(TroilkattTable.array2string(orgs)));
+		update.add(Bytes.toBytes("meta"), Bytes.toBytes("platformIDs"), Bytes.toBytes(TroilkattTable.array2string(platforms)));
+		metaTable.put(update);
+		orgs.remove(1);
+		platforms.clear();
+		platforms.add("GPLunittest2");
+		GeoMetaTableSchema.updateIndex(metaTable, indexTable, "GSEunittest", orgs, platforms, 31279);
+		
+		assertEquals(1, GeoMetaTableSchema.getGIDsByOrganism(indexTable, "Notareal organism").size());
+		assertEquals(0, GeoMetaTableSchema.getGIDsByOrganism(indexTable, "Alsonot real").size());
+		assertEquals(0, GeoMetaTableSchema.getGIDsByPlatform(indexTable, "GPLunittest1").size());
+		assertEquals(1, GeoMetaTableSchema.getGIDsByPlatform(indexTable, "GPLunittest2").size());
+		// Prefix of an organism name should not match
+		assertEquals(0, GeoMetaTableSchema.getGIDsByOrganism(indexTable, "Notareal").size());
+	}
+	
+	@Test
+	public void testRebuildIndex() throws IOException {
+		ArrayList<String> orgs = new ArrayList<String>();
+		orgs.add("Rebuilt organism");
+		orgs.add("Alsorebuilt real");
+		Put update = new Put(Bytes.toBytes("GSEunittest2"), 31278);
+		update.add(Bytes.toBytes("meta"), Bytes.toBytes("organisms"), Bytes.toBytes(TroilkattTable.array2string(orgs)));
+		update.add(Bytes.toBytes("meta"), Bytes.toBytes("platformIDs"), Bytes.toBytes("GPLunittest3"));
+		metaTable.put(update);
+		// Stale index row
+		String staleKey = GeoMetaTableSchema.getIndexKey(GeoMetaTableSchema.ORGANISM_INDEX, "Stale organism", "GSEunittest2");
+		indexTable.put(GeoMetaTableSchema.createIndexPut(staleKey, "GSEunittest2", null, 31278));
+		
+		GeoMetaTableSchema.rebuildIndex(metaTable, indexTable, 31279, testLogger);
+		assertTrue(GeoMetaTableSchema.isIndexComplete(indexTable));
+		assertEquals(0, GeoMetaTableSchema.getGIDsByOrganism(indexTable, "Stale organism").size());
+		assertTrue(GeoMetaTableSchema.getGIDsByOrganism(indexTable, "Alsorebuilt real").contains("GSEunittest2"));
+		assertTrue(GeoMetaTableSchema.getGIDsByPlatform(indexTable, "GPLunittest3").contains("GSEunittest2"));
+		
+		// Patterns are matched against all organisms for the dataset/series, and each GID is
+		// only returned once
+		ArrayList<String> gids = GeoMetaTableSchema.getGIDsByOrganism(indexTable, Pattern.compile("organism\nAlsorebuilt"));
+		assertEquals(1, gids.size());
+		assertEquals("GSEunittest2", gids.get(0));
+		assertFalse(GeoMetaTableSchema.getGIDsByOrganism(indexTable, Pattern.compile("^Alsorebuilt real$")).contains("GSEunittest2"));
+		
+		// Marked as incomplete if index updates are lost
+		GeoMetaTableSchema.invalidateIndex(indexTable);
+		assertFalse(GeoMetaTableSchema.isIndexComplete(indexTable));
+		GeoMetaTableSchema.rebuildIndex(metaTable, indexTable, 31280, testLogger);
+		assertTrue(GeoMetaTableSchema.isIndexComplete(indexTable));
+	}
+	
+	@Test
+	public void testGetValues() throws IOException {
+		ArrayList<String> gids = new ArrayList<String>();
+		gids.add("unittest");
+		gids.add("notAnID");
+		String[] columns = {"meta:id", "calculated:cutoff", "meta:notAColumn"};
+		HashMap<String, HashMap<String, String>> values = GeoMetaTableSchema.getValues(metaTable, gids, columns, testLogger);
+		assertEquals(1, values.size());
+		HashMap<String, String> rowValues = values.get("unittest");
+		assertEquals("unit-test", rowValues.get("meta:id"));
+		assertEquals("NaN", rowValues.get("calculated:cutoff"));
+		assertNull(rowValues.get("meta:notAColumn"));
+		assertNull(values.get("notAnID"));
+	}
+	
+	@Test
+	public void testGeoMetaTableCache() throws IOException {
+		GeoMetaTableCache cache = new GeoMetaTableCache(metaTable, 3, 2, testLogger);
+		ArrayList<String> gids = new ArrayList<String>();
+		gids.add("unittest");
+		gids.add("notAnID");
+		String[] columns = {"meta:id"};
+		cache.prefetch(gids, columns);
+		assertEquals(2, cache.size());
+		assertEquals("unit-test", cache.getMetaValue("unittest", "id"));
+		assertNull(cache.getMetaValue("notAnID", "id"));
+		
+		// Read through, and evict least recently used value
+		assertEquals("NaN", cache.getInfoValue("unittest", "cutoff"));
+		assertEquals("0", cache.getInfoValue("unittest", "logged"));
+		assertEquals(3, cache.size());
+		
+		// Buffered update is visible in cache, but not in table
+		Put update = new Put(Bytes.toBytes("GSEcacheunittest"), 31278);
+		update.add(Bytes.toBytes("meta"), Bytes.toBytes("id"), Bytes.toBytes("cache-unit-test"));
+		cache.put(update);
+		assertEquals(1, cache.getBufferedUpdates());
+		assertEquals("cache-unit-test", cache.getMetaValue("GSEcacheunittest", "id"));
+		assertNull(GeoMetaTableSchema.getMetaValue(metaTable, "GSEcacheunittest", "id", testLogger));
+		
+		cache.close();
+		assertEquals(0, cache.getBufferedUpdates());
+		assertEquals(0, cache.size());
+		assertEquals("cache-unit-test", GeoMetaTableSchema.getMetaValue(metaTable, "GSEcacheunittest", "id", testLogger));
+		metaTable.delete(new Delete(Bytes.toBytes("GSEcacheunittest")));
+	}
 }
@@ -5,6 +5,10 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -58,4 +62,39 @@ public class TroilkattTableTest {
 		b = TroilkattTable.string2array(null);
 		assertNull(b);
 	}
+	
+	@Test
+	public void testCreateScan() throws HbaseException {
+		String[] columns = {"in:GSE", "meta"};
+		Scan scan = TroilkattTable.createScan(columns, null);
+		assertEquals(2, scan.numFamilies());
+		assertEquals(1, scan.getFamilyMap().get(Bytes.toBytes("in")).size());
+		assertNull(scan.getFamilyMap().get(Bytes.toBytes("meta")));
+		assertEquals(TroilkattTable.DEFAULT_SCAN_CACHING, scan.getCaching());
+		assertFalse(scan.getCacheBlocks());
+		assertNull(scan.getFilter());
+		
+		scan = TroilkattTable.createScan(null, "null");
+		assertEquals(0, scan.numFamilies());
+		
+		scan = TroilkattTable.createScan(columns, "caching=100 batch=10 cacheBlocks=true prefix=GSE minTime=5 maxTime=10");
+		assertEquals(100, scan.getCaching());
+		assertEquals(10, scan.getBatch());
+		assertTrue(scan.getCacheBlocks());
+		assertTrue(scan.getFilter() instanceof PrefixFilter);
+		assertEquals("GSE", Bytes.toString(scan.getStartRow()));
+		assertEquals(5, scan.getTimeRange().getMin());
+		assertEquals(10, scan.getTimeRange().getMax());
+	}
+	
+	@Test(expected=HbaseException.class)
+	public void testCreateScanInvalidOption() throws HbaseException {
+		TroilkattTable.createScan(null, "caching=many");
+	}
+	
+	@Test(expected=HbaseException.class)
+	public void testCreateScanInvalidColumn() throws HbaseException {
+		String[] columns = {"in:GSE:foo"};
+		TroilkattTable.createScan(columns, null);
+	}
 }
@@ -0,0 +1,32 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CountAggregatorTest {
+
+	@Test
+	public void testAdd() {
+		CountAggregator aggregator = new CountAggregator(3);
+		assertEquals(0, aggregator.size());
+		assertFalse(aggregator.needsFlush());
+
+		aggregator.add("GENE1", 1);
+		aggregator.add("GENE2", 1);
+		aggregator.add("GENE1", 2);
+		assertEquals(2, aggregator.size());
+		assertEquals(3, aggregator.getCount("GENE1"));
+		assertEquals(1, aggregator.getCount("GENE2"));
+		assertEquals(0, aggregator.getCount("GENE3"));
+		assertFalse(aggregator.needsFlush());
+
+		// Table is full
+		aggregator.add("GENE3", 1);
+		assertTrue(aggregator.needsFlush());
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main("edu.princeton.function.troilkatt.mapreduce.CountAggregatorTest");
+	}
+}
@@ -0,0 +1,228 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.fs.Seekable;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+public class InputCacheTest extends TestSuper {
+	protected String cacheDir;
+	protected Logger testLogger;
+
+	@Before
+	public void setUp() throws Exception {
+		cacheDir = OsPath.join(tmpDir, "input-cache");
+		OsPath.deleteAll(cacheDir);
+		testLogger = Logger.getLogger("test");
+	}
+
+	@Test
+	public void testGetPut() throws IOException {
+		InputCache cache = new InputCache(cacheDir, 1024, testLogger);
+		assertNull(cache.get("/data/foo.1.bz2", 10));
+
+		String localFile = OsPath.join(tmpDir, "foo.1");
+		FSUtils.writeTextFile(localFile, new String[] {"line1", "line2"});
+		String cachedFile = cache.put(localFile, "/data/foo.1.bz2", 10);
+		assertFalse(OsPath.isfile(localFile));
+		assertEquals(cachedFile, cache.get("/data/foo.1.bz2", 10));
+		assertEquals(12, cache.size());
+
+		// Different modification time or directory
+		assertNull(cache.get("/data/foo.1.bz2", 11));
+		assertNull(cache.get("/data2/foo.1.bz2", 10));
+
+		// Too large files are not cached
+		FSUtils.writeTextFile(localFile, new String[] {new String(new char[2000])});
+		assertEquals(localFile, cache.put(localFile, "/data/bar.1.bz2", 10));
+		assertTrue(OsPath.isfile(localFile));
+	}
+
+	@Test
+	public void testEvict() throws IOException {
+		InputCache cache = new InputCache(cacheDir, 30, testLogger);
+		String localFile = OsPath.join(tmpDir, "foo.1");
+
+		FSUtils.writeTextFile(localFile, new String[] {"0123456789"});
+		String f1 = cache.put(localFile, "/data/f1", 1);
+		FSUtils.writeTextFile(localFile, new String[] {"0123456789"});
+		String f2 = cache.put(localFile, "/data/f2", 1);
+		// f1 is used more recently than f2
+		new File(f1).setLastModified(System.currentTimeMillis() + 10000);
+
+		FSUtils.writeTextFile(localFile, new String[] {"0123456789"});
+		String f3 = cache.put(localFile, "/data/f3", 1);
+		assertTrue(OsPath.isfile(f1));
+		assertFalse(OsPath.isfile(f2));
+		assertTrue(OsPath.isfile(f3));
+		assertEquals(22, cache.size());
+
+		// The added file is kept even if the other files were used more recently
+		new File(f3).setLastModified(System.currentTimeMillis() + 20000);
+		FSUtils.writeTextFile(localFile, new String[] {"0123456789"});
+		String f4 = cache.put(localFile, "/data/f4", 1);
+		assertFalse(OsPath.isfile(f1));
+		assertTrue(OsPath.isfile(f3));
+		assertTrue(OsPath.isfile(f4));
+		assertEquals(22, cache.size());
+	}
+
+	@Test
+	public void testConcurrentPut() throws Exception {
+		final InputCache cache = new InputCache(cacheDir, 50, testLogger);
+		Thread[] threads = new Thread[4];
+		final Throwable[] errors = new Throwable[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int t = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 20; j++) {
+							String localFile = OsPath.join(tmpDir, "foo." + t);
+							FSUtils.writeTextFile(localFile, new String[] {"0123456789"});
+							// Other threads may evict the file as soon as the lock is released
+							synchronized (cache) {
+								String f = cache.put(localFile, "/data/f" + t + "." + j, 1);
+								assertTrue(OsPath.isfile(f));
+							}
+						}
+					} catch (Throwable e) {
+						errors[t] = e;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			assertNull(errors[i]);
+		}
+		assertTrue(cache.size() <= 50);
+		assertEquals(4, OsPath.listdir(cacheDir).length);
+	}
+
+	@Test
+	public void testTee() throws IOException {
+		InputCache cache = new InputCache(cacheDir, 1024, testLogger);
+		byte[] content = "line1\nline2\n".getBytes();
+
+		// Read until end: added to cache
+		InputStream ins = cache.tee(new ByteArrayInputStream(content), "/data/foo.1.gz", 10);
+		BufferedReader br = new BufferedReader(new InputStreamReader(ins));
+		assertEquals("line1", br.readLine());
+		assertEquals("line2", br.readLine());
+		assertNull(br.readLine());
+		br.close();
+
+		String cachedFile = cache.get("/data/foo.1.gz", 10);
+		assertNotNull(cachedFile);
+		br = new BufferedReader(new FileReader(cachedFile));
+		assertEquals("line1", br.readLine());
+		assertEquals("line2", br.readLine());
+		assertNull(br.readLine());
+		br.close();
+
+		// Closed before end: not added, and temporary file deleted
+		ins = cache.tee(new ByteArrayInputStream(content), "/data/bar.1.gz", 10);
+		assertEquals('l', ins.read());
+		ins.close();
+		assertNull(cache.get("/data/bar.1.gz", 10));
+		assertEquals(1, OsPath.listdir(cacheDir).length);
+	}
+
+	@Test
+	public void testTeeClose() throws IOException {
+		InputCache cache = new InputCache(cacheDir, 1024 * 1024, testLogger);
+
+		// All compressed bytes are read by the decompressor: added to cache on close
+		byte[] compressed = gzip("line1\nline2\n".getBytes());
+		SeekableInputStream rawIn = new SeekableInputStream(compressed);
+		InputStream ins = cache.tee(new GZIPInputStream(rawIn), rawIn, compressed.length, "/data/foo.1.gz", 10);
+		BufferedReader br = new BufferedReader(new InputStreamReader(ins));
+		assertEquals("line1", br.readLine());
+		br.close();
+		String cachedFile = cache.get("/data/foo.1.gz", 10);
+		assertNotNull(cachedFile);
+		assertEquals(12, new File(cachedFile).length());
+
+		// Compressed bytes left: not added
+		byte[] content = new byte[512 * 1024];
+		new Random(7).nextBytes(content);
+		compressed = gzip(content);
+		rawIn = new SeekableInputStream(compressed);
+		ins = cache.tee(new GZIPInputStream(rawIn), rawIn, compressed.length, "/data/bar.1.gz", 10);
+		assertTrue(ins.read() != -1);
+		ins.close();
+		assertNull(cache.get("/data/bar.1.gz", 10));
+		assertEquals(1, OsPath.listdir(cacheDir).length);
+	}
+
+	@Test
+	public void testSweepTmpFiles() throws IOException {
+		OsPath.mkdir(cacheDir);
+		File stale = new File(cacheDir, InputCache.TMP_PREFIX + "foo");
+		FSUtils.writeTextFile(stale.getPath(), new String[] {"stale"});
+		stale.setLastModified(System.currentTimeMillis() - InputCache.STALE_TMP_AGE - 1000);
+		File recent = new File(cacheDir, InputCache.TMP_PREFIX + "bar");
+		FSUtils.writeTextFile(recent.getPath(), new String[] {"recent"});
+
+		// Stale files are deleted when the cache is initialized
+		InputCache cache = new InputCache(cacheDir, 1024, testLogger);
+		assertFalse(stale.exists());
+		assertTrue(recent.exists());
+
+		assertEquals(1, cache.sweepTmpFiles(0));
+		assertFalse(recent.exists());
+	}
+
+	/**
+	 * In-memory stream with a position, as the HDFS streams used by PerFile.
+	 */
+	protected static class SeekableInputStream extends ByteArrayInputStream implements Seekable {
+		public SeekableInputStream(byte[] buf) {
+			super(buf);
+		}
+
+		@Override
+		public long getPos() {
+			return pos;
+		}
+
+		@Override
+		public void seek(long p) {
+			pos = (int) p;
+		}
+
+		@Override
+		public boolean seekToNewSource(long targetPos) {
+			return false;
+		}
+	}
+
+	protected static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		GZIPOutputStream gos = new GZIPOutputStream(bos);
+		gos.write(content);
+		gos.close();
+		return bos.toByteArray();
+	}
+}
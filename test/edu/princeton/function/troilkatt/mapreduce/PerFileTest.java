@@ -5,10 +5,18 @@ import static org.junit.Assert.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -20,6 +28,7 @@ import edu.princeton.function.troilkatt.Pipeline;
 import edu.princeton.function.troilkatt.TestSuper;
 import edu.princeton.function.troilkatt.Troilkatt;
 import edu.princeton.function.troilkatt.TroilkattProperties;
+import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.LogTableHbase;
 import edu.princeton.function.troilkatt.fs.OsPath;
 import edu.princeton.function.troilkatt.fs.TroilkattHDFS;
@@ -177,6 +186,168 @@ public class PerFileTest extends TestSuper {
 		lr.readLine();		
 	}
 	
+	@Test
+	public void testPackedFileInputFormat() throws IOException {
+		// Three small files and one large file
+		String packDir = OsPath.join(tmpDir, "packed");
+		OsPath.mkdir(packDir);
+		int[] sizes = {10, 20, 30, 100};
+		for (int i = 0; i < sizes.length; i++) {
+			char[] data = new char[sizes[i]];
+			Arrays.fill(data, 'a');
+			FSUtils.writeTextFile(OsPath.join(packDir, "file" + i), new String[] {new String(data)});
+		}
+		
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		conf.setLong(PerFile.SPLIT_SIZE_KEY, 60);
+		Job job = Job.getInstance(conf);
+		FileInputFormat.setInputPaths(job, new Path("file://" + packDir));
+		
+		PerFile.PackedFileInputFormat format = new PerFile.PackedFileInputFormat();
+		List<InputSplit> splits = format.getSplits(job);
+		// Each file has a newline added
+		// Large file first, then 11 + 21 bytes, and 31 bytes
+		assertEquals(3, splits.size());
+		CombineFileSplit split = (CombineFileSplit) splits.get(0);
+		assertEquals(1, split.getNumPaths());
+		assertEquals(101, split.getLength());
+		split = (CombineFileSplit) splits.get(1);
+		assertEquals(2, split.getNumPaths());
+		assertEquals(32, split.getLength());
+		split = (CombineFileSplit) splits.get(2);
+		assertEquals(1, split.getNumPaths());
+		assertEquals(31, split.getLength());
+	}
+	
+	@Test
+	public void testPerFileConfInit() throws IOException, ClassNotFoundException {
+		// Packing is disabled by default
+		Configuration conf = new Configuration();
+		Job job = Job.getInstance(conf);
+		new PerFile().perFileConfInit(conf, job);
+		assertEquals(PerFile.WholeFileInputFormat.class, job.getInputFormatClass());
+		
+		conf.setLong(PerFile.SPLIT_SIZE_KEY, 60);
+		job = Job.getInstance(conf);
+		new PerFile().perFileConfInit(conf, job);
+		assertEquals(PerFile.PackedFileInputFormat.class, job.getInputFormatClass());
+		
+		// Enabled by a stage argument, which is not passed to the mapper
+		conf = new Configuration();
+		conf.set("troilkatt.stage.args", "0.7 splitsize=64 0.5");
+		job = Job.getInstance(conf);
+		new PerFile().perFileConfInit(conf, job);
+		assertEquals(PerFile.PackedFileInputFormat.class, job.getInputFormatClass());
+		assertEquals(64L * 1024 * 1024, job.getConfiguration().getLong(PerFile.SPLIT_SIZE_KEY, 0));
+		assertEquals("0.7 0.5", job.getConfiguration().get("troilkatt.stage.args"));
+		
+		// Enabled if files are processed in parallel
+		conf.set("troilkatt.stage.args", "0.7 threads=4 0.5");
+		job = Job.getInstance(conf);
+		new PerFile().perFileConfInit(conf, job);
+		assertEquals(PerFile.PackedFileInputFormat.class, job.getInputFormatClass());
+		assertEquals(PerFile.DEFAULT_SPLIT_SIZE, job.getConfiguration().getLong(PerFile.SPLIT_SIZE_KEY, 0));
+		assertEquals("0.7 threads=4 0.5", job.getConfiguration().get("troilkatt.stage.args"));
+		
+		// The input cache is disabled by default, and enabled by a stage argument
+		assertEquals(0, job.getConfiguration().getLong(InputCache.CACHE_SIZE_KEY, InputCache.DEFAULT_CACHE_SIZE_MB));
+		conf.set("troilkatt.stage.args", "inputcache=512 0.7");
+		job = Job.getInstance(conf);
+		new PerFile().perFileConfInit(conf, job);
+		assertEquals(512, job.getConfiguration().getLong(InputCache.CACHE_SIZE_KEY, 0));
+		assertEquals("0.7", job.getConfiguration().get("troilkatt.stage.args"));
+		assertEquals(PerFile.WholeFileInputFormat.class, job.getInputFormatClass());
+		
+		conf.set("troilkatt.stage.args", "0.7 splitsize=foo");
+		job = Job.getInstance(conf);
+		try {
+			new PerFile().perFileConfInit(conf, job);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testThreadsPackSplit() throws IOException, ClassNotFoundException {
+		String packDir = OsPath.join(tmpDir, "threads");
+		OsPath.mkdir(packDir);
+		for (int i = 0; i < 4; i++) {
+			FSUtils.writeTextFile(OsPath.join(packDir, "file" + i), new String[] {"line " + i});
+		}
+		
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		conf.set("troilkatt.stage.args", "threads=4");
+		Job job = Job.getInstance(conf);
+		new PerFile().perFileConfInit(conf, job);
+		FileInputFormat.setInputPaths(job, new Path("file://" + packDir));
+		
+		// All files are in one split, such that they are processed by one task
+		assertEquals(PerFile.PackedFileInputFormat.class, job.getInputFormatClass());
+		List<InputSplit> splits = new PerFile.PackedFileInputFormat().getSplits(job);
+		assertEquals(1, splits.size());
+		assertEquals(4, ((CombineFileSplit) splits.get(0)).getNumPaths());
+	}
+	
+	@Test
+	public void testFilenameReader() throws IOException {
+		Path[] paths = {new Path("/foo/file1"), new Path("/foo/file2"), new Path("/foo/file3")};
+		long[] starts = {0, 0, 0};
+		long[] lengths = {100, 300, 600};
+		CombineFileSplit split = new CombineFileSplit(paths, starts, lengths, new String[0]);
+		
+		PerFile.FilenameReader reader = new PerFile.FilenameReader();
+		reader.initialize(split, null);
+		assertEquals(0.0f, reader.getProgress(), 0.0001);
+		assertTrue(reader.nextKeyValue());
+		assertEquals("/foo/file1", reader.getCurrentKey().toString());
+		assertNull(reader.getCurrentValue());
+		assertEquals(0.0f, reader.getProgress(), 0.0001);
+		assertTrue(reader.nextKeyValue());
+		assertEquals("/foo/file2", reader.getCurrentKey().toString());
+		assertEquals(0.1f, reader.getProgress(), 0.0001);
+		assertTrue(reader.nextKeyValue());
+		assertEquals("/foo/file3", reader.getCurrentKey().toString());
+		assertEquals(0.4f, reader.getProgress(), 0.0001);
+		assertFalse(reader.nextKeyValue());
+		assertEquals(1.0f, reader.getProgress(), 0.0001);
+		assertFalse(reader.nextKeyValue());
+		
+		// Single file split
+		reader = new PerFile.FilenameReader();
+		reader.initialize(new FileSplit(paths[0], 0, 100, new String[0]), null);
+		assertTrue(reader.nextKeyValue());
+		assertEquals("/foo/file1", reader.getCurrentKey().toString());
+		assertFalse(reader.nextKeyValue());
+		assertEquals(1.0f, reader.getProgress(), 0.0001);
+	}
+	
+	@Test
+	public void testGetMapThreads() throws IOException {
+		assertEquals(1, PerFile.getMapThreads(new String[] {"0.7", "0.5", "0.3"}));
+		String[] args = {"0.7", "threads=4", "0.5"};
+		assertEquals(4, PerFile.getMapThreads(args));
+		String[] remaining = PerFile.removeMapThreadsArg(args);
+		assertEquals(2, remaining.length);
+		assertEquals("0.7", remaining[0]);
+		assertEquals("0.5", remaining[1]);
+		
+		try {
+			PerFile.getMapThreads(new String[] {"threads=0"});
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			PerFile.getMapThreads(new String[] {"threads=foo"});
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
 	public static void main(String args[]) {
 		org.junit.runner.JUnitCore.main("edu.princeton.function.troilkatt.mapreduce.PerFileTest");
 	}
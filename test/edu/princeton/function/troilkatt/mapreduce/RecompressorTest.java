@@ -0,0 +1,84 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+public class RecompressorTest extends TestSuper {
+	protected Recompressor recompressor;
+	protected FileSystem localFS;
+	protected byte[] sample;
+
+	@Before
+	public void setUp() throws Exception {
+		Configuration conf = new Configuration();
+		localFS = FileSystem.getLocal(conf);
+		recompressor = new Recompressor(conf, localFS, Logger.getLogger("test"));
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append("GENE" + (i % 100) + "\t0.5\t1.0\t-0.25\n");
+		}
+		sample = sb.toString().getBytes();
+	}
+
+	@Test
+	public void testBenchmark() throws IOException {
+		Recompressor.CodecResult r = recompressor.benchmark(sample, sample.length, "gz");
+		assertEquals("gz", r.compression);
+		assertEquals(sample.length, r.uncompressedBytes);
+		assertTrue(r.compressedBytes < sample.length);
+
+		r = recompressor.benchmark(sample, sample.length, "none");
+		assertEquals(sample.length, r.compressedBytes);
+
+		assertNull(recompressor.benchmark(sample, sample.length, "foo"));
+	}
+
+	@Test
+	public void testSelectCodec() throws IOException {
+		// With a slow network, compressible data is not stored uncompressed
+		Configuration conf = new Configuration();
+		conf.setFloat(Recompressor.READ_BANDWIDTH_KEY, 0.01f);
+		recompressor = new Recompressor(conf, localFS, Logger.getLogger("test"));
+		String c = recompressor.selectCodec(sample, sample.length, new String[] {"none", "gz"});
+		assertEquals("gz", c);
+		assertEquals("none", recompressor.selectCodec(sample, sample.length, new String[] {"none", "foo"}));
+	}
+
+	@Test
+	public void testRecompress() throws IOException {
+		String inputFile = OsPath.join(tmpDir, "recompress-input.1.none");
+		FSUtils.writeTextFile(inputFile, new String[] {"line1", "line2"});
+		String outputDir = OsPath.join(tmpDir, "recompress-output");
+		OsPath.deleteAll(outputDir);
+
+		Recompressor.RecompressResult r = recompressor.recompress(inputFile, "none", outputDir, "recompress-input", 1, "bz2");
+		assertEquals(OsPath.join(outputDir, "recompress-input.1.bz2"), r.outputFilename);
+		assertEquals(12, r.inputBytes);
+		assertEquals(12, r.uncompressedBytes);
+		assertEquals(new File(r.outputFilename).length(), r.outputBytes);
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(recompressor.openInput(new Path(r.outputFilename), "bz2")));
+		assertEquals("line1", br.readLine());
+		assertEquals("line2", br.readLine());
+		assertNull(br.readLine());
+		br.close();
+
+		assertNull(recompressor.recompress(inputFile, "none", outputDir, "recompress-input", 2, "foo"));
+	}
+}
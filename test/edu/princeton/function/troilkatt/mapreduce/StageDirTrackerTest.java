@@ -0,0 +1,69 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+public class StageDirTrackerTest extends TestSuper {
+	protected String rootDir;
+	protected String[] dirs;
+	protected Logger testLogger;
+
+	@Before
+	public void setUp() throws Exception {
+		rootDir = OsPath.join(tmpDir, "stage-dir-tracker");
+		OsPath.deleteAll(rootDir);
+		dirs = new String[] {OsPath.join(rootDir, "meta"), OsPath.join(rootDir, "output")};
+		testLogger = Logger.getLogger("test");
+	}
+
+	@Test
+	public void testClean() throws IOException {
+		StageDirTracker tracker = new StageDirTracker(dirs);
+		assertTrue(OsPath.isdir(dirs[0]));
+		assertTrue(OsPath.isdir(dirs[1]));
+
+		FSUtils.writeTextFile(OsPath.join(dirs[0], "meta1"), new String[] {"foo"});
+		tracker.snapshot();
+
+		// Files and directories created after the snapshot are deleted
+		FSUtils.writeTextFile(OsPath.join(dirs[0], "tmp1"), new String[] {"bar"});
+		FSUtils.writeTextFile(OsPath.join(dirs[1], "out1"), new String[] {"baz"});
+		OsPath.mkdir(OsPath.join(dirs[1], "subdir"));
+		FSUtils.writeTextFile(OsPath.join(dirs[1], "subdir/out2"), new String[] {"baz"});
+		assertEquals(3, tracker.clean(testLogger));
+		assertTrue(OsPath.isfile(OsPath.join(dirs[0], "meta1")));
+		assertFalse(OsPath.isfile(OsPath.join(dirs[0], "tmp1")));
+		assertEquals(0, OsPath.listdir(dirs[1]).length);
+
+		// Nothing to delete
+		assertEquals(0, tracker.clean(testLogger));
+
+		// Deleted directories are re-created
+		OsPath.deleteAll(dirs[1]);
+		assertEquals(0, tracker.clean(testLogger));
+		assertTrue(OsPath.isdir(dirs[1]));
+	}
+	
+	@Test
+	public void testReleaseWarmStage() {
+		String stageDir = OsPath.join(rootDir, "005-stage-attempt_1");
+		OsPath.mkdir(OsPath.join(stageDir, "meta"));
+		ExecuteStage.ExecutePerFileMapper.setWarmStageDir(stageDir);
+		assertEquals(stageDir, ExecuteStage.ExecutePerFileMapper.warmStageDir);
+		
+		// The directory of the previous stage instance is deleted
+		ExecuteStage.ExecutePerFileMapper.releaseWarmStage(testLogger);
+		assertFalse(OsPath.isdir(stageDir));
+		assertNull(ExecuteStage.ExecutePerFileMapper.warmStageDir);
+		assertNull(ExecuteStage.ExecutePerFileMapper.warmStage);
+	}
+}
@@ -0,0 +1,149 @@
+package edu.princeton.function.troilkatt.mapreduce;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+public class TaskMetricsTest extends TestSuper {
+	protected String outputDir;
+
+	@Before
+	public void setUp() throws Exception {
+		outputDir = OsPath.join(tmpDir, "task-metrics");
+		OsPath.deleteAll(outputDir);
+		OsPath.mkdir(outputDir);
+	}
+
+	@Test
+	public void testFileMetrics() throws IOException {
+		TaskMetrics metrics = new TaskMetrics();
+		metrics.startFile("/foo/bar.1.gz", 1234);
+		
+		InputStream ins = metrics.countInput(new ByteArrayInputStream(new byte[100]));
+		byte[] buf = new byte[64];
+		while (ins.read(buf) != -1) {
+			// read all
+		}
+		assertEquals(-1, ins.read());
+		OutputStream os = metrics.countOutput(new ByteArrayOutputStream());
+		os.write(new byte[10]);
+		os.write(1);
+		// Local output files are also counted
+		FSUtils.writeTextFile(OsPath.join(outputDir, "out"), new String[] {"1234"});
+		metrics.countOutputFile(OsPath.join(outputDir, "out"));
+		
+		String line = metrics.endFile(null);
+		String[] cols = line.split("\t");
+		assertEquals(7, cols.length);
+		assertEquals("/foo/bar.1.gz", cols[0]);
+		assertEquals("1234", cols[1]);
+		assertEquals("100", cols[2]);
+		assertEquals("16", cols[3]);
+		assertTrue(Long.valueOf(cols[4]) >= 0);
+		assertTrue(Long.valueOf(cols[5]) >= 0);
+		assertTrue(Long.valueOf(cols[6]) > 0);
+		assertEquals(1, metrics.getLines().size());
+		
+		// Counts are reset for the next file
+		metrics.startFile("/foo/baz.1.gz", 10);
+		cols = metrics.endFile(null).split("\t");
+		assertEquals("0", cols[2]);
+		assertEquals("0", cols[3]);
+		assertEquals(2, metrics.getLines().size());
+	}
+	
+	@Test
+	public void testMerge() throws IOException {
+		TaskMetrics metrics = new TaskMetrics();
+		metrics.startFile("file1", 100);
+		metrics.endFile(null);
+		
+		// One object per thread
+		TaskMetrics threadMetrics = new TaskMetrics(true);
+		threadMetrics.startFile("file2", 200);
+		threadMetrics.countOutput(new ByteArrayOutputStream()).write(new byte[10]);
+		threadMetrics.endFile(null);
+		metrics.merge(threadMetrics);
+		
+		ArrayList<String> lines = metrics.getLines();
+		assertEquals(2, lines.size());
+		String[] cols = lines.get(1).split("\t");
+		assertEquals("file2", cols[0]);
+		assertEquals("200", cols[1]);
+		assertEquals("10", cols[3]);
+	}
+	
+	@Test
+	public void testGetBucketName() {
+		assertEquals("Wall time < 1000ms", TaskMetrics.getBucketName("Wall time", 999, TaskMetrics.WALL_TIME_BUCKETS, "ms"));
+		assertEquals("Wall time < 10000ms", TaskMetrics.getBucketName("Wall time", 1000, TaskMetrics.WALL_TIME_BUCKETS, "ms"));
+		assertEquals("Peak heap >= 16384MB", TaskMetrics.getBucketName("Peak heap", 20000, TaskMetrics.PEAK_HEAP_BUCKETS, "MB"));
+	}
+	
+	@Test
+	public void testSaveCollect() throws IOException {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		String jobOutputDir = OsPath.join(outputDir, "job");
+		
+		// No metrics written
+		assertEquals(-1, TaskMetrics.collect(fs, jobOutputDir, outputDir));
+		
+		TaskMetrics metrics1 = new TaskMetrics();
+		metrics1.startFile("file1", 100);
+		metrics1.endFile(null);
+		metrics1.startFile("file2", 200);
+		metrics1.endFile(null);
+		metrics1.save(fs, jobOutputDir, "attempt_1");
+		TaskMetrics metrics2 = new TaskMetrics();
+		metrics2.startFile("file3", 300);
+		metrics2.endFile(null);
+		metrics2.save(fs, jobOutputDir, "attempt_2");
+		// Nothing written for empty task
+		new TaskMetrics().save(fs, jobOutputDir, "attempt_3");
+		
+		assertEquals(3, TaskMetrics.collect(fs, jobOutputDir, outputDir));
+		assertFalse(fs.exists(new Path(OsPath.join(jobOutputDir, TaskMetrics.METRICS_DIR))));
+		String[] lines = FSUtils.readTextFile(OsPath.join(outputDir, TaskMetrics.METRICS_FILENAME));
+		assertEquals(4, lines.length);
+		assertEquals(TaskMetrics.HEADER, lines[0]);
+		String[] report = FSUtils.readTextFile(OsPath.join(outputDir, TaskMetrics.REPORT_FILENAME));
+		assertEquals("Files: 3", report[0]);
+		assertEquals("Bytes in: 600", report[1]);
+	}
+	
+	@Test
+	public void testCreateReport() {
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		rows.add("file1\t100\t500\t50\t1000\t10\t300".split("\t"));
+		rows.add("file2\t200\t1000\t60\t3000\t20\t200".split("\t"));
+		String[] report = TaskMetrics.createReport(rows).split("\n");
+		assertEquals("Files: 2", report[0]);
+		assertEquals("Bytes in: 300", report[1]);
+		assertEquals("Bytes read: 1500", report[2]);
+		assertEquals("Bytes out: 110", report[3]);
+		assertEquals("Wall time (ms): 4000", report[4]);
+		assertEquals("GC time (ms): 30", report[5]);
+		assertEquals("Max peak heap (MB): 300", report[6]);
+		assertEquals("Slowest files (wall time ms):", report[7]);
+		assertEquals("\t3000\tfile2", report[8]);
+		assertEquals("\t1000\tfile1", report[9]);
+		assertEquals("Largest heap files (peak heap MB):", report[10]);
+		assertEquals("\t300\tfile1", report[11]);
+	}
+}
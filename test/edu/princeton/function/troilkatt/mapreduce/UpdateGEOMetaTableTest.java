@@ -237,6 +237,71 @@ public class UpdateGEOMetaTableTest extends TestSuper {
 		verifyGSERow(result2);
 	}
 	
+	// Bulk load
+	@Test
+	public void executeJobBulk() throws TroilkattPropertiesException, StageInitException, StageException, IOException {
+		MapReduce mrs = new MapReduce(5, "mapreduce-metatest", 
+				testJar + " " + testClass + " 2048 4096 bulk",
+				null, "gz", -1, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);				
+		
+		resetRows(timestamp + 12);
+		
+		inputFiles.add(OsPath.join(inputDir, "GDS2949_full.soft.6.gz"));
+		inputFiles.add(OsPath.join(inputDir, "GSE8070_family.soft.6.bz2"));
+		ArrayList<String> outputFiles = mrs.process2(inputFiles, timestamp + 13);		
+		assertEquals(0, outputFiles.size());
+		
+		Get get1 = new Get(Bytes.toBytes("GDS2949"));
+		Result result1 = table.get(get1);
+		verifyGDSRow(result1);
+		Get get2 = new Get(Bytes.toBytes("GSE8070"));
+		Result result2 = table.get(get2);
+		verifyGSERow(result2);
+	}
+	
+	@Test
+	public void testUseBulkLoad() throws StageInitException {
+		assertFalse(UpdateGEOMetaTable.useBulkLoad("online", 100000));
+		assertTrue(UpdateGEOMetaTable.useBulkLoad("bulk", 1));
+		assertTrue(UpdateGEOMetaTable.useBulkLoad("auto 10", 10));
+		assertFalse(UpdateGEOMetaTable.useBulkLoad("auto 10", 9));
+		assertFalse(UpdateGEOMetaTable.useBulkLoad(null, UpdateGEOMetaTable.DEFAULT_BULK_LOAD_THRESHOLD - 1));
+		assertTrue(UpdateGEOMetaTable.useBulkLoad("null", UpdateGEOMetaTable.DEFAULT_BULK_LOAD_THRESHOLD));
+	}
+	
+	@Test(expected=StageInitException.class)
+	public void testUseBulkLoadInvalid() throws StageInitException {
+		UpdateGEOMetaTable.useBulkLoad("sometimes", 10);
+	}
+	
+	@Test
+	public void testIndexUpdateLine() throws IOException {
+		String key = GeoMetaTableSchema.getIndexKey(GeoMetaTableSchema.ORGANISM_INDEX, "Homo sapiens", "GSE1234");
+		String organisms = "Homo sapiens\nMus\tmusculus";
+		String line = UpdateGEOMetaTable.formatIndexUpdate(UpdateGEOMetaTable.INDEX_PUT, "GSE1234", organisms, key);
+		assertEquals(-1, line.indexOf('\n'));
+		String[] parts = UpdateGEOMetaTable.parseIndexUpdate(line);
+		assertEquals(UpdateGEOMetaTable.INDEX_PUT, parts[0]);
+		assertEquals("GSE1234", parts[1]);
+		// The organisms value contains a newline and a tab
+		assertEquals(organisms, parts[2]);
+		// The key contains tabs
+		assertEquals(key, parts[3]);
+		
+		line = UpdateGEOMetaTable.formatIndexUpdate(UpdateGEOMetaTable.INDEX_DELETE, "GSE1234", null, key);
+		parts = UpdateGEOMetaTable.parseIndexUpdate(line);
+		assertEquals(UpdateGEOMetaTable.INDEX_DELETE, parts[0]);
+		assertNull(parts[2]);
+		assertEquals(key, parts[3]);
+	}
+	
+	@Test(expected=IOException.class)
+	public void testIndexUpdateLineInvalid() throws IOException {
+		UpdateGEOMetaTable.parseIndexUpdate("*\tGSE1234\t\torg\tHomo sapiens\tGSE1234");
+	}
+	
 	private void resetRows(long timestamp) throws IOException {
 		Put resetRow1 = new Put(Bytes.toBytes("GDS2949"), timestamp);
 		// Will fail in verify test
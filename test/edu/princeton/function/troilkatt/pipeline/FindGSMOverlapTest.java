@@ -153,6 +153,8 @@ public class FindGSMOverlapTest extends TestSuper {
 		String gid = "GSE445566";
 		long timestamp = TroilkattStatus.getTimestamp();
 		stage.putPostSamples(gid, putSamples, timestamp);
+		// Updates are buffered
+		stage.metaCache.flush();
 		
 		String val = GeoMetaTableSchema.getValue(stage.metaTable, gid, "calculated", "sampleIDs-overlapRemoved", stage.logger);
 		assertNotNull(val);
@@ -166,6 +168,7 @@ public class FindGSMOverlapTest extends TestSuper {
 		putSamples.clear();
 		gid = "GSE445567"; 
 		stage.putPostSamples(gid, putSamples, timestamp);		
+		stage.metaCache.flush();
 		val = GeoMetaTableSchema.getValue(stage.metaTable, gid, "calculated", "sampleIDs-overlapRemoved", stage.logger);
 		assertNotNull(val);
 		getSamples = TroilkattTable.string2array(val);
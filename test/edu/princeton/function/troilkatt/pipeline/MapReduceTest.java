@@ -98,6 +98,18 @@ public class MapReduceTest extends TestSuper {
 		assertNotNull(mrs.mapReduceCmd);
 	}
 
+	@Test 
+	public void testMapReducePredictMemory() throws TroilkattPropertiesException, StageInitException {
+		assertFalse(mrs.predictMemory);
+		mrs = new MapReduce(8, "mapreduce-unittest", testJar + " " + testClass + " auto 8192 atn1 vcsd1",
+				hdfsOutput, "gz", -1, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertTrue(mrs.predictMemory);
+		assertEquals(8192, mrs.taskMaxVMem);
+		assertEquals("atn1 vcsd1", mrs.stageArgs);
+	}
+
 	@Test
 	public void testDownloadInputFiles() throws StageException {
 		ArrayList<String> downloaded = mrs.downloadInputFiles(inputFiles);
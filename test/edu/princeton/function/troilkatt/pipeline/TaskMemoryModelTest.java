@@ -0,0 +1,110 @@
+package edu.princeton.function.troilkatt.pipeline;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TaskMemoryModelTest {
+	protected static Logger testLogger;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		testLogger = Logger.getLogger("test");
+	}
+
+	@Test
+	public void testEstimateHeapMB() {
+		long mb = TaskMemoryModel.MB;
+		// Empty file
+		assertEquals(TaskMemoryModel.BASE_HEAP_MB, TaskMemoryModel.estimateHeapMB(0, "gz", 0, 0));
+		// 10MB uncompressed file
+		assertEquals(TaskMemoryModel.BASE_HEAP_MB + 30, TaskMemoryModel.estimateHeapMB(10 * mb, "none", 0, 0));
+		// Compressed files are larger in memory
+		assertEquals(TaskMemoryModel.BASE_HEAP_MB + 150, TaskMemoryModel.estimateHeapMB(10 * mb, "gz", 0, 0));
+		assertEquals(TaskMemoryModel.BASE_HEAP_MB + 210, TaskMemoryModel.estimateHeapMB(10 * mb, "bz2", 0, 0));
+		// Sample and row counts give a larger estimate: 1024 * 65536 * 16 bytes = 1024MB
+		assertEquals(TaskMemoryModel.BASE_HEAP_MB + 1024, TaskMemoryModel.estimateHeapMB(10 * mb, "gz", 1024, 65536));
+		// but a smaller sample count estimate is ignored
+		assertEquals(TaskMemoryModel.BASE_HEAP_MB + 150, TaskMemoryModel.estimateHeapMB(10 * mb, "gz", 10, 1000));
+	}
+	
+	@Test
+	public void testGetCompressionRatio() {
+		assertEquals(1.0, TaskMemoryModel.getCompressionRatio("none"), 0.0001);
+		assertEquals(1.0, TaskMemoryModel.getCompressionRatio(null), 0.0001);
+		assertEquals(5.0, TaskMemoryModel.getCompressionRatio("gz"), 0.0001);
+		assertEquals(7.0, TaskMemoryModel.getCompressionRatio("bz2"), 0.0001);
+	}
+
+	@Test
+	public void testGetHeapLevels() {
+		ArrayList<Long> levels = TaskMemoryModel.getHeapLevels(8192);
+		assertEquals(3, levels.size());
+		assertEquals(1024, (long) levels.get(0));
+		assertEquals(2048, (long) levels.get(1));
+		assertEquals(4096, (long) levels.get(2));
+		
+		// Smallest level is always included
+		levels = TaskMemoryModel.getHeapLevels(2048);
+		assertEquals(1, levels.size());
+		assertEquals(1024, (long) levels.get(0));
+		
+		assertEquals(4096, TaskMemoryModel.getTaskVMem(2048, 8192));
+		assertEquals(2048, TaskMemoryModel.getTaskVMem(1024, 2048));
+	}
+	
+	@Test
+	public void testGetHeapLevelsSmallVMem() {
+		// Smallest level is reduced to fit the task memory limit
+		ArrayList<Long> levels = TaskMemoryModel.getHeapLevels(1536);
+		assertEquals(1, levels.size());
+		assertEquals(768, (long) levels.get(0));
+		assertEquals(1536, TaskMemoryModel.getTaskVMem(768, 1536));
+		
+		levels = TaskMemoryModel.getHeapLevels(1024);
+		assertEquals(1, levels.size());
+		assertEquals(512, (long) levels.get(0));
+		assertEquals(1024, TaskMemoryModel.getTaskVMem(512, 1024));
+		
+		// All files are in the single reduced wave
+		ArrayList<String> files = new ArrayList<String>();
+		HashMap<String, Long> estimates = new HashMap<String, Long>();
+		files.add("small");
+		estimates.put("small", 300L);
+		files.add("large");
+		estimates.put("large", 3000L);
+		TreeMap<Long, ArrayList<String>> waves = TaskMemoryModel.groupWaves(files, estimates, 1536, testLogger);
+		assertEquals(1, waves.size());
+		assertEquals(2, waves.get(768L).size());
+	}
+	
+	@Test
+	public void testGroupWaves() {
+		ArrayList<String> files = new ArrayList<String>();
+		HashMap<String, Long> estimates = new HashMap<String, Long>();
+		String[] names = {"small1", "large", "medium", "small2", "huge"};
+		long[] sizes = {300, 3000, 1500, 1024, 10000};
+		for (int i = 0; i < names.length; i++) {
+			files.add(names[i]);
+			estimates.put(names[i], sizes[i]);
+		}
+		
+		TreeMap<Long, ArrayList<String>> waves = TaskMemoryModel.groupWaves(files, estimates, 8192, testLogger);
+		assertEquals(3, waves.size());
+		assertEquals(2, waves.get(1024L).size());
+		assertEquals("small1", waves.get(1024L).get(0));
+		assertEquals("small2", waves.get(1024L).get(1));
+		assertEquals(1, waves.get(2048L).size());
+		assertEquals("medium", waves.get(2048L).get(0));
+		// Files larger than the largest level are in the largest wave
+		assertEquals(2, waves.get(4096L).size());
+		assertEquals("large", waves.get(4096L).get(0));
+		assertEquals("huge", waves.get(4096L).get(1));
+	}
+}
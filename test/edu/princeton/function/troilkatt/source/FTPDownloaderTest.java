@@ -0,0 +1,136 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+public class FTPDownloaderTest extends TestSuper {
+	/**
+	 * In-process stand-in for an FTP server. A transfer can be set to fail after half of 
+	 * the remaining bytes have been sent.
+	 */
+	static class TestServer {
+		HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+		// remote filename -> number of transfers that should fail
+		HashMap<String, Integer> failures = new HashMap<String, Integer>();
+		// Offsets requested by clients
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		int connects = 0;
+
+		public FTPDownloader.Connection createConnection() {
+			return new FTPDownloader.Connection() {
+				boolean connected = false;
+
+				@Override
+				public void connect() throws IOException {
+					synchronized (TestServer.this) {
+						connects++;
+					}
+					connected = true;
+				}
+
+				@Override
+				public boolean isConnected() {
+					return connected;
+				}
+
+				@Override
+				public boolean retrieve(String remoteFilename, OutputStream os, long offset) throws IOException {
+					byte[] content;
+					boolean fail = false;
+					synchronized (TestServer.this) {
+						offsets.add(offset);
+						content = files.get(remoteFilename);
+						Integer f = failures.get(remoteFilename);
+						if ((f != null) && (f > 0)) {
+							failures.put(remoteFilename, f - 1);
+							fail = true;
+						}
+					}
+					if (content == null) {
+						return false;
+					}
+					int len = content.length - (int) offset;
+					if (fail) {
+						os.write(content, (int) offset, len / 2);
+						throw new IOException("Connection closed");
+					}
+					os.write(content, (int) offset, len);
+					return true;
+				}
+
+				@Override
+				public void disconnect() {
+					connected = false;
+				}
+			};
+		}
+	}
+
+	protected TestServer server;
+	protected String downloadDir;
+	protected Logger testLogger;
+
+	@Before
+	public void setUp() throws Exception {
+		testLogger = Logger.getLogger("test");
+		downloadDir = OsPath.join(tmpDir, "ftp-download");
+		OsPath.deleteAll(downloadDir);
+		OsPath.mkdir(downloadDir);
+
+		server = new TestServer();
+		for (int i = 0; i < 10; i++) {
+			server.files.put("/dir/file" + i, ("content of file " + i).getBytes());
+		}
+	}
+
+	@Test
+	public void testRetryResume() throws InterruptedException, IOException {
+		server.failures.put("/dir/file1", 2);
+		FTPDownloader downloader = new FTPDownloader(3, 1, 10, testLogger);
+		String localFilename = OsPath.join(downloadDir, "file1");
+		assertTrue(downloader.download(server.createConnection(), "/dir/file1", localFilename));
+
+		assertEquals("content of file 1", FSUtils.readTextFile(localFilename)[0]);
+		// Each retry resumes from the bytes already downloaded (16 bytes in total)
+		assertEquals(Arrays.asList(0L, 8L, 12L), server.offsets);
+		// Reconnected after each failure
+		assertEquals(3, server.connects);
+	}
+
+	@Test
+	public void testFailures() throws InterruptedException {
+		server.failures.put("/dir/file1", 5);
+		FTPDownloader downloader = new FTPDownloader(3, 1, 10, testLogger);
+		FTPDownloader.Connection c = server.createConnection();
+		assertFalse(downloader.download(c, "/dir/file1", OsPath.join(downloadDir, "file1")));
+		assertFalse(downloader.download(c, "/dir/missing", OsPath.join(downloadDir, "missing")));
+		assertTrue(downloader.download(c, "/dir/file2", OsPath.join(downloadDir, "file2")));
+
+		// Partially downloaded file is deleted
+		assertEquals(1, OsPath.listdir(downloadDir).length);
+	}
+
+	@Test
+	public void testGetBackoff() {
+		FTPDownloader downloader = new FTPDownloader(10, 1000, 5000, testLogger);
+		for (int i = 1; i < 64; i++) {
+			long b = downloader.getBackoff(i);
+			long expected = Math.min(5000, 1000L << Math.min(i - 1, 30));
+			assertTrue(b >= expected / 2);
+			assertTrue(b <= expected);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.pipeline.StageException;
+
+public class GeoFetchCoordinatorTest extends TestSuper {
+	/**
+	 * In-process stand-in for the GEO FTP server.
+	 */
+	static class TestServer implements GeoFetchCoordinator.ConnectionFactory {
+		HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+		// Remote filenames in the order they were retrieved
+		ArrayList<String> retrieved = new ArrayList<String>();
+		// Number of listings that should fail
+		int listFailures = 0;
+		int lists = 0;
+		int active = 0;
+		int maxActive = 0;
+
+		@Override
+		public GeoFetchCoordinator.Connection createConnection() {
+			return new GeoFetchCoordinator.Connection() {
+				boolean connected = false;
+
+				@Override
+				public void connect() throws IOException {
+					connected = true;
+				}
+
+				@Override
+				public boolean isConnected() {
+					return connected;
+				}
+
+				@Override
+				public boolean retrieve(String remoteFilename, OutputStream os, long offset) throws IOException {
+					byte[] content;
+					synchronized (TestServer.this) {
+						retrieved.add(remoteFilename);
+						active++;
+						maxActive = Math.max(maxActive, active);
+						content = files.get(remoteFilename);
+					}
+					try {
+						Thread.sleep(10);
+						if (content == null) {
+							return false;
+						}
+						os.write(content, (int) offset, content.length - (int) offset);
+						return true;
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					} finally {
+						synchronized (TestServer.this) {
+							active--;
+						}
+					}
+				}
+
+				@Override
+				public FTPFile[] list(String dir) throws IOException {
+					synchronized (TestServer.this) {
+						lists++;
+						if (listFailures > 0) {
+							listFailures--;
+							return null;
+						}
+						ArrayList<FTPFile> ftpFiles = new ArrayList<FTPFile>();
+						for (String f: files.keySet()) {
+							if (OsPath.dirname(f).equals(dir)) {
+								FTPFile ftpFile = new FTPFile();
+								ftpFile.setName(OsPath.basename(f));
+								ftpFile.setSize(files.get(f).length);
+								ftpFiles.add(ftpFile);
+							}
+						}
+						return ftpFiles.toArray(new FTPFile[ftpFiles.size()]);
+					}
+				}
+
+				@Override
+				public void disconnect() {
+					connected = false;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Handler that returns the content of the downloaded file.
+	 */
+	static class ContentHandler implements FTPDownloader.FileHandler {
+		@Override
+		public String handle(String remoteFilename, String localFilename) throws StageException {
+			try {
+				String[] lines = FSUtils.readTextFile(localFilename);
+				OsPath.delete(localFilename);
+				return lines[0];
+			} catch (IOException e) {
+				throw new StageException("Could not read file");
+			}
+		}
+	}
+
+	protected TestServer server;
+	protected String cacheDir;
+	protected String downloadDir;
+	protected Logger testLogger;
+	protected GeoFetchCoordinator coordinator;
+
+	@Before
+	public void setUp() throws Exception {
+		testLogger = Logger.getLogger("test");
+		cacheDir = OsPath.join(tmpDir, "geo-fetch-cache");
+		downloadDir = OsPath.join(tmpDir, "geo-fetch-download");
+		OsPath.deleteAll(downloadDir);
+
+		server = new TestServer();
+		for (int i = 0; i < 10; i++) {
+			server.files.put("/dir/file" + i, ("content of file " + i).getBytes());
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (coordinator != null) {
+			coordinator.shutdown();
+		}
+	}
+
+	protected GeoFetchCoordinator createCoordinator(int nConnections, long cacheSize) {
+		coordinator = new GeoFetchCoordinator(server, nConnections, 0, cacheSize, cacheDir, testLogger);
+		coordinator.downloader = new FTPDownloader(2, 1, 10, testLogger);
+		coordinator.lsInitialWaitTime = 1;
+		return coordinator;
+	}
+
+	@Test
+	public void testFetchAll() throws StageException {
+		createCoordinator(3, 1024 * 1024);
+		ArrayList<String> remote = new ArrayList<String>(server.files.keySet());
+		remote.add("/dir/missing");
+		HashMap<String, String> results = coordinator.fetchAll(remote, null, downloadDir, 1, new ContentHandler());
+
+		assertEquals(10, results.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("content of file " + i, results.get("/dir/file" + i));
+		}
+		assertTrue(server.maxActive <= 3);
+		assertEquals(0, OsPath.listdir(downloadDir).length);
+	}
+
+	@Test
+	public void testPriority() throws StageException {
+		createCoordinator(1, 1024 * 1024);
+		HashMap<String, Long> sizes = new HashMap<String, Long>();
+		sizes.put("/dir/file1", 500L);
+		sizes.put("/dir/file2", 100L);
+		sizes.put("/dir/file3", 300L);
+		coordinator.fetchAll(Arrays.asList("/dir/file0", "/dir/file1", "/dir/file2", "/dir/file3"),
+				sizes, downloadDir, 1, new ContentHandler());
+
+		// Smallest first, and unknown size last
+		assertEquals(Arrays.asList("/dir/file2", "/dir/file3", "/dir/file1", "/dir/file0"), server.retrieved);
+	}
+
+	@Test
+	public void testDeduplicate() throws StageException {
+		createCoordinator(2, 1024 * 1024);
+		HashMap<String, String> results1 = coordinator.fetchAll(Arrays.asList("/dir/file1", "/dir/file2"),
+				null, downloadDir, 1, new ContentHandler());
+		HashMap<String, String> results2 = coordinator.fetchAll(Arrays.asList("/dir/file2", "/dir/file3", "/dir/file3"),
+				null, downloadDir, 1, new ContentHandler());
+
+		assertEquals(2, results1.size());
+		assertEquals(2, results2.size());
+		assertEquals("content of file 2", results2.get("/dir/file2"));
+		// The second request for file2 is served from the cache
+		assertEquals(3, server.retrieved.size());
+
+		// The cache is cleared in the next iteration
+		coordinator.fetchAll(Arrays.asList("/dir/file2"), null, downloadDir, 2, new ContentHandler());
+		assertEquals(4, server.retrieved.size());
+		assertEquals(1, OsPath.listdir(cacheDir).length);
+	}
+
+	@Test
+	public void testLink() throws StageException {
+		createCoordinator(1, 1024 * 1024);
+		HashMap<String, String> results = coordinator.fetchAll(Arrays.asList("/dir/file1"), null, downloadDir, 1, 
+				new FTPDownloader.FileHandler() {
+					@Override
+					public String handle(String remoteFilename, String localFilename) throws StageException {
+						try {
+							// The receiver gets a read-only link to the cached file
+							Path local = Paths.get(localFilename);
+							Path cached = Paths.get(OsPath.listdir(cacheDir)[0]);
+							assertTrue(Files.isSameFile(local, cached));
+							assertFalse(Files.getPosixFilePermissions(local).contains(PosixFilePermission.OWNER_WRITE));
+						} catch (IOException e) {
+							throw new StageException("Could not read file attributes");
+						}
+						return new ContentHandler().handle(remoteFilename, localFilename);
+					}
+		});
+		assertEquals("content of file 1", results.get("/dir/file1"));
+		// Deleting the link does not delete the cached file
+		assertEquals(1, OsPath.listdir(cacheDir).length);
+	}
+
+	@Test
+	public void testCacheSize() throws StageException {
+		createCoordinator(1, 0);
+		HashMap<String, String> results = coordinator.fetchAll(Arrays.asList("/dir/file1", "/dir/file2"),
+				null, downloadDir, 1, new ContentHandler());
+		assertEquals(2, results.size());
+		// Files are moved to the receiver since they cannot be cached
+		assertEquals(0, OsPath.listdir(cacheDir).length);
+
+		results = coordinator.fetchAll(Arrays.asList("/dir/file1"), null, downloadDir, 1, new ContentHandler());
+		assertEquals("content of file 1", results.get("/dir/file1"));
+		assertEquals(3, server.retrieved.size());
+	}
+
+	@Test(expected=StageException.class)
+	public void testHandlerException() throws StageException {
+		createCoordinator(1, 1024 * 1024);
+		try {
+			coordinator.fetchAll(Arrays.asList("/dir/file1", "/dir/file2"), null, downloadDir, 1, new FTPDownloader.FileHandler() {
+				@Override
+				public String handle(String remoteFilename, String localFilename) throws StageException {
+					throw new StageException("Abort");
+				}
+			});
+		} finally {
+			// The aborted call no longer waits for any of the files
+			for (GeoFetchCoordinator.Request req: coordinator.requests.values()) {
+				assertEquals(0, req.waiters);
+			}
+		}
+	}
+
+	@Test
+	public void testCancelQueued() throws InterruptedException {
+		createCoordinator(1, 1024 * 1024);
+		ArrayList<String> remote = new ArrayList<String>(server.files.keySet());
+		try {
+			coordinator.fetchAll(remote, null, downloadDir, 1, new FTPDownloader.FileHandler() {
+				@Override
+				public String handle(String remoteFilename, String localFilename) throws StageException {
+					throw new StageException("Abort");
+				}
+			});
+			fail("StageException expected");
+		} catch (StageException e) {
+			// expected
+		}
+
+		// Files that were not yet downloaded are not downloaded
+		assertEquals(0, coordinator.queue.size());
+		Thread.sleep(100);
+		assertTrue(server.retrieved.size() < 10);
+		for (GeoFetchCoordinator.Request req: coordinator.requests.values()) {
+			assertTrue(req.done || server.retrieved.contains(req.remoteFilename));
+		}
+	}
+
+	@Test
+	public void testRestart() throws StageException {
+		createCoordinator(2, 1024 * 1024);
+		coordinator.fetchAll(Arrays.asList("/dir/file1"), null, downloadDir, 1, new ContentHandler());
+		coordinator.shutdown(false);
+		assertTrue(coordinator.workers.isEmpty());
+
+		// The workers are restarted, and the cached file is used
+		HashMap<String, String> results = coordinator.fetchAll(Arrays.asList("/dir/file1", "/dir/file2"),
+				null, downloadDir, 1, new ContentHandler());
+		assertEquals(2, results.size());
+		assertEquals(2, server.retrieved.size());
+		assertEquals(2, coordinator.workers.size());
+	}
+
+	@Test
+	public void testListDir() throws StageException {
+		createCoordinator(1, 1024 * 1024);
+		server.listFailures = 2;
+		FTPFile[] files = coordinator.listDir("/dir", 1);
+		assertEquals(10, files.length);
+		assertEquals(3, server.lists);
+
+		// Cached for the iteration
+		assertSame(files, coordinator.listDir("/dir", 1));
+		assertEquals(3, server.lists);
+
+		coordinator.listDir("/dir", 2);
+		assertEquals(4, server.lists);
+	}
+
+	@Test(expected=StageException.class)
+	public void testListDirFailure() throws StageException {
+		createCoordinator(1, 1024 * 1024);
+		server.listFailures = GeoFetchCoordinator.FTP_LS_ATTEMPTS;
+		coordinator.listDir("/dir", 1);
+	}
+
+	@Test
+	public void testTee() throws StageException {
+		createCoordinator(1, 1024 * 1024);
+		final boolean[] closed = {false};
+		ByteArrayOutputStream tee = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		HashMap<String, OutputStream> tees = new HashMap<String, OutputStream>();
+		tees.put("/dir/file1", tee);
+		coordinator.fetchAll(Arrays.asList("/dir/file1", "/dir/file2"), null, downloadDir, 1, new ContentHandler(), tees);
+		assertEquals("content of file 1", tee.toString());
+		assertTrue(closed[0]);
+
+		// Not used for a file that is already downloaded
+		ByteArrayOutputStream tee2 = new ByteArrayOutputStream();
+		tees.put("/dir/file2", tee2);
+		coordinator.fetchAll(Arrays.asList("/dir/file2"), null, downloadDir, 1, new ContentHandler(), tees);
+		assertEquals(0, tee2.size());
+	}
+
+	@Test
+	public void testRateLimiter() throws InterruptedException {
+		GeoFetchCoordinator.RateLimiter limiter = new GeoFetchCoordinator.RateLimiter(100000);
+		long start = System.currentTimeMillis();
+		limiter.acquire(10000);
+		limiter.acquire(20000);
+		long elapsed = System.currentTimeMillis() - start;
+		// 30000 bytes at 100000 bytes per second
+		assertTrue(elapsed >= 250);
+	}
+}
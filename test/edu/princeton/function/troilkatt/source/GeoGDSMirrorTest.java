@@ -3,13 +3,11 @@ package edu.princeton.function.troilkatt.source;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 
 import org.apache.log4j.Logger;
-import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -83,9 +81,7 @@ public class GeoGDSMirrorTest extends TestSuper {
 				"test/geoGDSMirror", "bz2", 3, 
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
 				pipeline);
-		assertNotNull(source.ftpServer);		
 		assertEquals(GeoGDSMirror.GDSftpDir, source.ftpDir);
-		assertNotNull(source.adminEmail);
 	}
 	
 	// Not unit tested
@@ -94,7 +90,7 @@ public class GeoGDSMirrorTest extends TestSuper {
 	//}
 	
 	@Test
-	public void testGetOldIDs() throws TroilkattPropertiesException, StageInitException, IOException, StageException {
+	public void testGetOldFiles() throws TroilkattPropertiesException, StageInitException, IOException, StageException {
 		GeoGDSMirror source = new GeoGDSMirror("geoGDSMirror", null,
 				"test/geoGDSMirror", "bz2", 3, 
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
@@ -108,62 +104,64 @@ public class GeoGDSMirrorTest extends TestSuper {
 		tfs.hdfs.copyFromLocalFile(srcFile, new Path(OsPath.join(source.tfsOutputDir, "GDS2.101.bz2")));
 		tfs.hdfs.copyFromLocalFile(srcFile, new Path(OsPath.join(source.tfsOutputDir, "GDS3.101.bz2")));
 		
-		HashSet<String> oldIDs = source.getOldIDs(source.tfsOutputDir);
-		assertEquals(3, oldIDs.size());
-		assertTrue(oldIDs.contains("GDS1"));
-		assertTrue(oldIDs.contains("GDS2"));
-		assertTrue(oldIDs.contains("GDS3"));
+		HashMap<String, String> oldFiles = source.getOldFiles(source.tfsOutputDir);
+		assertEquals(3, oldFiles.size());
+		assertEquals(OsPath.join(source.tfsOutputDir, "GDS1.100.bz2"), oldFiles.get("GDS1"));
+		assertEquals(OsPath.join(source.tfsOutputDir, "GDS2.101.bz2"), oldFiles.get("GDS2"));
+		assertEquals(OsPath.join(source.tfsOutputDir, "GDS3.101.bz2"), oldFiles.get("GDS3"));
 		
 		// Log file not saved in this function
 		// assertTrue(OsPath.isfile(OsPath.join(source.stageLogDir, "old")));
 	}
 
 	@Test
-	public void testGetNewFiles() throws TroilkattPropertiesException, StageInitException, StageException, SocketException, IOException {
+	public void testGetChangedFiles() throws TroilkattPropertiesException, StageInitException, StageException {
 		GeoGDSMirror source = new GeoGDSMirror("geoGDSMirror", null,
 				"test/geoGDSMirror", "bz2", 3, 
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
 				pipeline);
 		
-		HashSet<String> oldIDs = new HashSet<String>();
+		MirrorManifest manifest = new MirrorManifest();
 		
-		FTPClient ftp = new FTPClient();		
-	    assertTrue(source.connectFTP(ftp));	    		
-		ArrayList<String> newFiles = source.getNewFiles(ftp, oldIDs);
+		FTPFile[] ftpFiles = source.getCoordinator().listDir(source.ftpDir, 109);
+		HashMap<String, FTPFile> newFiles = source.getChangedFiles(ftpFiles, manifest);
 		assertTrue(newFiles.size() > 0);
+		assertEquals(ftpFiles.length, newFiles.size());
 		
-		// Add 50% of files to oldIDs list
+		// Add 50% of files to the manifest
 		int prevSize = newFiles.size();
-		for (int i = 0; i < newFiles.size() / 2; i++) {
-			oldIDs.add(FilenameUtils.getDsetID(newFiles.get(i)));
+		for (int i = 0; i < ftpFiles.length / 2; i++) {
+			FTPFile f = ftpFiles[i];
+			manifest.put(new MirrorManifest.Entry(FilenameUtils.getDsetID(f.getName()), f.getSize(), 
+					GeoGDSMirror.getModificationTime(f), "unknown", f.getName()));
 		}
 		
-		// Log file not saved in this function
-		//assertTrue(OsPath.isfile(OsPath.join(source.stageLogDir, "new")));
-		
 		// Redo the operation
-		newFiles = source.getNewFiles(ftp, oldIDs);
-		assertTrue(oldIDs.size() + newFiles.size() == prevSize);
-		// Make sure no new file is in the old IDs list
-		for (String f: newFiles) {
+		newFiles = source.getChangedFiles(ftpFiles, manifest);
+		assertTrue(manifest.size() + newFiles.size() == prevSize);
+		// Make sure no new file is in the manifest
+		for (String f: newFiles.keySet()) {
 			String gid = FilenameUtils.getDsetID(f);
-			assertFalse(oldIDs.contains(gid));
+			assertNull(manifest.get(gid));
 		}
-		
-		ftp.disconnect();
 	}
 	
 	@Test
-	public void testDownloadFile() throws StageException, IOException, TroilkattPropertiesException, StageInitException {
-		GeoGDSMirror source = new GeoGDSMirror("geoGDSMirror", null,
+	public void testSaveFile() throws StageException, IOException, TroilkattPropertiesException, StageInitException {
+		final GeoGDSMirror source = new GeoGDSMirror("geoGDSMirror", null,
 				"test/geoGDSMirror", "bz2", 3, 
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
 				pipeline);
 		
-		FTPClient ftp = new FTPClient();		
-	    assertTrue(source.connectFTP(ftp));
-		String hdfsName = source.downloadFile(ftp, "GDS312.soft.gz", 109);
-		ftp.disconnect();
+		String ftpFilename = source.getFTPFilename("GDS312.soft.gz");
+		HashMap<String, String> results = source.getCoordinator().fetchAll(Arrays.asList(ftpFilename), null, 
+				source.stageInputDir, 109, new FTPDownloader.FileHandler() {
+					@Override
+					public String handle(String remoteFilename, String localFilename) throws StageException {
+						return source.saveFile(localFilename, 109);
+					}
+		});
+		String hdfsName = results.get(ftpFilename);
 		
 		assertEquals(OsPath.join(source.tfsOutputDir, "GDS312.soft.109.bz2"), hdfsName);
 		assertTrue(tfs.isfile(hdfsName));
@@ -177,7 +175,7 @@ public class GeoGDSMirrorTest extends TestSuper {
 	}
 
 	@Test
-	public void testUnpackAll() throws TroilkattPropertiesException, StageInitException, IOException {
+	public void testUnpackFile() throws TroilkattPropertiesException, StageInitException, IOException {
 		GeoGDSMirror source = new GeoGDSMirror("geoGDSMirror", null,
 				"test/geoGDSMirror", "bz2", 3, 
 				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
@@ -185,7 +183,7 @@ public class GeoGDSMirrorTest extends TestSuper {
 		
 		String packedFile = OsPath.join(dataDir, "dirs/1.tar.gz");
 		OsPath.copy(packedFile, OsPath.join(source.stageInputDir, "1.tar.gz"));
-		source.unpackAll(source.stageInputDir, source.stageOutputDir);
+		assertTrue(source.unpackFile(OsPath.join(source.stageInputDir, "1.tar.gz"), source.stageOutputDir));
 		
 		String[] files = OsPath.listdirR(source.stageOutputDir, testLogger);		
 		assertEquals(2, files.length);
@@ -3,8 +3,9 @@ package edu.princeton.function.troilkatt.source;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 
-import org.apache.commons.net.ftp.FTPClient;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -65,17 +66,20 @@ public class GeoGSEMirrorTest extends TestSuper {
 
 	@Test
 	public void testGeoGSEMirror() throws IOException, TroilkattPropertiesException, StageInitException, PipelineException {		
-		assertNotNull(source.ftpServer);		
 		assertEquals(GeoGSEMirror.GSEftpDir, source.ftpDir);
-		assertNotNull(source.adminEmail);
 	}
 	
 	@Test
-	public void testDownloadFile() throws StageException, IOException, TroilkattPropertiesException, StageInitException {
-		FTPClient ftp = new FTPClient();		
-	    assertTrue(source.connectFTP(ftp));
-		String hdfsName = source.downloadFile(ftp, "GSE312", 109);
-		ftp.disconnect();
+	public void testSaveFile() throws StageException, IOException, TroilkattPropertiesException, StageInitException {
+		String ftpFilename = source.getFTPFilename("GSE312");
+		HashMap<String, String> results = source.getCoordinator().fetchAll(Arrays.asList(ftpFilename), null, 
+				source.stageInputDir, 109, new FTPDownloader.FileHandler() {
+					@Override
+					public String handle(String remoteFilename, String localFilename) throws StageException {
+						return source.saveFile(localFilename, 109);
+					}
+		});
+		String hdfsName = results.get(ftpFilename);
 		
 		assertEquals(OsPath.join(source.tfsOutputDir, "GSE312_family.soft.109.bz2"), hdfsName);
 		assertTrue(tfs.isfile(hdfsName));
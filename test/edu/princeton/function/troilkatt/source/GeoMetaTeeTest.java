@@ -0,0 +1,150 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.tools.GeoGDSParser;
+import edu.princeton.function.troilkatt.tools.ParseException;
+
+public class GeoMetaTeeTest extends TestSuper {
+	protected String gdsFile;
+	protected byte[] gdsBytes;
+
+	@Before
+	public void setUp() throws Exception {
+		gdsFile = OsPath.join(dataDir, "files/GDS2949_full.soft.6.gz");
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		FileInputStream ins = new FileInputStream(gdsFile);
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = ins.read(buf)) != -1) {
+			bos.write(buf, 0, n);
+		}
+		ins.close();
+		gdsBytes = bos.toByteArray();
+	}
+
+	/**
+	 * Parse all lines in the GDS file.
+	 */
+	protected GeoGDSParser parseAll() throws IOException {
+		GeoGDSParser parser = new GeoGDSParser();
+		BufferedReader ins = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(gdsFile))));
+		String line;
+		while ((line = ins.readLine()) != null) {
+			parser.parseLine(line);
+		}
+		ins.close();
+		return parser;
+	}
+
+	@Test
+	public void testParseFile() throws IOException, ParseException {
+		GeoMetaTee tee = GeoMetaTee.parseFile(gdsFile);
+		assertTrue(tee.isComplete());
+		assertEquals("GDS2949", tee.getParser().getSingleValue("id"));
+		assertEquals("Pancreatic development (MG-U74B)", tee.getParser().getSingleValue("title"));
+		assertEquals(Arrays.asList("Mus musculus"), tee.getParser().getValues("organisms"));
+		// Same meta-data as when all lines are parsed
+		assertEquals(parseAll().getMeta(), tee.getParser().getMeta());
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		GeoMetaTee tee = new GeoMetaTee("/pub/geo/DATA/SOFT/GDS/GDS2949.soft.gz");
+		// The header is written one byte at a time
+		int pos = 0;
+		for (; pos < 100; pos++) {
+			tee.write(gdsBytes[pos]);
+		}
+		while (pos < gdsBytes.length) {
+			int n = Math.min(1000, gdsBytes.length - pos);
+			tee.write(gdsBytes, pos, n);
+			pos += n;
+			if (pos > gdsBytes.length / 2) {
+				// Parsing stopped at the data table
+				assertTrue(tee.isComplete());
+			}
+		}
+		tee.close();
+		assertTrue(tee.isComplete());
+		assertEquals(parseAll().getMeta(), tee.getParser().getMeta());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		GeoMetaTee tee = new GeoMetaTee("GDS2949.soft.gz");
+		tee.write(gdsBytes, 0, 500);
+		tee.close();
+		assertFalse(tee.isComplete());
+	}
+
+	@Test(expected=IOException.class)
+	public void testNotGzip() throws IOException {
+		GeoMetaTee tee = new GeoMetaTee("GDS2949.soft.gz");
+		tee.write("^DATASET = GDS2949\n".getBytes());
+	}
+
+	@Test
+	public void testGSE() throws IOException, ParseException {
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add("^SERIES = GSE1");
+		lines.add("!Series_title = Series title");
+		lines.add("!Series_geo_accession = GSE1");
+		lines.add("^PLATFORM = GPL1");
+		lines.add("!Platform_geo_accession = GPL1");
+		lines.add("!Platform_organism = Homo sapiens");
+		lines.add("!platform_table_begin");
+		lines.add("ID\tGB_ACC");
+		lines.add("!Sample_title = not a meta line");
+		lines.add("1\tAB001");
+		lines.add("!platform_table_end");
+		lines.add("^SAMPLE = GSM1");
+		lines.add("!Sample_geo_accession = GSM1");
+		lines.add("!sample_table_begin");
+		lines.add("ID_REF\tVALUE");
+		lines.add("1\t0.5");
+		lines.add("!sample_table_end");
+		lines.add("^SAMPLE = GSM2");
+		lines.add("!Sample_geo_accession = GSM2");
+		lines.add("!Sample_title = Sample 2");
+
+		GeoMetaTee tee = new GeoMetaTee("GSE1_family.soft");
+		StringBuilder sb = new StringBuilder();
+		for (String l: lines) {
+			sb.append(l + "\r\n");
+		}
+		// The last line does not end with a newline
+		byte[] bytes = sb.toString().trim().getBytes();
+		tee.write(bytes, 0, 100);
+		assertFalse(tee.isComplete());
+		tee.write(bytes, 100, bytes.length - 100);
+		tee.close();
+
+		assertTrue(tee.isComplete());
+		assertEquals("GSE1", tee.getParser().getSingleValue("id"));
+		assertEquals("Series title", tee.getParser().getSingleValue("title"));
+		assertEquals(Arrays.asList("GPL1"), tee.getParser().getValues("platformIDs"));
+		assertEquals(Arrays.asList("GSM1", "GSM2"), tee.getParser().getValues("sampleIDs"));
+		// Lines in the table body are not parsed
+		assertEquals(Arrays.asList("Sample 2"), tee.getParser().getValues("sampleTitles"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidFilename() {
+		new GeoMetaTee("GPL1.soft.gz");
+	}
+}
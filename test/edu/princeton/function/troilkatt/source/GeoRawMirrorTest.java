@@ -3,7 +3,6 @@ package edu.princeton.function.troilkatt.source;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
-import java.net.SocketException;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.hadoop.conf.Configuration;
@@ -28,6 +27,7 @@ import edu.princeton.function.troilkatt.fs.TroilkattHDFS;
 import edu.princeton.function.troilkatt.pipeline.StageInitException;
 
 public class GeoRawMirrorTest extends TestSuper {
+	protected TroilkattProperties troilkattProperties;
 	protected TroilkattHDFS tfs;
 	protected LogTableHbase lt;
 	protected GeoRawMirror source;
@@ -43,7 +43,7 @@ public class GeoRawMirrorTest extends TestSuper {
 
 	@Before
 	public void setUp() throws Exception {
-		TroilkattProperties troilkattProperties = Troilkatt.getProperties(OsPath.join(dataDir, configurationFile));		
+		troilkattProperties = Troilkatt.getProperties(OsPath.join(dataDir, configurationFile));		
 		FileSystem hdfs = FileSystem.get(new Configuration());			
 		tfs = new TroilkattHDFS(hdfs);
 		lt = new LogTableHbase("unitPipeline", HBaseConfiguration.create());
@@ -66,15 +66,15 @@ public class GeoRawMirrorTest extends TestSuper {
 
 	@Test
 	public void testGeoRawMirror() throws IOException, TroilkattPropertiesException, StageInitException, PipelineException {				
-		assertNotNull(source.ftpServer);		
 		assertEquals(GeoRawMirror.rawFtpDir, source.ftpDir);
-		assertNotNull(source.adminEmail);
 	}
 	
 	@Test
-	public void testDownloadRawFile() throws SocketException, IOException {
-		FTPClient ftp = new FTPClient();		
-		assertTrue(source.connectFTP(ftp));
+	public void testDownloadRawFile() throws IOException, TroilkattPropertiesException {
+		GeoFetchCoordinator.GeoFTPConnection c = new GeoFetchCoordinator.GeoFTPConnection(GeoFetchCoordinator.FTP_SERVER, 
+				troilkattProperties.get("troilkatt.admin.email"), source.logger);
+		c.connect();
+		FTPClient ftp = c.ftp;
 		
 		String ftpFilename = OsPath.join(source.ftpDir, "GSE31278/GSE31278_RAW.tar");
 		String localFilename = OsPath.join(tmpDir, "GSE32178_RAW.tar");
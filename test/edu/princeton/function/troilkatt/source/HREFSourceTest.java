@@ -7,6 +7,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.regex.Matcher;
 
 import org.apache.hadoop.conf.Configuration;
@@ -97,6 +98,33 @@ public class HREFSourceTest extends TestSuper {
 		assertFalse(matcher3.find());
 	}
 
+	@Test
+	public void testHREFSourceCrawl() throws TroilkattPropertiesException, StageInitException {
+		assertFalse(source.crawl);
+
+		HREFSource source2 = new HREFSource("hrefource", args + " crawl",
+				"test/fileSource", "gz", 10,
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertTrue(source2.crawl);
+		assertEquals(HREFSource.DEFAULT_CONNECTIONS, source2.nConnections);
+
+		source2 = new HREFSource("hrefource", args + " crawl 8",
+				"test/fileSource", "gz", 10,
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertTrue(source2.crawl);
+		assertEquals(8, source2.nConnections);
+	}
+
+	@Test(expected=StageInitException.class)
+	public void testHREFSourceInvalidMode() throws TroilkattPropertiesException, StageInitException {
+		new HREFSource("hrefource", args + " walk",
+				"test/fileSource", "gz", 10,
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+	}
+
 	@Test
 	public void testGetHrefValues() throws IOException {
 		ArrayList<String> hrefs = HREFSource.getHrefValues(localVersion);
@@ -109,6 +137,24 @@ public class HREFSourceTest extends TestSuper {
 		assertTrue(hrefs.contains(s2));
 	}
 
+	@Test
+	public void testGetUniqueBasenames() throws MalformedURLException {
+		ArrayList<URL> urls = new ArrayList<URL>();
+		urls.add(new URL("http://example.com/a/data.txt.gz"));
+		urls.add(new URL("http://example.com/b/data.txt.gz"));
+		urls.add(new URL("http://example.com/b/other.txt"));
+		HashMap<String, String> basenames = HREFSource.getUniqueBasenames(urls);
+		assertEquals(3, basenames.size());
+		assertEquals("other.txt", basenames.get("http://example.com/b/other.txt"));
+		String n1 = basenames.get("http://example.com/a/data.txt.gz");
+		String n2 = basenames.get("http://example.com/b/data.txt.gz");
+		assertFalse(n1.equals(n2));
+		assertTrue(n1.matches("data-[0-9a-f]{8}\\.txt\\.gz"));
+		assertTrue(n2.matches("data-[0-9a-f]{8}\\.txt\\.gz"));
+		// The names do not change between iterations
+		assertEquals(n1, HREFSource.getUniqueBasenames(urls).get("http://example.com/a/data.txt.gz"));
+	}
+	
 	@Test
 	public void testDownloadTextFile() throws MalformedURLException, IOException {
 		String localName = HREFSource.downloadTextFile(new URL(pageURL), tmpDir);
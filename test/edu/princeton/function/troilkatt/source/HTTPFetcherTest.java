@@ -0,0 +1,233 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.pipeline.StageException;
+
+public class HTTPFetcherTest extends TestSuper {
+	/**
+	 * Embedded HTTP server that supports conditional requests. The ETag of a file is its
+	 * version number.
+	 */
+	static class TestHandler implements HttpHandler {
+		// path -> content
+		HashMap<String, String> files = new HashMap<String, String>();
+		// path -> version
+		HashMap<String, Integer> versions = new HashMap<String, Integer>();
+		int requests = 0;
+		int notModified = 0;
+		int active = 0;
+		int maxActive = 0;
+
+		synchronized void put(String path, String content) {
+			files.put(path, content);
+			Integer v = versions.get(path);
+			versions.put(path, (v == null) ? 1 : v + 1);
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			String content;
+			String etag;
+			synchronized (this) {
+				requests++;
+				active++;
+				maxActive = Math.max(maxActive, active);
+				content = files.get(path);
+				etag = "\"v" + versions.get(path) + "\"";
+			}
+			try {
+				Thread.sleep(20);
+				if (content == null) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+				exchange.getResponseHeaders().set("ETag", etag);
+				exchange.getResponseHeaders().set("Last-Modified", "Mon, 19 Oct 2026 00:00:00 GMT");
+				if (etag.equals(ifNoneMatch)) {
+					synchronized (this) {
+						notModified++;
+					}
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+				byte[] bytes = content.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} finally {
+				synchronized (this) {
+					active--;
+				}
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Body handler that keeps the fetched content in memory.
+	 */
+	static class MemoryHandler implements HTTPFetcher.BodyHandler {
+		HashMap<String, String> bodies = new HashMap<String, String>();
+
+		@Override
+		public String handle(URL url, InputStream body) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int n;
+			while ((n = body.read(buf)) != -1) {
+				bos.write(buf, 0, n);
+			}
+			synchronized (this) {
+				bodies.put(url.getPath(), bos.toString("UTF-8"));
+			}
+			return OsPath.basename(url.getPath());
+		}
+	}
+
+	protected HttpServer server;
+	protected ExecutorService serverExecutor;
+	protected TestHandler testHandler;
+	protected String baseURL;
+	protected HTTPFetcher fetcher;
+
+	@Before
+	public void setUp() throws Exception {
+		testHandler = new TestHandler();
+		for (int i = 0; i < 8; i++) {
+			testHandler.put("/files/f" + i + ".txt", "content " + i);
+		}
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", testHandler);
+		serverExecutor = Executors.newFixedThreadPool(8);
+		server.setExecutor(serverExecutor);
+		server.start();
+		baseURL = "http://localhost:" + server.getAddress().getPort();
+		fetcher = new HTTPFetcher(3, Logger.getLogger("test"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	protected ArrayList<URL> getURLs(int n) throws IOException {
+		ArrayList<URL> urls = new ArrayList<URL>();
+		for (int i = 0; i < n; i++) {
+			urls.add(new URL(baseURL + "/files/f" + i + ".txt"));
+		}
+		return urls;
+	}
+
+	@Test
+	public void testFetchAll() throws IOException, StageException {
+		ArrayList<URL> urls = getURLs(8);
+		HashMap<String, HTTPFetcher.CacheEntry> cache = new HashMap<String, HTTPFetcher.CacheEntry>();
+		MemoryHandler handler = new MemoryHandler();
+		HashMap<String, String> results = fetcher.fetchAll(urls, cache, handler);
+
+		assertEquals(8, results.size());
+		assertEquals("f3.txt", results.get(baseURL + "/files/f3.txt"));
+		assertEquals("content 3", handler.bodies.get("/files/f3.txt"));
+		assertEquals(8, cache.size());
+		HTTPFetcher.CacheEntry e = cache.get(baseURL + "/files/f3.txt");
+		assertEquals("\"v1\"", e.etag);
+		assertEquals("Mon, 19 Oct 2026 00:00:00 GMT", e.lastModified);
+		assertEquals("f3.txt", e.result);
+		assertTrue(testHandler.maxActive > 1);
+		assertTrue(testHandler.maxActive <= 3);
+	}
+
+	@Test
+	public void testConditional() throws IOException, StageException {
+		ArrayList<URL> urls = getURLs(8);
+		HashMap<String, HTTPFetcher.CacheEntry> cache = new HashMap<String, HTTPFetcher.CacheEntry>();
+		fetcher.fetchAll(urls, cache, new MemoryHandler());
+
+		// Nothing changed
+		MemoryHandler handler = new MemoryHandler();
+		HashMap<String, String> results = fetcher.fetchAll(urls, cache, handler);
+		assertTrue(results.isEmpty());
+		assertTrue(handler.bodies.isEmpty());
+		assertEquals(8, testHandler.notModified);
+
+		// One file changed
+		testHandler.put("/files/f5.txt", "new content 5");
+		results = fetcher.fetchAll(urls, cache, handler);
+		assertEquals(1, results.size());
+		assertEquals("new content 5", handler.bodies.get("/files/f5.txt"));
+		assertEquals("\"v2\"", cache.get(baseURL + "/files/f5.txt").etag);
+		assertEquals(15, testHandler.notModified);
+	}
+
+	@Test
+	public void testFetchAllFailures() throws IOException, StageException {
+		ArrayList<URL> urls = getURLs(2);
+		urls.add(new URL(baseURL + "/files/missing.txt"));
+		HashMap<String, HTTPFetcher.CacheEntry> cache = new HashMap<String, HTTPFetcher.CacheEntry>();
+		HashMap<String, String> results = fetcher.fetchAll(urls, cache, new HTTPFetcher.BodyHandler() {
+			@Override
+			public String handle(URL url, InputStream body) throws IOException {
+				if (url.getPath().endsWith("f1.txt")) {
+					return null;
+				}
+				return url.getPath();
+			}
+		});
+
+		// Only f0 is fetched and processed
+		assertEquals(1, results.size());
+		assertEquals("/files/f0.txt", results.get(baseURL + "/files/f0.txt"));
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(baseURL + "/files/f0.txt"));
+	}
+
+	@Test
+	public void testReadWriteCache() throws IOException {
+		ArrayList<HTTPFetcher.CacheEntry> entries = new ArrayList<HTTPFetcher.CacheEntry>(Arrays.asList(
+				new HTTPFetcher.CacheEntry("http://a/f1.zip", "\"abc\"", "Mon, 19 Oct 2026 00:00:00 GMT", "/tfs/f1.zip.1.gz"),
+				new HTTPFetcher.CacheEntry("http://a/f2.zip", null, "Tue, 20 Oct 2026 00:00:00 GMT", "/tfs/f2.zip.1.gz"),
+				new HTTPFetcher.CacheEntry("http://a/f3.zip", "W/\"x\"", null, "/tfs/f3.zip.1.gz")));
+		String filename = OsPath.join(tmpDir, "http-cache");
+		HTTPFetcher.writeCache(filename, entries);
+
+		HashMap<String, HTTPFetcher.CacheEntry> cache = HTTPFetcher.readCache(filename);
+		assertEquals(3, cache.size());
+		HTTPFetcher.CacheEntry e1 = cache.get("http://a/f1.zip");
+		assertEquals("\"abc\"", e1.etag);
+		assertEquals("Mon, 19 Oct 2026 00:00:00 GMT", e1.lastModified);
+		assertEquals("/tfs/f1.zip.1.gz", e1.result);
+		assertNull(cache.get("http://a/f2.zip").etag);
+		assertNull(cache.get("http://a/f3.zip").lastModified);
+		assertEquals("W/\"x\"", cache.get("http://a/f3.zip").etag);
+	}
+}
@@ -10,8 +10,11 @@ import java.util.regex.Matcher;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -126,6 +129,77 @@ public class HbaseSourceTest extends TestSuper {
 		assertNull(source);
 	}
 
+	@Test
+	public void testHbaseSourceModes() throws TroilkattPropertiesException, StageInitException {
+		HbaseSource source = new HbaseSource("hbaseSoruce", 
+				"troilkatt-geo-meta meta:organisms334 'Homo sapiens' files:pcl",
+				null, null, 0, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertFalse(source.incremental);
+		assertEquals(HbaseSource.DEFAULT_THREADS, source.nThreads);
+		
+		source = new HbaseSource("hbaseSoruce", 
+				"troilkatt-geo-meta meta:organisms334 'Homo sapiens' files:pcl incremental 8",
+				null, null, 0, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertTrue(source.incremental);
+		assertEquals(8, source.nThreads);
+		
+		source = new HbaseSource("hbaseSoruce", 
+				"troilkatt-geo-meta meta:organisms334 'Homo sapiens' files:pcl full",
+				null, null, 0, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertFalse(source.incremental);
+	}
+	
+	// Invalid scan mode
+	@Test(expected=StageInitException.class)
+	public void testHbaseSource6() throws TroilkattPropertiesException, StageInitException {		
+		HbaseSource source = new HbaseSource("hbaseSoruce", 
+				"troilkatt-geo-meta meta:organisms334 'Homo sapiens' files:pcl partial",
+				null, null, 0, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertNull(source);
+	}
+	
+	// Invalid number of threads
+	@Test(expected=StageInitException.class)
+	public void testHbaseSource7() throws TroilkattPropertiesException, StageInitException {		
+		HbaseSource source = new HbaseSource("hbaseSoruce", 
+				"troilkatt-geo-meta meta:organisms334 'Homo sapiens' files:pcl full 0",
+				null, null, 0, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		assertNull(source);
+	}
+	
+	@Test
+	public void testCreateScan() throws TroilkattPropertiesException, StageInitException, IOException {
+		HbaseSource source = new HbaseSource("hbaseSoruce", 
+				"troilkatt-geo-meta meta:organisms334 'Homo sapiens' files:pcl",
+				null, null, 0, 
+				localRootDir, hdfsStageMetaDir, hdfsStageTmpDir,
+				pipeline);
+		
+		Scan scan = source.createScan(Bytes.toBytes("GSE1"), Bytes.toBytes("GSE5"), 0);
+		assertEquals("GSE1", Bytes.toString(scan.getStartRow()));
+		assertEquals("GSE5", Bytes.toString(scan.getStopRow()));
+		assertEquals(2, scan.numFamilies());
+		assertEquals(0, scan.getTimeRange().getMin());
+		SingleColumnValueFilter filter = (SingleColumnValueFilter) scan.getFilter();
+		assertTrue(filter.getFilterIfMissing());
+		
+		scan = source.createScan(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW, 3340);
+		assertEquals(3340, scan.getTimeRange().getMin());
+		assertEquals(Long.MAX_VALUE, scan.getTimeRange().getMax());
+		filter = (SingleColumnValueFilter) scan.getFilter();
+		assertFalse(filter.getFilterIfMissing());
+	}
+
 	@Test
 	public void testRetrieve() throws IOException, TroilkattPropertiesException, StageInitException, StageException {		
 		HbaseSource source = new HbaseSource("hbaseSoruce", 
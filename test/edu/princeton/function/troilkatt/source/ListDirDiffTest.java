@@ -121,7 +121,7 @@ public class ListDirDiffTest extends TestSuper {
 		assertTrue(files.get(3).endsWith("subdir1/file4"));
 		assertTrue(files.get(4).endsWith("subdir1/file5"));
 		assertTrue(files.get(5).endsWith("subdir2/file6"));		
-		assertEquals(0, metaFiles.size());
+		assertEquals(2, metaFiles.size());
 		assertEquals(0, logFiles.size());
 		
 		Path srcFile = new Path(OsPath.join(dataDir, configurationFile));		
@@ -138,7 +138,7 @@ public class ListDirDiffTest extends TestSuper {
 		assertTrue(files.get(0).endsWith("file2"));		
 		assertTrue(files.get(1).endsWith("subdir1/file4"));		
 		assertTrue(files.get(2).endsWith("subdir2/file6"));		
-		assertEquals(0, metaFiles.size());
+		assertEquals(2, metaFiles.size());
 		assertEquals(0, logFiles.size());
 		
 		dstDir = srcDir;
@@ -148,7 +148,7 @@ public class ListDirDiffTest extends TestSuper {
 				pipeline);
 		files = source.retrieve(metaFiles, logFiles, 22);		
 		assertEquals(0, files.size());			
-		assertEquals(0, metaFiles.size());
+		assertEquals(2, metaFiles.size());
 		assertEquals(0, logFiles.size());
 	}
 
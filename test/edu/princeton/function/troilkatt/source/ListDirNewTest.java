@@ -4,7 +4,6 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 
@@ -22,6 +21,7 @@ import edu.princeton.function.troilkatt.TestSuper;
 import edu.princeton.function.troilkatt.Troilkatt;
 import edu.princeton.function.troilkatt.TroilkattProperties;
 import edu.princeton.function.troilkatt.TroilkattPropertiesException;
+import edu.princeton.function.troilkatt.fs.DirManifest;
 import edu.princeton.function.troilkatt.fs.FSUtils;
 import edu.princeton.function.troilkatt.fs.LogTableHbase;
 import edu.princeton.function.troilkatt.fs.OsPath;
@@ -238,19 +238,30 @@ public class ListDirNewTest extends TestSuper {
 		
 		assertEquals(1, metaFiles.size());
 		metaFile = metaFiles.get(0);
+		assertEquals("manifest", OsPath.basename(metaFile));
 		assertEquals(0, logFiles.size());
 		
-		String[] metaFileLines = FSUtils.readTextFile(metaFile);
-		assertEquals(6, metaFileLines.length);
-		Arrays.sort(metaFileLines);
+		ArrayList<String> manifestFiles = DirManifest.read(metaFile).getFiles();
+		assertEquals(6, manifestFiles.size());
 		
+		// No new files
+		files = source.retrieve(metaFiles, logFiles, 22);
+		assertEquals(0, files.size());
+		assertEquals(1, metaFiles.size());
+		assertEquals(0, logFiles.size());
+		
+		// File list saved by earlier versions
+		OsPath.delete(metaFile);
+		metaFile = OsPath.join(source.stageMetaDir, "filelist");
 		String[] newLines = new String[3];
-		newLines[0] = metaFileLines[0];
-		newLines[1] = metaFileLines[2];
-		newLines[2] = metaFileLines[5];
+		newLines[0] = manifestFiles.get(0);
+		newLines[1] = manifestFiles.get(2);
+		newLines[2] = manifestFiles.get(5);
 		FSUtils.writeTextFile(metaFile, newLines);
+		metaFiles.clear();
+		metaFiles.add(metaFile);
 		
-		files = source.retrieve(metaFiles, logFiles, 22);
+		files = source.retrieve(metaFiles, logFiles, 23);
 		
 		assertEquals(3, files.size());
 		Collections.sort(files);
@@ -262,9 +273,10 @@ public class ListDirNewTest extends TestSuper {
 		assertTrue(files.get(2).contains("subdir1/file5"));
 		
 		assertEquals(1, metaFiles.size());
+		assertEquals("manifest", OsPath.basename(metaFiles.get(0)));
 		assertEquals(0, logFiles.size());
 		
-		files = source.retrieve(metaFiles, logFiles, 23);
+		files = source.retrieve(metaFiles, logFiles, 24);
 		assertEquals(0, files.size());
 		assertEquals(1, metaFiles.size());
 		assertEquals(0, logFiles.size());
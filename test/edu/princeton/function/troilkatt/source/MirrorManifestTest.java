@@ -0,0 +1,57 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+
+public class MirrorManifestTest extends TestSuper {
+
+	@Test
+	public void testIsChanged() {
+		MirrorManifest manifest = new MirrorManifest();
+		assertTrue(manifest.isChanged("GDS1", 100, 1000));
+
+		manifest.put(new MirrorManifest.Entry("GDS1", 100, 1000, "abc", "/tfs/GDS1.soft.1.gz"));
+		assertFalse(manifest.isChanged("GDS1", 100, 1000));
+		assertTrue(manifest.isChanged("GDS1", 101, 1000));
+		assertTrue(manifest.isChanged("GDS1", 100, 1001));
+		assertTrue(manifest.isChanged("GDS2", 100, 1000));
+
+		// Replace entry
+		manifest.put(new MirrorManifest.Entry("GDS1", 101, 1001, "abd", "/tfs/GDS1.soft.2.gz"));
+		assertEquals(1, manifest.size());
+		assertFalse(manifest.isChanged("GDS1", 101, 1001));
+	}
+
+	@Test
+	public void testReadWrite() throws IOException {
+		String filename = OsPath.join(tmpDir, "manifest");
+		MirrorManifest manifest = new MirrorManifest();
+		manifest.put(new MirrorManifest.Entry("GDS1", 100, 1000, "abc", "/tfs/GDS1.soft.1.gz"));
+		manifest.put(new MirrorManifest.Entry("GSE2", -1, 2000, "unknown", "/tfs/GSE2_family.soft.1.gz"));
+		manifest.write(filename);
+
+		MirrorManifest manifest2 = MirrorManifest.read(filename);
+		assertEquals(2, manifest2.size());
+		MirrorManifest.Entry e = manifest2.get("GSE2");
+		assertEquals(-1, e.size);
+		assertEquals(2000, e.modificationTime);
+		assertEquals("unknown", e.checksum);
+		assertEquals("/tfs/GSE2_family.soft.1.gz", e.tfsFilename);
+		assertFalse(manifest2.isChanged("GDS1", 100, 1000));
+
+		FSUtils.writeTextFile(filename, new String[] {"GDS1\t100\tfoo\tabc\t/tfs/GDS1"});
+		try {
+			MirrorManifest.read(filename);
+			fail("IOException expected");
+		} catch (IOException e1) {
+			// expected
+		}
+	}
+}
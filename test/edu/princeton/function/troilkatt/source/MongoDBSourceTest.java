@@ -0,0 +1,117 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class MongoDBSourceTest {
+	// In-memory stand-in for a collection, sorted in descending order according to timestamp
+	protected ArrayList<DBObject> entries;
+
+	@Before
+	public void setUp() throws Exception {
+		entries = new ArrayList<DBObject>();
+		entries.add(entry("GSE3", 30, "Homo sapiens", "/tfs/GSE3.30"));
+		entries.add(entry("GSE1", 20, "Mus musculus", "/tfs/GSE1.20"));
+		entries.add(entry("GSE2", 20, "Homo Sapiens", "/tfs/GSE2.20"));
+		entries.add(entry("GSE1", 10, "Homo sapiens", "/tfs/GSE1.10"));
+		entries.add(entry("GSE3", 10, "Homo sapiens", "/tfs/GSE3.10"));
+		entries.add(new BasicDBObject("key", "GSE4").append("timestamp", 10));
+	}
+
+	protected DBObject entry(String key, long timestamp, String org, String filename) {
+		return new BasicDBObject("key", key).append("timestamp", timestamp).
+				append("meta:organisms", org).append("files:pcl", filename);
+	}
+
+	@Test
+	public void testScanMongoDB() {
+		Pattern p = Pattern.compile("homo sapiens");
+		ArrayList<String> vals = MongoDBSource.scanMongoDB(entries.iterator(), "files:pcl", "meta:organisms", p, null);
+		// Newest matching entry per key
+		assertEquals(Arrays.asList("/tfs/GSE3.30", "/tfs/GSE2.20", "/tfs/GSE1.10"), vals);
+
+		p = Pattern.compile("musculus");
+		vals = MongoDBSource.scanMongoDB(entries.iterator(), "files:pcl", "meta:organisms", p, null);
+		assertEquals(Arrays.asList("/tfs/GSE1.20"), vals);
+	}
+
+	@Test
+	public void testScanMongoDBSelected() {
+		// Entries already selected by the query: only the key and select field are returned
+		ArrayList<DBObject> selected = new ArrayList<DBObject>();
+		selected.add(new BasicDBObject("key", "GSE3").append("files:pcl", "/tfs/GSE3.30"));
+		selected.add(new BasicDBObject("key", "GSE1").append("files:pcl", "/tfs/GSE1.10"));
+		selected.add(new BasicDBObject("key", "GSE3").append("files:pcl", "/tfs/GSE3.10"));
+		selected.add(new BasicDBObject("key", "GSE5"));
+		ArrayList<String> vals = MongoDBSource.scanMongoDB(selected.iterator(), "files:pcl", null, null, null);
+		assertEquals(Arrays.asList("/tfs/GSE3.30", "/tfs/GSE1.10"), vals);
+	}
+
+	@Test
+	public void testGetQuery() {
+		DBObject query = MongoDBSource.getQuery("meta:organisms", Pattern.compile("homo sapiens"));
+		assertEquals(1, query.keySet().size());
+		Pattern p = (Pattern) query.get("meta:organisms");
+		assertEquals("homo sapiens", p.pattern());
+		assertTrue((p.flags() & Pattern.CASE_INSENSITIVE) != 0);
+
+		// The query selects the same entries as the client side check
+		int nMatches = 0;
+		for (DBObject e: entries) {
+			String org = (String) e.get("meta:organisms");
+			if ((org != null) && p.matcher(org).find()) {
+				nMatches++;
+			}
+		}
+		assertEquals(4, nMatches);
+	}
+
+	@Test
+	public void testGetFields() {
+		DBObject fields = MongoDBSource.getFields("files:pcl");
+		assertEquals(1, fields.get("files:pcl"));
+		assertEquals(1, fields.get("key"));
+		assertEquals(0, fields.get("_id"));
+		assertEquals(3, fields.keySet().size());
+
+		fields = MongoDBSource.getFields("key");
+		assertEquals(2, fields.keySet().size());
+	}
+
+	@Test
+	public void testGetRangeQuery() {
+		DBObject query = MongoDBSource.getQuery("meta:organisms", Pattern.compile("homo"));
+		assertSame(query, MongoDBSource.getRangeQuery(query, null, null));
+
+		DBObject rangeQuery = MongoDBSource.getRangeQuery(query, "GSE2", "GSE5");
+		assertEquals(query.get("meta:organisms"), rangeQuery.get("meta:organisms"));
+		DBObject range = (DBObject) rangeQuery.get("key");
+		assertEquals("GSE2", range.get("$gte"));
+		assertEquals("GSE5", range.get("$lt"));
+		// The original query is not modified
+		assertFalse(query.containsField("key"));
+
+		rangeQuery = MongoDBSource.getRangeQuery(query, null, "GSE2");
+		range = (DBObject) rangeQuery.get("key");
+		assertFalse(range.containsField("$gte"));
+		assertEquals("GSE2", range.get("$lt"));
+
+		// Where field is the key
+		query = MongoDBSource.getQuery("key", Pattern.compile("gse"));
+		rangeQuery = MongoDBSource.getRangeQuery(query, "GSE2", null);
+		BasicDBList and = (BasicDBList) rangeQuery.get("$and");
+		assertEquals(2, and.size());
+		assertSame(query, and.get(0));
+		assertEquals("GSE2", ((DBObject) ((DBObject) and.get(1)).get("key")).get("$gte"));
+	}
+}
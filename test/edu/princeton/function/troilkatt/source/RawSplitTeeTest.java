@@ -0,0 +1,128 @@
+package edu.princeton.function.troilkatt.source;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.tools.RawTarSplitter;
+
+public class RawSplitTeeTest {
+	protected RawTarSplitter splitter;
+	// Written by the splitter thread
+	protected HashMap<String, ByteArrayOutputStream> outputs;
+	protected HashSet<String> aborted;
+	protected byte[] tar;
+
+	@Before
+	public void setUp() throws Exception {
+		HashMap<String, ArrayList<String>> sidp2gsm = new HashMap<String, ArrayList<String>>();
+		sidp2gsm.put("GSE1-GPL1", new ArrayList<String>(Arrays.asList("GSM1")));
+		sidp2gsm.put("GSE1-GPL2", new ArrayList<String>(Arrays.asList("GSM2", "GSM3")));
+
+		outputs = new HashMap<String, ByteArrayOutputStream>();
+		aborted = new HashSet<String>();
+		splitter = new RawTarSplitter(sidp2gsm, new RawTarSplitter.OutputFactory() {
+			@Override
+			public OutputStream create(String sidp) throws IOException {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				outputs.put(sidp, bos);
+				return bos;
+			}
+
+			@Override
+			public void abort(String sidp) {
+				aborted.add(sidp);
+			}
+		}, Logger.getLogger("test"));
+
+		// Larger than the pipe, such that the writer must wait for the splitter
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tout = new TarArchiveOutputStream(bos);
+		for (String n: new String[] {"GSM1.CEL", "GSM2.CEL.gz", "GSM3.CEL"}) {
+			byte[] content = new byte[RawSplitTee.PIPE_SIZE];
+			Arrays.fill(content, (byte) n.charAt(3));
+			TarArchiveEntry e = new TarArchiveEntry(n);
+			e.setSize(content.length);
+			tout.putArchiveEntry(e);
+			tout.write(content);
+			tout.closeArchiveEntry();
+		}
+		tout.close();
+		tar = bos.toByteArray();
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		RawSplitTee tee = new RawSplitTee(splitter, "GSE1", Logger.getLogger("test"));
+		int pos = 0;
+		while (pos < tar.length) {
+			int n = Math.min(10000, tar.length - pos);
+			tee.write(tar, pos, n);
+			pos += n;
+		}
+		assertFalse(tee.isComplete());
+		tee.close();
+
+		assertTrue(tee.isComplete());
+		assertNull(tee.getError());
+		HashMap<String, Integer> counts = tee.getCounts();
+		assertEquals(1, (int) counts.get("GSE1-GPL1"));
+		assertEquals(2, (int) counts.get("GSE1-GPL2"));
+		assertTrue(outputs.get("GSE1-GPL2").size() > 2 * RawSplitTee.PIPE_SIZE);
+		assertTrue(aborted.isEmpty());
+
+		// Abort after close has no effect
+		tee.abort();
+		assertTrue(tee.isComplete());
+	}
+
+	@Test
+	public void testAbort() throws IOException {
+		RawSplitTee tee = new RawSplitTee(splitter, "GSE1", Logger.getLogger("test"));
+		tee.write(tar, 0, tar.length / 2);
+		tee.abort();
+		assertFalse(tee.isComplete());
+		assertNull(tee.getCounts());
+
+		// Later writes fail
+		try {
+			tee.write(tar, tar.length / 2, 100);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// Not written
+		tee = new RawSplitTee(splitter, "GSE1", Logger.getLogger("test"));
+		tee.abort();
+		assertFalse(tee.isComplete());
+	}
+
+	@Test
+	public void testInvalid() throws IOException {
+		RawSplitTee tee = new RawSplitTee(splitter, "GSE1", Logger.getLogger("test"));
+		byte[] invalid = new byte[3 * RawSplitTee.PIPE_SIZE];
+		Arrays.fill(invalid, (byte) 'x');
+		try {
+			tee.write(invalid);
+			tee.close();
+		} catch (IOException e) {
+			// The pipe is closed by the splitter
+			tee.close();
+		}
+		assertFalse(tee.isComplete());
+		assertNotNull(tee.getError());
+	}
+}
@@ -21,6 +21,13 @@ import org.junit.runners.Suite.SuiteClasses;
 	GeoRawOrgTest.class, 
 	HbaseSourceTest.class,
 	HREFSourceTest.class, 		
+	HTTPFetcherTest.class,
+	FTPDownloaderTest.class,
+	GeoFetchCoordinatorTest.class,
+	GeoMetaTeeTest.class,
+	RawSplitTeeTest.class,
+	MirrorManifestTest.class,
+	MongoDBSourceTest.class,
 	ScriptSourceTest.class,
 	OsCmdsSourceTest.class
 	})
@@ -3,11 +3,16 @@ package edu.princeton.function.troilkatt.tools;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -198,4 +203,41 @@ public class GeoGDSParserTest extends TestSuper {
 		assertEquals(1, vals.size());
 		assertEquals("transformed count", vals.get(0));
 	}
+	
+	@Test
+	public void testParseLineValue() {
+		GeoGDSParser parser = new GeoGDSParser();
+		// Values end at the next '=', as when the line is split on "="
+		assertTrue(parser.parseLine("!dataset_title = a = b"));
+		assertEquals(Arrays.asList("a"), parser.getValues("title"));
+		assertTrue(parser.parseLine("!dataset_platform == GPL82"));
+		assertEquals(Arrays.asList(""), parser.getValues("platformIDs"));
+		assertFalse(parser.parseLine("!dataset_pubmed_id =="));
+		assertFalse(parser.parseLine("!dataset_pubmed_id"));
+		assertNull(parser.getValues("pmid"));
+		// Duplicates are removed
+		assertTrue(parser.parseLine("!dataset_title = a"));
+		assertEquals(Arrays.asList("a"), parser.getValues("title"));
+	}
+	
+	@Test
+	public void testParseHeader() throws IOException {
+		String gzFile = OsPath.join(dataDir, "files/GDS2949_full.soft.6.gz");
+		GeoGDSParser lineParser = new GeoGDSParser();
+		BufferedReader ib = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(gzFile))));
+		String line;
+		while ((line = ib.readLine()) != null) {
+			lineParser.parseLine(line);
+		}
+		ib.close();
+		
+		GeoGDSParser parser = new GeoGDSParser();
+		InputStream ins = new GZIPInputStream(new FileInputStream(gzFile));
+		parser.parseHeader(ins);
+		// Parsing stopped at the data table
+		assertTrue(ins.read() != -1);
+		ins.close();
+		assertTrue(parser.isDone());
+		assertEquals(lineParser.getMeta(), parser.getMeta());
+	}
 }
@@ -6,6 +6,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 
@@ -187,4 +188,50 @@ public class GeoGSEParserTest extends TestSuper {
 		assertEquals("1", vals.get(0));
 		assertNull(parser.getValues("valueTypes"));		
 	}
+	
+	/**
+	 * @return small GSE family file with two table rows per table
+	 */
+	protected byte[] createSoft() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("^SERIES = GSE1\n");
+		sb.append("!Series_title = Series title\n");
+		sb.append("!Series_geo_accession = GSE1\n");
+		sb.append("^PLATFORM = GPL1\n");
+		sb.append("!Platform_geo_accession = GPL1\n");
+		sb.append("!platform_table_begin\n");
+		sb.append("ID\tGB_ACC\n");
+		sb.append("!Sample_title = not a meta line\n");
+		sb.append("1\tAB001\n");
+		sb.append("!platform_table_end\n");
+		for (int i = 1; i <= 2; i++) {
+			sb.append("^SAMPLE = GSM" + i + "\n");
+			sb.append("!Sample_geo_accession = GSM" + i + "\n");
+			sb.append("!Sample_title = Sample " + i + "\n");
+			sb.append("!sample_table_begin\n");
+			sb.append("ID_REF\tVALUE\n");
+			for (int j = 0; j < 100; j++) {
+				sb.append(j + "\t0.5\n");
+			}
+			sb.append("!sample_table_end\n");
+		}
+		return sb.toString().getBytes();
+	}
+	
+	@Test
+	public void testParseHeader() throws IOException, ParseException {
+		byte[] soft = createSoft();
+		GeoGSEParser parser = new GeoGSEParser();
+		// Bytes are passed in small chunks
+		for (int i = 0; i < soft.length; i += 7) {
+			parser.parseBytes(soft, i, Math.min(7, soft.length - i));
+		}
+		parser.endOfData();
+		
+		assertEquals("GSE1", parser.getSingleValue("id"));
+		assertEquals(Arrays.asList("GPL1"), parser.getValues("platformIDs"));
+		assertEquals(Arrays.asList("GSM1", "GSM2"), parser.getValues("sampleIDs"));
+		// Lines in the table bodies are not parsed
+		assertEquals(Arrays.asList("Sample 1", "Sample 2"), parser.getValues("sampleTitles"));
+	}
 }
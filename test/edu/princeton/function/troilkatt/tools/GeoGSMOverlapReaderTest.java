@@ -0,0 +1,122 @@
+package edu.princeton.function.troilkatt.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.TestSuper;
+import edu.princeton.function.troilkatt.fs.FSUtils;
+import edu.princeton.function.troilkatt.fs.OsPath;
+import edu.princeton.function.troilkatt.tools.GeoGSMOverlapReader.OverlapPart;
+
+public class GeoGSMOverlapReaderTest extends TestSuper {
+	protected static Logger testLogger;
+	protected static ArrayList<String> filenames;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		testLogger = Logger.getLogger("test");
+		GeoGSMOverlapTest.setUpBeforeClass();
+		
+		// Split the test lines into three reducer output parts
+		OsPath.mkdir(tmpDir);
+		String[] lines = GeoGSMOverlapTest.lines;
+		filenames = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			String filename = OsPath.join(tmpDir, "part-r-0000" + i);
+			String[] partLines = new String[5];
+			for (int j = 0; j < 5; j++) {
+				partLines[j] = lines[i * 5 + j];
+			}
+			FSUtils.writeTextFile(filename, partLines);
+			filenames.add(filename);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+	}
+
+	@Before
+	public void setUp() throws Exception {
+	}
+
+	@After
+	public void tearDown() throws Exception {
+	}
+
+	@Test
+	public void testOverlapPart() throws ParseException {
+		OverlapPart part = new OverlapPart();
+		for (String l: GeoGSMOverlapTest.lines) {
+			part.addLine(l);
+		}
+		part.done();
+		assertEquals(15, part.getNLines());
+		
+		GeoGSMOverlap finder = new GeoGSMOverlap();
+		assertEquals(15, part.addTo(finder));
+		assertEquals(14, finder.overlap.size());
+		assertEquals(15, finder.subsetLinks.size());
+		assertEquals(15, finder.overlap.get("GSE13142").getNOverlapSamples());
+		assertEquals(11, finder.overlap.get("GSE13").getNOverlapSamples());
+	}
+	
+	@Test(expected=ParseException.class)
+	public void testOverlapPartInvalid() throws ParseException {
+		OverlapPart part = new OverlapPart();
+		part.addLine("GSE13142\tGSE13143\t15,15\tGSM1,GSM2");
+	}
+
+	@Test
+	public void testRead() throws IOException, ParseException {
+		GeoGSMOverlap expected = new GeoGSMOverlap();
+		for (String l: GeoGSMOverlapTest.lines) {
+			expected.addOverlapLine(l);
+		}
+		
+		GeoGSMOverlapReader reader = new GeoGSMOverlapReader(2, testLogger);
+		GeoGSMOverlap finder = new GeoGSMOverlap();
+		assertEquals(15, reader.read(filenames, finder));
+		assertEquals(expected.overlap.size(), finder.overlap.size());
+		assertEquals(expected.subsetLinks.size(), finder.subsetLinks.size());
+		for (String gid: expected.overlap.keySet()) {
+			assertEquals(expected.overlap.get(gid).nSamples, finder.overlap.get(gid).nSamples);
+			assertEquals(expected.overlap.get(gid).getNOverlapSamples(), finder.overlap.get(gid).getNOverlapSamples());
+		}
+		
+		// GSM IDs are shared between links
+		assertSame(finder.subsetLinks.get(0).gsms[0], finder.subsetLinks.get(1).gsms[0]);
+		
+		// Overlap results are the same
+		finder.find(3, 2);
+		expected.find(3, 2);
+		assertEquals(expected.getRemovedIDs(), finder.getRemovedIDs());
+		assertEquals(expected.getDuplicateIDs(), finder.getDuplicateIDs());
+		assertEquals(expected.getSupersetIDs(), finder.getSupersetIDs());
+		assertEquals(expected.getRemovedSamples(), finder.getRemovedSamples());
+	}
+	
+	@Test
+	public void testReadEmpty() throws IOException, ParseException {
+		GeoGSMOverlapReader reader = new GeoGSMOverlapReader(testLogger);
+		GeoGSMOverlap finder = new GeoGSMOverlap();
+		assertEquals(0, reader.read(new ArrayList<String>(), finder));
+	}
+	
+	@Test(expected=IOException.class)
+	public void testReadMissingFile() throws IOException, ParseException {
+		GeoGSMOverlapReader reader = new GeoGSMOverlapReader(testLogger);
+		ArrayList<String> files = new ArrayList<String>(filenames);
+		files.add(OsPath.join(tmpDir, "non-existing-file"));
+		reader.read(files, new GeoGSMOverlap());
+	}
+}
@@ -0,0 +1,130 @@
+package edu.princeton.function.troilkatt.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RawTarSplitterTest {
+	protected HashMap<String, ArrayList<String>> sidp2gsm;
+	protected HashMap<String, ByteArrayOutputStream> outputs;
+	protected HashSet<String> aborted;
+	protected RawTarSplitter.OutputFactory factory;
+
+	@Before
+	public void setUp() throws Exception {
+		sidp2gsm = new HashMap<String, ArrayList<String>>();
+		sidp2gsm.put("GSE1-GPL1", new ArrayList<String>(Arrays.asList("GSM1", "GSM12")));
+		sidp2gsm.put("GSE1-GPL2", new ArrayList<String>(Arrays.asList("GSM2")));
+		sidp2gsm.put("GSE1-GPL3", new ArrayList<String>(Arrays.asList("none")));
+
+		outputs = new HashMap<String, ByteArrayOutputStream>();
+		aborted = new HashSet<String>();
+		factory = new RawTarSplitter.OutputFactory() {
+			@Override
+			public OutputStream create(String sidp) throws IOException {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				outputs.put(sidp, bos);
+				return bos;
+			}
+
+			@Override
+			public void abort(String sidp) {
+				aborted.add(sidp);
+			}
+		};
+	}
+
+	/**
+	 * Helper function to create a tar file in memory.
+	 */
+	protected static byte[] createTar(String[] names) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tout = new TarArchiveOutputStream(bos);
+		for (String n: names) {
+			byte[] content = ("content of " + n).getBytes();
+			TarArchiveEntry e = new TarArchiveEntry(n);
+			e.setSize(content.length);
+			tout.putArchiveEntry(e);
+			tout.write(content);
+			tout.closeArchiveEntry();
+		}
+		tout.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Helper function to read the entry names and contents from a tar file in memory.
+	 */
+	protected static HashMap<String, String> readTar(byte[] tar) throws IOException {
+		HashMap<String, String> entries = new HashMap<String, String>();
+		TarArchiveInputStream tin = new TarArchiveInputStream(new ByteArrayInputStream(tar));
+		TarArchiveEntry e;
+		while ((e = tin.getNextTarEntry()) != null) {
+			byte[] buf = new byte[(int) e.getSize()];
+			int n = 0;
+			while (n < buf.length) {
+				n += tin.read(buf, n, buf.length - n);
+			}
+			entries.put(e.getName(), new String(buf));
+		}
+		tin.close();
+		return entries;
+	}
+
+	@Test
+	public void testSplit() throws IOException {
+		byte[] tar = createTar(new String[] {"GSM1.CEL.gz", "GSM12_rep1.cel", "GSM2.CEL", "GSM2.txt", 
+				"README.txt", "GSM3.CEL"});
+		RawTarSplitter splitter = new RawTarSplitter(sidp2gsm, factory, Logger.getLogger("test"));
+		HashMap<String, Integer> counts = splitter.split(new ByteArrayInputStream(tar), tar.length);
+
+		assertEquals(2, counts.size());
+		assertEquals(2, (int) counts.get("GSE1-GPL1"));
+		assertEquals(1, (int) counts.get("GSE1-GPL2"));
+		assertEquals(2, outputs.size());
+
+		HashMap<String, String> gpl1 = readTar(outputs.get("GSE1-GPL1").toByteArray());
+		assertEquals(2, gpl1.size());
+		assertEquals("content of GSM1.CEL.gz", gpl1.get("GSM1.CEL.gz"));
+		assertEquals("content of GSM12_rep1.cel", gpl1.get("GSM12_rep1.cel"));
+
+		HashMap<String, String> gpl2 = readTar(outputs.get("GSE1-GPL2").toByteArray());
+		assertEquals(1, gpl2.size());
+		assertEquals("content of GSM2.CEL", gpl2.get("GSM2.CEL"));
+		assertTrue(aborted.isEmpty());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] tar = createTar(new String[] {"GSM1.CEL", "GSM2.CEL"});
+		byte[] truncated = Arrays.copyOf(tar, 1100);
+		RawTarSplitter splitter = new RawTarSplitter(sidp2gsm, factory, Logger.getLogger("test"));
+		try {
+			splitter.split(new ByteArrayInputStream(truncated), tar.length);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(aborted.contains("GSE1-GPL1"));
+		assertTrue(aborted.contains("GSE1-GPL2"));
+		
+		// Size not known
+		aborted.clear();
+		splitter.split(new ByteArrayInputStream(tar), -1);
+		assertTrue(aborted.isEmpty());
+	}
+}
@@ -0,0 +1,100 @@
+package edu.princeton.function.troilkatt.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.princeton.function.troilkatt.tools.SoftIndex.Section;
+
+public class SoftIndexTest {
+	protected String soft;
+
+	@Before
+	public void setUp() throws Exception {
+		soft = "^SERIES = GSE1\n" +
+				"!Series_title = Test\n" +
+				"^PLATFORM = GPL1\n" +
+				"!platform_table_begin\n" +
+				"ID\tVALUE\n" +
+				"!platform_table_end\n" +
+				"^SAMPLE = GSM1\n" +
+				"!Sample_title = First\n" +
+				"!sample_table_begin\n" +
+				"ID_REF\tVALUE\n" +
+				"G1\t1.0\n" +
+				"!sample_table_end\n" +
+				"\n" +
+				"^SAMPLE = GSM2\n" +
+				"!sample_table_begin\n" +
+				"G1\t2.0\n" +
+				"!sample_table_end";
+	}
+
+	@Test
+	public void testBuild() throws IOException, ParseException {
+		SoftIndex index = SoftIndex.build(new ByteArrayInputStream(soft.getBytes()));
+		assertEquals(4, index.getSections().size());
+		assertEquals(2, index.getSections("SAMPLE").size());
+
+		Section series = index.getSection("GSE1");
+		assertEquals("SERIES", series.type);
+		assertEquals(0, series.start);
+		assertEquals(-1, series.tableStart);
+		assertEquals(soft.indexOf("^PLATFORM"), series.end);
+
+		Section gsm1 = index.getSection("GSM1");
+		assertEquals(soft.indexOf("^SAMPLE = GSM1"), gsm1.start);
+		assertEquals(soft.indexOf("ID_REF"), gsm1.tableStart);
+		assertEquals(soft.indexOf("!sample_table_end"), gsm1.tableEnd);
+		assertEquals(soft.indexOf("^SAMPLE = GSM2"), gsm1.end);
+
+		// Last section ends at end of file (no newline)
+		Section gsm2 = index.getSection("GSM2");
+		assertEquals(soft.length(), gsm2.end);
+		assertNull(index.getSection("GSM3"));
+	}
+
+	@Test
+	public void testReadWrite() throws IOException, ParseException {
+		SoftIndex index = SoftIndex.build(new ByteArrayInputStream(soft.getBytes()));
+		StringWriter sw = new StringWriter();
+		BufferedWriter bw = new BufferedWriter(sw);
+		index.write(bw);
+		bw.close();
+
+		SoftIndex index2 = SoftIndex.read(new BufferedReader(new StringReader(sw.toString())));
+		assertEquals(index.getSections().size(), index2.getSections().size());
+		Section gsm1 = index2.getSection("GSM1");
+		assertEquals(index.getSection("GSM1").tableStart, gsm1.tableStart);
+		assertEquals(index.getSection("GSM1").tableEnd, gsm1.tableEnd);
+
+		try {
+			SoftIndex.read(new BufferedReader(new StringReader("SAMPLE\tGSM1\t0\n")));
+			fail("ParseException expected");
+		} catch (ParseException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOpenRange() throws IOException, ParseException {
+		SoftIndex index = SoftIndex.build(new ByteArrayInputStream(soft.getBytes()));
+		Section gsm1 = index.getSection("GSM1");
+		InputStream ins = SoftIndex.openRange(new ByteArrayInputStream(soft.getBytes()), gsm1.tableStart, gsm1.tableEnd);
+		BufferedReader br = new BufferedReader(new InputStreamReader(ins));
+		assertEquals("ID_REF\tVALUE", br.readLine());
+		assertEquals("G1\t1.0", br.readLine());
+		assertNull(br.readLine());
+		br.close();
+	}
+}
@@ -12,7 +12,9 @@ import org.junit.runners.Suite.SuiteClasses;
 	GeoGSE2PclTest.class, 
 	GeoGSEParserTest.class,
 	GeoGSMOverlapTest.class, 
-	Pcl2InfoTest.class })
+	Pcl2InfoTest.class,
+	RawTarSplitterTest.class,
+	SoftIndexTest.class })
 public class ToolTests {
 
 	public static void main(String args[]) {